@@ -0,0 +1,29 @@
+package com.darshan.android.imagedownloader;
+
+import android.app.Application;
+import android.os.AsyncTask;
+
+import com.darshan.android.imagedownloader.metrics.StartupTrace;
+import com.darshan.android.imagedownloader.utils.DownloaderUtils;
+
+/**
+ * Starts fetching the catalog as soon as the process starts, in parallel with inflating the
+ * first screen and with the user answering any permission dialog.
+ */
+public class ImageDownloaderApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        StartupTrace startupTrace = DownloaderUtils.getStartupTrace();
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                DownloaderUtils.prefetchCatalog(ImageDownloaderApplication.this);
+            }
+        });
+
+        startupTrace.mark(StartupTrace.APPLICATION_CREATED);
+    }
+}
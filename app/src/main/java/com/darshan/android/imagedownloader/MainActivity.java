@@ -1,32 +1,44 @@
 package com.darshan.android.imagedownloader;
 
 import android.Manifest;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v7.widget.DividerItemDecoration;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.ProgressBar;
 import android.widget.Toast;
 
 import com.darshan.android.imagedownloader.adapters.ImageListAdapter;
+import com.darshan.android.imagedownloader.metrics.StartupTrace;
+import com.darshan.android.imagedownloader.paging.PagedWindow;
+import com.darshan.android.imagedownloader.retrofit.CachedCatalogLoader;
+import com.darshan.android.imagedownloader.retrofit.CatalogPageLoader;
 import com.darshan.android.imagedownloader.retrofit.Image;
-import com.darshan.android.imagedownloader.retrofit.PicusumApiEndpoint;
+import com.darshan.android.imagedownloader.service.DownloadScheduler;
 import com.darshan.android.imagedownloader.utils.DownloaderUtils;
+import com.darshan.android.imagedownloader.variants.Resolution;
 
-import java.util.ArrayList;
-
-import retrofit2.Call;
-import retrofit2.Callback;
-import retrofit2.Response;
-import retrofit2.Retrofit;
-import retrofit2.converter.gson.GsonConverterFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MainActivity";
@@ -34,6 +46,10 @@ public class MainActivity extends AppCompatActivity {
     //consts
     public static final String BASE_URL = "https://picsum.photos/";
     private static final int REQUEST_STORAGE_PERMISSION = 1234;
+    //catalog paging: images per request, how far ahead to load, pages kept while scrolling
+    private static final int PAGE_SIZE = 30;
+    private static final int PREFETCH_DISTANCE = 15;
+    private static final int MAX_PAGES_IN_MEMORY = 5;
 
     //widgets
     private RecyclerView mRecyclerView;
@@ -41,7 +57,19 @@ public class MainActivity extends AppCompatActivity {
 
 
     private ImageListAdapter mRecyclerAdapter;
-    private ArrayList<Image> mImageList;
+    private PagedWindow<Image> mPagedWindow;
+    //download waiting for the storage permission
+    private Runnable mPendingDownload;
+
+    /* Catalog callbacks arrive here */
+    private final Executor mMainThreadExecutor = new Executor() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable runnable) {
+            mHandler.post(runnable);
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -53,17 +81,57 @@ public class MainActivity extends AppCompatActivity {
 
         //making progress bar visible at start of the activity
         mProgressBar.setVisibility(View.VISIBLE);
-        mImageList = new ArrayList<>();
 
         initRecyclerList();
-        checkPermissions();
+        //the catalog needs no permission, only downloads ask for it
+        loadImagesFromWeb();
+        resumePendingDownloads();
 
+        DownloaderUtils.getStartupTrace().mark(StartupTrace.ACTIVITY_CREATED);
+    }
+
+
+    /**
+     * Downloads left unfinished by an earlier run of the app continue from where they stopped.
+     * Restoring the queue opens its journal and the download index, that happens in background
+     * so it doesn't hold up the first frame.
+     */
+    private void resumePendingDownloads() {
+        //the application, the check may outlive this activity
+        final Context context = getApplicationContext();
+        DownloaderUtils.getDownloadQueueExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean pendingWork = DownloaderUtils.getDownloadQueue(context).hasPendingWork();
+                DownloaderUtils.getStartupTrace().mark(StartupTrace.DOWNLOADS_RESTORED);
+                if (pendingWork) {
+                    mMainThreadExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            DownloadScheduler.start(context);
+                        }
+                    });
+                }
+            }
+        });
     }
 
 
     private void initRecyclerList() {
         //At start no information on images is available(This info later get loaded from web).
-        mRecyclerAdapter = new ImageListAdapter(this, mImageList);
+        mRecyclerAdapter = new ImageListAdapter(this, new ImageListAdapter.OnPositionShownListener() {
+            @Override
+            public void onPositionShown(int position) {
+                if (mPagedWindow != null) {
+                    mPagedWindow.loadAround(position);
+                }
+            }
+        }, new ImageListAdapter.DownloadGate() {
+            @Override
+            public void runWhenPermitted(Runnable download) {
+                runWithStoragePermission(download);
+            }
+        });
 
         //Layout manger for list view
         LinearLayoutManager linearLayoutManager = new LinearLayoutManager(this);
@@ -81,73 +149,178 @@ public class MainActivity extends AppCompatActivity {
 
 
     /**
-     * Retrieves JSON data from URL:https://picsum.photos/list
-     * then load the appropriate image related data in RecyclerView
+     * Retrieves JSON data from URL:https://picsum.photos/list page by page,
+     * then load the appropriate image related data in RecyclerView.
+     * Further pages are loaded while the list is scrolled, far off ones are dropped again.
+     * Pages come from the catalog saved by the last run while the list is refreshed in the
+     * background, so the list shows up right away, also offline. The refresh was started when
+     * the process started, see {@link ImageDownloaderApplication}.
      */
     private void loadImagesFromWeb() {
-        //initialize Retrofit
-        final Retrofit retrofit = new Retrofit.Builder()
-                .baseUrl(BASE_URL)
-                .addConverterFactory(GsonConverterFactory.create())
-                .build();
+        CachedCatalogLoader pageLoader = new CachedCatalogLoader(DownloaderUtils.getCatalogRefresh(this),
+                new CatalogPageLoader(BASE_URL, DownloaderUtils.getCatalogClient(this)),
+                AsyncTask.THREAD_POOL_EXECUTOR, mMainThreadExecutor, new CachedCatalogLoader.Listener() {
+                    @Override
+                    public void onCatalogChanged() {
+                        //the saved catalog was outdated
+                        mPagedWindow.invalidate();
+                    }
+
+                    @Override
+                    public void onRefreshFailed(Throwable t) {
+                        //whatever was saved keeps being shown
+                        Log.w(TAG, "onRefreshFailed: catalog not refreshed", t);
+                    }
+                });
+        mPagedWindow = new PagedWindow<>(pageLoader, PAGE_SIZE, PREFETCH_DISTANCE, MAX_PAGES_IN_MEMORY,
+                new PagedWindow.Listener<Image>() {
+                    @Override
+                    public void onWindowChanged(List<Image> items) {
+                        mProgressBar.setVisibility(View.GONE);
+                        //Displaying loaded images in Recycler view
+                        mRecyclerAdapter.submitList(items);
+                        if (!items.isEmpty() && items.get(0) != null
+                                && DownloaderUtils.getStartupTrace().mark(StartupTrace.FIRST_PAGE)) {
+                            traceFirstRow();
+                        }
+                    }
 
-        PicusumApiEndpoint apiEndpoint = retrofit.create(PicusumApiEndpoint.class);
+                    @Override
+                    public void onPageFailed(int page, Throwable t) {
+                        Log.e(TAG, "onPageFailed: Unable to retrieve images of page " + page, t);
+                        mProgressBar.setVisibility(View.GONE);
+                        Toast.makeText(
+                                MainActivity.this,
+                                "Some error occurs, try again later!",
+                                Toast.LENGTH_SHORT).show();
+                    }
+                });
+        //first page
+        mPagedWindow.loadAround(0);
+    }
 
-        Call<ArrayList<Image>> call = apiEndpoint.getImages();
 
-        //Trying to get image list from the URL
-        call.enqueue(new Callback<ArrayList<Image>>() {
+    /**
+     * Marks the first frame that draws a row of the list, the end of a cold start.
+     */
+    private void traceFirstRow() {
+        mRecyclerView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
             @Override
-            public void onResponse(Call<ArrayList<Image>> call, Response<ArrayList<Image>> response) {
-                //HTTP Response code
-                int responseCode = response.code();
-                Log.d(TAG, "onResponse: code " + responseCode);
-
-                //Retrieve images info from JSON response
-                ArrayList<Image> imageList = response.body();
-
-                if(imageList != null && imageList.size() >= 20) {
-                    //Get 20 images from the loaded imageList
-                    int ranNum = DownloaderUtils.getRandomNumBetween(imageList.size() - 20, 0);
-                    Log.d(TAG, "onResponse: random " + ranNum);
-                    for (int i = ranNum; i < ranNum + 20; i++) {
-                        mImageList.add(imageList.get(i));
+            public boolean onPreDraw() {
+                if (mRecyclerView.getChildCount() == 0) {
+                    return true;
+                }
+                mRecyclerView.getViewTreeObserver().removeOnPreDrawListener(this);
+                StartupTrace startupTrace = DownloaderUtils.getStartupTrace();
+                if (startupTrace.mark(StartupTrace.FIRST_ROW)) {
+                    Log.i(TAG, "onPreDraw: " + startupTrace);
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                        //shows up as "Fully drawn" in the ActivityManager log
+                        reportFullyDrawn();
                     }
-
-                    mProgressBar.setVisibility(View.GONE);
-                    //Displaying 20 images in Recycler view
-                    mRecyclerAdapter.notifyDataSetChanged();
                 }
+                return true;
             }
+        });
+    }
 
-            @Override
-            public void onFailure(Call<ArrayList<Image>> call, Throwable t) {
-                Log.e(TAG, "onFailure: Unable to retrieve images" );
-                mProgressBar.setVisibility(View.GONE);
-                Toast.makeText(
-                        MainActivity.this,
-                        "Some error occurs, try again later!",
-                        Toast.LENGTH_SHORT).show();
-                t.printStackTrace();
+
+    @Override
+    protected void onDestroy() {
+        //running downloads outlive the activity, their rows don't
+        mRecyclerAdapter.release();
+        super.onDestroy();
+    }
+
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        //thumbnails are the bulk of the app's memory
+        DownloaderUtils.getThumbnailLoader(this).trimMemory(level);
+    }
+
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+        menu.findItem(R.id.action_metrics).setVisible(BuildConfig.DEBUG);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.action_download_all: {
+                List<Image> images = mPagedWindow != null
+                        ? mPagedWindow.getLoadedItems() : Collections.<Image>emptyList();
+                if (images.isEmpty()) {
+                    //image list not loaded yet
+                    return true;
+                }
+                final List<Image> batch = images;
+                runWithStoragePermission(new Runnable() {
+                    @Override
+                    public void run() {
+                        //All loaded images as one batch, progress is shown in a single notification
+                        DownloaderUtils.startBatchDownload(MainActivity.this, batch);
+                        Toast.makeText(MainActivity.this, "Downloading " + batch.size() + " images",
+                                Toast.LENGTH_SHORT).show();
+                    }
+                });
+                return true;
             }
-        });
+            case R.id.action_download_size: {
+                showDownloadSizes();
+                return true;
+            }
+            case R.id.action_metrics: {
+                startActivity(new Intent(this, MetricsActivity.class));
+                return true;
+            }
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
 
+    /**
+     * Lets the user pick the {@link Resolution} of later downloads.
+     */
+    private void showDownloadSizes() {
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.download_size)
+                .setSingleChoiceItems(R.array.download_sizes,
+                        DownloaderUtils.getDownloadResolution(this).ordinal(),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                DownloaderUtils.setDownloadResolution(MainActivity.this,
+                                        Resolution.values()[which]);
+                                dialog.dismiss();
+                            }
+                        })
+                .show();
     }
 
 
-    private void checkPermissions() {
+    /**
+     * Runs {@code download} now if images can be saved, else once the user granted the storage
+     * permission. Only the last download asked for waits for the answer.
+     */
+    private void runWithStoragePermission(Runnable download) {
         // Check for the external storage permission
         if (ContextCompat.checkSelfPermission(this,
                 Manifest.permission.WRITE_EXTERNAL_STORAGE)
                 != PackageManager.PERMISSION_GRANTED) {
 
             // If you do not have permission, request it
+            mPendingDownload = download;
             ActivityCompat.requestPermissions(this,
                     new String[]{Manifest.permission.WRITE_EXTERNAL_STORAGE},
                     REQUEST_STORAGE_PERMISSION);
         } else {
             //Permission is granted proceed
-            loadImagesFromWeb();
+            download.run();
         }
     }
 
@@ -157,15 +330,18 @@ public class MainActivity extends AppCompatActivity {
         // Called when you request permission to read and write to external storage
         switch (requestCode) {
             case REQUEST_STORAGE_PERMISSION: {
+                Runnable download = mPendingDownload;
+                mPendingDownload = null;
                 if (grantResults.length > 0
                         && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
                     // If you get permission, proceed
-                    loadImagesFromWeb();
+                    if (download != null) {
+                        download.run();
+                    }
 
                 } else {
-                    // If you do not get permission, show a Toast and exit from app.
+                    // If you do not get permission, show a Toast, the list stays usable
                     Toast.makeText(this, R.string.permission_denied, Toast.LENGTH_SHORT).show();
-                    finish();
                 }
                 break;
             }
@@ -0,0 +1,81 @@
+package com.darshan.android.imagedownloader;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import com.darshan.android.imagedownloader.engine.DownloadEngine;
+import com.darshan.android.imagedownloader.metrics.Metrics;
+import com.darshan.android.imagedownloader.utils.DownloaderUtils;
+
+/**
+ * Debug screen with the app's {@link Metrics}, durations in microseconds. The JSON export goes
+ * to any app that takes text, eg. mail or a drive.
+ */
+public class MetricsActivity extends AppCompatActivity {
+
+    //widgets
+    private TextView mMetricsTextView;
+
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+        mMetricsTextView = findViewById(R.id.metrics_TV);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        showMetrics();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_metrics, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.action_refresh_metrics: {
+                showMetrics();
+                return true;
+            }
+            case R.id.action_export_metrics: {
+                Intent intent = new Intent(Intent.ACTION_SEND)
+                        .setType("application/json")
+                        .putExtra(Intent.EXTRA_SUBJECT, getString(R.string.app_name) + " metrics")
+                        .putExtra(Intent.EXTRA_TEXT, DownloaderUtils.getMetrics().toJson());
+                startActivity(Intent.createChooser(intent, getString(R.string.export_json)));
+                return true;
+            }
+            case R.id.action_reset_metrics: {
+                DownloaderUtils.getMetrics().reset();
+                showMetrics();
+                return true;
+            }
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+
+    private void showMetrics() {
+        //not created just for this screen, that would open the download index
+        DownloadEngine engine = DownloaderUtils.peekDownloadEngine();
+        String text = (engine != null
+                ? "concurrency limit = " + engine.getConcurrencyLimit()
+                + "\nmeasured bandwidth = " + engine.getMeasuredBandwidth() + " B/s"
+                + "\nmeasured latency = " + engine.getMeasuredLatencyMillis() + " ms"
+                : "no downloads yet")
+                + "\n" + DownloaderUtils.getNetworkModule().getConnectionMetrics()
+                + "\n" + DownloaderUtils.getVariantSavings()
+                + "\n\n" + DownloaderUtils.getMetrics().dump();
+        mMetricsTextView.setText(text);
+    }
+}
@@ -1,47 +1,143 @@
 package com.darshan.android.imagedownloader.adapters;
 
 import android.content.Context;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.ImageView;
 import android.widget.SeekBar;
 import android.widget.TextView;
 
 import com.darshan.android.imagedownloader.R;
+import com.darshan.android.imagedownloader.engine.DownloadEngine;
+import com.darshan.android.imagedownloader.engine.DownloadJob;
+import com.darshan.android.imagedownloader.engine.DownloadListener;
+import com.darshan.android.imagedownloader.engine.DownloadRequest;
 import com.darshan.android.imagedownloader.retrofit.Image;
+import com.darshan.android.imagedownloader.service.DownloadScheduler;
+import com.darshan.android.imagedownloader.thumbnails.ThumbnailLoader;
 import com.darshan.android.imagedownloader.utils.DownloaderUtils;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.URL;
-import java.net.URLConnection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Adapter for displaying Image List in MainActivity
  */
 public class ImageListAdapter extends RecyclerView.Adapter<ImageListAdapter.ViewHolder>{
     private static final String TAG = "ImageListAdapter";
+    //shared by all images, every image's notification is told apart by its file name as tag
     private static final int NOTIFICATION_ID = 1111;
+    //most one progress notification per download in this time
+    private static final long NOTIFICATION_UPDATE_INTERVAL_MS = 500;
+    //rebinds only the download part of a row
+    private static final Object PAYLOAD_DOWNLOAD = new Object();
 
     private Context mContext;
-    private List<Image> mImageList;
+    //null items are placeholders for images not loaded (yet)
+    private List<Image> mImageList = Collections.emptyList();
+    private OnPositionShownListener mPositionShownListener;
+    private DownloadGate mDownloadGate;
+    private ThumbnailLoader mThumbnailLoader;
+    //thumbnails are requested at the size of their view, in pixels
+    private int mThumbnailSize;
+    //progress of all running downloads reaches the UI-Thread through this
+    private final ProgressBatcher mProgressBatcher = new ProgressBatcher();
+    //downloads started from this list, outlive the adapter while they run
+    private final RowDownloads mRowDownloads = new RowDownloads(this);
 
 
-    public ImageListAdapter(Context mContext, List<Image> mImageList) {
+    /**
+     * Told about every position that gets bound, including the ones RecyclerView prefetches
+     * ahead of scrolling, so the next page can be loaded before it is needed.
+     */
+    public interface OnPositionShownListener {
+        void onPositionShown(int position);
+    }
+
+
+    /**
+     * Downloads go through here, they need the storage permission the list itself does without.
+     */
+    public interface DownloadGate {
+        /* Runs download now, later or never, on the UI-Thread */
+        void runWhenPermitted(Runnable download);
+    }
+
+
+    public ImageListAdapter(Context mContext, OnPositionShownListener positionShownListener,
+                            DownloadGate downloadGate) {
         this.mContext = mContext;
-        this.mImageList = mImageList;
+        this.mPositionShownListener = positionShownListener;
+        this.mDownloadGate = downloadGate;
+        this.mThumbnailLoader = DownloaderUtils.getThumbnailLoader(mContext);
+        this.mThumbnailSize = mContext.getResources().getDimensionPixelSize(R.dimen.thumbnail_size);
+    }
+
+
+    /**
+     * Stops updating rows, downloads still running keep only their notification.
+     * Call it when the activity is destroyed, so the downloads don't hold on to it.
+     */
+    public void release() {
+        mRowDownloads.detach();
+    }
+
+
+    /**
+     * Replaces the displayed images, only the rows that actually changed are updated.
+     * @param images new list, null items are shown as loading placeholders
+     */
+    public void submitList(final List<Image> images) {
+        final List<Image> oldImages = mImageList;
+        DiffUtil.DiffResult diffResult = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldImages.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return images.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                Image oldImage = oldImages.get(oldItemPosition);
+                Image newImage = images.get(newItemPosition);
+                if (oldImage == null || newImage == null) {
+                    //placeholder loaded or dropped, same row in any case
+                    return oldItemPosition == newItemPosition;
+                }
+                return oldImage.getId() != null && oldImage.getId().equals(newImage.getId());
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                //catalog entries never change, only placeholders do
+                return oldImages.get(oldItemPosition) == images.get(newItemPosition);
+            }
+        }, false);
+        mImageList = images;
+        diffResult.dispatchUpdatesTo(this);
+        mRowDownloads.retain(images);
     }
 
     /**
@@ -62,6 +158,20 @@ public class ImageListAdapter extends RecyclerView.Adapter<ImageListAdapter.View
     }
 
 
+    /**
+     * Only the download state when that is all that changed, else the whole row.
+     */
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        Image currentImage = mImageList.get(position);
+        if (payloads.isEmpty() || currentImage == null) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        bindDownload(holder, mRowDownloads.get(downloadKey(currentImage)));
+    }
+
+
     /**
      * Views of item_image layout are populated here
      * @param holder ViewHolder object for item_image layout
@@ -70,22 +180,103 @@ public class ImageListAdapter extends RecyclerView.Adapter<ImageListAdapter.View
     @Override
     public void onBindViewHolder(@NonNull final ViewHolder holder, int position) {
         final Image currentImage = mImageList.get(position);
-
+        mPositionShownListener.onPositionShown(position);
+
+        if (currentImage == null) {
+            //page of this row is still loading
+            holder.tvFileName.setText(R.string.loading);
+            holder.tvAuthor.setText(null);
+            mThumbnailLoader.clear(holder.ivThumbnail);
+            //the holder may come from a row that was downloading
+            bindDownload(holder, null);
+            holder.btnDownload.setVisibility(View.INVISIBLE);
+            holder.btnDownload.setOnClickListener(null);
+            return;
+        }
         holder.tvFileName.setText(currentImage.getFilename());
         holder.tvAuthor.setText(currentImage.getAuthor());
+        //decoded and cached off the UI-Thread, shown at once when it is in memory
+        mThumbnailLoader.load(currentImage, holder.ivThumbnail, mThumbnailSize, mThumbnailSize);
+        final String key = downloadKey(currentImage);
 
         //Set onclick listener for Download button
         holder.btnDownload.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                //To prevent user from clicking same button again and again
-                holder.btnDownload.setClickable(false);
-                //Download image in background
-                new DownloadAsyncTask(currentImage.getFilename(), holder.btnDownload, holder.sbProgress)
-                        .execute(currentImage.getPostUrl());
+                mDownloadGate.runWhenPermitted(new Runnable() {
+                    @Override
+                    public void run() {
+                        //To prevent user from clicking same button again and again
+                        mRowDownloads.update(key, DownloadJob.State.RUNNING, 0);
+                        //Image will be saved in Phone memory under Pictures/Picsum folder
+                        final DownloadRequest request = DownloaderUtils.getDownloadRequest(
+                                DownloaderUtils.getDownloadVariant(mContext, currentImage),
+                                DownloadRequest.Priority.NORMAL);
+                        final Context context = mContext.getApplicationContext();
+                        final DownloadObserver observer = new DownloadObserver(context, key,
+                                currentImage.getFilename(), mRowDownloads, mProgressBatcher);
+
+                        //Download image in background, the engine runs several downloads in parallel.
+                        //Queued downloads are persisted, so they survive the activity and the process.
+                        //Enqueueing writes the journal, so it happens off the UI-Thread
+                        DownloaderUtils.getDownloadQueueExecutor().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                DownloaderUtils.getDownloadQueue(context).enqueue(request, observer);
+                            }
+                        });
+                        //keeps the process alive while the download runs
+                        DownloadScheduler.start(mContext);
+                    }
+                });
             }
         });
+        //all of it, the holder may have shown another image's download before. After the
+        //listener, setting one makes the button clickable again
+        bindDownload(holder, mRowDownloads.get(key));
+    }
+
+
+    /**
+     * Shows the state of the row's download, on whichever holder shows the row by now.
+     * Sets every view the download touches, holders are reused across rows.
+     * @param download null when none was started from the row
+     */
+    private void bindDownload(ViewHolder holder, RowDownload download) {
+        DownloadJob.State state = download != null ? download.mState : null;
+        //downloaded, nothing left to do in this row
+        holder.btnDownload.setVisibility(state == DownloadJob.State.COMPLETED ? View.GONE : View.VISIBLE);
+        holder.btnDownload.setText(state == DownloadJob.State.FAILED ? R.string.retry : R.string.download);
+        holder.btnDownload.setClickable(state != DownloadJob.State.RUNNING);
+        holder.sbProgress.setVisibility(state == DownloadJob.State.RUNNING ? View.VISIBLE : View.GONE);
+        holder.sbProgress.setMax(100);
+        holder.sbProgress.setProgress(download != null ? download.mProgress : 0);
+    }
 
+    /* Key of the rows showing image, its content key or the file name when it lacks an id */
+    private static String downloadKey(Image image) {
+        String key = DownloaderUtils.getContentKey(image);
+        return key != null ? key : image.getFilename();
+    }
+
+    /* Rebinds the download part of the rows showing key, UI-Thread only */
+    private void onRowDownloadChanged(String key) {
+        for (int position = 0; position < mImageList.size(); position++) {
+            Image image = mImageList.get(position);
+            if (image != null && key.equals(downloadKey(image))) {
+                notifyItemChanged(position, PAYLOAD_DOWNLOAD);
+            }
+        }
+    }
+
+
+    /**
+     * Row scrolled off, its thumbnail is not needed anymore. Cached bitmaps stay cached,
+     * the others are decoded into again.
+     */
+    @Override
+    public void onViewRecycled(@NonNull ViewHolder holder) {
+        mThumbnailLoader.clear(holder.ivThumbnail);
     }
 
 
@@ -101,6 +292,7 @@ public class ImageListAdapter extends RecyclerView.Adapter<ImageListAdapter.View
     /* ViewHolder class for item_image layout */
     class ViewHolder extends RecyclerView.ViewHolder {
         TextView tvFileName, tvAuthor;
+        ImageView ivThumbnail;
         Button btnDownload, btnRetry;
         SeekBar sbProgress;
 
@@ -109,6 +301,7 @@ public class ImageListAdapter extends RecyclerView.Adapter<ImageListAdapter.View
 
             tvFileName = itemView.findViewById(R.id.fileName_TV);
             tvAuthor = itemView.findViewById(R.id.author_TV);
+            ivThumbnail = itemView.findViewById(R.id.thumbnail_IV);
             btnDownload = itemView.findViewById(R.id.download_Btn);
             btnRetry = itemView.findViewById(R.id.retry_Btn);
             sbProgress = itemView.findViewById(R.id.progress_SeekBar);
@@ -116,175 +309,239 @@ public class ImageListAdapter extends RecyclerView.Adapter<ImageListAdapter.View
     }
 
 
-    //-------------------------------------    AsyncTask ------------------------------------------//
-     class DownloadAsyncTask extends AsyncTask<String, Integer, Boolean> {
-        private Button mDownloadBtn;
-        private SeekBar mProgressSeekBar;
-        private String mImageFileName;
+    //-------------------------------------    Download state -----------------------------------//
+    /**
+     * Where a download started from a row got to.
+     */
+    private static class RowDownload {
+        private DownloadJob.State mState;
+        private int mProgress;
+    }
 
-        private NotificationCompat.Builder mBuilder;
-        private NotificationManagerCompat mNotificationManager;
-        private int mPreviousProgress = 0;
+    /**
+     * State of the downloads started from the list, by row key. The download observers write
+     * here, not into views: rows get recycled and the activity may be gone long before a
+     * download is. Rows showing a key are rebound while the adapter is attached. Finished
+     * downloads are kept while their rows are in the list only. UI-Thread only.
+     */
+    private static class RowDownloads {
+        private final Map<String, RowDownload> mDownloads = new HashMap<>();
+        private ImageListAdapter mAdapter;
 
-        private DownloadAsyncTask(String fileName, Button downloadBtn, SeekBar seekBar) {
-            mImageFileName = fileName;
-            mDownloadBtn = downloadBtn;
-            mProgressSeekBar = seekBar;
+        private RowDownloads(ImageListAdapter adapter) {
+            mAdapter = adapter;
         }
 
+        private RowDownload get(String key) {
+            return mDownloads.get(key);
+        }
 
-        /**
-         * This method will download image in background.
-         * Runs in Worker-Thread
-         *
-         * @param urls from .execute(). Values passed when AsyncTask got executed
-         * @return null
-         */
-        @Override
-        protected Boolean doInBackground(String... urls) {
-            int count;
-            //can the selected image be downloaded at the time.
-            boolean downloadable = false;
-            try {
-                //urls[0] have post_url of image, we can get image download url by appending "/download" to it.
-                String downloadImage = urls[0] + "/download";
-                URL imageUrl = new URL(downloadImage);
-
-                URLConnection urlConnection = imageUrl.openConnection();
-                urlConnection.connect();
-
-                // getting file length
-                int fileLength = urlConnection.getContentLength();
-                Log.d(TAG, "doInBackground: file length " + fileLength);
-
-                if (fileLength > -1) {
-                    downloadable = true;
-
-                    // input stream to read file - with 8k buffer
-                    InputStream inputStream = new BufferedInputStream(imageUrl.openStream(), 8192);
-
-                /*
-                    File saveLocation, where new image will be saved
-                    Image will be saved in Phone memory under Pictures/Picsum folder,
-                    with name image's file name(provided by urls[1])
-                 */
-                    File saveLocation = new File(DownloaderUtils.getImageDirectory(), mImageFileName);
-                    // Output stream to write file
-                    OutputStream outputStream = new FileOutputStream(saveLocation);
-
-                    byte[] data = new byte[1024];
-                    long total = 0;
-                    //input.read(data) Read upto 1kb of data at a time. If their is no data to read it returns -1
-                    while ((count = inputStream.read(data)) != -1) {
-                        total += count;
-                        // publishing the progress....
-                        // After this onProgressUpdate will be called
-                        if (fileLength > 0) {
-                            publishProgress((int) ((total * 100) / fileLength));
-                            // writing data to file
-                            outputStream.write(data, 0, count);
-                        }
-                    }
+        private void update(String key, DownloadJob.State state, int progress) {
+            RowDownload download = mDownloads.get(key);
+            if (download == null) {
+                download = new RowDownload();
+                mDownloads.put(key, download);
+            }
+            download.mState = state;
+            download.mProgress = progress;
+            if (mAdapter != null) {
+                mAdapter.onRowDownloadChanged(key);
+            }
+        }
 
-                    // flushing output
-                    outputStream.flush();
-                    // closing streams
-                    outputStream.close();
-                    inputStream.close();
-                }
+        /* Download gone, the row looks like it was never started */
+        private void remove(String key) {
+            if (mDownloads.remove(key) != null && mAdapter != null) {
+                mAdapter.onRowDownloadChanged(key);
+            }
+        }
 
-            } catch (IOException e) {
-                // closing streams
-                e.printStackTrace();
+        /* Forgets finished downloads of rows no longer in the list, running ones update anyway */
+        private void retain(List<Image> images) {
+            if (mDownloads.isEmpty()) {
+                return;
+            }
+            Set<String> keys = new HashSet<>();
+            for (Image image : images) {
+                if (image != null) {
+                    keys.add(downloadKey(image));
+                }
             }
+            Iterator<Map.Entry<String, RowDownload>> downloads = mDownloads.entrySet().iterator();
+            while (downloads.hasNext()) {
+                Map.Entry<String, RowDownload> download = downloads.next();
+                if (download.getValue().mState != DownloadJob.State.RUNNING && !keys.contains(download.getKey())) {
+                    downloads.remove();
+                }
+            }
+        }
 
-            return downloadable;
+        private void detach() {
+            mAdapter = null;
         }
+    }
 
-        /**
-         * This method will get executed before background execution start.
-         * Runs in UI-Thread
-         */
-        @Override
-        protected void onPreExecute() {
-            super.onPreExecute();
 
-            Log.d(TAG, "onPreExecute: ");
-            mProgressSeekBar.setVisibility(View.VISIBLE);
-            mProgressSeekBar.setMax(100);
+    //-------------------------------------    Download observer --------------------------------//
+    /**
+     * Observes one download job of the {@link DownloadEngine} and mirrors its progress
+     * in the {@link RowDownloads} of the list and in a notification.
+     * Engine callbacks arrive on worker threads. Progress goes through the shared
+     * {@link ProgressBatcher}, so all rows are updated in one pass per frame.
+     * Static and holding the application only, it lives as long as the job does.
+     */
+    private static class DownloadObserver implements DownloadListener, ProgressBatcher.Target {
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+        private final Context mContext;
+        private final String mKey;
+        private final String mImageFileName;
+        private final RowDownloads mRowDownloads;
+        private final ProgressBatcher mProgressBatcher;
+
+        private NotificationCompat.Builder mBuilder;
+        private NotificationManagerCompat mNotificationManager;
+        //last percent handed to the batcher, only touched by the worker thread
+        private int mPreviousProgress = 0;
+        //UI-Thread only
+        private long mLastNotifyMillis;
+
+        //instrumentation, to verify how much UI work one download causes
+        private volatile int mProgressCallbacks;
+        private volatile int mMainThreadPosts;
+        private int mAppliedFrames;
+        private int mNotifyCalls;
+
+        private DownloadObserver(Context applicationContext, String key, String fileName,
+                                 RowDownloads rowDownloads, ProgressBatcher progressBatcher) {
+            mContext = applicationContext;
+            mKey = key;
+            mImageFileName = fileName;
+            mRowDownloads = rowDownloads;
+            mProgressBatcher = progressBatcher;
             createNotification();
         }
 
+        @Override
+        public void onStart(DownloadJob job) {
+            Log.d(TAG, "onStart: " + job.getRequest().getUrl());
+        }
+
         /**
-         * Usually called from doInBackground() method to indicate background task progress.
-         * This method runs in UI-Thread.
-         *
-         * @param values indicates progress back ground task execution.
+         * Already throttled by the engine, only percent changes are handed to the batcher.
          */
         @Override
-        protected void onProgressUpdate(Integer... values) {
-            super.onProgressUpdate(values);
-
-            int progress = values[0];
-            //for smooth progressbar transition
-            if (mPreviousProgress < progress) {
-//                Log.d(TAG, "onProgressUpdate: " + progress);
-                //Displaying download progress in images list
-                mProgressSeekBar.setProgress(progress);
+        public void onProgress(DownloadJob job, long bytesDownloaded, long totalBytes) {
+            mProgressCallbacks++;
+            if (totalBytes <= 0) {
+                return;
+            }
+            int progress = (int) ((bytesDownloaded * 100) / totalBytes);
+            //for smooth progressbar transition, lower again when a retry started over
+            if (mPreviousProgress != progress) {
+                mPreviousProgress = progress;
+                mProgressBatcher.update(this, progress);
+            }
+        }
 
+        /**
+         * Runs in UI-Thread, once per frame at most.
+         */
+        @Override
+        public void applyProgress(int progress) {
+            mAppliedFrames++;
+            //Displaying download progress in images list
+            mRowDownloads.update(mKey, DownloadJob.State.RUNNING, progress);
+
+            //The system drops notification updates that come too fast anyway
+            long now = SystemClock.uptimeMillis();
+            if (now - mLastNotifyMillis >= NOTIFICATION_UPDATE_INTERVAL_MS) {
+                mLastNotifyMillis = now;
                 //Display download progress in notification
                 mBuilder.setContentText("Download in progress")
                         .setProgress(100, progress, false);
-                mNotificationManager.notify(NOTIFICATION_ID, mBuilder.build());
-
-                mPreviousProgress = progress;
+                notifyProgress();
             }
-
         }
 
-
-        /**
-         * When back ground task(here downloading file) got completed,
-         * this method will be executed in UI-Thread.
-         *
-         * @param downloadable result from doInBackground() method
-         */
         @Override
-        protected void onPostExecute(Boolean downloadable) {
-            super.onPostExecute(downloadable);
+        public void onComplete(DownloadJob job, File file) {
+            mProgressBatcher.remove(this);
+            postToMain(new Runnable() {
+                @Override
+                public void run() {
+                    //Image is downloaded successfully
+                    mRowDownloads.update(mKey, DownloadJob.State.COMPLETED, 100);
+                    finished();
+                }
+            });
 
-            //Image is downloaded successfully
-            if (downloadable) {
-                mDownloadBtn.setVisibility(View.GONE);
             /*
                 In case of fast image download, some time "Download complete" notification does not shows
-                in order to show this notification all the time make Thread sleep for 1sec
+                in order to show this notification all the time post it 1sec later
              */
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            mMainThreadPosts++;
+            mMainHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    // When done, update the notification one more time to remove the progress bar
+                    mBuilder.setContentText("Download complete")
+                            .setProgress(0, 0, false);
+                    notifyProgress();
                 }
+            }, 1000);
+        }
 
-                // When done, update the notification one more time to remove the progress bar
-                mBuilder.setContentText("Download complete")
-                        .setProgress(0, 0, false);
-                mNotificationManager.notify(NOTIFICATION_ID, mBuilder.build());
-
-            } else {
-                /* some problem like (file_legth = -1) occurs while downloading
-                    so ask the user to retry downloading image */
-                mDownloadBtn.setText(R.string.retry);
-                // Show download failed notification
-                mBuilder.setContentText("Download failed")
-                        .setProgress(0, 0, false);
-                mNotificationManager.notify(NOTIFICATION_ID, mBuilder.build());
-            }
+        @Override
+        public void onFailure(DownloadJob job, IOException e) {
+            Log.e(TAG, "onFailure: unable to download " + job.getRequest().getUrl(), e);
+            mProgressBatcher.remove(this);
+            postToMain(new Runnable() {
+                @Override
+                public void run() {
+                    /* some problem occurs while downloading
+                        so ask the user to retry downloading image */
+                    mRowDownloads.update(mKey, DownloadJob.State.FAILED, 0);
+                    // Show download failed notification
+                    mBuilder.setContentText("Download failed")
+                            .setProgress(0, 0, false);
+                    notifyProgress();
+                    finished();
+                }
+            });
+        }
 
-            //anyway, hide the seek bar showing download progress in image list.
-            mProgressSeekBar.setVisibility(View.GONE);
-            //make Download button clickable
-            mDownloadBtn.setClickable(true);
+        @Override
+        public void onCancelled(DownloadJob job) {
+            mProgressBatcher.remove(this);
+            postToMain(new Runnable() {
+                @Override
+                public void run() {
+                    mRowDownloads.remove(mKey);
+                    mNotificationManager.cancel(mImageFileName, NOTIFICATION_ID);
+                    finished();
+                }
+            });
+        }
+
+        /* Runs in UI-Thread once the job reached a final state */
+        private void finished() {
+            Log.d(TAG, "finished: " + mImageFileName
+                    + " progress callbacks " + mProgressCallbacks
+                    + ", frames " + mAppliedFrames
+                    + ", own main thread posts " + mMainThreadPosts
+                    + ", notify calls " + mNotifyCalls
+                    + ", batched main thread posts (all downloads) " + mProgressBatcher.getMainThreadPostCount());
+        }
+
+        private void postToMain(Runnable runnable) {
+            mMainThreadPosts++;
+            mMainHandler.post(runnable);
+        }
+
+        private void notifyProgress() {
+            mNotifyCalls++;
+            mNotificationManager.notify(mImageFileName, NOTIFICATION_ID, mBuilder.build());
         }
 
 
@@ -298,14 +555,14 @@ public class ImageListAdapter extends RecyclerView.Adapter<ImageListAdapter.View
             mBuilder.setContentTitle(mImageFileName)
                     .setContentText("Waiting for network")
                     .setSmallIcon(R.drawable.ic_notification)
+                    .setGroup(DownloaderUtils.NOTIFICATION_GROUP_DOWNLOADS)
                     .setOnlyAlertOnce(true)
                     .setPriority(NotificationCompat.PRIORITY_LOW);
 
             // Issue the initial notification with zero progress
             mBuilder.setProgress(100, 0, false);
-            mNotificationManager.notify(NOTIFICATION_ID, mBuilder.build());
+            notifyProgress();
         }
     }
 
 }
-
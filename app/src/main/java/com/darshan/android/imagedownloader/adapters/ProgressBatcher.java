@@ -0,0 +1,99 @@
+package com.darshan.android.imagedownloader.adapters;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the progress of all running downloads from the engine's worker threads and applies it
+ * on the UI-Thread in one pass per frame.
+ * However many downloads report in between, the UI-Thread gets a single post per frame.
+ */
+public class ProgressBatcher {
+
+    /**
+     * Something showing the progress of one download, eg. a row of the image list.
+     */
+    public interface Target {
+        /* Runs in UI-Thread */
+        void applyProgress(int percent);
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    //latest progress per target since the last frame, guarded by this
+    private final Map<Target, Integer> mPendingProgress = new LinkedHashMap<>();
+    private boolean mFrameScheduled;
+
+    //instrumentation
+    private final AtomicInteger mMainThreadPosts = new AtomicInteger();
+    private int mFrames;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            List<Map.Entry<Target, Integer>> updates;
+            synchronized (ProgressBatcher.this) {
+                updates = new ArrayList<>(mPendingProgress.entrySet());
+                mPendingProgress.clear();
+                mFrameScheduled = false;
+            }
+            mFrames++;
+            for (Map.Entry<Target, Integer> update : updates) {
+                update.getKey().applyProgress(update.getValue());
+            }
+        }
+    };
+
+    private final Runnable mScheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            //Choreographer belongs to the thread it is obtained on
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    };
+
+    /**
+     * Records the progress of a download, may be called from any thread.
+     * Only the latest value per target before the next frame is applied.
+     */
+    public void update(Target target, int percent) {
+        boolean scheduleFrame;
+        synchronized (this) {
+            mPendingProgress.put(target, percent);
+            scheduleFrame = !mFrameScheduled;
+            mFrameScheduled = true;
+        }
+        if (scheduleFrame) {
+            mMainThreadPosts.incrementAndGet();
+            mMainHandler.post(mScheduleFrame);
+        }
+    }
+
+    /**
+     * Drops a pending update, eg. because its download already finished.
+     */
+    public synchronized void remove(Target target) {
+        mPendingProgress.remove(target);
+    }
+
+    /**
+     * Number of Runnables posted to the UI-Thread so far, for all downloads together.
+     */
+    public int getMainThreadPostCount() {
+        return mMainThreadPosts.get();
+    }
+
+    /**
+     * Number of frames in which progress was applied. Read it on the UI-Thread.
+     */
+    public int getFrameCount() {
+        return mFrames;
+    }
+}
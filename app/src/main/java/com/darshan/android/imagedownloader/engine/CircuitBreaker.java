@@ -0,0 +1,135 @@
+package com.darshan.android.imagedownloader.engine;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stops sending requests to a host after it failed {@code failureThreshold} times in a row.
+ * <p>
+ * The host's circuit then stays open for {@code openMillis}, or as long as the server's
+ * {@code Retry-After} asks for. Afterwards one request is let through as a trial: its success
+ * closes the circuit, its failure opens it again for twice as long as before, up to
+ * {@link #MAX_OPEN_MULTIPLIER} times {@code openMillis}. Each host has a circuit of its own.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        /* requests pass */
+        CLOSED,
+        /* requests wait until the circuit is due for a trial */
+        OPEN,
+        /* one trial request is under way */
+        HALF_OPEN
+    }
+
+    /* Open time keeps doubling with failed trials up to this multiple of openMillis */
+    static final int MAX_OPEN_MULTIPLIER = 16;
+
+    private final Clock mClock;
+    private final int mFailureThreshold;
+    private final long mOpenMillis;
+
+    //guarded by this
+    private final Map<String, Circuit> mCircuits = new HashMap<>();
+
+    public CircuitBreaker(Clock clock, int failureThreshold, long openMillis) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold < 1");
+        }
+        mClock = clock;
+        mFailureThreshold = failureThreshold;
+        mOpenMillis = openMillis;
+    }
+
+    /**
+     * Asks for a request to {@code host}. When this lets the trial of an open circuit through,
+     * its outcome has to be reported with {@link #onSuccess} or {@link #onFailure}.
+     *
+     * @return true when the request may be sent now
+     */
+    public synchronized boolean allowRequest(String host) {
+        Circuit circuit = mCircuits.get(host);
+        if (circuit == null || circuit.mState == State.CLOSED) {
+            return true;
+        }
+        if (circuit.mState == State.OPEN && mClock.nowMillis() >= circuit.mOpenUntilMillis) {
+            circuit.mState = State.HALF_OPEN;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A request to {@code host} got an answer the host is healthy enough to give.
+     */
+    public synchronized void onSuccess(String host) {
+        mCircuits.remove(host);
+    }
+
+    /**
+     * A request to {@code host} failed in a way that may be the host's fault.
+     *
+     * @param retryAfterMillis time the server asked to wait, -1 for none
+     */
+    public synchronized void onFailure(String host, long retryAfterMillis) {
+        Circuit circuit = mCircuits.get(host);
+        if (circuit == null) {
+            circuit = new Circuit();
+            mCircuits.put(host, circuit);
+        }
+        circuit.mFailures++;
+        long now = mClock.nowMillis();
+        if (circuit.mState == State.HALF_OPEN) {
+            //the trial failed, the host needs more time
+            circuit.mOpenMultiplier = Math.min(circuit.mOpenMultiplier * 2, MAX_OPEN_MULTIPLIER);
+            open(circuit, now, retryAfterMillis);
+        } else if (circuit.mState == State.CLOSED && circuit.mFailures >= mFailureThreshold) {
+            open(circuit, now, retryAfterMillis);
+        } else if (circuit.mState == State.OPEN) {
+            //a request that was already under way when the circuit opened
+            circuit.mOpenUntilMillis = Math.max(circuit.mOpenUntilMillis, now + retryAfterMillis);
+        }
+    }
+
+    /**
+     * Forgets the outcome of a trial that never got an answer, eg. because it was cancelled.
+     */
+    public synchronized void onTrialAbandoned(String host) {
+        Circuit circuit = mCircuits.get(host);
+        if (circuit != null && circuit.mState == State.HALF_OPEN) {
+            //due for a trial again right away
+            circuit.mState = State.OPEN;
+        }
+    }
+
+    public synchronized State getState(String host) {
+        Circuit circuit = mCircuits.get(host);
+        return circuit != null ? circuit.mState : State.CLOSED;
+    }
+
+    /**
+     * @return clock time at which the host's circuit lets a trial through, 0 when it lets
+     * requests through now, Long.MAX_VALUE while a trial is under way
+     */
+    public synchronized long getRetryAtMillis(String host) {
+        Circuit circuit = mCircuits.get(host);
+        if (circuit == null || circuit.mState == State.CLOSED) {
+            return 0;
+        }
+        return circuit.mState == State.OPEN ? circuit.mOpenUntilMillis : Long.MAX_VALUE;
+    }
+
+    private void open(Circuit circuit, long now, long retryAfterMillis) {
+        circuit.mState = State.OPEN;
+        circuit.mOpenUntilMillis = now + Math.max(mOpenMillis * circuit.mOpenMultiplier, retryAfterMillis);
+    }
+
+
+    /* State of one host */
+    private static class Circuit {
+        private State mState = State.CLOSED;
+        private int mFailures;
+        private int mOpenMultiplier = 1;
+        private long mOpenUntilMillis;
+    }
+}
@@ -0,0 +1,19 @@
+package com.darshan.android.imagedownloader.engine;
+
+/**
+ * Source of monotonic time for the engine, replaced by a fake in tests.
+ */
+public interface Clock {
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long nowMillis() {
+            return System.nanoTime() / 1000000L;
+        }
+    };
+
+    /**
+     * Milliseconds from an arbitrary origin, only differences are meaningful.
+     */
+    long nowMillis();
+}
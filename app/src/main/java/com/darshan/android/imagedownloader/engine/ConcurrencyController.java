@@ -0,0 +1,213 @@
+package com.darshan.android.imagedownloader.engine;
+
+/**
+ * Picks how many downloads run at the same time from what the network delivers.
+ * <p>
+ * The engine reports every byte received, the time to the first byte of every response, timeouts,
+ * and the number of downloads in flight. Once per window the controller compares the throughput of
+ * all downloads with the one it measured at one download less:
+ * <ul>
+ * <li>the last download added raised throughput: try one more (additive increase)</li>
+ * <li>it didn't, or one less was never measured: the pipe may be full, go back to one less</li>
+ * <li>time to first byte grew well above its recent minimum, or a request timed out:
+ * connections queue up behind each other, cut the limit to 3/4 (multiplicative decrease)</li>
+ * </ul>
+ * So a fat Wi-Fi pipe ends up with as many connections as it takes to fill it, and a thin 3G one
+ * with the one or two it can carry without piling up latency. Windows in which fewer downloads ran
+ * than allowed, or more because a decrease is still draining, say nothing about the limit and
+ * don't move it.
+ */
+public class ConcurrencyController {
+
+    /* Time to first byte this much above its recent minimum means requests queue up */
+    static final double LATENCY_TOLERANCE = 1.5;
+    /* Less throughput gain than this doesn't justify another connection */
+    static final double THROUGHPUT_GAIN = 0.1;
+    static final double DECREASE_FACTOR = 0.75;
+    /* Minimum time to first byte is taken over this many windows, so it follows a network change */
+    private static final int LATENCY_HISTORY = 10;
+    //at least half of a window has to run exactly at the limit to judge it
+    private static final double SATURATED_FRACTION = 0.5;
+
+    private final Clock mClock;
+    private final int mMinLimit;
+    private final int mMaxLimit;
+    private final long mWindowMillis;
+
+    //guarded by this
+    private int mLimit;
+    private int mInFlight;
+    //throughput measured at each limit the last time it was in use, 0 when never
+    private final double[] mThroughputAtLimit;
+    private final long[] mLatencyHistory = new long[LATENCY_HISTORY];
+    private int mLatencyHistoryCount;
+
+    private long mWindowStartMillis;
+    private long mLastInFlightChangeMillis;
+    private long mSaturatedMillis;
+    private long mInFlightMillis;
+    private long mWindowBytes;
+    private long mWindowLatencySum;
+    private int mWindowLatencyCount;
+    private boolean mWindowTimedOut;
+
+    //results of the last window
+    private long mBandwidth = -1;
+    private long mPerDownloadBandwidth = -1;
+    private long mLatencyMillis = -1;
+
+    /**
+     * @param windowMillis time over which throughput is measured before the limit moves
+     */
+    public ConcurrencyController(Clock clock, int minLimit, int initialLimit, int maxLimit, long windowMillis) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("need 1 <= minLimit <= initialLimit <= maxLimit");
+        }
+        mClock = clock;
+        mMinLimit = minLimit;
+        mMaxLimit = maxLimit;
+        mLimit = initialLimit;
+        mWindowMillis = windowMillis;
+        mThroughputAtLimit = new double[maxLimit + 1];
+        mWindowStartMillis = clock.nowMillis();
+        mLastInFlightChangeMillis = mWindowStartMillis;
+    }
+
+    /**
+     * @return downloads allowed to run at the same time now
+     */
+    public synchronized int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * @return bytes per second received by all downloads together in the last window,
+     * -1 before the first window
+     */
+    public synchronized long getBandwidth() {
+        return mBandwidth;
+    }
+
+    /**
+     * @return bytes per second a single download received on average in the last window,
+     * -1 before the first window
+     */
+    public synchronized long getPerDownloadBandwidth() {
+        return mPerDownloadBandwidth;
+    }
+
+    /**
+     * @return mean time to the first byte of a response in the last window, -1 when unknown
+     */
+    public synchronized long getLatencyMillis() {
+        return mLatencyMillis;
+    }
+
+    /**
+     * @return true when the limit grew, more downloads may start
+     */
+    public synchronized boolean onBytes(long byteCount) {
+        mWindowBytes += byteCount;
+        return evaluateIfDue();
+    }
+
+    /**
+     * Time from sending a request to receiving its response headers.
+     * @return true when the limit grew
+     */
+    public synchronized boolean onLatency(long millis) {
+        mWindowLatencySum += millis;
+        mWindowLatencyCount++;
+        return evaluateIfDue();
+    }
+
+    /**
+     * A request timed out, taken as a sign of too many connections for the network.
+     */
+    public synchronized void onTimeout() {
+        mWindowTimedOut = true;
+        evaluateIfDue();
+    }
+
+    /**
+     * @param inFlight downloads running right now
+     */
+    public synchronized void onInFlightChanged(int inFlight) {
+        accountInFlightTime(mClock.nowMillis());
+        mInFlight = inFlight;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConcurrencyController{" +
+                "limit=" + mLimit +
+                ", bandwidth=" + mBandwidth +
+                ", perDownloadBandwidth=" + mPerDownloadBandwidth +
+                ", latencyMillis=" + mLatencyMillis +
+                '}';
+    }
+
+
+    private boolean evaluateIfDue() {
+        long now = mClock.nowMillis();
+        long elapsed = now - mWindowStartMillis;
+        if (elapsed < mWindowMillis) {
+            return false;
+        }
+        accountInFlightTime(now);
+
+        double throughput = mWindowBytes * 1000.0 / elapsed;
+        mBandwidth = (long) throughput;
+        double meanInFlight = (double) mInFlightMillis / elapsed;
+        mPerDownloadBandwidth = meanInFlight > 0 ? (long) (throughput / meanInFlight) : -1;
+        long latency = mWindowLatencyCount > 0 ? mWindowLatencySum / mWindowLatencyCount : -1;
+        if (latency >= 0) {
+            mLatencyMillis = latency;
+            mLatencyHistory[mLatencyHistoryCount++ % LATENCY_HISTORY] = latency;
+        }
+
+        int oldLimit = mLimit;
+        if (mWindowTimedOut || isLatencyInflated(latency)) {
+            mLimit = Math.max(mMinLimit, Math.min(mLimit - 1, (int) (mLimit * DECREASE_FACTOR)));
+        } else if (mSaturatedMillis >= elapsed * SATURATED_FRACTION) {
+            mThroughputAtLimit[mLimit] = throughput;
+            double oneLess = mThroughputAtLimit[mLimit - 1];
+            if (mLimit == mMinLimit || (oneLess > 0 && throughput > oneLess * (1 + THROUGHPUT_GAIN))) {
+                mLimit = Math.min(mMaxLimit, mLimit + 1);
+            } else {
+                //the last connection added nothing but latency, or one less was never measured
+                mLimit = Math.max(mMinLimit, mLimit - 1);
+            }
+        }
+
+        mWindowStartMillis = now;
+        mSaturatedMillis = 0;
+        mInFlightMillis = 0;
+        mWindowBytes = 0;
+        mWindowLatencySum = 0;
+        mWindowLatencyCount = 0;
+        mWindowTimedOut = false;
+        return mLimit > oldLimit;
+    }
+
+    private boolean isLatencyInflated(long latency) {
+        if (latency < 0 || mLatencyHistoryCount < 2) {
+            return false;
+        }
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < Math.min(mLatencyHistoryCount, LATENCY_HISTORY); i++) {
+            min = Math.min(min, mLatencyHistory[i]);
+        }
+        return latency > Math.max(1, min) * LATENCY_TOLERANCE;
+    }
+
+    private void accountInFlightTime(long now) {
+        long elapsed = now - mLastInFlightChangeMillis;
+        mInFlightMillis += elapsed * mInFlight;
+        //above the limit downloads started before a decrease still drain, that's not the limit's throughput
+        if (mInFlight == mLimit) {
+            mSaturatedMillis += elapsed;
+        }
+        mLastInFlightChangeMillis = now;
+    }
+}
@@ -0,0 +1,135 @@
+package com.darshan.android.imagedownloader.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import okhttp3.Response;
+import okio.ByteString;
+
+/**
+ * SHA-256 of a download, fed with the bytes on their way from the network to the part file,
+ * so checking and indexing the finished file costs no second read of it.
+ * <p>
+ * Servers may declare the digest of the complete image with {@code Digest: SHA-256=<base64>}
+ * (RFC 3230) or {@code Repr-Digest: sha-256=:<base64>:} (RFC 9530). Both describe the whole
+ * image even in a 206 response, so a resumed download is checked as a whole too.
+ */
+class ContentDigest {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final MessageDigest mDigest;
+    private String mSha256;
+
+    ContentDigest() {
+        try {
+            mDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            //every Java and Android runtime has it
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds the remaining bytes of {@code buffer}, leaving its position untouched.
+     */
+    void update(ByteBuffer buffer) {
+        int position = buffer.position();
+        mDigest.update(buffer);
+        buffer.position(position);
+    }
+
+    /**
+     * Adds the first {@code length} bytes of {@code file}, the part a resumed download
+     * received in earlier attempts.
+     */
+    void update(File file, long length) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new IOException(file + " is shorter than " + length + " bytes");
+                }
+                mDigest.update(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Ends the digest, no bytes can be added afterwards.
+     * @return SHA-256 of all bytes added, as lower case hex
+     */
+    String finish() {
+        if (mSha256 == null) {
+            mSha256 = ByteString.of(mDigest.digest()).hex();
+        }
+        return mSha256;
+    }
+
+    /**
+     * Ends the digest and compares it to the one the server declared, if any.
+     *
+     * @throws CorruptDownloadException when they differ
+     */
+    String verify(Response response) throws CorruptDownloadException {
+        String sha256 = finish();
+        String expected = declaredSha256(response);
+        if (expected != null && !expected.equals(sha256)) {
+            throw new CorruptDownloadException("SHA-256 of " + response.request().url() + " is "
+                    + sha256 + ", server declared " + expected);
+        }
+        return sha256;
+    }
+
+    /**
+     * @return SHA-256 of the whole image as lower case hex, null when the response declares none
+     */
+    static String declaredSha256(Response response) {
+        String sha256 = digestValue(response.header("Repr-Digest"), "sha-256");
+        if (sha256 == null) {
+            sha256 = digestValue(response.header("Digest"), "sha-256");
+        }
+        if (sha256 == null) {
+            return null;
+        }
+        //structured field byte sequences are wrapped in colons
+        if (sha256.length() > 1 && sha256.startsWith(":") && sha256.endsWith(":")) {
+            sha256 = sha256.substring(1, sha256.length() - 1);
+        }
+        ByteString decoded = ByteString.decodeBase64(sha256);
+        return decoded != null && decoded.size() == 32 ? decoded.hex() : null;
+    }
+
+    /* Value of "algorithm" in "md5=..., sha-256=...", algorithm names are case insensitive */
+    private static String digestValue(String header, String algorithm) {
+        if (header == null) {
+            return null;
+        }
+        for (String item : header.split(",")) {
+            int equals = item.indexOf('=');
+            if (equals > 0 && item.substring(0, equals).trim().equalsIgnoreCase(algorithm)) {
+                return item.substring(equals + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return SHA-256 of the file's content, as lower case hex
+     */
+    static String sha256(File file) throws IOException {
+        ContentDigest digest = new ContentDigest();
+        digest.update(file, file.length());
+        return digest.finish();
+    }
+}
@@ -0,0 +1,16 @@
+package com.darshan.android.imagedownloader.engine;
+
+import java.io.IOException;
+
+/**
+ * The bytes received don't add up to the image the server declared: more than its length, or
+ * not its digest. Nothing of the attempt is kept, so trying again starts from scratch instead of
+ * resuming on top of bad data.
+ */
+public class CorruptDownloadException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public CorruptDownloadException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,343 @@
+package com.darshan.android.imagedownloader.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Downloads a list of requests through a {@link DownloadQueue} and tracks them as one unit.
+ * <p>
+ * The queue's engine bounds how many run at once. The batch sums up their progress into
+ * completed / failed counts, bytes per second and an estimated time left, and reports that to a
+ * single {@link Listener} instead of one callback stream per image. A failed item is retried
+ * right away, resuming from its part file, until it used up {@code maxAttempts}. Items that still
+ * failed can be retried later with {@link #retryFailed()}.
+ */
+public class DownloadBatch {
+
+    /**
+     * Receives aggregate updates, on a worker thread or the thread calling {@link #start()}.
+     */
+    public interface Listener {
+        /**
+         * Called at most once per update interval, and whenever an item finishes.
+         */
+        void onBatchProgress(DownloadBatch batch, Progress progress);
+
+        /**
+         * Every item either completed or failed for good.
+         */
+        void onBatchFinished(DownloadBatch batch, Progress progress);
+    }
+
+    /* Rate is measured over windows of at least this length */
+    private static final long RATE_WINDOW_MILLIS = 3000;
+
+    private final DownloadQueue mQueue;
+    private final Listener mListener;
+    private final Clock mClock;
+    private final int mMaxAttempts;
+    private final ProgressThrottle mProgressThrottle;
+    private final List<Item> mItems = new ArrayList<>();
+
+    //guarded by this
+    private long mTransferredBytes;
+    private long mRateWindowStartMillis;
+    private long mRateWindowStartBytes;
+    private long mBytesPerSecond;
+    private boolean mFinishReported;
+
+    /**
+     * @param updateIntervalMillis least time between two progress updates of the whole batch
+     * @param maxAttempts          tries per item before it counts as failed
+     */
+    public DownloadBatch(DownloadQueue queue, List<DownloadRequest> requests, Listener listener,
+                         Clock clock, long updateIntervalMillis, int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts < 1");
+        }
+        mQueue = queue;
+        mListener = listener;
+        mClock = clock;
+        mMaxAttempts = maxAttempts;
+        mProgressThrottle = new ProgressThrottle(clock, updateIntervalMillis, 0);
+        for (DownloadRequest request : requests) {
+            mItems.add(new Item(request));
+        }
+    }
+
+    /**
+     * Enqueues every item. Items of an empty batch are reported finished right away.
+     */
+    public void start() {
+        synchronized (this) {
+            mRateWindowStartMillis = mClock.nowMillis();
+        }
+        for (Item item : mItems) {
+            item.enqueue();
+        }
+        reportIfFinished();
+    }
+
+    /**
+     * Gives every item that failed for good another {@code maxAttempts} tries.
+     * @return number of items enqueued again
+     */
+    public int retryFailed() {
+        List<Item> failed = new ArrayList<>();
+        synchronized (this) {
+            for (Item item : mItems) {
+                if (item.mState == DownloadJob.State.FAILED) {
+                    item.mAttempts = 0;
+                    item.mState = DownloadJob.State.QUEUED;
+                    failed.add(item);
+                }
+            }
+            if (!failed.isEmpty()) {
+                mFinishReported = false;
+            }
+        }
+        for (Item item : failed) {
+            item.enqueue();
+        }
+        return failed.size();
+    }
+
+    public int size() {
+        return mItems.size();
+    }
+
+    /**
+     * @return current state of the batch, safe to call from any thread. Speed and time left
+     * follow the clock, also while no progress arrives
+     */
+    public synchronized Progress getProgress() {
+        int completed = 0, failed = 0;
+        long bytesDownloaded = 0, knownTotalBytes = 0;
+        int itemsWithKnownTotal = 0;
+        for (Item item : mItems) {
+            if (item.mState == DownloadJob.State.COMPLETED) {
+                completed++;
+            } else if (item.mState == DownloadJob.State.FAILED) {
+                failed++;
+            }
+            bytesDownloaded += item.mBytesDownloaded;
+            if (item.mTotalBytes > 0) {
+                knownTotalBytes += item.mTotalBytes;
+                itemsWithKnownTotal++;
+            }
+        }
+
+        long bytesPerSecond = currentBytesPerSecond();
+        long etaMillis = -1;
+        if (completed + failed == mItems.size()) {
+            etaMillis = 0;
+        } else if (bytesPerSecond > 0 && itemsWithKnownTotal > 0) {
+            //items that didn't start yet are assumed to be as large as the average known one
+            int pendingItems = mItems.size() - completed - failed;
+            long averageSize = knownTotalBytes / itemsWithKnownTotal;
+            long remainingBytes = 0;
+            for (Item item : mItems) {
+                if (item.mState == DownloadJob.State.COMPLETED || item.mState == DownloadJob.State.FAILED) {
+                    continue;
+                }
+                long size = item.mTotalBytes > 0 ? item.mTotalBytes : averageSize;
+                remainingBytes += Math.max(0, size - item.mBytesDownloaded);
+            }
+            etaMillis = pendingItems > 0 ? remainingBytes * 1000 / bytesPerSecond : 0;
+        }
+        return new Progress(mItems.size(), completed, failed, bytesDownloaded, bytesPerSecond, etaMillis);
+    }
+
+
+    /* Windows only close on progress. Once the open one is overdue, nothing or little arrived
+       for a while, and its own rate is the fresher one. Guarded by this */
+    private long currentBytesPerSecond() {
+        long windowMillis = mClock.nowMillis() - mRateWindowStartMillis;
+        if (windowMillis < RATE_WINDOW_MILLIS) {
+            return mBytesPerSecond;
+        }
+        return Math.min(mBytesPerSecond, (mTransferredBytes - mRateWindowStartBytes) * 1000 / windowMillis);
+    }
+
+
+    /* Progress of one item, returns true when the batch update is due */
+    private synchronized boolean onItemProgress(Item item, long bytesDownloaded, long totalBytes) {
+        long delta = bytesDownloaded - item.mBytesDownloaded;
+        if (delta > 0) {
+            //a restart from zero (image changed on the server) is not counted as negative speed
+            mTransferredBytes += delta;
+        }
+        item.mBytesDownloaded = bytesDownloaded;
+        item.mTotalBytes = totalBytes;
+
+        long now = mClock.nowMillis();
+        long windowMillis = now - mRateWindowStartMillis;
+        if (windowMillis >= RATE_WINDOW_MILLIS) {
+            mBytesPerSecond = (mTransferredBytes - mRateWindowStartBytes) * 1000 / windowMillis;
+            mRateWindowStartMillis = now;
+            mRateWindowStartBytes = mTransferredBytes;
+        } else if (mBytesPerSecond == 0 && windowMillis > 0) {
+            //first window, an early estimate beats none
+            mBytesPerSecond = (mTransferredBytes - mRateWindowStartBytes) * 1000 / windowMillis;
+        }
+        return mProgressThrottle.shouldEmit(mTransferredBytes, -1);
+    }
+
+    /* Item reached a final state, returns true when it should be tried again instead */
+    private synchronized boolean onItemFinished(Item item, DownloadJob.State state, boolean mayRetry) {
+        if (mayRetry && item.mAttempts < mMaxAttempts) {
+            return true;
+        }
+        item.mState = state;
+        if (state == DownloadJob.State.COMPLETED && item.mTotalBytes > 0) {
+            item.mBytesDownloaded = item.mTotalBytes;
+        }
+        return false;
+    }
+
+    private void reportProgress() {
+        mListener.onBatchProgress(this, getProgress());
+    }
+
+    private void reportIfFinished() {
+        Progress progress;
+        synchronized (this) {
+            progress = getProgress();
+            if (mFinishReported || !progress.isFinished()) {
+                return;
+            }
+            mFinishReported = true;
+        }
+        mListener.onBatchFinished(this, progress);
+    }
+
+
+    /**
+     * Aggregate state of a batch at one point in time.
+     */
+    public static class Progress {
+        private final int mTotalCount;
+        private final int mCompletedCount;
+        private final int mFailedCount;
+        private final long mBytesDownloaded;
+        private final long mBytesPerSecond;
+        private final long mEtaMillis;
+
+        Progress(int totalCount, int completedCount, int failedCount, long bytesDownloaded,
+                 long bytesPerSecond, long etaMillis) {
+            mTotalCount = totalCount;
+            mCompletedCount = completedCount;
+            mFailedCount = failedCount;
+            mBytesDownloaded = bytesDownloaded;
+            mBytesPerSecond = bytesPerSecond;
+            mEtaMillis = etaMillis;
+        }
+
+        public int getTotalCount() {
+            return mTotalCount;
+        }
+
+        public int getCompletedCount() {
+            return mCompletedCount;
+        }
+
+        public int getFailedCount() {
+            return mFailedCount;
+        }
+
+        /**
+         * @return bytes on disk across all items, including what earlier attempts left behind
+         */
+        public long getBytesDownloaded() {
+            return mBytesDownloaded;
+        }
+
+        public long getBytesPerSecond() {
+            return mBytesPerSecond;
+        }
+
+        /**
+         * @return estimated time until every item is done, -1 while unknown
+         */
+        public long getEtaMillis() {
+            return mEtaMillis;
+        }
+
+        public boolean isFinished() {
+            return mCompletedCount + mFailedCount == mTotalCount;
+        }
+
+        @Override
+        public String toString() {
+            return "Progress{" +
+                    "completed=" + mCompletedCount + "/" + mTotalCount +
+                    ", failed=" + mFailedCount +
+                    ", bytesDownloaded=" + mBytesDownloaded +
+                    ", bytesPerSecond=" + mBytesPerSecond +
+                    ", etaMillis=" + mEtaMillis +
+                    '}';
+        }
+    }
+
+
+    /* One request of the batch, also the listener of its jobs */
+    private class Item implements DownloadListener {
+        private final DownloadRequest mRequest;
+
+        //guarded by the batch
+        private DownloadJob.State mState = DownloadJob.State.QUEUED;
+        private int mAttempts;
+        private long mBytesDownloaded;
+        private long mTotalBytes = -1;
+
+        Item(DownloadRequest request) {
+            mRequest = request;
+        }
+
+        void enqueue() {
+            synchronized (DownloadBatch.this) {
+                mAttempts++;
+            }
+            mQueue.enqueue(mRequest, this);
+        }
+
+        @Override
+        public void onStart(DownloadJob job) {
+        }
+
+        @Override
+        public void onProgress(DownloadJob job, long bytesDownloaded, long totalBytes) {
+            if (onItemProgress(this, bytesDownloaded, totalBytes)) {
+                reportProgress();
+            }
+        }
+
+        @Override
+        public void onComplete(DownloadJob job, File file) {
+            finished(DownloadJob.State.COMPLETED, false);
+        }
+
+        @Override
+        public void onFailure(DownloadJob job, IOException e) {
+            finished(DownloadJob.State.FAILED, true);
+        }
+
+        @Override
+        public void onCancelled(DownloadJob job) {
+            //user gave up on this image, counts as failed but is not tried again
+            finished(DownloadJob.State.FAILED, false);
+        }
+
+        private void finished(DownloadJob.State state, boolean mayRetry) {
+            if (onItemFinished(this, state, mayRetry)) {
+                //resumes from the part file the failed attempt left behind
+                enqueue();
+                return;
+            }
+            reportProgress();
+            reportIfFinished();
+        }
+    }
+}
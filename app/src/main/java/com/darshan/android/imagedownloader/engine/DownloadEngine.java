@@ -0,0 +1,706 @@
+package com.darshan.android.imagedownloader.engine;
+
+import com.darshan.android.imagedownloader.metrics.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Runs {@link DownloadRequest}s on its own bounded pool of worker threads.
+ * <p>
+ * Submitted jobs wait in a priority queue and are handed to a worker only when both the
+ * global limit and the limit for their host allow it, so a batch of downloads runs in
+ * parallel instead of one after another. Has no Android dependencies.
+ * <p>
+ * With {@link Builder#adaptiveConcurrency} the global limit follows the network: a
+ * {@link ConcurrencyController} measures throughput and latency of the running downloads and
+ * moves the limit between a minimum and {@link Builder#maxConcurrentDownloads}.
+ * <p>
+ * An attempt that fails in a way the {@link RetryPolicy} deems transient goes back to the queue
+ * until its backoff delay has passed. A {@link CircuitBreaker} can hold back every job of a host
+ * that keeps failing, so a throttling or broken server is paused instead of hammered.
+ * <p>
+ * Attempts and their outcomes are recorded in the engine's {@link Metrics}, next to what the
+ * {@link TransferStage} records about each transfer.
+ * <p>
+ * With {@link Builder#postProcessor} every downloaded file is handed to a {@link ProcessingStage},
+ * which processes it on threads of its own while the worker moves on to the next download.
+ */
+public class DownloadEngine {
+    public static final String ATTEMPT = "download.attempt";
+    public static final String COMPLETED = "download.completed";
+    public static final String FAILED = "download.failed";
+    public static final String RETRIED = "download.retried";
+    public static final String CANCELLED = "download.cancelled";
+
+    /* Adaptive concurrency starts here and measures throughput over windows this long */
+    static final int INITIAL_ADAPTIVE_CONCURRENCY = 4;
+    static final long CONCURRENCY_WINDOW_MILLIS = 2000;
+
+    private final int mMaxConcurrentDownloads;
+    private final int mMaxDownloadsPerHost;
+    private final Downloader mDownloader;
+    private final ThreadPoolExecutor mExecutor;
+    private final ExecutorService mSegmentExecutor;
+    //runs promoteJobs() when a backoff or an open circuit is over
+    private final ScheduledThreadPoolExecutor mWakeUpExecutor;
+    private final RetryPolicy mRetryPolicy;
+    //null when hosts are never paused
+    private final CircuitBreaker mCircuitBreaker;
+    //measures the network, also when it keeps the limit fixed at mMaxConcurrentDownloads
+    private final ConcurrencyController mConcurrency;
+    //shared by all transfers
+    private final RateLimiter mBandwidthLimiter;
+    private final Metrics mMetrics;
+    //null when downloads are not processed
+    private final ProcessingStage mProcessingStage;
+    private final Clock mClock;
+    private final long mProgressIntervalMillis;
+    private final int mProgressPercentStep;
+
+    //guarded by this
+    private final TreeSet<DownloadJob> mQueuedJobs = new TreeSet<>(DownloadJob.PRIORITY_ORDER);
+    private final List<DownloadJob> mRunningJobs = new ArrayList<>();
+    private long mNextSequence;
+    private boolean mShutdown;
+    //clock time the wake-up is set for, Long.MAX_VALUE when none is
+    private long mWakeUpAtMillis = Long.MAX_VALUE;
+
+    private DownloadEngine(Builder builder) {
+        mMaxConcurrentDownloads = builder.mMaxConcurrentDownloads;
+        mMaxDownloadsPerHost = builder.mMaxDownloadsPerHost;
+        mClock = builder.mClock;
+        mProgressIntervalMillis = builder.mProgressIntervalMillis;
+        mProgressPercentStep = builder.mProgressPercentStep;
+        mRetryPolicy = builder.mRetryPolicy;
+        mCircuitBreaker = builder.mCircuitFailureThreshold > 0
+                ? new CircuitBreaker(mClock, builder.mCircuitFailureThreshold, builder.mCircuitOpenMillis)
+                : null;
+        int minConcurrent = builder.mAdaptiveConcurrency ? builder.mMinConcurrentDownloads : mMaxConcurrentDownloads;
+        int initialConcurrent = Math.max(minConcurrent, Math.min(mMaxConcurrentDownloads, INITIAL_ADAPTIVE_CONCURRENCY));
+        mConcurrency = new ConcurrencyController(mClock, minConcurrent, initialConcurrent,
+                mMaxConcurrentDownloads, CONCURRENCY_WINDOW_MILLIS);
+        //segments of one job run next to its worker, their number is bounded by the segment count
+        mSegmentExecutor = Executors.newCachedThreadPool(new WorkerThreadFactory("DownloadEngine-segment-"));
+        OkHttpClient client = builder.mClient;
+        if (client == null) {
+            client = new OkHttpClient.Builder()
+                    .connectTimeout(builder.mConnectTimeoutMillis, TimeUnit.MILLISECONDS)
+                    .readTimeout(builder.mReadTimeoutMillis, TimeUnit.MILLISECONDS)
+                    .build();
+        }
+        mBandwidthLimiter = new RateLimiter(builder.mBandwidthLimit);
+        mMetrics = builder.mMetrics;
+        TransferStage transferStage = new TransferStage(builder.mTransferChunkSize, builder.mFsyncPolicy,
+                mBandwidthLimiter, mMetrics);
+        mDownloader = new Downloader(client, transferStage, mSegmentExecutor, builder.mDownloadIndex);
+        mProcessingStage = builder.mPostProcessor != null
+                ? new ProcessingStage(builder.mPostProcessor, builder.mProcessingThreads,
+                        builder.mProcessingQueueCapacity, builder.mDownloadIndex, mMetrics)
+                : null;
+
+        //never holds more tasks than threads, promoteJobs() only hands over what can start now
+        mExecutor = new ThreadPoolExecutor(
+                mMaxConcurrentDownloads, mMaxConcurrentDownloads,
+                60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new WorkerThreadFactory("DownloadEngine-"));
+        mExecutor.allowCoreThreadTimeOut(true);
+        mWakeUpExecutor = new ScheduledThreadPoolExecutor(1, new WorkerThreadFactory("DownloadEngine-wakeup-"));
+        mWakeUpExecutor.setKeepAliveTime(60, TimeUnit.SECONDS);
+        mWakeUpExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a download. It starts as soon as a worker and a slot for its host are free.
+     * A request whose content the {@link DownloadIndex} has on disk completes right away.
+     *
+     * @param listener receives progress and result callbacks on a worker thread
+     * @return job handle, usable as a Future or to cancel the download
+     */
+    public DownloadJob submit(DownloadRequest request, DownloadListener listener) {
+        if (request == null || listener == null) {
+            throw new IllegalArgumentException("request and listener must not be null");
+        }
+
+        //only a stat of the indexed file, no need to hold the lock for it
+        boolean present = mDownloader.isPresent(request);
+        final DownloadJob job;
+        synchronized (this) {
+            if (mShutdown) {
+                throw new IllegalStateException("DownloadEngine is shut down");
+            }
+            job = new DownloadJob(this, request, listener, mNextSequence++,
+                    new ProgressThrottle(mClock, mProgressIntervalMillis, mProgressPercentStep));
+            if (!present) {
+                mQueuedJobs.add(job);
+            }
+        }
+        if (!present) {
+            promoteJobs();
+            return job;
+        }
+
+        //already on disk, completes right away instead of waiting behind running downloads
+        //for a worker. Should the file vanish meanwhile, it is downloaded outside the limits
+        try {
+            mSegmentExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    job.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            job.fail(new IOException("DownloadEngine is shut down", e));
+        }
+        return job;
+    }
+
+    /**
+     * Cancels every queued and running job.
+     */
+    public void cancelAll() {
+        List<DownloadJob> jobs;
+        synchronized (this) {
+            jobs = new ArrayList<>(mQueuedJobs);
+            jobs.addAll(mRunningJobs);
+        }
+        for (DownloadJob job : jobs) {
+            cancel(job);
+        }
+    }
+
+    /**
+     * Cancels all jobs and releases the worker threads. The engine can't be used afterwards.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            mShutdown = true;
+        }
+        cancelAll();
+        mExecutor.shutdown();
+        mSegmentExecutor.shutdown();
+        mWakeUpExecutor.shutdownNow();
+        if (mProcessingStage != null) {
+            mProcessingStage.shutdown();
+        }
+    }
+
+    public synchronized int getQueuedJobCount() {
+        return mQueuedJobs.size();
+    }
+
+    public synchronized int getRunningJobCount() {
+        return mRunningJobs.size();
+    }
+
+    public int getMaxConcurrentDownloads() {
+        return mMaxConcurrentDownloads;
+    }
+
+    public int getMaxDownloadsPerHost() {
+        return mMaxDownloadsPerHost;
+    }
+
+    /**
+     * @return downloads allowed to run at the same time right now, follows the network when
+     * the concurrency is adaptive
+     */
+    public int getConcurrencyLimit() {
+        return mConcurrency.getLimit();
+    }
+
+    /**
+     * @return bytes per second all downloads together received over the last couple of seconds,
+     * -1 before anything was measured
+     */
+    public long getMeasuredBandwidth() {
+        return mConcurrency.getBandwidth();
+    }
+
+    /**
+     * Cap of all downloads together, may be changed at any time, eg. when the network becomes metered.
+     */
+    public RateLimiter getBandwidthLimiter() {
+        return mBandwidthLimiter;
+    }
+
+    /**
+     * @return mean time from a request to its response headers over the last couple of seconds,
+     * -1 before anything was measured
+     */
+    public long getMeasuredLatencyMillis() {
+        return mConcurrency.getLatencyMillis();
+    }
+
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return the stage processing downloaded files, null without a {@link Builder#postProcessor}
+     */
+    public ProcessingStage getProcessingStage() {
+        return mProcessingStage;
+    }
+
+
+    Downloader getDownloader() {
+        return mDownloader;
+    }
+
+    CircuitBreaker getCircuitBreaker() {
+        return mCircuitBreaker;
+    }
+
+    ConcurrencyController getConcurrencyController() {
+        return mConcurrency;
+    }
+
+    /**
+     * Called for every read of a running download.
+     */
+    void transferred(int byteCount) {
+        if (mConcurrency.onBytes(byteCount)) {
+            promoteJobs();
+        }
+    }
+
+    /**
+     * Called when a request got its response headers {@code latencyMillis} after it was sent.
+     */
+    void responded(long latencyMillis) {
+        if (mConcurrency.onLatency(latencyMillis)) {
+            promoteJobs();
+        }
+    }
+
+    boolean cancel(DownloadJob job) {
+        boolean wasQueued;
+        synchronized (this) {
+            if (job.isDone()) {
+                return false;
+            }
+            wasQueued = mQueuedJobs.remove(job);
+            job.requestCancel();
+        }
+        if (wasQueued) {
+            job.finishCancelled();
+        }
+        return true;
+    }
+
+    /**
+     * Called by a job once its file is in place and reported complete. Hands the file to the
+     * processing stage, waiting while that is full, so the job keeps its worker and its slot
+     * until processing has room again.
+     */
+    void postProcess(DownloadJob job, File file) {
+        //a file from the index was processed when it was downloaded
+        if (mProcessingStage == null || !job.hasTrackedCalls()) {
+            return;
+        }
+        try {
+            mProcessingStage.submit(job.getRequest(), file);
+        } catch (InterruptedException e) {
+            //shutting down, the file stays as downloaded
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Called by a job whose attempt got the image, or an answer the host is healthy enough to give.
+     */
+    void attemptSucceeded(DownloadJob job) {
+        //a file from the index says nothing about the host
+        if (mCircuitBreaker != null && job.hasTrackedCalls()) {
+            mCircuitBreaker.onSuccess(job.getRequest().getHost());
+        }
+    }
+
+    /**
+     * Called by a job whose attempt failed. Feeds the host's circuit breaker and decides whether
+     * the job is tried again.
+     *
+     * @return true when the job goes back to the queue, when {@link #finished} is called for it
+     */
+    boolean attemptFailed(DownloadJob job, IOException e) {
+        String host = job.getRequest().getHost();
+        if (e instanceof SocketTimeoutException) {
+            //may be the network drowning in connections
+            mConcurrency.onTimeout();
+        }
+        if (mCircuitBreaker != null) {
+            if (mRetryPolicy.isTransient(e)) {
+                mCircuitBreaker.onFailure(host, RetryPolicy.retryAfterMillis(e));
+            } else {
+                //eg. a 404, the host itself is fine
+                mCircuitBreaker.onSuccess(host);
+            }
+        }
+        long delay = mRetryPolicy.retryDelayMillis(job.getFailedAttempts() + 1, e);
+        if (delay < 0) {
+            return false;
+        }
+        synchronized (this) {
+            job.setRetryAtMillis(mClock.nowMillis() + delay);
+        }
+        return true;
+    }
+
+    /**
+     * Called by a job whose attempt ended without an outcome for its host, eg. when it was cancelled.
+     */
+    void attemptAbandoned(DownloadJob job) {
+        boolean trial;
+        synchronized (this) {
+            trial = job.isCircuitTrial();
+        }
+        if (mCircuitBreaker != null && trial) {
+            mCircuitBreaker.onTrialAbandoned(job.getRequest().getHost());
+        }
+    }
+
+    /**
+     * Called by a job when its worker is done with it, successful or not.
+     *
+     * @param retry true when {@link #attemptFailed} asked for another attempt
+     */
+    void finished(DownloadJob job, boolean retry) {
+        boolean cancelled = false;
+        synchronized (this) {
+            mRunningJobs.remove(job);
+            mConcurrency.onInFlightChanged(mRunningJobs.size());
+            if (retry) {
+                //cancelled between the failure and now, nobody would take it out of the queue
+                cancelled = job.isCancelRequested();
+                if (!cancelled) {
+                    mQueuedJobs.add(job);
+                }
+            }
+        }
+        if (cancelled) {
+            job.finishCancelled();
+        }
+        promoteJobs();
+    }
+
+    /**
+     * Moves jobs from the queue to the worker pool, in priority order, while the limits allow.
+     * Jobs backing off after a failure and jobs of a host whose circuit is open stay queued.
+     * Runs again on its own once the first of them is due, tests moving a fake clock call it.
+     */
+    void promoteJobs() {
+        List<DownloadJob> readyJobs = new ArrayList<>();
+        synchronized (this) {
+            long now = mClock.nowMillis();
+            long wakeUpAt = Long.MAX_VALUE;
+            Iterator<DownloadJob> iterator = mQueuedJobs.iterator();
+            int limit = mConcurrency.getLimit();
+            while (iterator.hasNext() && mRunningJobs.size() < limit) {
+                DownloadJob job = iterator.next();
+                if (job.getRetryAtMillis() > now) {
+                    wakeUpAt = Math.min(wakeUpAt, job.getRetryAtMillis());
+                    continue;
+                }
+                String host = job.getRequest().getHost();
+                if (runningJobsForHost(host) >= mMaxDownloadsPerHost) {
+                    //host is busy, a lower priority job for another host may still start
+                    continue;
+                }
+                if (mCircuitBreaker != null) {
+                    synchronized (mCircuitBreaker) {
+                        boolean trial = mCircuitBreaker.getState(host) != CircuitBreaker.State.CLOSED;
+                        if (!mCircuitBreaker.allowRequest(host)) {
+                            //host keeps failing, its jobs wait instead of hammering it
+                            wakeUpAt = Math.min(wakeUpAt, mCircuitBreaker.getRetryAtMillis(host));
+                            continue;
+                        }
+                        job.setCircuitTrial(trial);
+                    }
+                }
+                iterator.remove();
+                mRunningJobs.add(job);
+                readyJobs.add(job);
+            }
+            if (!readyJobs.isEmpty()) {
+                mConcurrency.onInFlightChanged(mRunningJobs.size());
+            }
+            scheduleWakeUp(now, wakeUpAt);
+        }
+
+        for (final DownloadJob job : readyJobs) {
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        job.run();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    mRunningJobs.remove(job);
+                    mConcurrency.onInFlightChanged(mRunningJobs.size());
+                }
+                job.fail(new IOException("DownloadEngine is shut down", e));
+            }
+        }
+    }
+
+    /* Makes promoteJobs() run once the clock reaches wakeUpAt, unless an earlier run is due anyway */
+    private void scheduleWakeUp(long now, long wakeUpAt) {
+        if (wakeUpAt == Long.MAX_VALUE || (mWakeUpAtMillis <= wakeUpAt && mWakeUpAtMillis > now)) {
+            return;
+        }
+        mWakeUpAtMillis = wakeUpAt;
+        try {
+            mWakeUpExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (DownloadEngine.this) {
+                        mWakeUpAtMillis = Long.MAX_VALUE;
+                    }
+                    promoteJobs();
+                }
+            }, wakeUpAt - now, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //shut down, the queued jobs were cancelled
+        }
+    }
+
+    private int runningJobsForHost(String host) {
+        int count = 0;
+        for (DownloadJob running : mRunningJobs) {
+            if (running.getRequest().getHost().equals(host)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final String mNamePrefix;
+        private final AtomicInteger mThreadCount = new AtomicInteger();
+
+        WorkerThreadFactory(String namePrefix) {
+            mNamePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, mNamePrefix + mThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+
+    public static class Builder {
+        private int mMaxConcurrentDownloads = 4;
+        private boolean mAdaptiveConcurrency;
+        private int mMinConcurrentDownloads;
+        private int mMaxDownloadsPerHost = 4;
+        private int mConnectTimeoutMillis = 15000;
+        private int mReadTimeoutMillis = 30000;
+        private OkHttpClient mClient;
+        private int mTransferChunkSize = 64 * 1024;
+        private TransferStage.FsyncPolicy mFsyncPolicy = TransferStage.FsyncPolicy.NONE;
+        private long mBandwidthLimit = RateLimiter.UNLIMITED;
+        private Metrics mMetrics = new Metrics();
+        private Clock mClock = Clock.SYSTEM;
+        private DownloadIndex mDownloadIndex;
+        private RetryPolicy mRetryPolicy = RetryPolicy.NONE;
+        private int mCircuitFailureThreshold;
+        private long mCircuitOpenMillis;
+        private long mProgressIntervalMillis = 100;
+        private int mProgressPercentStep = 1;
+        private PostProcessor mPostProcessor;
+        private int mProcessingThreads;
+        private int mProcessingQueueCapacity;
+
+        /**
+         * Size of the worker pool, ie. the most downloads running at the same time.
+         */
+        public Builder maxConcurrentDownloads(int maxConcurrentDownloads) {
+            if (maxConcurrentDownloads < 1) {
+                throw new IllegalArgumentException("maxConcurrentDownloads < 1");
+            }
+            mMaxConcurrentDownloads = maxConcurrentDownloads;
+            return this;
+        }
+
+        /**
+         * Lets the number of downloads running at the same time follow the network, between
+         * {@code minConcurrentDownloads} and {@link #maxConcurrentDownloads}: more while
+         * another connection raises throughput, fewer once it only adds latency or timeouts.
+         */
+        public Builder adaptiveConcurrency(int minConcurrentDownloads) {
+            if (minConcurrentDownloads < 1) {
+                throw new IllegalArgumentException("minConcurrentDownloads < 1");
+            }
+            mAdaptiveConcurrency = true;
+            mMinConcurrentDownloads = minConcurrentDownloads;
+            return this;
+        }
+
+        /**
+         * Most downloads allowed to run against the same host at the same time.
+         */
+        public Builder maxDownloadsPerHost(int maxDownloadsPerHost) {
+            if (maxDownloadsPerHost < 1) {
+                throw new IllegalArgumentException("maxDownloadsPerHost < 1");
+            }
+            mMaxDownloadsPerHost = maxDownloadsPerHost;
+            return this;
+        }
+
+        public Builder connectTimeout(long timeout, TimeUnit unit) {
+            mConnectTimeoutMillis = (int) unit.toMillis(timeout);
+            return this;
+        }
+
+        public Builder readTimeout(long timeout, TimeUnit unit) {
+            mReadTimeoutMillis = (int) unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Client whose connection pool the downloads share, eg. the one Retrofit uses.
+         * Timeouts set on this builder are ignored when a client is given.
+         */
+        public Builder client(OkHttpClient client) {
+            mClient = client;
+            return this;
+        }
+
+        /**
+         * Bytes moved from the network to the file per write, also the granularity of progress.
+         */
+        public Builder transferChunkSize(int transferChunkSize) {
+            if (transferChunkSize < 1024) {
+                throw new IllegalArgumentException("transferChunkSize < 1024");
+            }
+            mTransferChunkSize = transferChunkSize;
+            return this;
+        }
+
+        /**
+         * Whether finished files are forced to storage before they are moved into place.
+         */
+        public Builder fsyncPolicy(TransferStage.FsyncPolicy fsyncPolicy) {
+            mFsyncPolicy = fsyncPolicy;
+            return this;
+        }
+
+        /**
+         * Caps the bytes per second of all downloads together, leaving room for other traffic.
+         * @param bytesPerSecond {@link RateLimiter#UNLIMITED} for no cap
+         */
+        public Builder bandwidthLimit(long bytesPerSecond) {
+            if (bytesPerSecond < 0) {
+                throw new IllegalArgumentException("bytesPerSecond < 0");
+            }
+            mBandwidthLimit = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Where attempts and transfers record their timings, eg. the registry of the whole app.
+         */
+        public Builder metrics(Metrics metrics) {
+            mMetrics = metrics;
+            return this;
+        }
+
+        /**
+         * Limits {@link DownloadListener#onProgress} per job to one call every
+         * {@code minInterval} and {@code minPercentStep} percent. The final update always arrives.
+         * Use 0 and 0 to get every read.
+         */
+        public Builder progressThrottle(long minInterval, TimeUnit unit, int minPercentStep) {
+            mProgressIntervalMillis = unit.toMillis(minInterval);
+            mProgressPercentStep = minPercentStep;
+            return this;
+        }
+
+        /**
+         * Time source for throttling, tests pass a fake one.
+         */
+        public Builder clock(Clock clock) {
+            mClock = clock;
+            return this;
+        }
+
+        /**
+         * Index of the downloaded files. Requests with a content key that is in it complete
+         * without any network, and never overwrite a file holding a different image.
+         */
+        public Builder downloadIndex(DownloadIndex downloadIndex) {
+            mDownloadIndex = downloadIndex;
+            return this;
+        }
+
+        /**
+         * Tries failed downloads again, if and when the policy says. Default is a single attempt.
+         */
+        public Builder retryPolicy(RetryPolicy retryPolicy) {
+            mRetryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Holds back every job of a host for at least {@code openDuration} once it failed
+         * {@code failureThreshold} times in a row. Failures count when the retry policy
+         * deems them transient. Default is to never hold back a host.
+         */
+        public Builder circuitBreaker(int failureThreshold, long openDuration, TimeUnit unit) {
+            if (failureThreshold < 1) {
+                throw new IllegalArgumentException("failureThreshold < 1");
+            }
+            mCircuitFailureThreshold = failureThreshold;
+            mCircuitOpenMillis = unit.toMillis(openDuration);
+            return this;
+        }
+
+        /**
+         * Runs {@code postProcessor} on every downloaded file, on {@code threads} threads of its own.
+         * At most {@code queueCapacity} files wait for it, with more the workers wait as well
+         * and downloads slow down to the pace of processing.
+         *
+         * @param threads eg. {@link ProcessingStage#defaultThreads()}, one per core
+         */
+        public Builder postProcessor(PostProcessor postProcessor, int threads, int queueCapacity) {
+            if (threads < 1 || queueCapacity < 1) {
+                throw new IllegalArgumentException("threads < 1 or queueCapacity < 1");
+            }
+            mPostProcessor = postProcessor;
+            mProcessingThreads = threads;
+            mProcessingQueueCapacity = queueCapacity;
+            return this;
+        }
+
+        public DownloadEngine build() {
+            if (mAdaptiveConcurrency && mMinConcurrentDownloads > mMaxConcurrentDownloads) {
+                throw new IllegalArgumentException("minConcurrentDownloads > maxConcurrentDownloads");
+            }
+            return new DownloadEngine(this);
+        }
+    }
+}
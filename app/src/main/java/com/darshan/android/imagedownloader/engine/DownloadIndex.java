@@ -0,0 +1,394 @@
+package com.darshan.android.imagedownloader.engine;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the files downloaded so far, by the content key of their {@link DownloadRequest}.
+ * <p>
+ * Lets the engine answer a request whose content is already on disk without touching the network,
+ * keep one file for the same content downloaded under different keys (by SHA-256), and give a
+ * different image that wants an existing file name a name of its own instead of overwriting it.
+ * <p>
+ * Persisted in an append-only journal like {@link JobStore}'s, so opening it costs one read of
+ * the journal and never a scan of the download directory. An entry is checked against the file's
+ * length and modification time when it is looked up; a file that was deleted or edited since
+ * drops out of the index, unless it was changed through {@link #replace}.
+ * <pre>
+ *     ImageDownloader.index
+ *     1
+ *     PUT picsum-0-5616x3744 9f86d08...b0f00a08 1235430 1530000000000 /storage/emulated/0/Pictures/Picsum/0.jpeg
+ *     DEL picsum-0-5616x3744
+ * </pre>
+ */
+public class DownloadIndex {
+    static final String MAGIC = "ImageDownloader.index";
+    static final String VERSION = "1";
+
+    private static final String PUT = "PUT";
+    private static final String DEL = "DEL";
+
+    /* Journal is rewritten once it holds this many lines more than needed */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mJournalFile;
+    private final File mJournalFileTmp;
+
+    //guarded by this
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>();
+    private final Map<String, Entry> mEntriesByHash = new HashMap<>();
+    private final Map<String, Entry> mEntriesByPath = new HashMap<>();
+    //target files of the downloads running right now, by content key
+    private final Map<String, File> mReservedTargets = new HashMap<>();
+    private Writer mJournalWriter;
+    private int mRedundantOpCount;
+    //last write failed, rewrite the whole journal with the next change
+    private boolean mJournalErrors;
+
+    private DownloadIndex(File journalFile) {
+        mJournalFile = journalFile;
+        mJournalFileTmp = new File(journalFile.getPath() + ".tmp");
+    }
+
+    /**
+     * Loads the index kept in {@code journalFile}, creating it when missing.
+     */
+    public static DownloadIndex open(File journalFile) throws IOException {
+        DownloadIndex index = new DownloadIndex(journalFile);
+        if (journalFile.isFile()) {
+            index.readJournal();
+        }
+        index.rebuildJournal();
+        return index;
+    }
+
+    /**
+     * @return the file downloaded for {@code contentKey}, null when there is none or it has
+     * changed on disk since
+     */
+    public synchronized Entry get(String contentKey) {
+        return validate(mEntries.get(contentKey));
+    }
+
+    /**
+     * @return a file with exactly this content, null when there is none
+     */
+    public synchronized Entry getByHash(String sha256) {
+        return validate(mEntriesByHash.get(sha256));
+    }
+
+    /**
+     * @return number of indexed files, including ones not validated since they changed
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Picks the file a download of {@code contentKey} is written to. That is {@code requested}
+     * unless it holds, or is about to hold, a different image. Then it is the first free one
+     * of "name-1.jpg", "name-2.jpg", ..., the same one for every attempt of the download.
+     * The file stays reserved until {@link #release}.
+     */
+    public synchronized File reserveTarget(String contentKey, File requested) {
+        File reserved = mReservedTargets.get(contentKey);
+        if (reserved != null) {
+            return reserved;
+        }
+        for (int n = 0; ; n++) {
+            File candidate = n == 0 ? requested : numbered(requested, n);
+            if (isFreeFor(contentKey, candidate)) {
+                mReservedTargets.put(contentKey, candidate);
+                return candidate;
+            }
+        }
+    }
+
+    public synchronized void release(String contentKey) {
+        mReservedTargets.remove(contentKey);
+    }
+
+    /**
+     * Records {@code file} as the download of {@code contentKey}.
+     * @return the new entry
+     */
+    public synchronized Entry put(String contentKey, File file, String sha256) {
+        Entry entry = new Entry(contentKey, file, sha256, file.length(), file.lastModified());
+        if (removeEntry(contentKey) != null) {
+            mRedundantOpCount++;
+        }
+        addEntry(entry);
+        append(putLine(entry));
+        return entry;
+    }
+
+    /**
+     * Moves {@code replacement} over {@code file}, eg. the downloaded image re-encoded, and keeps
+     * every entry of the file. They keep the SHA-256 the content was downloaded with, so the same
+     * image downloaded again under another key still ends up in this file.
+     */
+    public synchronized void replace(File file, File replacement) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            if (entry.mFile.equals(file)) {
+                entries.add(entry);
+            }
+        }
+        //one edited behind our back before is dropped as usual
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            if (validate(entries.get(i)) == null) {
+                entries.remove(i);
+            }
+        }
+        if (!replacement.renameTo(file)) {
+            throw new IOException("Unable to move " + replacement + " to " + file);
+        }
+        for (Entry entry : entries) {
+            put(entry.mContentKey, file, entry.mSha256);
+        }
+    }
+
+    public synchronized void remove(String contentKey) {
+        if (removeEntry(contentKey) != null) {
+            //the PUT line and this one are dead
+            mRedundantOpCount += 2;
+            append(DEL + ' ' + contentKey);
+        }
+    }
+
+    public synchronized void close() {
+        Downloader.closeQuietly(mJournalWriter);
+        mJournalWriter = null;
+    }
+
+
+    private Entry validate(Entry entry) {
+        if (entry == null) {
+            return null;
+        }
+        File file = entry.mFile;
+        if (file.isFile() && file.length() == entry.mLength && file.lastModified() == entry.mLastModified) {
+            return entry;
+        }
+        //deleted or edited behind our back
+        remove(entry.mContentKey);
+        return null;
+    }
+
+    private boolean isFreeFor(String contentKey, File file) {
+        for (Map.Entry<String, File> reservation : mReservedTargets.entrySet()) {
+            if (reservation.getValue().equals(file) && !reservation.getKey().equals(contentKey)) {
+                return false;
+            }
+        }
+        if (!file.exists()) {
+            return true;
+        }
+        //only the file indexed for this very download may be replaced. Anything else, even one
+        //of our downloads the user edited since, stays as it is
+        Entry owner = mEntriesByPath.get(file.getPath());
+        return owner != null && owner.mContentKey.equals(contentKey);
+    }
+
+    /* "image.jpg" and 2 give "image-2.jpg" */
+    private static File numbered(File file, int n) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String numbered = dot > 0
+                ? name.substring(0, dot) + "-" + n + name.substring(dot)
+                : name + "-" + n;
+        return new File(file.getParentFile(), numbered);
+    }
+
+    private void addEntry(Entry entry) {
+        mEntries.put(entry.mContentKey, entry);
+        if (!mEntriesByHash.containsKey(entry.mSha256)) {
+            mEntriesByHash.put(entry.mSha256, entry);
+        }
+        mEntriesByPath.put(entry.mFile.getPath(), entry);
+    }
+
+    private Entry removeEntry(String contentKey) {
+        Entry entry = mEntries.remove(contentKey);
+        if (entry == null) {
+            return null;
+        }
+        if (mEntriesByHash.get(entry.mSha256) == entry) {
+            mEntriesByHash.remove(entry.mSha256);
+            //another key may still have the same content
+            for (Entry other : mEntries.values()) {
+                if (other.mSha256.equals(entry.mSha256)) {
+                    mEntriesByHash.put(other.mSha256, other);
+                    break;
+                }
+            }
+        }
+        if (mEntriesByPath.get(entry.mFile.getPath()) == entry) {
+            mEntriesByPath.remove(entry.mFile.getPath());
+        }
+        return entry;
+    }
+
+    private void append(String line) {
+        if (mJournalErrors || mJournalWriter == null
+                || (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && mRedundantOpCount >= mEntries.size())) {
+            //the new state is already in memory, writing all of it covers this line too
+            try {
+                rebuildJournal();
+            } catch (IOException e) {
+                mJournalErrors = true;
+            }
+            return;
+        }
+        try {
+            mJournalWriter.write(line);
+            mJournalWriter.write('\n');
+            mJournalWriter.flush();
+        } catch (IOException e) {
+            //only costs a download that could have been skipped after a restart
+            mJournalErrors = true;
+        }
+    }
+
+    /**
+     * Writes the minimal journal for the entries in memory and swaps it in.
+     */
+    private void rebuildJournal() throws IOException {
+        Downloader.closeQuietly(mJournalWriter);
+        mJournalWriter = null;
+
+        Writer writer = newWriter(mJournalFileTmp, false);
+        try {
+            writer.write(MAGIC + '\n' + VERSION + '\n');
+            for (Entry entry : mEntries.values()) {
+                writer.write(putLine(entry) + '\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (mJournalFile.exists() && !mJournalFile.delete()) {
+            throw new IOException("Unable to replace " + mJournalFile);
+        }
+        if (!mJournalFileTmp.renameTo(mJournalFile)) {
+            throw new IOException("Unable to rename " + mJournalFileTmp + " to " + mJournalFile);
+        }
+
+        mJournalWriter = newWriter(mJournalFile, true);
+        mRedundantOpCount = 0;
+        mJournalErrors = false;
+    }
+
+    private void readJournal() throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(mJournalFile), UTF_8));
+        try {
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                //not ours or an older format, the files are downloaded again
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!readJournalLine(line)) {
+                    //torn write, the lines after it can't be trusted either
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private boolean readJournalLine(String line) {
+        String[] parts = line.split(" ", 6);
+        try {
+            if (PUT.equals(parts[0]) && parts.length == 6) {
+                removeEntry(parts[1]);
+                addEntry(new Entry(parts[1], new File(parts[5]), parts[2],
+                        Long.parseLong(parts[3]), Long.parseLong(parts[4])));
+                return true;
+            }
+            if (DEL.equals(parts[0]) && parts.length == 2) {
+                removeEntry(parts[1]);
+                return true;
+            }
+        } catch (NumberFormatException e) {
+            //torn in the middle of a number
+        }
+        return false;
+    }
+
+    private static String putLine(Entry entry) {
+        //the path goes last, it is the only field that may contain spaces
+        return PUT + ' ' + entry.mContentKey + ' ' + entry.mSha256 + ' ' + entry.mLength
+                + ' ' + entry.mLastModified + ' ' + entry.mFile.getPath();
+    }
+
+    private static Writer newWriter(File file, boolean append) throws FileNotFoundException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), UTF_8));
+    }
+
+
+    /**
+     * One downloaded file. Immutable.
+     */
+    public static class Entry {
+        private final String mContentKey;
+        private final File mFile;
+        private final String mSha256;
+        private final long mLength;
+        private final long mLastModified;
+
+        private Entry(String contentKey, File file, String sha256, long length, long lastModified) {
+            mContentKey = contentKey;
+            mFile = file;
+            mSha256 = sha256;
+            mLength = length;
+            mLastModified = lastModified;
+        }
+
+        public String getContentKey() {
+            return mContentKey;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        /**
+         * @return hash of the content as it was downloaded, the file has another one after a {@link #replace}
+         */
+        public String getSha256() {
+            return mSha256;
+        }
+
+        public long getLength() {
+            return mLength;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "contentKey=" + mContentKey +
+                    ", file=" + mFile +
+                    ", sha256=" + mSha256 +
+                    '}';
+        }
+    }
+}
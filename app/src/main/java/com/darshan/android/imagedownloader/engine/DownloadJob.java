@@ -0,0 +1,322 @@
+package com.darshan.android.imagedownloader.engine;
+
+import com.darshan.android.imagedownloader.metrics.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import okhttp3.Call;
+
+/**
+ * A {@link DownloadRequest} submitted to a {@link DownloadEngine}.
+ * Works as a Future for the downloaded file, so callers can either observe it through
+ * {@link DownloadListener} or block on {@link #get()}.
+ */
+public class DownloadJob implements Future<File> {
+
+    public enum State {
+        QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED
+    }
+
+    /* Higher priority first, jobs of the same priority in submission order. */
+    static final Comparator<DownloadJob> PRIORITY_ORDER = new Comparator<DownloadJob>() {
+        @Override
+        public int compare(DownloadJob a, DownloadJob b) {
+            int byPriority = b.mRequest.getPriority().compareTo(a.mRequest.getPriority());
+            if (byPriority != 0) {
+                return byPriority;
+            }
+            return a.mSequence < b.mSequence ? -1 : (a.mSequence == b.mSequence ? 0 : 1);
+        }
+    };
+
+    private final DownloadEngine mEngine;
+    private final DownloadRequest mRequest;
+    private final DownloadListener mListener;
+    private final long mSequence;
+    private final ProgressThrottle mProgressThrottle;
+    private final RateLimiter mRateLimiter;
+    private final CountDownLatch mDoneLatch = new CountDownLatch(1);
+
+    private volatile State mState = State.QUEUED;
+    private volatile boolean mCancelRequested;
+    private volatile Thread mWorkerThread;
+    //http calls made for this job, guarded by itself
+    private final List<Call> mCalls = new ArrayList<>();
+
+    //written before mDoneLatch is released, read after it
+    private File mResultFile;
+    private IOException mFailure;
+
+    //written by the worker running the job, one attempt after the other
+    private volatile int mFailedAttempts;
+    //guarded by the engine
+    private long mRetryAtMillis;
+    private boolean mCircuitTrial;
+
+    DownloadJob(DownloadEngine engine, DownloadRequest request, DownloadListener listener, long sequence,
+                ProgressThrottle progressThrottle) {
+        mEngine = engine;
+        mRequest = request;
+        mListener = listener;
+        mSequence = sequence;
+        mProgressThrottle = progressThrottle;
+        mRateLimiter = new RateLimiter(request.getMaxBytesPerSecond());
+    }
+
+    public DownloadRequest getRequest() {
+        return mRequest;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * True once the job was asked to stop. Transfer loops poll this between chunks.
+     */
+    public boolean isCancelRequested() {
+        return mCancelRequested;
+    }
+
+    /**
+     * Cap of this download alone, starts at the request's {@link DownloadRequest#getMaxBytesPerSecond}
+     * and may be changed while the download runs. Segments of the download share it.
+     */
+    public RateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    /**
+     * @return attempts that failed so far and are being retried
+     */
+    public int getFailedAttempts() {
+        return mFailedAttempts;
+    }
+
+
+    //------------------------------------    Future    ------------------------------------------//
+
+    /**
+     * Removes the job from the queue, or stops the transfer if it is already running.
+     * Always interrupts the worker, {@code mayInterruptIfRunning} is ignored.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return mEngine.cancel(this);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mState == State.CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mDoneLatch.getCount() == 0;
+    }
+
+    @Override
+    public File get() throws InterruptedException, ExecutionException {
+        mDoneLatch.await();
+        return result();
+    }
+
+    @Override
+    public File get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDoneLatch.await(timeout, unit)) {
+            throw new TimeoutException("Download not finished after " + timeout + " " + unit);
+        }
+        return result();
+    }
+
+    private File result() throws ExecutionException {
+        switch (mState) {
+            case CANCELLED:
+                throw new CancellationException("Download cancelled: " + mRequest.getUrl());
+            case FAILED:
+                throw new ExecutionException(mFailure);
+            default:
+                return mResultFile;
+        }
+    }
+
+
+    //------------------------------------    Engine side    -------------------------------------//
+
+    /**
+     * Executed on one of the engine's worker threads, once per attempt.
+     */
+    void run() {
+        mWorkerThread = Thread.currentThread();
+        Metrics metrics = mEngine.getMetrics();
+        metrics.getTracer().beginSection("download");
+        long startNanos = System.nanoTime();
+        boolean retry = false;
+        try {
+            if (mCancelRequested) {
+                finishCancelled();
+                return;
+            }
+            mState = State.RUNNING;
+            mListener.onStart(this);
+
+            File file = mEngine.getDownloader().download(this);
+            mEngine.attemptSucceeded(this);
+
+            //a cancel that arrives after the file was moved into place is too late
+            mResultFile = file;
+            mState = State.COMPLETED;
+            metrics.counter(DownloadEngine.COMPLETED).increment();
+            mListener.onComplete(this, file);
+            mDoneLatch.countDown();
+            mEngine.postProcess(this, file);
+        } catch (IOException e) {
+            if (mCancelRequested) {
+                mEngine.attemptAbandoned(this);
+                finishCancelled();
+            } else if (mEngine.attemptFailed(this, e)) {
+                //back in the engine's queue until the retry is due
+                mFailedAttempts++;
+                mState = State.QUEUED;
+                retry = true;
+                metrics.counter(DownloadEngine.RETRIED).increment();
+            } else {
+                fail(e);
+            }
+        } catch (RuntimeException e) {
+            mEngine.attemptAbandoned(this);
+            fail(new IOException("Unexpected error while downloading " + mRequest.getUrl(), e));
+        } finally {
+            mWorkerThread = null;
+            synchronized (mCalls) {
+                mCalls.clear();
+            }
+            //clear a pending cancel interrupt before the thread goes back to the pool
+            Thread.interrupted();
+            metrics.timer(DownloadEngine.ATTEMPT).recordSince(startNanos);
+            metrics.getTracer().endSection();
+            mEngine.finished(this, retry);
+        }
+    }
+
+    /**
+     * Marks the job as cancel requested and wakes up its worker if there is one.
+     */
+    void requestCancel() {
+        mCancelRequested = true;
+        Thread worker = mWorkerThread;
+        if (worker != null) {
+            worker.interrupt();
+        }
+        synchronized (mCalls) {
+            for (Call call : mCalls) {
+                call.cancel();
+            }
+        }
+    }
+
+    /**
+     * Registers a call made on behalf of this job, so a cancel aborts it.
+     */
+    void track(Call call) {
+        synchronized (mCalls) {
+            mCalls.add(call);
+        }
+        //cancel requested between the last check and now
+        if (mCancelRequested) {
+            call.cancel();
+        }
+    }
+
+    /**
+     * @return true when the current attempt sent a request, false when it was answered locally
+     */
+    boolean hasTrackedCalls() {
+        synchronized (mCalls) {
+            return !mCalls.isEmpty();
+        }
+    }
+
+    /**
+     * Called for every read with the number of bytes it got, feeds the engine's bandwidth measurement.
+     */
+    void reportTransferred(int byteCount) {
+        mEngine.transferred(byteCount);
+    }
+
+    /**
+     * Called when a request of this job got its response headers.
+     */
+    void reportLatency(long latencyMillis) {
+        mEngine.responded(latencyMillis);
+    }
+
+    /**
+     * Called for every read, only the updates let through by the job's throttle reach the listener.
+     */
+    void reportProgress(long bytesDownloaded, long totalBytes) {
+        if (mProgressThrottle.shouldEmit(bytesDownloaded, totalBytes)) {
+            mListener.onProgress(this, bytesDownloaded, totalBytes);
+        }
+    }
+
+    /**
+     * Called when an attempt receives the image from byte 0, after earlier progress was reported.
+     */
+    void restartProgress() {
+        mProgressThrottle.reset();
+    }
+
+    long getRetryAtMillis() {
+        return mRetryAtMillis;
+    }
+
+    void setRetryAtMillis(long retryAtMillis) {
+        mRetryAtMillis = retryAtMillis;
+    }
+
+    /**
+     * @return true when this attempt is the trial request of an open circuit
+     */
+    boolean isCircuitTrial() {
+        return mCircuitTrial;
+    }
+
+    void setCircuitTrial(boolean circuitTrial) {
+        mCircuitTrial = circuitTrial;
+    }
+
+    void fail(IOException e) {
+        mFailure = e;
+        mState = State.FAILED;
+        mEngine.getMetrics().counter(DownloadEngine.FAILED).increment();
+        mListener.onFailure(this, e);
+        mDoneLatch.countDown();
+    }
+
+    void finishCancelled() {
+        mState = State.CANCELLED;
+        mEngine.getMetrics().counter(DownloadEngine.CANCELLED).increment();
+        mListener.onCancelled(this);
+        mDoneLatch.countDown();
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadJob{" +
+                "request=" + mRequest +
+                ", state=" + mState +
+                '}';
+    }
+}
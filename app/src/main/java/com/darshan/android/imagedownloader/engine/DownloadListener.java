@@ -0,0 +1,32 @@
+package com.darshan.android.imagedownloader.engine;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Receives the life cycle events of a {@link DownloadJob}.
+ * All callbacks are invoked on the engine's worker threads, never on the UI-Thread,
+ * so implementations that touch views have to post the update themselves.
+ */
+public interface DownloadListener {
+
+    /**
+     * Job left the queue and a worker started transferring it.
+     */
+    void onStart(DownloadJob job);
+
+    /**
+     * @param bytesDownloaded bytes written to the target file so far
+     * @param totalBytes      length reported by the server, or -1 when unknown
+     */
+    void onProgress(DownloadJob job, long bytesDownloaded, long totalBytes);
+
+    void onComplete(DownloadJob job, File file);
+
+    void onFailure(DownloadJob job, IOException e);
+
+    /**
+     * Job was cancelled, either while waiting in the queue or in the middle of the transfer.
+     */
+    void onCancelled(DownloadJob job);
+}
@@ -0,0 +1,238 @@
+package com.darshan.android.imagedownloader.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Persistent front of a {@link DownloadEngine}.
+ * <p>
+ * Every request is recorded in a {@link JobStore} before it is handed to the engine, and its state
+ * is kept up to date from the job's callbacks. After the process was killed, a new queue on the
+ * same store {@link #drain drains} the unfinished downloads again, and the engine resumes them from
+ * their part files. Requests whose network or charging constraints are not met stay in the store
+ * until a drain with a {@link DeviceState} that satisfies them.
+ */
+public class DownloadQueue {
+
+    /**
+     * Current condition of the device, checked against the constraints of waiting downloads.
+     */
+    public interface DeviceState {
+        boolean isNetworkUnmetered();
+
+        boolean isCharging();
+    }
+
+    private final DownloadEngine mEngine;
+    private final JobStore mStore;
+    //notified about every job of the queue, after the job specific listeners
+    private final List<DownloadListener> mListeners = new CopyOnWriteArrayList<>();
+
+    //guarded by this
+    private final Map<Long, DownloadJob> mActiveJobs = new HashMap<>();
+    private final Map<Long, List<DownloadListener>> mJobListeners = new HashMap<>();
+    private final Map<Long, Object> mTags = new HashMap<>();
+    private DeviceState mDeviceState;
+
+    public DownloadQueue(DownloadEngine engine, JobStore store, DeviceState deviceState) {
+        mEngine = engine;
+        mStore = store;
+        mDeviceState = deviceState;
+    }
+
+    /**
+     * Records the download and starts it right away if its constraints allow.
+     * A download still pending for the same content key, or the same target file when there is
+     * no key, is reused instead, and restarted when its last attempt failed.
+     *
+     * @param listener receives the callbacks of this download on a worker thread, may be null
+     * @return id of the download in the store
+     */
+    public long enqueue(DownloadRequest request, DownloadListener listener) {
+        long id;
+        synchronized (this) {
+            JobStore.Record record = findPending(request);
+            if (record == null) {
+                record = mStore.add(request);
+            } else if (record.getState() == DownloadJob.State.FAILED) {
+                mStore.updateState(record.getId(), DownloadJob.State.QUEUED);
+            }
+            id = record.getId();
+            mTags.put(id, request.getTag());
+            if (listener != null) {
+                List<DownloadListener> listeners = mJobListeners.get(id);
+                if (listeners == null) {
+                    listeners = new CopyOnWriteArrayList<>();
+                    mJobListeners.put(id, listeners);
+                }
+                listeners.add(listener);
+            }
+        }
+        drain(null);
+        return id;
+    }
+
+    /**
+     * Hands every queued download whose constraints are met to the engine.
+     *
+     * @param deviceState current state of the device, null to keep the last one
+     * @return number of downloads still waiting for their constraints
+     */
+    public synchronized int drain(DeviceState deviceState) {
+        if (deviceState != null) {
+            mDeviceState = deviceState;
+        }
+        int waiting = 0;
+        for (JobStore.Record record : mStore.getRecords()) {
+            if (record.getState() != DownloadJob.State.QUEUED || mActiveJobs.containsKey(record.getId())) {
+                continue;
+            }
+            if (!constraintsMet(record)) {
+                waiting++;
+                continue;
+            }
+            DownloadRequest request = record.toRequest(mTags.get(record.getId()));
+            //callbacks of the job block on this lock, so it is active before any of them runs
+            mActiveJobs.put(record.getId(), mEngine.submit(request, new JobCallback(record.getId())));
+        }
+        return waiting;
+    }
+
+    /**
+     * @return records of the queued downloads whose constraints are not met at the moment
+     */
+    public synchronized List<JobStore.Record> getWaitingRecords() {
+        List<JobStore.Record> waiting = new ArrayList<>();
+        for (JobStore.Record record : mStore.getRecords()) {
+            if (record.getState() == DownloadJob.State.QUEUED
+                    && !mActiveJobs.containsKey(record.getId()) && !constraintsMet(record)) {
+                waiting.add(record);
+            }
+        }
+        return waiting;
+    }
+
+    /**
+     * @return true when the store holds downloads that are queued but not handed to the engine
+     */
+    public synchronized boolean hasPendingWork() {
+        for (JobStore.Record record : mStore.getRecords()) {
+            if (record.getState() != DownloadJob.State.FAILED && !mActiveJobs.containsKey(record.getId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return downloads handed to the engine and not finished yet
+     */
+    public synchronized int getActiveCount() {
+        return mActiveJobs.size();
+    }
+
+    /**
+     * Listens to every download of the queue, including the ones restored from the store.
+     */
+    public void addListener(DownloadListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(DownloadListener listener) {
+        mListeners.remove(listener);
+    }
+
+
+    private JobStore.Record findPending(DownloadRequest request) {
+        String contentKey = request.getContentKey();
+        for (JobStore.Record record : mStore.getRecords()) {
+            //different images wanting the same file name get a name each from the index
+            boolean same = contentKey != null
+                    ? contentKey.equals(record.getContentKey())
+                    : record.getContentKey() == null && record.getTargetFile().equals(request.getTargetFile());
+            if (same) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    private boolean constraintsMet(JobStore.Record record) {
+        return (!record.requiresUnmeteredNetwork() || mDeviceState.isNetworkUnmetered())
+                && (!record.requiresCharging() || mDeviceState.isCharging());
+    }
+
+    /* Drops the job from the active ones and returns the listeners to notify about its end */
+    private synchronized List<DownloadListener> finish(long id, DownloadJob.State state) {
+        mStore.updateState(id, state);
+        mActiveJobs.remove(id);
+        List<DownloadListener> listeners = listeners(id);
+        //a retry comes with its own listener
+        mJobListeners.remove(id);
+        mTags.remove(id);
+        return listeners;
+    }
+
+    private synchronized List<DownloadListener> listeners(long id) {
+        List<DownloadListener> listeners = new ArrayList<>();
+        List<DownloadListener> jobListeners = mJobListeners.get(id);
+        if (jobListeners != null) {
+            listeners.addAll(jobListeners);
+        }
+        listeners.addAll(mListeners);
+        return listeners;
+    }
+
+
+    /* Keeps the store in sync with one job and forwards its callbacks */
+    private class JobCallback implements DownloadListener {
+        private final long mId;
+
+        JobCallback(long id) {
+            mId = id;
+        }
+
+        @Override
+        public void onStart(DownloadJob job) {
+            mStore.updateState(mId, DownloadJob.State.RUNNING);
+            for (DownloadListener listener : listeners(mId)) {
+                listener.onStart(job);
+            }
+        }
+
+        @Override
+        public void onProgress(DownloadJob job, long bytesDownloaded, long totalBytes) {
+            mStore.updateProgress(mId, bytesDownloaded, totalBytes);
+            for (DownloadListener listener : listeners(mId)) {
+                listener.onProgress(job, bytesDownloaded, totalBytes);
+            }
+        }
+
+        @Override
+        public void onComplete(DownloadJob job, File file) {
+            for (DownloadListener listener : finish(mId, DownloadJob.State.COMPLETED)) {
+                listener.onComplete(job, file);
+            }
+        }
+
+        @Override
+        public void onFailure(DownloadJob job, IOException e) {
+            //kept in the store, enqueueing the same target again retries it
+            for (DownloadListener listener : finish(mId, DownloadJob.State.FAILED)) {
+                listener.onFailure(job, e);
+            }
+        }
+
+        @Override
+        public void onCancelled(DownloadJob job) {
+            for (DownloadListener listener : finish(mId, DownloadJob.State.CANCELLED)) {
+                listener.onCancelled(job);
+            }
+        }
+    }
+}
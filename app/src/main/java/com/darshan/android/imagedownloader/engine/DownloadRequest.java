@@ -0,0 +1,223 @@
+package com.darshan.android.imagedownloader.engine;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Immutable description of a single download: where to fetch it from, where to save it
+ * and how urgent it is compared to the other queued downloads.
+ */
+public class DownloadRequest {
+
+    public enum Priority {
+        LOW, NORMAL, HIGH
+    }
+
+    /* More connections than this per image only add load on the server */
+    public static final int MAX_SEGMENTS = 16;
+
+    private final URL mUrl;
+    private final File mTargetFile;
+    private final Priority mPriority;
+    private final int mSegmentCount;
+    private final boolean mRequiresUnmeteredNetwork;
+    private final boolean mRequiresCharging;
+    private final String mContentKey;
+    private final long mMaxBytesPerSecond;
+    private final Object mTag;
+
+    private DownloadRequest(Builder builder) {
+        mUrl = builder.mUrl;
+        mTargetFile = builder.mTargetFile;
+        mPriority = builder.mPriority;
+        mSegmentCount = builder.mSegmentCount;
+        mRequiresUnmeteredNetwork = builder.mRequiresUnmeteredNetwork;
+        mRequiresCharging = builder.mRequiresCharging;
+        mContentKey = builder.mContentKey;
+        mMaxBytesPerSecond = builder.mMaxBytesPerSecond;
+        mTag = builder.mTag;
+    }
+
+    public URL getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * Host name used to group downloads for the per-host concurrency limit.
+     */
+    public String getHost() {
+        return mUrl.getHost();
+    }
+
+    public File getTargetFile() {
+        return mTargetFile;
+    }
+
+    public Priority getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Number of connections the image may be fetched over in parallel, 1 for a single stream.
+     */
+    public int getSegmentCount() {
+        return mSegmentCount;
+    }
+
+    /**
+     * True when the download may only start on an unmetered (eg. Wi-Fi) network.
+     * Honoured by {@link DownloadQueue}, the engine itself runs whatever it is given.
+     */
+    public boolean requiresUnmeteredNetwork() {
+        return mRequiresUnmeteredNetwork;
+    }
+
+    /**
+     * True when the download may only start while the device is charging.
+     * Honoured by {@link DownloadQueue}, the engine itself runs whatever it is given.
+     */
+    public boolean requiresCharging() {
+        return mRequiresCharging;
+    }
+
+    /**
+     * Identity of the content independent of url and file name, eg. image id and size.
+     * @return null when the download is not tracked in the {@link DownloadIndex}
+     */
+    public String getContentKey() {
+        return mContentKey;
+    }
+
+    /**
+     * @return cap of this download alone, {@link RateLimiter#UNLIMITED} for none
+     */
+    public long getMaxBytesPerSecond() {
+        return mMaxBytesPerSecond;
+    }
+
+    /**
+     * Caller supplied object (eg. the Image being downloaded), never read by the engine.
+     */
+    public Object getTag() {
+        return mTag;
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadRequest{" +
+                "url=" + mUrl +
+                ", targetFile=" + mTargetFile +
+                ", priority=" + mPriority +
+                ", segmentCount=" + mSegmentCount +
+                ", requiresUnmeteredNetwork=" + mRequiresUnmeteredNetwork +
+                ", requiresCharging=" + mRequiresCharging +
+                ", contentKey=" + mContentKey +
+                ", maxBytesPerSecond=" + mMaxBytesPerSecond +
+                '}';
+    }
+
+
+    public static class Builder {
+        private URL mUrl;
+        private File mTargetFile;
+        private Priority mPriority = Priority.NORMAL;
+        private int mSegmentCount = 1;
+        private boolean mRequiresUnmeteredNetwork;
+        private boolean mRequiresCharging;
+        private String mContentKey;
+        private long mMaxBytesPerSecond = RateLimiter.UNLIMITED;
+        private Object mTag;
+
+        public Builder url(String url) {
+            try {
+                mUrl = new URL(url);
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException("Invalid download url " + url, e);
+            }
+            return this;
+        }
+
+        public Builder url(URL url) {
+            mUrl = url;
+            return this;
+        }
+
+        public Builder targetFile(File targetFile) {
+            mTargetFile = targetFile;
+            return this;
+        }
+
+        public Builder priority(Priority priority) {
+            mPriority = priority;
+            return this;
+        }
+
+        /**
+         * Splits the image into up to {@code segmentCount} byte ranges fetched over separate
+         * connections. Falls back to a single stream when the server doesn't support ranges
+         * or the image is too small to be worth splitting.
+         * Segmented downloads are not resumed, a failed attempt starts over.
+         */
+        public Builder segments(int segmentCount) {
+            if (segmentCount < 1 || segmentCount > MAX_SEGMENTS) {
+                throw new IllegalArgumentException("segmentCount must be between 1 and " + MAX_SEGMENTS);
+            }
+            mSegmentCount = segmentCount;
+            return this;
+        }
+
+        public Builder requiresUnmeteredNetwork(boolean requiresUnmeteredNetwork) {
+            mRequiresUnmeteredNetwork = requiresUnmeteredNetwork;
+            return this;
+        }
+
+        public Builder requiresCharging(boolean requiresCharging) {
+            mRequiresCharging = requiresCharging;
+            return this;
+        }
+
+        /**
+         * Lets an engine with a {@link DownloadIndex} skip the download when the content is
+         * already on disk, and keep a different image from overwriting a file of the same name.
+         * @param contentKey without whitespace, null for none
+         */
+        public Builder contentKey(String contentKey) {
+            if (contentKey != null && (contentKey.isEmpty() || contentKey.matches(".*\\s.*"))) {
+                throw new IllegalArgumentException("contentKey must not be empty or contain whitespace");
+            }
+            mContentKey = contentKey;
+            return this;
+        }
+
+        /**
+         * Caps this download on top of the engine's bandwidth limit.
+         * @param maxBytesPerSecond {@link RateLimiter#UNLIMITED} for no cap of its own
+         */
+        public Builder maxBytesPerSecond(long maxBytesPerSecond) {
+            if (maxBytesPerSecond < 0) {
+                throw new IllegalArgumentException("maxBytesPerSecond < 0");
+            }
+            mMaxBytesPerSecond = maxBytesPerSecond;
+            return this;
+        }
+
+        public Builder tag(Object tag) {
+            mTag = tag;
+            return this;
+        }
+
+        public DownloadRequest build() {
+            if (mUrl == null) {
+                throw new IllegalStateException("url == null");
+            }
+            if (mTargetFile == null) {
+                throw new IllegalStateException("targetFile == null");
+            }
+            if (mPriority == null) {
+                throw new IllegalStateException("priority == null");
+            }
+            return new DownloadRequest(this);
+        }
+    }
+}
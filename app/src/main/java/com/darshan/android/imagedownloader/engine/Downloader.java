@@ -0,0 +1,287 @@
+package com.darshan.android.imagedownloader.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ExecutorService;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Transfers the body of a single {@link DownloadRequest} into its target file.
+ * Runs on an engine worker thread.
+ * <p>
+ * Every attempt is exactly one request on the shared {@link OkHttpClient}: length, validators and
+ * body are all read from the same response, and the connection goes back to the client's pool
+ * for the next download to the same host.
+ * <p>
+ * Bytes go to a part file that is renamed into place only once its length matches the declared
+ * one and its SHA-256, computed while the bytes stream in, matches the digest the server declared,
+ * if any. A killed process or a broken response never leaves a corrupt image in the target.
+ * <p>
+ * Requests with a content key are looked up in the {@link DownloadIndex} first, and recorded
+ * in it once downloaded.
+ *
+ * @see PartialDownload
+ */
+class Downloader {
+    static final int HTTP_PARTIAL = 206;
+
+    private final OkHttpClient mClient;
+    private final TransferStage mTransferStage;
+    private final SegmentedDownload mSegmentedDownload;
+    //null when the engine keeps no index
+    private final DownloadIndex mIndex;
+
+    Downloader(OkHttpClient client, TransferStage transferStage, ExecutorService segmentExecutor,
+               DownloadIndex index) {
+        mClient = client;
+        mIndex = index;
+        mTransferStage = transferStage;
+        mSegmentedDownload = new SegmentedDownload(this, transferStage, segmentExecutor);
+    }
+
+    /**
+     * Answers the request from the index when its content is on disk already. Otherwise
+     * downloads it into the target, or a file of its own when the target holds another image,
+     * and keeps a single file when the same content was downloaded under another key before.
+     */
+    File download(DownloadJob job) throws IOException {
+        DownloadRequest request = job.getRequest();
+        String contentKey = request.getContentKey();
+        if (mIndex == null || contentKey == null) {
+            return transfer(job, request.getTargetFile(), new ContentDigest());
+        }
+        DownloadIndex.Entry present = mIndex.get(contentKey);
+        if (present != null) {
+            //no network at all
+            return present.getFile();
+        }
+
+        File targetFile = mIndex.reserveTarget(contentKey, request.getTargetFile());
+        try {
+            ContentDigest digest = new ContentDigest();
+            File file = transfer(job, targetFile, digest);
+            //hashed on the way in, the file isn't read again
+            String sha256 = digest.finish();
+            DownloadIndex.Entry sameContent = mIndex.getByHash(sha256);
+            if (sameContent != null && !sameContent.getFile().equals(file)) {
+                //same image under another key, eg. another size that Picsum served unscaled
+                file.delete();
+                file = sameContent.getFile();
+            }
+            mIndex.put(contentKey, file, sha256);
+            return file;
+        } finally {
+            mIndex.release(contentKey);
+        }
+    }
+
+    /**
+     * @return true when the request is answered from the index without any network
+     */
+    boolean isPresent(DownloadRequest request) {
+        return mIndex != null && request.getContentKey() != null && mIndex.get(request.getContentKey()) != null;
+    }
+
+    /**
+     * Downloads into the part file of the target, resuming a previous attempt when the server
+     * still serves the same content, and moves it into place once its length and digest
+     * check out. A failed attempt leaves the part file behind for the next one, unless
+     * what it received was corrupt.
+     *
+     * @param digest fresh digest, holds the SHA-256 of the file afterwards
+     */
+    private File transfer(DownloadJob job, File targetFile, ContentDigest digest) throws IOException {
+        DownloadRequest request = job.getRequest();
+        if (request.getSegmentCount() > 1) {
+            File file = mSegmentedDownload.download(job, targetFile, digest);
+            if (file != null) {
+                return file;
+            }
+            //server doesn't support ranges or the image is too small to split
+        }
+
+        PartialDownload partial = PartialDownload.open(targetFile, request.getUrl().toString());
+        boolean completed = false;
+        boolean corrupt = false;
+        try {
+            long offset = partial.resumableOffset();
+            String validator = partial.getValidator();
+
+            Response response = execute(job, offset > 0 ? "bytes=" + offset + "-" : null, validator);
+            try {
+                if (offset > 0 && response.code() != HttpURLConnection.HTTP_OK
+                        && !isResumeOf(response, offset, validator)) {
+                    //range not satisfiable or not matching what is on disk, fetch the whole image
+                    response.close();
+                    partial.discard();
+                    offset = 0;
+                    response = execute(job, null, null);
+                }
+
+                long totalBytes;
+                ResponseBody body = response.body();
+                if (offset > 0 && response.code() == HTTP_PARTIAL) {
+                    totalBytes = contentRangeTotal(response.header("Content-Range"));
+                } else if (response.code() == HttpURLConnection.HTTP_OK) {
+                    //nothing to resume, or the server ignored the range / the image changed
+                    offset = 0;
+                    partial.startOver(response.header("ETag"), response.header("Last-Modified"));
+                    totalBytes = body.contentLength();
+                } else {
+                    throw HttpStatusException.from(response);
+                }
+
+                if (offset > 0) {
+                    //the digest covers the whole image, including what earlier attempts received
+                    digest.update(partial.getPartFile(), offset);
+                }
+                copy(job, body.source(), partial.getPartFile(), offset, totalBytes, digest);
+                digest.verify(response);
+            } finally {
+                response.close();
+            }
+
+            File file = partial.complete();
+            completed = true;
+            return file;
+        } catch (CorruptDownloadException e) {
+            corrupt = true;
+            throw e;
+        } finally {
+            if (!completed) {
+                if (job.isCancelRequested()) {
+                    //user doesn't want the image anymore
+                    partial.discard();
+                } else if (corrupt) {
+                    //resuming would build on the bad bytes, the next attempt starts over
+                    partial.discard();
+                } else {
+                    partial.saveProgress();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends one request for the job's url. The call is registered with the job so cancelling the
+     * job aborts it immediately, even in the middle of a blocking read.
+     *
+     * @param range   value of the Range header, null for the whole image
+     * @param ifRange validator the range has to match, the server answers with the full image
+     *                instead of the range when it has changed
+     */
+    Response execute(DownloadJob job, String range, String ifRange) throws IOException {
+        Request.Builder builder = new Request.Builder()
+                .url(job.getRequest().getUrl())
+                //byte offsets have to refer to the stored representation, not a gzipped one
+                .header("Accept-Encoding", "identity");
+        if (range != null) {
+            builder.header("Range", range);
+            if (ifRange != null) {
+                builder.header("If-Range", ifRange);
+            }
+        }
+
+        Call call = mClient.newCall(builder.build());
+        job.track(call);
+        Response response = call.execute();
+        //time to first byte, wall clock stamps of the client
+        job.reportLatency(response.receivedResponseAtMillis() - response.sentRequestAtMillis());
+        return response;
+    }
+
+    /**
+     * True when a 206 response continues exactly where the part file ends and still
+     * carries the validator the part file was downloaded with.
+     */
+    private static boolean isResumeOf(Response response, long offset, String validator) {
+        if (response.code() != HTTP_PARTIAL
+                || contentRangeStart(response.header("Content-Range")) != offset) {
+            return false;
+        }
+        //servers that don't understand If-Range still reveal a changed ETag
+        String eTag = response.header("ETag");
+        return eTag == null || !validator.startsWith("\"") || eTag.equals(validator);
+    }
+
+    private void copy(final DownloadJob job, ReadableByteChannel source, File partFile, long offset,
+                      final long totalBytes, ContentDigest digest) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(partFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            final long[] total = {offset};
+            if (offset == 0) {
+                //an earlier attempt may have got further, this one's progress has to show anyway
+                job.restartProgress();
+            }
+            //append to what previous attempts already wrote
+            mTransferStage.transfer(job, source, channel, offset, -1, digest, new TransferStage.Listener() {
+                @Override
+                public void onTransferred(int byteCount) {
+                    job.reportTransferred(byteCount);
+                    total[0] += byteCount;
+                    job.reportProgress(total[0], totalBytes);
+                }
+            });
+            if (totalBytes != -1 && total[0] > totalBytes) {
+                throw new CorruptDownloadException("Received " + total[0] + " bytes of an image of "
+                        + totalBytes + " bytes");
+            }
+            if (totalBytes != -1 && total[0] < totalBytes) {
+                //some stacks report a dropped connection as a normal end of stream
+                throw new IOException("Unexpected end of stream after " + total[0] + " of "
+                        + totalBytes + " bytes");
+            }
+            mTransferStage.complete(channel);
+        } finally {
+            closeQuietly(source);
+            closeQuietly(file);
+        }
+    }
+
+    /* First byte position of "Content-Range: bytes 100-199/200", -1 when missing */
+    static long contentRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /* Complete length of "Content-Range: bytes 100-199/200", -1 when unknown */
+    static long contentRangeTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.indexOf('/');
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (RuntimeException e) {
+            //"*" or malformed
+            return -1;
+        }
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.darshan.android.imagedownloader.engine;
+
+import java.io.IOException;
+import java.util.Date;
+
+import okhttp3.Response;
+
+/**
+ * Server answered with a status code other than the image. Carries the code and the
+ * {@code Retry-After} the server asked for, so a {@link RetryPolicy} can tell a throttled or
+ * overloaded server from a missing image.
+ */
+public class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int mCode;
+    private final long mRetryAfterMillis;
+
+    /**
+     * @param retryAfterMillis time the server asked to wait before the next request, -1 for none
+     */
+    public HttpStatusException(String message, int code, long retryAfterMillis) {
+        super(message);
+        mCode = code;
+        mRetryAfterMillis = retryAfterMillis;
+    }
+
+    static HttpStatusException from(Response response) {
+        return new HttpStatusException("Unexpected response code " + response.code()
+                + " for " + response.request().url(), response.code(), retryAfterMillis(response));
+    }
+
+    public int getCode() {
+        return mCode;
+    }
+
+    /**
+     * @return time the server asked to wait before the next request, -1 when it didn't
+     */
+    public long getRetryAfterMillis() {
+        return mRetryAfterMillis;
+    }
+
+    /* "Retry-After: 120" or "Retry-After: Fri, 31 Dec 1999 23:59:59 GMT", -1 when missing or malformed */
+    private static long retryAfterMillis(Response response) {
+        String value = response.header("Retry-After");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            //not seconds, maybe a date
+        }
+        Date date = response.headers().getDate("Retry-After");
+        return date != null ? Math.max(0, date.getTime() - System.currentTimeMillis()) : -1;
+    }
+}
@@ -0,0 +1,464 @@
+package com.darshan.android.imagedownloader.engine;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persists the downloads of a {@link DownloadQueue}, so they outlive the process.
+ * <p>
+ * Every change is appended as one line to a journal file and flushed right away, the way
+ * DiskLruCache keeps its index. Opening the store replays the journal and rewrites it compactly.
+ * A line torn by a crash in the middle of a write is ignored together with everything after it.
+ * <pre>
+ *     ImageDownloader.jobs
+ *     1
+ *     ADD 1 NORMAL 1 - https://picsum.photos/0/download /storage/emulated/0/Pictures/Picsum/0.jpeg
+ *     KEY 1 picsum-0-5616x3744
+ *     RATE 1 131072
+ *     STATE 1 RUNNING
+ *     PROGRESS 1 65536 262144
+ *     REMOVE 1
+ * </pre>
+ * Completed and cancelled downloads are removed, the bytes themselves stay in the part file
+ * of the target, see {@link PartialDownload}. As the part file is what a resume goes by,
+ * progress is journaled only every {@link #PROGRESS_CHECKPOINT_BYTES}, when the download
+ * changes state and on {@link #close()}, not on every update.
+ */
+public class JobStore {
+    static final String MAGIC = "ImageDownloader.jobs";
+    static final String VERSION = "1";
+
+    private static final String ADD = "ADD";
+    private static final String KEY = "KEY";
+    private static final String RATE = "RATE";
+    private static final String STATE = "STATE";
+    private static final String PROGRESS = "PROGRESS";
+    private static final String REMOVE = "REMOVE";
+
+    /* Progress is written to the journal in steps of at least this many bytes */
+    static final long PROGRESS_CHECKPOINT_BYTES = 1024 * 1024;
+
+    /* Journal is rewritten once it holds this many lines more than needed */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mJournalFile;
+    private final File mJournalFileTmp;
+    private final Map<Long, Record> mRecords = new LinkedHashMap<>();
+
+    private Writer mJournalWriter;
+    private long mNextId = 1;
+    private int mRedundantOpCount;
+    //last write failed, rewrite the whole journal with the next change
+    private boolean mJournalErrors;
+
+    //journalFile null keeps the records in memory only
+    private JobStore(File journalFile) {
+        mJournalFile = journalFile;
+        mJournalFileTmp = journalFile != null ? new File(journalFile.getPath() + ".tmp") : null;
+    }
+
+    /**
+     * Loads the downloads recorded in {@code journalFile}, creating it when missing.
+     * Downloads that were running when the process died are queued again.
+     */
+    public static JobStore open(File journalFile) throws IOException {
+        JobStore store = new JobStore(journalFile);
+        if (journalFile.isFile()) {
+            store.readJournal();
+        }
+        for (Record record : store.mRecords.values()) {
+            if (record.mState == DownloadJob.State.RUNNING) {
+                record.mState = DownloadJob.State.QUEUED;
+            }
+        }
+        store.rebuildJournal();
+        return store;
+    }
+
+    /**
+     * Store without a journal, for when {@link #open(File)} failed. Downloads work as usual,
+     * none of them survives the process though.
+     */
+    public static JobStore inMemory() {
+        return new JobStore(null);
+    }
+
+    /**
+     * Records a new download in the QUEUED state.
+     * @return snapshot of the new record
+     */
+    public synchronized Record add(DownloadRequest request) {
+        Record record = new Record(mNextId++, request.getUrl().toString(), request.getTargetFile(),
+                request.getPriority(), request.getSegmentCount(), request.requiresUnmeteredNetwork(),
+                request.requiresCharging());
+        record.mContentKey = request.getContentKey();
+        record.mMaxBytesPerSecond = request.getMaxBytesPerSecond();
+        mRecords.put(record.mId, record);
+        append(addLine(record));
+        if (record.mContentKey != null) {
+            append(KEY + ' ' + record.mId + ' ' + record.mContentKey);
+        }
+        if (record.mMaxBytesPerSecond != RateLimiter.UNLIMITED) {
+            append(RATE + ' ' + record.mId + ' ' + record.mMaxBytesPerSecond);
+        }
+        return new Record(record);
+    }
+
+    /**
+     * Moves a download to {@code state}. Completed and cancelled downloads are forgotten.
+     */
+    public synchronized void updateState(long id, DownloadJob.State state) {
+        Record record = mRecords.get(id);
+        if (record == null) {
+            return;
+        }
+        if (state == DownloadJob.State.COMPLETED || state == DownloadJob.State.CANCELLED) {
+            mRecords.remove(id);
+            //the ADD line and every later one are dead now
+            mRedundantOpCount++;
+            append(REMOVE + ' ' + id);
+        } else if (record.mState != state) {
+            //paused or stopped, a good moment to note how far it got
+            journalProgress(record);
+            record.mState = state;
+            mRedundantOpCount++;
+            append(STATE + ' ' + id + ' ' + state.name());
+        }
+    }
+
+    /**
+     * Records how far a download got. Only informative, resuming relies on the part file, so
+     * the journal gets it at checkpoints and the record in memory every time.
+     */
+    public synchronized void updateProgress(long id, long bytesDownloaded, long totalBytes) {
+        Record record = mRecords.get(id);
+        if (record == null) {
+            return;
+        }
+        record.mBytesDownloaded = bytesDownloaded;
+        record.mTotalBytes = totalBytes;
+        //a restart from zero counts as a step as well
+        if (Math.abs(bytesDownloaded - record.mJournaledBytes) >= PROGRESS_CHECKPOINT_BYTES
+                || bytesDownloaded == totalBytes) {
+            journalProgress(record);
+        }
+    }
+
+    /**
+     * @return snapshot of the record, null when there is none with this id
+     */
+    public synchronized Record get(long id) {
+        Record record = mRecords.get(id);
+        return record != null ? new Record(record) : null;
+    }
+
+    /**
+     * @return snapshots of all unfinished downloads, in the order they were added
+     */
+    public synchronized List<Record> getRecords() {
+        List<Record> records = new ArrayList<>(mRecords.size());
+        for (Record record : mRecords.values()) {
+            records.add(new Record(record));
+        }
+        return records;
+    }
+
+    /**
+     * Writes the progress since the last checkpoints and closes the journal.
+     */
+    public synchronized void close() {
+        for (Record record : mRecords.values()) {
+            journalProgress(record);
+        }
+        Downloader.closeQuietly(mJournalWriter);
+        mJournalWriter = null;
+    }
+
+
+    private void journalProgress(Record record) {
+        if (record.mBytesDownloaded == record.mJournaledBytes) {
+            return;
+        }
+        record.mJournaledBytes = record.mBytesDownloaded;
+        mRedundantOpCount++;
+        append(PROGRESS + ' ' + record.mId + ' ' + record.mBytesDownloaded + ' ' + record.mTotalBytes);
+    }
+
+    private void append(String line) {
+        if (mJournalFile == null) {
+            return;
+        }
+        if (mJournalErrors || mJournalWriter == null
+                || (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && mRedundantOpCount >= mRecords.size())) {
+            //the new state is already in memory, writing all of it covers this line too
+            try {
+                rebuildJournal();
+            } catch (IOException e) {
+                mJournalErrors = true;
+            }
+            return;
+        }
+        try {
+            mJournalWriter.write(line);
+            mJournalWriter.write('\n');
+            //in the OS page cache at least, which is enough to survive the process being killed
+            mJournalWriter.flush();
+        } catch (IOException e) {
+            //the download keeps running, it just may not survive a restart
+            mJournalErrors = true;
+        }
+    }
+
+    /**
+     * Writes the minimal journal for the records in memory and swaps it in.
+     */
+    private void rebuildJournal() throws IOException {
+        Downloader.closeQuietly(mJournalWriter);
+        mJournalWriter = null;
+
+        Writer writer = newWriter(mJournalFileTmp, false);
+        try {
+            writer.write(MAGIC + '\n' + VERSION + '\n');
+            for (Record record : mRecords.values()) {
+                writer.write(addLine(record) + '\n');
+                if (record.mContentKey != null) {
+                    writer.write(KEY + ' ' + record.mId + ' ' + record.mContentKey + '\n');
+                }
+                if (record.mMaxBytesPerSecond != RateLimiter.UNLIMITED) {
+                    writer.write(RATE + ' ' + record.mId + ' ' + record.mMaxBytesPerSecond + '\n');
+                }
+                if (record.mState != DownloadJob.State.QUEUED) {
+                    writer.write(STATE + ' ' + record.mId + ' ' + record.mState.name() + '\n');
+                }
+                record.mJournaledBytes = record.mBytesDownloaded;
+                if (record.mBytesDownloaded > 0) {
+                    writer.write(PROGRESS + ' ' + record.mId + ' ' + record.mBytesDownloaded
+                            + ' ' + record.mTotalBytes + '\n');
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        if (mJournalFile.exists() && !mJournalFile.delete()) {
+            throw new IOException("Unable to replace " + mJournalFile);
+        }
+        if (!mJournalFileTmp.renameTo(mJournalFile)) {
+            throw new IOException("Unable to rename " + mJournalFileTmp + " to " + mJournalFile);
+        }
+
+        mJournalWriter = newWriter(mJournalFile, true);
+        mRedundantOpCount = 0;
+        mJournalErrors = false;
+    }
+
+    private void readJournal() throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(mJournalFile), UTF_8));
+        try {
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                //not ours or an older format, nothing worth keeping
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!readJournalLine(line)) {
+                    //torn write, the lines after it can't be trusted either
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private boolean readJournalLine(String line) {
+        String[] parts = line.split(" ", 7);
+        try {
+            if (ADD.equals(parts[0]) && parts.length == 7) {
+                Record record = new Record(Long.parseLong(parts[1]), parts[5], new File(parts[6]),
+                        DownloadRequest.Priority.valueOf(parts[2]), Integer.parseInt(parts[3]),
+                        parts[4].indexOf('u') >= 0, parts[4].indexOf('c') >= 0);
+                mRecords.put(record.mId, record);
+                mNextId = Math.max(mNextId, record.mId + 1);
+                return true;
+            }
+            Record record = mRecords.get(Long.parseLong(parts[1]));
+            if (KEY.equals(parts[0]) && parts.length == 3) {
+                if (record != null) {
+                    record.mContentKey = parts[2];
+                }
+                return true;
+            }
+            if (RATE.equals(parts[0]) && parts.length == 3) {
+                long maxBytesPerSecond = Long.parseLong(parts[2]);
+                if (maxBytesPerSecond < 0) {
+                    return false;
+                }
+                if (record != null) {
+                    record.mMaxBytesPerSecond = maxBytesPerSecond;
+                }
+                return true;
+            }
+            if (STATE.equals(parts[0]) && parts.length == 3) {
+                if (record != null) {
+                    record.mState = DownloadJob.State.valueOf(parts[2]);
+                }
+                return true;
+            }
+            if (PROGRESS.equals(parts[0]) && parts.length == 4) {
+                if (record != null) {
+                    record.mBytesDownloaded = Long.parseLong(parts[2]);
+                    record.mTotalBytes = Long.parseLong(parts[3]);
+                }
+                return true;
+            }
+            if (REMOVE.equals(parts[0]) && parts.length == 2) {
+                mRecords.remove(Long.parseLong(parts[1]));
+                return true;
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            //NumberFormatException or an unknown enum constant
+        }
+        return false;
+    }
+
+    private static String addLine(Record record) {
+        String flags = (record.mRequiresUnmeteredNetwork ? "u" : "") + (record.mRequiresCharging ? "c" : "");
+        //the target path goes last, it is the only field that may contain spaces
+        return ADD + ' ' + record.mId + ' ' + record.mPriority.name() + ' ' + record.mSegmentCount
+                + ' ' + (flags.isEmpty() ? "-" : flags) + ' ' + record.mUrl + ' ' + record.mTargetFile.getPath();
+    }
+
+    private static Writer newWriter(File file, boolean append) throws FileNotFoundException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), UTF_8));
+    }
+
+
+    /**
+     * One persisted download. Instances handed out by the store are snapshots.
+     */
+    public static class Record {
+        private final long mId;
+        private final String mUrl;
+        private final File mTargetFile;
+        private final DownloadRequest.Priority mPriority;
+        private final int mSegmentCount;
+        private final boolean mRequiresUnmeteredNetwork;
+        private final boolean mRequiresCharging;
+
+        private String mContentKey;
+        private long mMaxBytesPerSecond = RateLimiter.UNLIMITED;
+        private DownloadJob.State mState = DownloadJob.State.QUEUED;
+        private long mBytesDownloaded;
+        private long mTotalBytes = -1;
+        //what the journal has of mBytesDownloaded, only meaningful in the store's own records
+        private long mJournaledBytes;
+
+        private Record(long id, String url, File targetFile, DownloadRequest.Priority priority,
+                       int segmentCount, boolean requiresUnmeteredNetwork, boolean requiresCharging) {
+            mId = id;
+            mUrl = url;
+            mTargetFile = targetFile;
+            mPriority = priority;
+            mSegmentCount = segmentCount;
+            mRequiresUnmeteredNetwork = requiresUnmeteredNetwork;
+            mRequiresCharging = requiresCharging;
+        }
+
+        private Record(Record other) {
+            this(other.mId, other.mUrl, other.mTargetFile, other.mPriority, other.mSegmentCount,
+                    other.mRequiresUnmeteredNetwork, other.mRequiresCharging);
+            mContentKey = other.mContentKey;
+            mMaxBytesPerSecond = other.mMaxBytesPerSecond;
+            mState = other.mState;
+            mBytesDownloaded = other.mBytesDownloaded;
+            mTotalBytes = other.mTotalBytes;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        public File getTargetFile() {
+            return mTargetFile;
+        }
+
+        /**
+         * @return content key of the request, null if it had none
+         */
+        public String getContentKey() {
+            return mContentKey;
+        }
+
+        public DownloadJob.State getState() {
+            return mState;
+        }
+
+        public long getBytesDownloaded() {
+            return mBytesDownloaded;
+        }
+
+        /**
+         * @return length reported by the server, -1 when not known yet
+         */
+        public long getTotalBytes() {
+            return mTotalBytes;
+        }
+
+        public boolean requiresUnmeteredNetwork() {
+            return mRequiresUnmeteredNetwork;
+        }
+
+        public boolean requiresCharging() {
+            return mRequiresCharging;
+        }
+
+        /**
+         * Rebuilds the request this record was added with.
+         */
+        public DownloadRequest toRequest(Object tag) {
+            return new DownloadRequest.Builder()
+                    .url(mUrl)
+                    .targetFile(mTargetFile)
+                    .priority(mPriority)
+                    .segments(mSegmentCount)
+                    .requiresUnmeteredNetwork(mRequiresUnmeteredNetwork)
+                    .requiresCharging(mRequiresCharging)
+                    .contentKey(mContentKey)
+                    .maxBytesPerSecond(mMaxBytesPerSecond)
+                    .tag(tag)
+                    .build();
+        }
+
+        @Override
+        public String toString() {
+            return "Record{" +
+                    "id=" + mId +
+                    ", url=" + mUrl +
+                    ", targetFile=" + mTargetFile +
+                    ", state=" + mState +
+                    ", bytesDownloaded=" + mBytesDownloaded +
+                    '}';
+        }
+    }
+}
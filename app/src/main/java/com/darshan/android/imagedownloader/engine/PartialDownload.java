@@ -0,0 +1,180 @@
+package com.darshan.android.imagedownloader.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * On-disk state of an unfinished download.
+ * <p>
+ * Bytes are written to {@code <target>.part} and the validators of the response they came from
+ * (ETag / Last-Modified) are kept next to it in {@code <target>.part.meta}. A later attempt for
+ * the same url can continue from the end of the part file with a Range request.
+ */
+class PartialDownload {
+    private static final String PART_SUFFIX = ".part";
+    private static final String META_SUFFIX = ".part.meta";
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_BYTES = "bytes";
+
+    private final File mTargetFile;
+    private final File mPartFile;
+    private final File mMetaFile;
+
+    private String mUrl;
+    private String mETag;
+    private String mLastModified;
+
+    private PartialDownload(File targetFile) {
+        mTargetFile = targetFile;
+        mPartFile = new File(targetFile.getPath() + PART_SUFFIX);
+        mMetaFile = new File(targetFile.getPath() + META_SUFFIX);
+    }
+
+    /**
+     * Loads the partial state left behind for {@code targetFile}, if any.
+     * State recorded for a different url is dropped.
+     */
+    static PartialDownload open(File targetFile, String url) {
+        PartialDownload partial = new PartialDownload(targetFile);
+        partial.mUrl = url;
+        if (!partial.mMetaFile.isFile() || !partial.mPartFile.isFile()) {
+            partial.discard();
+            return partial;
+        }
+
+        Properties meta = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(partial.mMetaFile);
+            meta.load(in);
+        } catch (IOException e) {
+            //unreadable meta, nothing can be resumed
+            partial.discard();
+            return partial;
+        } finally {
+            Downloader.closeQuietly(in);
+        }
+
+        if (!url.equals(meta.getProperty(KEY_URL))) {
+            partial.discard();
+            return partial;
+        }
+        partial.mETag = meta.getProperty(KEY_ETAG);
+        partial.mLastModified = meta.getProperty(KEY_LAST_MODIFIED);
+        return partial;
+    }
+
+    File getPartFile() {
+        return mPartFile;
+    }
+
+    /**
+     * Value for the If-Range header, the strong ETag preferred over Last-Modified.
+     * @return null when the part file can't be validated and must not be resumed
+     */
+    String getValidator() {
+        return validator(mETag, mLastModified);
+    }
+
+    /**
+     * Picks the value usable in If-Range, weak ETags are not allowed there.
+     */
+    static String validator(String eTag, String lastModified) {
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return lastModified;
+    }
+
+    /**
+     * Byte offset to resume from, 0 when there is nothing usable on disk.
+     */
+    long resumableOffset() {
+        if (getValidator() == null) {
+            return 0;
+        }
+        return mPartFile.length();
+    }
+
+    /**
+     * Remembers the validators of a fresh (non-ranged) response the part file is now filled from.
+     */
+    void startOver(String eTag, String lastModified) throws IOException {
+        mETag = eTag;
+        mLastModified = lastModified;
+        //truncate whatever an older attempt left
+        new FileOutputStream(mPartFile).close();
+        saveMeta();
+    }
+
+    /**
+     * Records how far the part file got, so the meta file describes it when the attempt failed.
+     */
+    void saveProgress() {
+        if (!mPartFile.isFile()) {
+            //failed before the first byte arrived
+            discard();
+            return;
+        }
+        try {
+            saveMeta();
+        } catch (IOException ignored) {
+            //next attempt simply starts from zero
+        }
+    }
+
+    /**
+     * Moves the finished part file into place and forgets the partial state.
+     */
+    File complete() throws IOException {
+        //on Android (POSIX) the rename replaces an existing target in one step, the gallery
+        //never sees a missing or half written image. Elsewhere the target has to go first
+        if (!mPartFile.renameTo(mTargetFile)) {
+            if (mTargetFile.exists() && !mTargetFile.delete()) {
+                throw new IOException("Unable to replace " + mTargetFile);
+            }
+            if (!mPartFile.renameTo(mTargetFile)) {
+                throw new IOException("Unable to rename " + mPartFile + " to " + mTargetFile);
+            }
+        }
+        mMetaFile.delete();
+        return mTargetFile;
+    }
+
+    /**
+     * Deletes part and meta file.
+     */
+    void discard() {
+        mPartFile.delete();
+        mMetaFile.delete();
+        mETag = null;
+        mLastModified = null;
+    }
+
+    private void saveMeta() throws IOException {
+        Properties meta = new Properties();
+        meta.setProperty(KEY_URL, mUrl);
+        if (mETag != null) {
+            meta.setProperty(KEY_ETAG, mETag);
+        }
+        if (mLastModified != null) {
+            meta.setProperty(KEY_LAST_MODIFIED, mLastModified);
+        }
+        meta.setProperty(KEY_BYTES, String.valueOf(mPartFile.length()));
+
+        OutputStream out = new FileOutputStream(mMetaFile);
+        try {
+            meta.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.darshan.android.imagedownloader.engine;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Work done on a downloaded file after the download, eg. re-encoding an image. Runs on the
+ * threads of the engine's {@link ProcessingStage}, never on a download worker.
+ */
+public interface PostProcessor {
+
+    /**
+     * Must not change {@code file} itself, other downloads may be answered with it meanwhile.
+     *
+     * @param file the downloaded file, in place and already reported complete
+     * @return a file to replace the download with, eg. the image re-encoded, written next to
+     * it so the engine can move it over the download. Null to keep the download as it is
+     * @throws IOException when processing failed, the file is left as it was downloaded
+     */
+    File process(DownloadRequest request, File file) throws IOException;
+}
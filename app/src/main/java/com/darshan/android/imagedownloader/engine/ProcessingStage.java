@@ -0,0 +1,297 @@
+package com.darshan.android.imagedownloader.engine;
+
+import com.darshan.android.imagedownloader.metrics.Histogram;
+import com.darshan.android.imagedownloader.metrics.Metrics;
+import com.darshan.android.imagedownloader.metrics.StripedCounter;
+import com.darshan.android.imagedownloader.metrics.Tracer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link PostProcessor} on every file the engine downloaded, on threads of its own so
+ * CPU bound work never holds up a download worker, as many as there are cores by default.
+ * <p>
+ * Files wait in a bounded queue. While it is full the download worker handing over its file
+ * waits for room, keeping its slot, so downloads slow down to the pace processing keeps up
+ * with instead of piling up files. A replacement the processor made is moved over the download
+ * through the {@link DownloadIndex}, which keeps the file known by the hash it was downloaded with.
+ * {@link Listener}s hear of every file once it is processed, or why that failed.
+ * <p>
+ * Records into the engine's {@link Metrics} as "processing.*": time in the queue, time
+ * processing, time download workers waited for room, and outcomes.
+ */
+public class ProcessingStage {
+
+    /**
+     * Called on the processing thread once a file is done with.
+     */
+    public interface Listener {
+        /* The file is final, replaced tells whether it holds what the processor made of the download */
+        void onProcessed(DownloadRequest request, File file, boolean replaced);
+
+        /* The file stays as it was downloaded */
+        void onProcessingFailed(DownloadRequest request, File file, IOException e);
+    }
+
+    public static final String QUEUE_WAIT = "processing.queue_wait";
+    public static final String PROCESS = "processing.process";
+    public static final String BACK_PRESSURE = "processing.back_pressure";
+    public static final String PROCESSED = "processing.processed";
+    public static final String REWRITTEN = "processing.rewritten";
+    public static final String FAILED = "processing.failed";
+    public static final String DROPPED = "processing.dropped";
+
+    //below the UI and the download workers, which mostly wait for the network anyway
+    private static final int THREAD_PRIORITY = Thread.NORM_PRIORITY - 2;
+    //how often a worker waiting for room looks whether the stage was shut down meanwhile
+    private static final long SHUTDOWN_CHECK_MILLIS = 100;
+    //poison pill, one per thread on shutdown
+    private static final Task STOP = new Task(null, null, 0);
+
+    private final PostProcessor mProcessor;
+    //null when the engine keeps no index
+    private final DownloadIndex mIndex;
+    private final BlockingQueue<Task> mQueue;
+    private final Thread[] mThreads;
+    private final Metrics mMetrics;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final Histogram mQueueWait;
+    private final Histogram mProcess;
+    private final Histogram mBackPressure;
+    private final StripedCounter mProcessed;
+    private final StripedCounter mRewritten;
+    private final StripedCounter mFailed;
+    private final StripedCounter mDropped;
+
+    //guarded by this, queued plus processing
+    private int mPending;
+    private boolean mShutdown;
+
+    private static class Task {
+        final DownloadRequest mRequest;
+        final File mFile;
+        final long mQueuedAtNanos;
+
+        Task(DownloadRequest request, File file, long queuedAtNanos) {
+            mRequest = request;
+            mFile = file;
+            mQueuedAtNanos = queuedAtNanos;
+        }
+    }
+
+    ProcessingStage(PostProcessor processor, int threads, int queueCapacity, DownloadIndex index,
+                    Metrics metrics) {
+        mProcessor = processor;
+        mIndex = index;
+        mQueue = new ArrayBlockingQueue<>(queueCapacity);
+        mMetrics = metrics;
+        mQueueWait = metrics.timer(QUEUE_WAIT);
+        mProcess = metrics.timer(PROCESS);
+        mBackPressure = metrics.timer(BACK_PRESSURE);
+        mProcessed = metrics.counter(PROCESSED);
+        mRewritten = metrics.counter(REWRITTEN);
+        mFailed = metrics.counter(FAILED);
+        mDropped = metrics.counter(DROPPED);
+        mThreads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            mThreads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "ProcessingStage-" + (i + 1));
+            mThreads[i].setDaemon(true);
+            mThreads[i].setPriority(THREAD_PRIORITY);
+            mThreads[i].start();
+        }
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return processing threads for this device, one per core
+     */
+    public static int defaultThreads() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Called by the download worker, waits while the queue is full.
+     * @throws InterruptedException when the worker was interrupted meanwhile, the file stays unprocessed
+     */
+    void submit(DownloadRequest request, File file) throws InterruptedException {
+        synchronized (this) {
+            if (mShutdown) {
+                mDropped.increment();
+                return;
+            }
+            mPending++;
+        }
+        Task task = new Task(request, file, System.nanoTime());
+        if (mQueue.offer(task)) {
+            return;
+        }
+        //full, the worker and with it a download slot wait for room
+        long waitStartNanos = System.nanoTime();
+        try {
+            while (!mQueue.offer(task, SHUTDOWN_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (isShutdown()) {
+                    drop();
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            drop();
+            throw e;
+        } finally {
+            mBackPressure.recordSince(waitStartNanos);
+        }
+    }
+
+    /**
+     * @return files being processed, queued, or waiting for room in the queue
+     */
+    public synchronized int getPendingCount() {
+        return mPending;
+    }
+
+    public int getThreadCount() {
+        return mThreads.length;
+    }
+
+    /**
+     * Waits until every file handed over so far is processed.
+     * @return false when the timeout passed first
+     */
+    public synchronized boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        while (mPending > 0) {
+            long remainingNanos = deadlineNanos - System.nanoTime();
+            if (remainingNanos <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+        }
+        return true;
+    }
+
+    /**
+     * Stops the threads once the files queued so far are processed. Files handed over later,
+     * or still waiting for room, are dropped.
+     */
+    void shutdown() {
+        synchronized (this) {
+            if (mShutdown) {
+                return;
+            }
+            mShutdown = true;
+        }
+        //from a thread of its own, the queue may be full
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < mThreads.length; i++) {
+                        mQueue.put(STOP);
+                    }
+                } catch (InterruptedException e) {
+                    //nobody interrupts this thread
+                }
+            }
+        }, "ProcessingStage-shutdown").start();
+    }
+
+
+    private void work() {
+        while (true) {
+            Task task;
+            try {
+                task = mQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == STOP) {
+                return;
+            }
+            mQueueWait.recordSince(task.mQueuedAtNanos);
+            long startNanos = System.nanoTime();
+            Tracer tracer = mMetrics.getTracer();
+            tracer.beginSection("process");
+            IOException failure = null;
+            boolean replaced = false;
+            try {
+                File replacement = mProcessor.process(task.mRequest, task.mFile);
+                if (replacement != null) {
+                    replace(task.mFile, replacement);
+                    replaced = true;
+                    mRewritten.increment();
+                }
+                mProcessed.increment();
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException("Unexpected error while processing " + task.mFile, e);
+            } finally {
+                tracer.endSection();
+                mProcess.recordSince(startNanos);
+            }
+            if (failure != null) {
+                //the file stays as downloaded
+                mFailed.increment();
+            }
+            try {
+                for (Listener listener : mListeners) {
+                    if (failure != null) {
+                        listener.onProcessingFailed(task.mRequest, task.mFile, failure);
+                    } else {
+                        listener.onProcessed(task.mRequest, task.mFile, replaced);
+                    }
+                }
+            } finally {
+                done();
+            }
+        }
+    }
+
+    private void replace(File file, File replacement) throws IOException {
+        try {
+            if (mIndex != null) {
+                //else lookups in between drop every entry of the changed file
+                mIndex.replace(file, replacement);
+            } else if (!replacement.renameTo(file)) {
+                throw new IOException("Unable to move " + replacement + " to " + file);
+            }
+        } finally {
+            //left over when the move failed
+            replacement.delete();
+        }
+    }
+
+    private synchronized boolean isShutdown() {
+        return mShutdown;
+    }
+
+    private void drop() {
+        mDropped.increment();
+        done();
+    }
+
+    private synchronized void done() {
+        mPending--;
+        if (mPending == 0) {
+            notifyAll();
+        }
+    }
+}
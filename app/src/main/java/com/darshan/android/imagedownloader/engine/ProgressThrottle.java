@@ -0,0 +1,53 @@
+package com.darshan.android.imagedownloader.engine;
+
+/**
+ * Coalesces the progress of one job.
+ * <p>
+ * The transfer reports every read, which is hundreds of calls per image. An update is let through
+ * only when at least {@code minIntervalMillis} passed since the last one and the job advanced by
+ * at least {@code minPercentStep} percent. The final update (all bytes received) always passes.
+ */
+public class ProgressThrottle {
+    private final Clock mClock;
+    private final long mMinIntervalMillis;
+    private final int mMinPercentStep;
+
+    private boolean mEmitted;
+    private long mLastEmitMillis;
+    private int mLastPercent;
+
+    public ProgressThrottle(Clock clock, long minIntervalMillis, int minPercentStep) {
+        mClock = clock;
+        mMinIntervalMillis = minIntervalMillis;
+        mMinPercentStep = minPercentStep;
+    }
+
+    /**
+     * @param totalBytes -1 when the length is unknown, then only the interval applies
+     * @return true when this update should be passed on to the listener
+     */
+    public synchronized boolean shouldEmit(long bytesDownloaded, long totalBytes) {
+        int percent = totalBytes > 0 ? (int) ((bytesDownloaded * 100) / totalBytes) : 0;
+        long now = mClock.nowMillis();
+
+        boolean finished = totalBytes > 0 && bytesDownloaded >= totalBytes;
+        boolean intervalPassed = !mEmitted || now - mLastEmitMillis >= mMinIntervalMillis;
+        boolean stepReached = !mEmitted || totalBytes <= 0 || percent - mLastPercent >= mMinPercentStep;
+        if (!finished && !(intervalPassed && stepReached)) {
+            return false;
+        }
+
+        mEmitted = true;
+        mLastEmitMillis = now;
+        mLastPercent = percent;
+        return true;
+    }
+
+    /**
+     * Forgets the updates let through so far, the next one passes. For a job that starts over
+     * from byte 0, its progress would be held back until it passed the old percentage otherwise.
+     */
+    public synchronized void reset() {
+        mEmitted = false;
+    }
+}
@@ -0,0 +1,112 @@
+package com.darshan.android.imagedownloader.engine;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket that caps the bytes per second of the transfers sharing it.
+ * <p>
+ * A transfer pays for every read after the fact with {@link #acquire}: the bucket may go into
+ * debt by one read, and the next read of any transfer waits until the debt is paid off. The
+ * waiting thread doesn't read from its socket meanwhile, so the TCP window fills up and the
+ * server slows down, instead of the bytes piling up in memory. Waits block on the bucket's
+ * monitor, a new rate wakes them up right away.
+ * <p>
+ * Unused tokens are saved up for at most {@link #MAX_BURST_MILLIS} at the full rate, so an idle
+ * bucket doesn't let a long burst through. Measures real time, the waits are real too.
+ */
+public class RateLimiter {
+
+    /* No cap, acquire returns right away */
+    public static final long UNLIMITED = 0;
+
+    /* Tokens an idle bucket saves up, as time at the full rate */
+    static final long MAX_BURST_MILLIS = 250;
+
+    //written under this, read without a lock on the unlimited fast path
+    private volatile long mBytesPerSecond;
+    //guarded by this, negative while in debt
+    private double mTokens;
+    private long mLastRefillNanos;
+
+    /**
+     * @param bytesPerSecond cap, {@link #UNLIMITED} for none
+     */
+    public RateLimiter(long bytesPerSecond) {
+        checkRate(bytesPerSecond);
+        mBytesPerSecond = bytesPerSecond;
+        mLastRefillNanos = System.nanoTime();
+    }
+
+    public long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * Changes the cap, transfers waiting for tokens continue at the new rate.
+     *
+     * @param bytesPerSecond cap, {@link #UNLIMITED} for none
+     */
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        checkRate(bytesPerSecond);
+        //tokens and debt so far were earned at the old rate
+        refill(System.nanoTime());
+        mBytesPerSecond = bytesPerSecond;
+        mTokens = bytesPerSecond == UNLIMITED ? 0 : Math.min(mTokens, capacity());
+        notifyAll();
+    }
+
+    /**
+     * Pays for {@code byteCount} bytes, waiting while the bucket is in debt.
+     *
+     * @throws InterruptedIOException when the thread was interrupted while waiting, eg. by a cancel
+     */
+    public void acquire(long byteCount) throws InterruptedIOException {
+        if (mBytesPerSecond == UNLIMITED) {
+            return;
+        }
+        synchronized (this) {
+            long bytesPerSecond;
+            while ((bytesPerSecond = mBytesPerSecond) != UNLIMITED) {
+                refill(System.nanoTime());
+                if (mTokens >= 0) {
+                    mTokens -= byteCount;
+                    return;
+                }
+                long waitMillis = (long) Math.ceil(-mTokens * 1000 / bytesPerSecond);
+                try {
+                    wait(Math.max(1, waitMillis));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimiter{" +
+                "bytesPerSecond=" + mBytesPerSecond +
+                '}';
+    }
+
+
+    private void refill(long nowNanos) {
+        long bytesPerSecond = mBytesPerSecond;
+        if (bytesPerSecond != UNLIMITED) {
+            double earned = (nowNanos - mLastRefillNanos) * bytesPerSecond / 1e9;
+            mTokens = Math.min(capacity(), mTokens + earned);
+        }
+        mLastRefillNanos = nowNanos;
+    }
+
+    private double capacity() {
+        return mBytesPerSecond * MAX_BURST_MILLIS / 1000.0;
+    }
+
+    private static void checkRate(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("bytesPerSecond < 0");
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.darshan.android.imagedownloader.engine;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.UnknownServiceException;
+import java.security.cert.CertificateException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * Decides whether a failed attempt of a download is tried again, and when.
+ * <p>
+ * Network trouble (timeouts, refused or reset connections, bodies that end early or arrive
+ * corrupt) and overloaded or throttling servers (408, 429 and 5xx) are transient. A missing
+ * image, a target that can't be written or a certificate that doesn't check out fail right away.
+ * <p>
+ * The delay doubles with every failed attempt up to {@code maxDelay}, and is drawn at random from
+ * the upper half of that, so a batch of downloads that failed together doesn't come back in
+ * lockstep. A {@code Retry-After} of the server is always waited out.
+ */
+public class RetryPolicy {
+
+    /* Every failure is final */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, TimeUnit.MILLISECONDS);
+
+    private final int mMaxAttempts;
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+    private final Random mRandom;
+
+    /**
+     * @param maxAttempts attempts per download including the first one
+     * @param baseDelay   most time before the second attempt
+     * @param maxDelay    most time between two attempts, unless the server asks for more
+     */
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay, TimeUnit unit) {
+        this(maxAttempts, baseDelay, maxDelay, unit, new Random());
+    }
+
+    RetryPolicy(int maxAttempts, long baseDelay, long maxDelay, TimeUnit unit, Random random) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts < 1");
+        }
+        if (baseDelay < 0 || maxDelay < baseDelay) {
+            throw new IllegalArgumentException("need 0 <= baseDelay <= maxDelay");
+        }
+        mMaxAttempts = maxAttempts;
+        mBaseDelayMillis = unit.toMillis(baseDelay);
+        mMaxDelayMillis = unit.toMillis(maxDelay);
+        mRandom = random;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * @param attempt number of the attempt that just failed, the first one is 1
+     * @return milliseconds to wait before the next attempt, -1 when the download fails for good
+     */
+    public long retryDelayMillis(int attempt, IOException e) {
+        if (attempt >= mMaxAttempts || !isTransient(e)) {
+            return -1;
+        }
+        //base, 2 * base, 4 * base, ... without overflowing for absurd attempt counts
+        long ceiling = mBaseDelayMillis << Math.min(attempt - 1, 30);
+        if (ceiling > mMaxDelayMillis || ceiling < 0) {
+            ceiling = mMaxDelayMillis;
+        }
+        long delay = ceiling - (long) (mRandom.nextDouble() * (ceiling / 2));
+        long retryAfter = retryAfterMillis(e);
+        return Math.max(delay, retryAfter);
+    }
+
+    /**
+     * @return true when trying again later may succeed
+     */
+    public boolean isTransient(IOException e) {
+        if (e instanceof HttpStatusException) {
+            int code = ((HttpStatusException) e).getCode();
+            //501 and 505 won't change by waiting
+            return code == 408 || code == 429 || (code >= 500 && code != 501 && code != 505);
+        }
+        if (e instanceof FileNotFoundException) {
+            //target directory missing or not writable
+            return false;
+        }
+        if (e instanceof SSLPeerUnverifiedException
+                || (e instanceof SSLHandshakeException && e.getCause() instanceof CertificateException)) {
+            return false;
+        }
+        //eg. cleartext traffic not permitted
+        return !(e instanceof UnknownServiceException);
+    }
+
+    /**
+     * @return time the server asked to wait, -1 when it didn't
+     */
+    static long retryAfterMillis(IOException e) {
+        return e instanceof HttpStatusException ? ((HttpStatusException) e).getRetryAfterMillis() : -1;
+    }
+}
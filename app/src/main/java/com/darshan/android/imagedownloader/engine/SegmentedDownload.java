@@ -0,0 +1,199 @@
+package com.darshan.android.imagedownloader.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import okhttp3.Response;
+
+/**
+ * Fetches one image as several byte ranges over parallel connections.
+ * <p>
+ * The length and range support are probed with a one byte range request. The part file is
+ * preallocated to the full length and every segment writes its bytes at their own offset through
+ * positional {@link FileChannel} writes, so segments never wait for each other.
+ */
+class SegmentedDownload {
+    /* Segments smaller than this cost more in connection setup than they gain */
+    static final long MIN_SEGMENT_SIZE = 128 * 1024;
+
+    private final Downloader mDownloader;
+    private final TransferStage mTransferStage;
+    private final ExecutorService mSegmentExecutor;
+
+    SegmentedDownload(Downloader downloader, TransferStage transferStage,
+                      ExecutorService segmentExecutor) {
+        mDownloader = downloader;
+        mTransferStage = transferStage;
+        mSegmentExecutor = segmentExecutor;
+    }
+
+    /**
+     * @param targetFile where the image goes, the request's target or a name picked instead
+     * @param digest     fresh digest, holds the SHA-256 of the file afterwards. Segments arrive
+     *                   out of order, so it is computed from the finished part file
+     * @return the downloaded file, or null when the image can't be split and has to be
+     * fetched as a single stream
+     */
+    File download(DownloadJob job, File targetFile, ContentDigest digest) throws IOException {
+        DownloadRequest request = job.getRequest();
+
+        long totalBytes;
+        String validator;
+        Response probe = mDownloader.execute(job, "bytes=0-0", null);
+        try {
+            if (probe.code() != Downloader.HTTP_PARTIAL) {
+                return null;
+            }
+            totalBytes = Downloader.contentRangeTotal(probe.header("Content-Range"));
+            validator = PartialDownload.validator(probe.header("ETag"), probe.header("Last-Modified"));
+        } finally {
+            probe.close();
+        }
+        //without a validator segments could silently mix two versions of the image
+        if (totalBytes <= 0 || validator == null) {
+            return null;
+        }
+        int segmentCount = (int) Math.min(request.getSegmentCount(), totalBytes / MIN_SEGMENT_SIZE);
+        if (segmentCount < 2) {
+            return null;
+        }
+
+        PartialDownload partial = PartialDownload.open(targetFile, request.getUrl().toString());
+        //segments leave holes in the part file, whatever was there can't be resumed
+        partial.discard();
+        job.restartProgress();
+        boolean completed = false;
+        RandomAccessFile file = new RandomAccessFile(partial.getPartFile(), "rw");
+        try {
+            file.setLength(totalBytes);
+            FileChannel channel = file.getChannel();
+            Progress progress = new Progress(job, totalBytes);
+
+            long segmentSize = totalBytes / segmentCount;
+            List<Future<Void>> segments = new ArrayList<>(segmentCount);
+            for (int i = 0; i < segmentCount; i++) {
+                long start = i * segmentSize;
+                long end = i == segmentCount - 1 ? totalBytes - 1 : start + segmentSize - 1;
+                segments.add(mSegmentExecutor.submit(
+                        new Segment(job, start, end, validator, channel, progress)));
+            }
+            awaitSegments(segments);
+            mTransferStage.complete(channel);
+            digest.update(partial.getPartFile(), totalBytes);
+            digest.verify(probe);
+            completed = true;
+        } finally {
+            Downloader.closeQuietly(file);
+            if (!completed) {
+                partial.discard();
+            }
+        }
+        return partial.complete();
+    }
+
+    /**
+     * Waits for every segment, the first failure cancels the remaining ones.
+     */
+    private static void awaitSegments(List<Future<Void>> segments) throws IOException {
+        try {
+            for (Future<Void> segment : segments) {
+                segment.get();
+            }
+        } catch (ExecutionException e) {
+            cancelAll(segments);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Segment failed", cause);
+        } catch (InterruptedException e) {
+            //job was cancelled while its segments were running
+            cancelAll(segments);
+            throw new InterruptedIOException("Download cancelled");
+        }
+    }
+
+    private static void cancelAll(List<Future<Void>> segments) {
+        for (Future<Void> segment : segments) {
+            segment.cancel(true);
+        }
+    }
+
+
+    /* Sums the bytes of all segments and reports them one at a time, in increasing order */
+    private static class Progress implements TransferStage.Listener {
+        private final DownloadJob mJob;
+        private final long mTotalBytes;
+        private long mBytesDownloaded;
+
+        Progress(DownloadJob job, long totalBytes) {
+            mJob = job;
+            mTotalBytes = totalBytes;
+        }
+
+        @Override
+        public synchronized void onTransferred(int byteCount) {
+            mJob.reportTransferred(byteCount);
+            mBytesDownloaded += byteCount;
+            mJob.reportProgress(mBytesDownloaded, mTotalBytes);
+        }
+    }
+
+
+    /* Downloads bytes start..end (inclusive) and writes them at the same position in the file */
+    private class Segment implements Callable<Void> {
+        private final DownloadJob mJob;
+        private final long mStart;
+        private final long mEnd;
+        private final String mValidator;
+        private final FileChannel mChannel;
+        private final Progress mProgress;
+
+        Segment(DownloadJob job, long start, long end, String validator, FileChannel channel,
+                Progress progress) {
+            mJob = job;
+            mStart = start;
+            mEnd = end;
+            mValidator = validator;
+            mChannel = channel;
+            mProgress = progress;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            Response response = mDownloader.execute(mJob, "bytes=" + mStart + "-" + mEnd, mValidator);
+            try {
+                if (response.code() >= 400) {
+                    //overloaded or throttling, worth retrying later unlike a mismatched range
+                    throw HttpStatusException.from(response);
+                }
+                if (response.code() != Downloader.HTTP_PARTIAL
+                        || Downloader.contentRangeStart(response.header("Content-Range")) != mStart) {
+                    //a 200 here means the image changed since the probe
+                    throw new IOException("Server did not return range " + mStart + "-" + mEnd
+                            + " of " + mJob.getRequest().getUrl() + " (response code " + response.code() + ")");
+                }
+
+                long length = mEnd - mStart + 1;
+                long transferred = mTransferStage.transfer(mJob, response.body().source(), mChannel,
+                        mStart, length, null, mProgress);
+                if (transferred != length) {
+                    throw new IOException("Segment " + mStart + "-" + mEnd
+                            + " ended after " + transferred + " bytes");
+                }
+            } finally {
+                response.close();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.darshan.android.imagedownloader.engine;
+
+import com.darshan.android.imagedownloader.metrics.Histogram;
+import com.darshan.android.imagedownloader.metrics.Metrics;
+import com.darshan.android.imagedownloader.metrics.StripedCounter;
+import com.darshan.android.imagedownloader.metrics.Tracer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Moves bytes from a response body channel into a file channel.
+ * <p>
+ * Reads go into pooled direct buffers of {@code chunkSize} bytes, and every full chunk is written
+ * with one positional write, instead of the thousands of small read/write calls a 1kB byte[] loop
+ * makes for a multi megabyte image. Direct buffers skip the copy between the Java heap and the
+ * native buffer the kernel call needs.
+ * <p>
+ * Every read is paid for at the job's own {@link RateLimiter} and then at the one shared by
+ * all transfers, before the next read is made.
+ * <p>
+ * Each transfer records its duration, the part of it spent writing to disk, its bytes and its
+ * throughput into the stage's {@link Metrics}, as "download.*".
+ */
+public class TransferStage {
+
+    public enum FsyncPolicy {
+        /* leave flushing to the OS */
+        NONE,
+        /* force the data to the storage device before the file is moved into place */
+        ON_COMPLETE
+    }
+
+    /**
+     * Told about every read from the source, on the transferring thread.
+     * The bytes reach the file at the latest when their chunk is full or the source ends.
+     */
+    interface Listener {
+        void onTransferred(int byteCount);
+    }
+
+    public static final String TRANSFER = "download.transfer";
+    public static final String DISK_WRITE = "download.disk_write";
+    public static final String FSYNC = "download.fsync";
+    public static final String BYTES = "download.bytes";
+    public static final String THROUGHPUT = "download.throughput";
+
+    /* Buffers kept for reuse, more than this are left to the GC */
+    private static final int MAX_POOLED_BUFFERS = 16;
+    /* Shorter transfers say more about the request than about the bandwidth */
+    private static final int MIN_THROUGHPUT_BYTES = 64 * 1024;
+
+    private final int mChunkSize;
+    private final FsyncPolicy mFsyncPolicy;
+    private final RateLimiter mBandwidthLimiter;
+    private final Metrics mMetrics;
+    private final Histogram mTransferTime;
+    private final Histogram mDiskWriteTime;
+    private final Histogram mFsyncTime;
+    private final Histogram mThroughput;
+    private final StripedCounter mBytes;
+    //guarded by itself
+    private final ArrayDeque<ByteBuffer> mBufferPool = new ArrayDeque<>();
+
+    public TransferStage(int chunkSize, FsyncPolicy fsyncPolicy) {
+        this(chunkSize, fsyncPolicy, new RateLimiter(RateLimiter.UNLIMITED));
+    }
+
+    /**
+     * @param bandwidthLimiter shared by all transfers of this stage
+     */
+    public TransferStage(int chunkSize, FsyncPolicy fsyncPolicy, RateLimiter bandwidthLimiter) {
+        this(chunkSize, fsyncPolicy, bandwidthLimiter, new Metrics());
+    }
+
+    /**
+     * @param bandwidthLimiter shared by all transfers of this stage
+     * @param metrics          where transfers record their timings
+     */
+    public TransferStage(int chunkSize, FsyncPolicy fsyncPolicy, RateLimiter bandwidthLimiter,
+                         Metrics metrics) {
+        if (chunkSize < 1024) {
+            throw new IllegalArgumentException("chunkSize < 1024");
+        }
+        mChunkSize = chunkSize;
+        mFsyncPolicy = fsyncPolicy;
+        mBandwidthLimiter = bandwidthLimiter;
+        mMetrics = metrics;
+        mTransferTime = metrics.timer(TRANSFER);
+        mDiskWriteTime = metrics.timer(DISK_WRITE);
+        mFsyncTime = metrics.timer(FSYNC);
+        mThroughput = metrics.histogram(THROUGHPUT, Metrics.UNIT_KB_PER_SECOND);
+        mBytes = metrics.counter(BYTES);
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return mFsyncPolicy;
+    }
+
+    public RateLimiter getBandwidthLimiter() {
+        return mBandwidthLimiter;
+    }
+
+    /**
+     * Copies {@code source} into {@code target} starting at {@code position}, until the source
+     * ends or {@code maxBytes} were copied.
+     *
+     * @param maxBytes most bytes to copy, -1 for everything the source has
+     * @param digest   fed with every chunk before it is written, in source order, may be null
+     * @return number of bytes copied
+     */
+    long transfer(DownloadJob job, ReadableByteChannel source, FileChannel target, long position,
+                  long maxBytes, ContentDigest digest, Listener listener) throws IOException {
+        Tracer tracer = mMetrics.getTracer();
+        tracer.beginSection("transfer");
+        long startNanos = System.nanoTime();
+        long writeNanos = 0;
+        long transferred = 0;
+        ByteBuffer buffer = obtainBuffer();
+        try {
+            boolean endOfStream = false;
+            while (!endOfStream && (maxBytes == -1 || transferred < maxBytes)) {
+                //fill a whole chunk before writing it, the network hands out much smaller pieces
+                buffer.clear();
+                if (maxBytes != -1) {
+                    buffer.limit((int) Math.min(buffer.capacity(), maxBytes - transferred));
+                }
+                while (buffer.hasRemaining()) {
+                    int count = source.read(buffer);
+                    if (count == -1) {
+                        endOfStream = true;
+                        break;
+                    }
+                    if (job.isCancelRequested()) {
+                        throw new InterruptedIOException("Download cancelled");
+                    }
+                    //progress follows the network, not the (less frequent) writes
+                    transferred += count;
+                    listener.onTransferred(count);
+                    //back-pressure, the socket isn't read while the limiters are in debt
+                    job.getRateLimiter().acquire(count);
+                    mBandwidthLimiter.acquire(count);
+                }
+
+                buffer.flip();
+                if (digest != null) {
+                    digest.update(buffer);
+                }
+                long writeStartNanos = System.nanoTime();
+                while (buffer.hasRemaining()) {
+                    position += target.write(buffer, position);
+                }
+                writeNanos += System.nanoTime() - writeStartNanos;
+            }
+            return transferred;
+        } finally {
+            recycleBuffer(buffer);
+            //failed transfers too, a stalled network shows as long transfers
+            long elapsedNanos = System.nanoTime() - startNanos;
+            mTransferTime.record(elapsedNanos / 1000);
+            mDiskWriteTime.record(writeNanos / 1000);
+            mBytes.add(transferred);
+            if (transferred >= MIN_THROUGHPUT_BYTES) {
+                mThroughput.record((long) (transferred / 1024.0 * 1e9 / Math.max(1, elapsedNanos)));
+            }
+            tracer.endSection();
+        }
+    }
+
+    /**
+     * Applies the fsync policy to a completely written file.
+     */
+    void complete(FileChannel target) throws IOException {
+        if (mFsyncPolicy == FsyncPolicy.ON_COMPLETE) {
+            long startNanos = System.nanoTime();
+            target.force(false);
+            mFsyncTime.recordSince(startNanos);
+        }
+    }
+
+    private ByteBuffer obtainBuffer() {
+        synchronized (mBufferPool) {
+            ByteBuffer buffer = mBufferPool.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(mChunkSize);
+    }
+
+    private void recycleBuffer(ByteBuffer buffer) {
+        synchronized (mBufferPool) {
+            if (mBufferPool.size() < MAX_POOLED_BUFFERS) {
+                mBufferPool.push(buffer);
+            }
+        }
+    }
+}
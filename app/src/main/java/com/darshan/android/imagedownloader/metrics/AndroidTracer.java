@@ -0,0 +1,27 @@
+package com.darshan.android.imagedownloader.metrics;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Sections in {@link Trace}, they only cost something while a trace is recorded.
+ * Traces nothing below API 18.
+ */
+public class AndroidTracer implements Tracer {
+    //longer names are rejected by Trace
+    private static final int MAX_NAME_LENGTH = 127;
+
+    @Override
+    public void beginSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(name.length() > MAX_NAME_LENGTH ? name.substring(0, MAX_NAME_LENGTH) : name);
+        }
+    }
+
+    @Override
+    public void endSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.darshan.android.imagedownloader.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values, recorded without locks.
+ * <p>
+ * Values below 8 get a bucket each, above that every power of two is split into 8 buckets, so
+ * a percentile is off by at most 1/8 of its value whatever the range. That is 488 buckets for
+ * all of {@code long}, a fixed 4kB, and recording is a few atomic adds.
+ * Reads while values are recorded may miss the latest ones.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final String mUnit;
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final StripedCounter mCount = new StripedCounter();
+    private final StripedCounter mSum = new StripedCounter();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @param unit of the recorded values, for dumps
+     */
+    public Histogram(String unit) {
+        mUnit = unit;
+    }
+
+    public String getUnit() {
+        return mUnit;
+    }
+
+    /**
+     * @param value negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mBuckets.incrementAndGet(bucketOf(value));
+        mCount.increment();
+        mSum.add(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Records the time since {@code startNanos}, a {@link System#nanoTime()}, in microseconds.
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public long getCount() {
+        return mCount.sum();
+    }
+
+    public long getSum() {
+        return mSum.sum();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) getSum() / count;
+    }
+
+    /**
+     * @param quantile between 0 and 1, eg. 0.99
+     * @return the largest value the bucket of the quantile holds, 0 when nothing was recorded
+     */
+    public long getPercentile(double quantile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts[bucket] = mBuckets.get(bucket);
+            total += counts[bucket];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(bucket), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            mBuckets.set(bucket, 0);
+        }
+        mCount.reset();
+        mSum.reset();
+        mMax.set(0);
+    }
+
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        //the bits right below the highest one
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+}
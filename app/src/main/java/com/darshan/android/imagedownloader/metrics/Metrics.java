@@ -0,0 +1,153 @@
+package com.darshan.android.imagedownloader.metrics;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Named counters and histograms of the download and catalog paths, plus the {@link Tracer}
+ * their hot sections report to.
+ * <p>
+ * Looking a metric up is a map read, recording into it is lock free and cheap enough to stay on
+ * in release builds. Names are dotted, "download.transfer" and the like, and sort the dump.
+ * Durations are recorded in microseconds through {@link #timer}.
+ */
+public class Metrics {
+    public static final String UNIT_MICROS = "us";
+    public static final String UNIT_KB_PER_SECOND = "kB/s";
+
+    private static final double[] DUMPED_QUANTILES = {0.5, 0.9, 0.99};
+
+    private final ConcurrentMap<String, StripedCounter> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+    private volatile Tracer mTracer = Tracer.NONE;
+
+    public StripedCounter counter(String name) {
+        StripedCounter counter = mCounters.get(name);
+        if (counter == null) {
+            StripedCounter created = new StripedCounter();
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @param unit of the values, a histogram keeps the unit it was created with
+     */
+    public Histogram histogram(String name, String unit) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram(unit);
+            histogram = mHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @return histogram of durations in microseconds, see {@link Histogram#recordSince}
+     */
+    public Histogram timer(String name) {
+        return histogram(name, UNIT_MICROS);
+    }
+
+    public Tracer getTracer() {
+        return mTracer;
+    }
+
+    public void setTracer(Tracer tracer) {
+        mTracer = tracer != null ? tracer : Tracer.NONE;
+    }
+
+    /**
+     * Zeroes every metric, metrics looked up before stay valid.
+     */
+    public void reset() {
+        for (StripedCounter counter : mCounters.values()) {
+            counter.reset();
+        }
+        for (Histogram histogram : mHistograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * @return one line per metric, sorted by name, for logs and the debug screen
+     */
+    public String dump() {
+        StringBuilder dump = new StringBuilder();
+        for (Map.Entry<String, StripedCounter> entry : new TreeMap<>(mCounters).entrySet()) {
+            dump.append(entry.getKey()).append(" = ").append(entry.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(mHistograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            dump.append(entry.getKey())
+                    .append(" [").append(histogram.getUnit()).append("] n=").append(histogram.getCount())
+                    .append(String.format(Locale.US, " mean=%.1f", histogram.getMean()));
+            for (double quantile : DUMPED_QUANTILES) {
+                dump.append(' ').append(quantileName(quantile)).append('=').append(histogram.getPercentile(quantile));
+            }
+            dump.append(" max=").append(histogram.getMax()).append('\n');
+        }
+        return dump.toString();
+    }
+
+    /**
+     * Writes all metrics as
+     * {"counters": {name: sum}, "histograms": {name: {unit, count, sum, mean, p50, p90, p99, max}}}
+     */
+    public void writeJson(Writer writer) throws IOException {
+        JsonWriter json = new JsonWriter(writer);
+        json.setIndent("  ");
+        json.beginObject();
+        json.name("counters").beginObject();
+        for (Map.Entry<String, StripedCounter> entry : new TreeMap<>(mCounters).entrySet()) {
+            json.name(entry.getKey()).value(entry.getValue().sum());
+        }
+        json.endObject();
+        json.name("histograms").beginObject();
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(mHistograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            json.name(entry.getKey()).beginObject()
+                    .name("unit").value(histogram.getUnit())
+                    .name("count").value(histogram.getCount())
+                    .name("sum").value(histogram.getSum())
+                    .name("mean").value(histogram.getMean());
+            for (double quantile : DUMPED_QUANTILES) {
+                json.name(quantileName(quantile)).value(histogram.getPercentile(quantile));
+            }
+            json.name("max").value(histogram.getMax()).endObject();
+        }
+        json.endObject();
+        json.endObject();
+        json.flush();
+    }
+
+    public String toJson() {
+        StringWriter writer = new StringWriter();
+        try {
+            writeJson(writer);
+        } catch (IOException e) {
+            //a StringWriter doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+    }
+
+
+    private static String quantileName(double quantile) {
+        return "p" + Math.round(quantile * 100);
+    }
+}
@@ -0,0 +1,74 @@
+package com.darshan.android.imagedownloader.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Milestones of one app start, as time since the process started. Each is kept the first time
+ * it is reached and recorded in the {@link Metrics} as a "startup.*" timer, so the timers
+ * collect one value per start of the process. The one to watch is {@link #FIRST_ROW}.
+ * <p>
+ * {@link #THUMBNAIL_CACHE_OPENED} and {@link #DOWNLOADS_RESTORED} are marked from background
+ * threads, by disk work running while the first screen is built. FIRST_ROW must not wait for them.
+ */
+public class StartupTrace {
+    public static final String APPLICATION_CREATED = "startup.application_created";
+    public static final String ACTIVITY_CREATED = "startup.activity_created";
+    public static final String CATALOG_REFRESHED = "startup.catalog_refreshed";
+    public static final String THUMBNAIL_CACHE_OPENED = "startup.thumbnail_cache_opened";
+    public static final String DOWNLOADS_RESTORED = "startup.downloads_restored";
+    public static final String FIRST_PAGE = "startup.first_page";
+    public static final String FIRST_ROW = "startup.first_row";
+
+    private final Metrics mMetrics;
+    private final long mProcessStartNanos;
+    //guarded by this, in the order they were reached
+    private final Map<String, Long> mMilestoneMillis = new LinkedHashMap<>();
+
+    /**
+     * @param processStartNanos process start on the {@link System#nanoTime()} clock
+     */
+    public StartupTrace(Metrics metrics, long processStartNanos) {
+        mMetrics = metrics;
+        mProcessStartNanos = processStartNanos;
+    }
+
+    /**
+     * @return false when the milestone was reached before
+     */
+    public boolean mark(String milestone) {
+        long elapsedNanos = System.nanoTime() - mProcessStartNanos;
+        synchronized (this) {
+            if (mMilestoneMillis.containsKey(milestone)) {
+                return false;
+            }
+            mMilestoneMillis.put(milestone, TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        }
+        mMetrics.timer(milestone).record(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+        return true;
+    }
+
+    /**
+     * @return ms since process start, -1 when not reached (yet)
+     */
+    public synchronized long getMillis(String milestone) {
+        Long millis = mMilestoneMillis.get(milestone);
+        return millis != null ? millis : -1;
+    }
+
+    /**
+     * @return the milestones reached, in order, for the log
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder("StartupTrace{");
+        for (Map.Entry<String, Long> milestone : mMilestoneMillis.entrySet()) {
+            if (text.length() > "StartupTrace{".length()) {
+                text.append(", ");
+            }
+            text.append(milestone.getKey()).append('=').append(milestone.getValue()).append("ms");
+        }
+        return text.append('}').toString();
+    }
+}
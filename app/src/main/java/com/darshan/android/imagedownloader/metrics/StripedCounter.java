@@ -0,0 +1,52 @@
+package com.darshan.android.imagedownloader.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter many threads add to without contending, like {@code LongAdder} which needs API 24.
+ * <p>
+ * Each thread adds to one of several cells picked by its id, each cell on a cache line of its
+ * own, and only reading sums them up. A sum read while threads are adding may miss the
+ * latest additions.
+ */
+public class StripedCounter {
+    //longs per cell, so two cells never share a 64 byte cache line
+    private static final int PADDING = 8;
+    private static final int CELLS = cellCount(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray mCells = new AtomicLongArray(CELLS * PADDING);
+
+    public void add(long delta) {
+        mCells.getAndAdd(cellIndex(), delta);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int cell = 0; cell < CELLS; cell++) {
+            sum += mCells.get(cell * PADDING);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int cell = 0; cell < CELLS; cell++) {
+            mCells.set(cell * PADDING, 0);
+        }
+    }
+
+
+    /* Power of two, at least twice the cores so threads rarely land on the same cell */
+    static int cellCount(int processors) {
+        return Integer.highestOneBit(Math.max(1, Math.min(32, processors * 2 - 1))) << 1;
+    }
+
+    private static int cellIndex() {
+        //thread ids are consecutive, spread them over the cells
+        long mixed = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return ((int) (mixed >>> 32) & (CELLS - 1)) * PADDING;
+    }
+}
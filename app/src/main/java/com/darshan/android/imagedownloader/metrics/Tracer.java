@@ -0,0 +1,23 @@
+package com.darshan.android.imagedownloader.metrics;
+
+/**
+ * Marks sections of work for a system trace (systrace / Perfetto). A section ends on the
+ * thread it began on, sections nest.
+ */
+public interface Tracer {
+
+    /* Traces nothing, for the JVM and tests */
+    Tracer NONE = new Tracer() {
+        @Override
+        public void beginSection(String name) {
+        }
+
+        @Override
+        public void endSection() {
+        }
+    };
+
+    void beginSection(String name);
+
+    void endSection();
+}
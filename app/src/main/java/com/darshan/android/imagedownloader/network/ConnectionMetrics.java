@@ -0,0 +1,192 @@
+package com.darshan.android.imagedownloader.network;
+
+import com.darshan.android.imagedownloader.metrics.Histogram;
+import com.darshan.android.imagedownloader.metrics.Metrics;
+import com.darshan.android.imagedownloader.metrics.StripedCounter;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+
+/**
+ * Counts how the calls of the clients sharing a {@link NetworkModule} get their connections:
+ * newly connected or reused from the pool, over which protocol, and what the DNS lookups,
+ * connects and TLS handshakes of the new ones cost. The reuse rate under a batch download shows
+ * whether the pool is sized right. The time to first byte of every call is recorded as well.
+ * <p>
+ * Everything goes into the {@link Metrics} given, as "http.*". Install with
+ * {@link okhttp3.OkHttpClient.Builder#eventListenerFactory}, every call gets its own listener so
+ * the timings of concurrent calls don't mix.
+ */
+public class ConnectionMetrics implements EventListener.Factory {
+    public static final String DNS = "http.dns";
+    public static final String CONNECT = "http.connect";
+    public static final String TLS = "http.tls";
+    public static final String TIME_TO_FIRST_BYTE = "http.ttfb";
+    public static final String ACQUIRED = "http.connections.acquired";
+    public static final String OPENED = "http.connections.opened";
+    public static final String OPENED_HTTP2 = "http.connections.opened_http2";
+    public static final String CONNECT_FAILURES = "http.connections.failed";
+
+    private final Histogram mDns;
+    private final Histogram mConnect;
+    private final Histogram mTls;
+    private final Histogram mTimeToFirstByte;
+    private final StripedCounter mAcquired;
+    private final StripedCounter mOpened;
+    private final StripedCounter mOpenedHttp2;
+    private final StripedCounter mFailed;
+
+    public ConnectionMetrics() {
+        this(new Metrics());
+    }
+
+    public ConnectionMetrics(Metrics metrics) {
+        mDns = metrics.timer(DNS);
+        mConnect = metrics.timer(CONNECT);
+        mTls = metrics.timer(TLS);
+        mTimeToFirstByte = metrics.timer(TIME_TO_FIRST_BYTE);
+        mAcquired = metrics.counter(ACQUIRED);
+        mOpened = metrics.counter(OPENED);
+        mOpenedHttp2 = metrics.counter(OPENED_HTTP2);
+        mFailed = metrics.counter(CONNECT_FAILURES);
+    }
+
+    @Override
+    public EventListener create(Call call) {
+        return new CallListener();
+    }
+
+    /**
+     * @return times a call got a connection, new or pooled. A call following a redirect counts
+     * once per hop, calls multiplexed on one HTTP/2 connection count once each
+     */
+    public long getConnectionsAcquired() {
+        return mAcquired.sum();
+    }
+
+    public long getConnectionsOpened() {
+        return mOpened.sum();
+    }
+
+    public long getHttp2ConnectionsOpened() {
+        return mOpenedHttp2.sum();
+    }
+
+    public long getConnectionsReused() {
+        return Math.max(0, getConnectionsAcquired() - getConnectionsOpened());
+    }
+
+    /**
+     * @return share of acquired connections that came from the pool, 0 before the first call
+     */
+    public double getReuseRate() {
+        long acquired = getConnectionsAcquired();
+        return acquired == 0 ? 0 : (double) getConnectionsReused() / acquired;
+    }
+
+    public long getConnectFailures() {
+        return mFailed.sum();
+    }
+
+    public long getTlsHandshakes() {
+        return mTls.getCount();
+    }
+
+    public long getAverageHandshakeMillis() {
+        return Math.round(mTls.getMean() / 1000);
+    }
+
+    /**
+     * @return average time to open a connection, TCP and TLS, without the DNS lookup
+     */
+    public long getAverageConnectMillis() {
+        return Math.round(mConnect.getMean() / 1000);
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionMetrics{acquired=" + getConnectionsAcquired()
+                + ", opened=" + getConnectionsOpened()
+                + ", http2=" + getHttp2ConnectionsOpened()
+                + ", reuseRate=" + String.format("%.2f", getReuseRate())
+                + ", failed=" + getConnectFailures()
+                + ", avgConnectMs=" + getAverageConnectMillis()
+                + ", tlsHandshakes=" + getTlsHandshakes()
+                + ", avgHandshakeMs=" + getAverageHandshakeMillis()
+                + '}';
+    }
+
+
+    /* One per call, OkHttp calls it from the thread running the call */
+    private class CallListener extends EventListener {
+        private long mDnsStartNanos;
+        private long mConnectStartNanos;
+        private long mHandshakeStartNanos;
+        private long mRequestStartNanos;
+
+        @Override
+        public void dnsStart(Call call, String domainName) {
+            mDnsStartNanos = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+            mDns.recordSince(mDnsStartNanos);
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            mConnectStartNanos = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            mHandshakeStartNanos = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            mTls.recordSince(mHandshakeStartNanos);
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+                               Protocol protocol) {
+            mOpened.increment();
+            mConnect.recordSince(mConnectStartNanos);
+            if (protocol == Protocol.HTTP_2) {
+                mOpenedHttp2.increment();
+            }
+        }
+
+        @Override
+        public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+                                  Protocol protocol, IOException ioe) {
+            mFailed.increment();
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            mAcquired.increment();
+        }
+
+        @Override
+        public void requestHeadersStart(Call call) {
+            mRequestStartNanos = System.nanoTime();
+        }
+
+        @Override
+        public void responseHeadersStart(Call call) {
+            mTimeToFirstByte.recordSince(mRequestStartNanos);
+        }
+    }
+}
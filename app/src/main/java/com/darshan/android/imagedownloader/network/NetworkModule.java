@@ -0,0 +1,140 @@
+package com.darshan.android.imagedownloader.network;
+
+import com.darshan.android.imagedownloader.metrics.Metrics;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * The one HTTP stack of the app. Catalog, thumbnails and downloads all go through
+ * {@link #getClient()} or clients derived from it with {@link OkHttpClient#newBuilder()}, so
+ * they share one connection pool (and with it TLS sessions and HTTP/2 connections), one
+ * dispatcher and one {@link ConnectionMetrics}.
+ * <p>
+ * The dispatcher limits only asynchronous calls, the download engine runs its calls on its own
+ * workers and has its own per host limit.
+ */
+public class NetworkModule {
+    private final OkHttpClient mClient;
+    private final ConnectionMetrics mConnectionMetrics;
+
+    private NetworkModule(Builder builder) {
+        mConnectionMetrics = new ConnectionMetrics(builder.mMetrics);
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(builder.mMaxRequests);
+        dispatcher.setMaxRequestsPerHost(builder.mMaxRequestsPerHost);
+        mClient = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(builder.mMaxIdleConnections,
+                        builder.mKeepAliveMillis, TimeUnit.MILLISECONDS))
+                .dispatcher(dispatcher)
+                //HTTP/2 is negotiated through ALPN, servers without it get HTTP/1.1
+                .protocols(builder.mHttp2
+                        ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                        : Collections.singletonList(Protocol.HTTP_1_1))
+                .connectTimeout(builder.mConnectTimeoutMillis, TimeUnit.MILLISECONDS)
+                .readTimeout(builder.mReadTimeoutMillis, TimeUnit.MILLISECONDS)
+                .writeTimeout(builder.mWriteTimeoutMillis, TimeUnit.MILLISECONDS)
+                .eventListenerFactory(mConnectionMetrics)
+                .build();
+    }
+
+    /**
+     * @return the shared client. Derive clients that need a cache or other timeouts from it
+     * with {@link OkHttpClient#newBuilder()}, they keep sharing pool, dispatcher and metrics
+     */
+    public OkHttpClient getClient() {
+        return mClient;
+    }
+
+    public ConnectionMetrics getConnectionMetrics() {
+        return mConnectionMetrics;
+    }
+
+    /**
+     * Closes the idle pooled connections, in use ones close when their calls are done.
+     */
+    public void evictConnections() {
+        mClient.connectionPool().evictAll();
+    }
+
+
+    public static class Builder {
+        private int mConnectTimeoutMillis = 15000;
+        private int mReadTimeoutMillis = 30000;
+        private int mWriteTimeoutMillis = 30000;
+        //OkHttp's defaults
+        private int mMaxIdleConnections = 5;
+        private long mKeepAliveMillis = TimeUnit.MINUTES.toMillis(5);
+        private int mMaxRequests = 64;
+        private int mMaxRequestsPerHost = 5;
+        private boolean mHttp2 = true;
+        private Metrics mMetrics = new Metrics();
+
+        public Builder connectTimeout(long timeout, TimeUnit unit) {
+            mConnectTimeoutMillis = (int) unit.toMillis(timeout);
+            return this;
+        }
+
+        public Builder readTimeout(long timeout, TimeUnit unit) {
+            mReadTimeoutMillis = (int) unit.toMillis(timeout);
+            return this;
+        }
+
+        public Builder writeTimeout(long timeout, TimeUnit unit) {
+            mWriteTimeoutMillis = (int) unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Idle connections kept in the pool, and for how long each.
+         */
+        public Builder connectionPool(int maxIdleConnections, long keepAlive, TimeUnit unit) {
+            if (maxIdleConnections < 0 || keepAlive <= 0) {
+                throw new IllegalArgumentException("maxIdleConnections " + maxIdleConnections
+                        + ", keepAlive " + keepAlive);
+            }
+            mMaxIdleConnections = maxIdleConnections;
+            mKeepAliveMillis = unit.toMillis(keepAlive);
+            return this;
+        }
+
+        /**
+         * Asynchronous calls running at the same time, in total and against a single host.
+         */
+        public Builder maxRequests(int maxRequests, int maxRequestsPerHost) {
+            if (maxRequestsPerHost < 1 || maxRequests < maxRequestsPerHost) {
+                throw new IllegalArgumentException("maxRequests " + maxRequests
+                        + ", maxRequestsPerHost " + maxRequestsPerHost);
+            }
+            mMaxRequests = maxRequests;
+            mMaxRequestsPerHost = maxRequestsPerHost;
+            return this;
+        }
+
+        /**
+         * @param http2 false to speak HTTP/1.1 only, e.g. when a proxy mishandles HTTP/2
+         */
+        public Builder http2(boolean http2) {
+            mHttp2 = http2;
+            return this;
+        }
+
+        /**
+         * @param metrics where the {@link ConnectionMetrics} of the module record to
+         */
+        public Builder metrics(Metrics metrics) {
+            mMetrics = metrics;
+            return this;
+        }
+
+        public NetworkModule build() {
+            return new NetworkModule(this);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.darshan.android.imagedownloader.paging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loads a long list page by page as it is scrolled, and keeps only a bounded number of pages.
+ * <p>
+ * {@link #loadAround(int)} is called with every position that gets shown. Pages within the
+ * prefetch distance of it are requested from the {@link PageLoader}. Once more than
+ * {@code maxPagesInMemory} pages are held, the ones farthest from the last shown position are
+ * dropped. Dropped pages stay in the list as null placeholders, so positions never shift and
+ * scrolling back simply loads them again.
+ * <p>
+ * Not thread safe, everything including the loader callbacks has to run on one thread
+ * (the UI-Thread in the app).
+ */
+public class PagedWindow<T> {
+
+    /**
+     * Fetches one page, asynchronously. A page shorter than {@code pageSize} ends the list.
+     */
+    public interface PageLoader<T> {
+        void loadPage(int page, int pageSize, PageCallback<T> callback);
+    }
+
+    /**
+     * Result of one {@link PageLoader#loadPage} call.
+     */
+    public interface PageCallback<T> {
+        void onPageLoaded(List<T> items);
+
+        void onPageFailed(Throwable t);
+    }
+
+    public interface Listener<T> {
+        /**
+         * @param items whole list, with null for every item of a page not in memory
+         */
+        void onWindowChanged(List<T> items);
+
+        void onPageFailed(int page, Throwable t);
+    }
+
+    private final PageLoader<T> mLoader;
+    private final int mPageSize;
+    private final int mPrefetchDistance;
+    private final int mMaxPagesInMemory;
+    private final Listener<T> mListener;
+
+    private final Map<Integer, List<T>> mPages = new HashMap<>();
+    private final Set<Integer> mLoadingPages = new HashSet<>();
+    //pages 0 until mPageCount exist, the ones not in mPages are placeholders
+    private int mPageCount;
+    private int mLastPageSize;
+    private boolean mEndReached;
+    private int mLastPosition;
+    private List<T> mItems = Collections.emptyList();
+    //bumped by invalidate(), answers to requests of an older generation are dropped
+    private int mGeneration;
+
+    /**
+     * @param prefetchDistance items ahead of (and behind) the shown position that should be loaded
+     * @param maxPagesInMemory pages kept before far off ones are dropped, has to cover at least
+     *                         the prefetch distance on both sides
+     */
+    public PagedWindow(PageLoader<T> loader, int pageSize, int prefetchDistance, int maxPagesInMemory,
+                       Listener<T> listener) {
+        if (pageSize < 1 || prefetchDistance < 0) {
+            throw new IllegalArgumentException("pageSize < 1 or prefetchDistance < 0");
+        }
+        int pagesNeeded = 2 * ((prefetchDistance + pageSize - 1) / pageSize) + 1;
+        if (maxPagesInMemory < pagesNeeded) {
+            throw new IllegalArgumentException("maxPagesInMemory has to be at least " + pagesNeeded
+                    + " for this page size and prefetch distance");
+        }
+        mLoader = loader;
+        mPageSize = pageSize;
+        mPrefetchDistance = prefetchDistance;
+        mMaxPagesInMemory = maxPagesInMemory;
+        mListener = listener;
+    }
+
+    /**
+     * Position {@code position} is being shown, loads what is missing around it.
+     */
+    public void loadAround(int position) {
+        mLastPosition = position;
+        int firstPage = Math.max(0, position - mPrefetchDistance) / mPageSize;
+        int lastPage = (position + mPrefetchDistance) / mPageSize;
+        if (mEndReached) {
+            lastPage = Math.min(lastPage, mPageCount - 1);
+        }
+        for (int page = firstPage; page <= lastPage; page++) {
+            if (!mPages.containsKey(page) && !mLoadingPages.contains(page)) {
+                loadPage(page);
+            }
+        }
+    }
+
+    /**
+     * Forgets every page, eg. because the list changed at its source, and loads the ones around
+     * the last shown position again. The old items stay published until the new pages arrive.
+     */
+    public void invalidate() {
+        mGeneration++;
+        mPages.clear();
+        mLoadingPages.clear();
+        mPageCount = 0;
+        mLastPageSize = 0;
+        mEndReached = false;
+        loadAround(mLastPosition);
+    }
+
+    /**
+     * @return whole list as last published, null items are placeholders
+     */
+    public List<T> getItems() {
+        return mItems;
+    }
+
+    /**
+     * @return items of the pages in memory, without placeholders
+     */
+    public List<T> getLoadedItems() {
+        List<T> loaded = new ArrayList<>();
+        for (T item : mItems) {
+            if (item != null) {
+                loaded.add(item);
+            }
+        }
+        return loaded;
+    }
+
+    public int getPagesInMemory() {
+        return mPages.size();
+    }
+
+    public boolean isEndReached() {
+        return mEndReached;
+    }
+
+
+    private void loadPage(final int page) {
+        mLoadingPages.add(page);
+        final int generation = mGeneration;
+        mLoader.loadPage(page, mPageSize, new PageCallback<T>() {
+            @Override
+            public void onPageLoaded(List<T> items) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                mLoadingPages.remove(page);
+                pageLoaded(page, items);
+            }
+
+            @Override
+            public void onPageFailed(Throwable t) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                //requested again the next time one of its positions is shown
+                mLoadingPages.remove(page);
+                mListener.onPageFailed(page, t);
+            }
+        });
+    }
+
+    private void pageLoaded(int page, List<T> items) {
+        if (mEndReached && page >= mPageCount) {
+            //prefetched beyond the end before the end was known
+            return;
+        }
+        if (items.size() < mPageSize) {
+            mEndReached = true;
+            mPageCount = page + 1;
+            mLastPageSize = items.size();
+            //pages requested past the end before this one came back
+            for (Integer loaded : new ArrayList<>(mPages.keySet())) {
+                if (loaded >= mPageCount) {
+                    mPages.remove(loaded);
+                }
+            }
+        } else {
+            mPageCount = Math.max(mPageCount, page + 1);
+        }
+        mPages.put(page, items);
+        dropFarPages();
+        publish();
+        //the list grew, the shown position may need the next page now
+        loadAround(mLastPosition);
+    }
+
+    private void dropFarPages() {
+        int currentPage = mLastPosition / mPageSize;
+        while (mPages.size() > mMaxPagesInMemory) {
+            int farthest = -1;
+            for (int page : mPages.keySet()) {
+                if (farthest == -1 || Math.abs(page - currentPage) > Math.abs(farthest - currentPage)) {
+                    farthest = page;
+                }
+            }
+            mPages.remove(farthest);
+        }
+    }
+
+    private void publish() {
+        int size = mPageCount == 0 ? 0
+                : (mPageCount - 1) * mPageSize + (mEndReached ? mLastPageSize : mPageSize);
+        List<T> items = new ArrayList<>(size);
+        for (int page = 0; page < mPageCount; page++) {
+            List<T> pageItems = mPages.get(page);
+            int pageSize = page == mPageCount - 1 && mEndReached ? mLastPageSize : mPageSize;
+            for (int i = 0; i < pageSize; i++) {
+                items.add(pageItems != null ? pageItems.get(i) : null);
+            }
+        }
+        mItems = Collections.unmodifiableList(items);
+        mListener.onWindowChanged(mItems);
+    }
+}
@@ -0,0 +1,247 @@
+package com.darshan.android.imagedownloader.processing;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.media.MediaScannerConnection;
+import android.util.Log;
+
+import com.darshan.android.imagedownloader.engine.DownloadRequest;
+import com.darshan.android.imagedownloader.engine.PostProcessor;
+import com.darshan.android.imagedownloader.engine.ProcessingStage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Processes a downloaded image on the engine's processing stage: re-encodes it to the target
+ * format and quality when that makes it smaller, keeping its EXIF data, writes a small gallery
+ * thumbnail next to the app's files. Add it as a {@link ProcessingStage.Listener} as well, it
+ * then hands every final image to the media scanner and logs what failed.
+ * <p>
+ * Decoding is what costs memory, width x height x 4 bytes for a full image. All threads
+ * together decode within one budget, so the number of cores doesn't multiply the peak. An image
+ * that doesn't fit the budget on its own is not re-encoded, downscaling it silently would lose
+ * detail, its thumbnail is decoded downsampled like every other. Thread safe.
+ */
+public class ImageProcessor implements PostProcessor, ProcessingStage.Listener {
+    private static final String TAG = "ImageProcessor";
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int THUMBNAIL_BYTES_PER_PIXEL = 2;
+    private static final int THUMBNAIL_LONG_EDGE = 512;
+    private static final int THUMBNAIL_QUALITY = 80;
+    private static final String TMP_SUFFIX = ".processing";
+    //what a re-encoded JPEG keeps of the original's EXIF data, pixels are not rotated
+    private static final String[] EXIF_TAGS = {
+            ExifInterface.TAG_ORIENTATION,
+            ExifInterface.TAG_DATETIME,
+            ExifInterface.TAG_MAKE,
+            ExifInterface.TAG_MODEL,
+            ExifInterface.TAG_FLASH,
+            ExifInterface.TAG_FOCAL_LENGTH,
+            ExifInterface.TAG_WHITE_BALANCE,
+            ExifInterface.TAG_GPS_LATITUDE,
+            ExifInterface.TAG_GPS_LATITUDE_REF,
+            ExifInterface.TAG_GPS_LONGITUDE,
+            ExifInterface.TAG_GPS_LONGITUDE_REF,
+            ExifInterface.TAG_GPS_TIMESTAMP,
+            ExifInterface.TAG_GPS_DATESTAMP,
+    };
+
+    private final Context mContext;
+    private final File mThumbnailDirectory;
+    private final Bitmap.CompressFormat mFormat;
+    private final int mQuality;
+    //permits are kB of decoded pixels, so budgets beyond 2 GB still fit an int
+    private final Semaphore mDecodeBudget;
+    private final int mDecodeBudgetKb;
+
+    /**
+     * @param format            target format, the file keeps its name
+     * @param quality           0 - 100, see Bitmap.compress
+     * @param decodeBudgetBytes decoded pixels of all threads together, eg. a quarter of the heap
+     */
+    public ImageProcessor(Context context, File thumbnailDirectory, Bitmap.CompressFormat format, int quality,
+                          long decodeBudgetBytes) {
+        mContext = context.getApplicationContext();
+        mThumbnailDirectory = thumbnailDirectory;
+        mFormat = format;
+        mQuality = quality;
+        mDecodeBudgetKb = (int) Math.min(Integer.MAX_VALUE, decodeBudgetBytes / 1024);
+        mDecodeBudget = new Semaphore(mDecodeBudgetKb, true);
+    }
+
+    /**
+     * @return where the thumbnail of {@code file} is written
+     */
+    public File getThumbnailFile(File file) {
+        return new File(mThumbnailDirectory, file.getName());
+    }
+
+    @Override
+    public File process(DownloadRequest request, File file) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            //nothing a bitmap can be made of, left as it is
+            return null;
+        }
+
+        File replacement = null;
+        long pixelBytes = (long) bounds.outWidth * bounds.outHeight * BYTES_PER_PIXEL;
+        if (pixelBytes / 1024 < mDecodeBudgetKb) {
+            replacement = reencode(file, pixelBytes);
+        } else {
+            Log.d(TAG, "process: " + bounds.outWidth + "x" + bounds.outHeight + " exceeds the decode budget, kept as is");
+        }
+        writeThumbnail(file, bounds.outWidth, bounds.outHeight);
+        return replacement;
+    }
+
+    @Override
+    public void onProcessed(DownloadRequest request, File file, boolean replaced) {
+        //only now, the replacement was moved over the download
+        MediaScannerConnection.scanFile(mContext, new String[]{file.getPath()}, null, null);
+    }
+
+    @Override
+    public void onProcessingFailed(DownloadRequest request, File file, IOException e) {
+        Log.w(TAG, "onProcessingFailed: unable to process " + file, e);
+        //the download itself is fine, the gallery gets it as it is
+        MediaScannerConnection.scanFile(mContext, new String[]{file.getPath()}, null, null);
+    }
+
+
+    /* The image in the target encoding, null when that isn't smaller */
+    private File reencode(File file, long pixelBytes) throws IOException {
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        Bitmap bitmap = decode(file, 1, Bitmap.Config.ARGB_8888, pixelBytes);
+        if (bitmap == null) {
+            return null;
+        }
+        try {
+            compress(bitmap, mFormat, mQuality, tmp);
+        } finally {
+            recycle(bitmap, pixelBytes);
+        }
+
+        if (tmp.length() >= file.length()) {
+            //already encoded as tight, or tighter
+            tmp.delete();
+            return null;
+        }
+        if (mFormat == Bitmap.CompressFormat.JPEG) {
+            copyExif(file, tmp);
+        }
+        return tmp;
+    }
+
+    private void writeThumbnail(File file, int width, int height) throws IOException {
+        int sampleSize = 1;
+        //the largest power of two that still leaves at least the thumbnail's size
+        while (Math.max(width, height) / (sampleSize * 2) >= THUMBNAIL_LONG_EDGE) {
+            sampleSize *= 2;
+        }
+        long sampledBytes = (long) ((width + sampleSize - 1) / sampleSize) * ((height + sampleSize - 1) / sampleSize)
+                * THUMBNAIL_BYTES_PER_PIXEL;
+        Bitmap sampled = decode(file, sampleSize, Bitmap.Config.RGB_565, sampledBytes);
+        if (sampled == null) {
+            return;
+        }
+        Bitmap thumbnail = sampled;
+        try {
+            float scale = (float) THUMBNAIL_LONG_EDGE / Math.max(sampled.getWidth(), sampled.getHeight());
+            if (scale < 1) {
+                thumbnail = Bitmap.createScaledBitmap(sampled, Math.max(1, Math.round(sampled.getWidth() * scale)),
+                        Math.max(1, Math.round(sampled.getHeight() * scale)), true);
+            }
+            if (!mThumbnailDirectory.isDirectory() && !mThumbnailDirectory.mkdirs()) {
+                throw new IOException("Unable to create " + mThumbnailDirectory);
+            }
+            File thumbnailFile = getThumbnailFile(file);
+            File tmp = new File(thumbnailFile.getPath() + TMP_SUFFIX);
+            compress(thumbnail, Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, tmp);
+            if (!tmp.renameTo(thumbnailFile)) {
+                tmp.delete();
+                throw new IOException("Unable to move " + tmp + " to " + thumbnailFile);
+            }
+        } finally {
+            if (thumbnail != sampled) {
+                thumbnail.recycle();
+            }
+            recycle(sampled, sampledBytes);
+        }
+    }
+
+    /* Waits until the decoded size fits the budget, recycle() gives it back */
+    private Bitmap decode(File file, int sampleSize, Bitmap.Config config, long decodedBytes) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = config;
+        int permits = kiloBytes(decodedBytes);
+        mDecodeBudget.acquireUninterruptibly(permits);
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+            return bitmap;
+        } finally {
+            if (bitmap == null) {
+                mDecodeBudget.release(permits);
+            }
+        }
+    }
+
+    private void recycle(Bitmap bitmap, long decodedBytes) {
+        bitmap.recycle();
+        mDecodeBudget.release(kiloBytes(decodedBytes));
+    }
+
+    /* Never more than the whole budget, a bitmap larger than that waits until nothing else is decoded */
+    private int kiloBytes(long bytes) {
+        return (int) Math.min(mDecodeBudgetKb, (bytes + 1023) / 1024);
+    }
+
+    private static void compress(Bitmap bitmap, Bitmap.CompressFormat format, int quality, File target)
+            throws IOException {
+        FileOutputStream out = new FileOutputStream(target);
+        boolean compressed = false;
+        try {
+            compressed = bitmap.compress(format, quality, out);
+            //the gallery reads it right after the rename
+            out.getFD().sync();
+        } finally {
+            out.close();
+            if (!compressed) {
+                target.delete();
+            }
+        }
+        if (!compressed) {
+            throw new IOException("Unable to encode " + target);
+        }
+    }
+
+    private static void copyExif(File from, File to) {
+        try {
+            ExifInterface source = new ExifInterface(from.getPath());
+            ExifInterface target = new ExifInterface(to.getPath());
+            boolean copied = false;
+            for (String tag : EXIF_TAGS) {
+                String value = source.getAttribute(tag);
+                if (value != null) {
+                    target.setAttribute(tag, value);
+                    copied = true;
+                }
+            }
+            if (copied) {
+                target.saveAttributes();
+            }
+        } catch (IOException e) {
+            //the pixels are what matters, the image is kept without them
+            Log.w(TAG, "copyExif: unable to copy EXIF data of " + from, e);
+        }
+    }
+}
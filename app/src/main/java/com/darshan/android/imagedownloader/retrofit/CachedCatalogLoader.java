@@ -0,0 +1,139 @@
+package com.darshan.android.imagedownloader.retrofit;
+
+import com.darshan.android.imagedownloader.paging.PagedWindow;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Loads catalog pages from the {@link CatalogSnapshot}, stale-while-revalidate.
+ * <p>
+ * Pages are read from the last snapshot right away, with or without network. The first page
+ * asked for also starts the {@link CatalogRefresh} of the whole catalog in the background, unless
+ * it is running already, which rewrites the snapshot. When the catalog turned out to have
+ * changed since the pages were read the {@link Listener} is told, so it can load them again.
+ * Give the client an OkHttp cache and the refresh is a conditional request
+ * (ETag / If-Modified-Since) that a 304 answers without a body.
+ * <p>
+ * Without a usable snapshot, on the very first start, pages come from the network loader until
+ * the refresh has written one.
+ */
+public class CachedCatalogLoader implements PagedWindow.PageLoader<Image> {
+
+    /**
+     * Called on the callback executor.
+     */
+    public interface Listener {
+        /* Pages were read from a snapshot the refresh found outdated */
+        void onCatalogChanged();
+
+        /* Pages keep coming from the snapshot there is, if any */
+        void onRefreshFailed(Throwable t);
+    }
+
+    private final CatalogRefresh mRefresh;
+    private final CatalogSnapshot mSnapshot;
+    private final PagedWindow.PageLoader<Image> mNetworkLoader;
+    private final Executor mBackgroundExecutor;
+    private final Executor mCallbackExecutor;
+    private final Listener mListener;
+
+    //only touched on the callback executor
+    private boolean mRefreshStarted;
+    //a page may have been read from the snapshot the refresh replaces
+    private volatile boolean mServedFromSnapshot;
+
+    /**
+     * @param client             used for the refresh, with a cache to make it conditional
+     * @param networkLoader      used while there is no snapshot
+     * @param backgroundExecutor reads pages and refreshes, needs more than one thread so the
+     *                           pages don't wait for the network
+     * @param callbackExecutor   the thread of the {@link PagedWindow}, the UI-Thread in the app
+     */
+    public CachedCatalogLoader(String baseUrl, OkHttpClient client, CatalogSnapshot snapshot,
+                               PagedWindow.PageLoader<Image> networkLoader, Executor backgroundExecutor,
+                               Executor callbackExecutor, Listener listener) {
+        this(new CatalogRefresh(baseUrl, client, snapshot), networkLoader, backgroundExecutor,
+                callbackExecutor, listener);
+    }
+
+    /**
+     * @param refresh of the snapshot pages are read from, possibly started or done already
+     */
+    public CachedCatalogLoader(CatalogRefresh refresh, PagedWindow.PageLoader<Image> networkLoader,
+                               Executor backgroundExecutor, Executor callbackExecutor, Listener listener) {
+        mRefresh = refresh;
+        mSnapshot = refresh.getSnapshot();
+        mNetworkLoader = networkLoader;
+        mBackgroundExecutor = backgroundExecutor;
+        mCallbackExecutor = callbackExecutor;
+        mListener = listener;
+    }
+
+    @Override
+    public void loadPage(final int page, final int pageSize, final PagedWindow.PageCallback<Image> callback) {
+        if (!mRefreshStarted) {
+            mRefreshStarted = true;
+            //before the first read, a refresh done already has nothing outdated to report
+            mRefresh.addListener(new CatalogRefresh.Listener() {
+                @Override
+                public void onRefreshed(boolean changed) {
+                    if (changed && mServedFromSnapshot) {
+                        mCallbackExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                mListener.onCatalogChanged();
+                            }
+                        });
+                    }
+                }
+
+                @Override
+                public void onRefreshFailed(final IOException e) {
+                    mCallbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            mListener.onRefreshFailed(e);
+                        }
+                    });
+                }
+            });
+        }
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadPageFromSnapshot(page, pageSize, callback);
+            }
+        });
+        mRefresh.start(mBackgroundExecutor);
+    }
+
+
+    /* Runs in background */
+    private void loadPageFromSnapshot(final int page, final int pageSize,
+                                      final PagedWindow.PageCallback<Image> callback) {
+        Catalog catalog = null;
+        if (mSnapshot.exists()) {
+            //before the read, so a refresh that replaces the snapshot meanwhile can't miss it
+            mServedFromSnapshot = true;
+            try {
+                catalog = mSnapshot.readWindow(page * pageSize, pageSize);
+            } catch (IOException e) {
+                //the refresh replaces it, until then the network has to do
+            }
+        }
+        final Catalog snapshotCatalog = catalog;
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (snapshotCatalog != null) {
+                    callback.onPageLoaded(snapshotCatalog.getImages());
+                } else {
+                    mNetworkLoader.loadPage(page, pageSize, callback);
+                }
+            }
+        });
+    }
+}
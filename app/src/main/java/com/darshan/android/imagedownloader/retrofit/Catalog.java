@@ -0,0 +1,39 @@
+package com.darshan.android.imagedownloader.retrofit;
+
+import java.util.ArrayList;
+
+/**
+ * The images picked from the /list catalog while it was streamed, see {@link CatalogSelection}.
+ */
+public class Catalog {
+    private final ArrayList<Image> mImages;
+    private final int mScannedCount;
+
+    Catalog(ArrayList<Image> images, int scannedCount) {
+        mImages = images;
+        mScannedCount = scannedCount;
+    }
+
+    /**
+     * @return selected images, in catalog order
+     */
+    public ArrayList<Image> getImages() {
+        return mImages;
+    }
+
+    /**
+     * @return catalog entries read to make the selection. The whole catalog for a sample,
+     * only up to the end of the window for a window.
+     */
+    public int getScannedCount() {
+        return mScannedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "Catalog{" +
+                "images=" + mImages.size() +
+                ", scannedCount=" + mScannedCount +
+                '}';
+    }
+}
@@ -0,0 +1,66 @@
+package com.darshan.android.imagedownloader.retrofit;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+
+import okhttp3.ResponseBody;
+import retrofit2.Converter;
+import retrofit2.Retrofit;
+
+/**
+ * Retrofit converter for {@link Catalog} responses. Streams the body through a {@link JsonReader}
+ * and keeps only what the {@link CatalogSelection} picks, instead of turning the whole list into
+ * an ArrayList of Images first. Runs on Retrofit's background thread, like any converter.
+ * Other types are left to the next converter factory (eg. Gson).
+ */
+public class CatalogConverterFactory extends Converter.Factory {
+    private final Gson mGson;
+    private final CatalogSelection mSelection;
+
+    private CatalogConverterFactory(Gson gson, CatalogSelection selection) {
+        mGson = gson;
+        mSelection = selection;
+    }
+
+    public static CatalogConverterFactory create(CatalogSelection selection) {
+        return create(new Gson(), selection);
+    }
+
+    public static CatalogConverterFactory create(Gson gson, CatalogSelection selection) {
+        if (gson == null || selection == null) {
+            throw new IllegalArgumentException("gson and selection must not be null");
+        }
+        return new CatalogConverterFactory(gson, selection);
+    }
+
+    @Override
+    public Converter<ResponseBody, ?> responseBodyConverter(Type type, Annotation[] annotations,
+                                                            Retrofit retrofit) {
+        if (type != Catalog.class) {
+            return null;
+        }
+        final TypeAdapter<Image> imageAdapter = mGson.getAdapter(Image.class);
+        return new Converter<ResponseBody, Catalog>() {
+            @Override
+            public Catalog convert(ResponseBody body) throws IOException {
+                JsonReader reader = mGson.newJsonReader(body.charStream());
+                try {
+                    if (reader.peek() == JsonToken.NULL) {
+                        return new Catalog(new ArrayList<Image>(), 0);
+                    }
+                    return mSelection.read(reader, imageAdapter);
+                } finally {
+                    //a window leaves the rest of the body unread, closing drops the connection
+                    body.close();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,289 @@
+package com.darshan.android.imagedownloader.retrofit;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The /list catalog as a compact binary file, read through a {@link java.nio.MappedByteBuffer}.
+ * <p>
+ * Thousands of parsed {@link Image}s cost eight boxed or String fields each, on the heap for as
+ * long as the list is shown. Here a catalog entry is a fixed width record, found by position
+ * with one multiplication and by id through a hash table in the file. The bytes stay in the
+ * page cache, nothing is allocated per entry until a row is {@link #bind bound}.
+ * <pre>
+ *     header   magic, version, count, id table capacity, string table length   5 ints
+ *     records  id, width, height, then string offsets of format, filename,
+ *              author, author_url, post_url                                     8 ints each
+ *     id table open addressing, power of two slots of id, position + 1          2 ints each
+ *     strings  UTF-8 length and bytes, each distinct string once
+ * </pre>
+ * Missing numbers are stored as {@link #NO_VALUE}, missing strings as offset -1. Big endian.
+ * An open index is immutable and may be read from any thread.
+ */
+public class CatalogIndex {
+
+    /* Stands for a number the catalog entry didn't have */
+    public static final int NO_VALUE = Integer.MIN_VALUE;
+
+    static final int MAGIC = 0x50434958; //PCIX
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 5 * 4;
+    static final int RECORD_SIZE = 8 * 4;
+    private static final int SLOT_SIZE = 2 * 4;
+
+    //record fields, in ints
+    private static final int ID = 0;
+    private static final int WIDTH = 1;
+    private static final int HEIGHT = 2;
+    private static final int FORMAT = 3;
+    private static final int FILENAME = 4;
+    private static final int AUTHOR = 5;
+    private static final int AUTHOR_URL = 6;
+    private static final int POST_URL = 7;
+    private static final int FIELDS = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final int mIdTableOffset;
+    private final int mIdTableCapacity;
+    private final int mStringsOffset;
+    private final int mStringsLength;
+
+    private CatalogIndex(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a catalog index");
+        }
+        mBuffer = buffer;
+        mCount = buffer.getInt(8);
+        mIdTableCapacity = buffer.getInt(12);
+        mStringsLength = buffer.getInt(16);
+        mIdTableOffset = HEADER_SIZE + mCount * RECORD_SIZE;
+        mStringsOffset = mIdTableOffset + mIdTableCapacity * SLOT_SIZE;
+        long expectedSize = HEADER_SIZE + (long) mCount * RECORD_SIZE
+                + (long) mIdTableCapacity * SLOT_SIZE + mStringsLength;
+        if (mCount < 0 || mIdTableCapacity < 0 || Integer.bitCount(mIdTableCapacity) > 1
+                || mStringsLength < 0 || expectedSize != buffer.capacity()) {
+            //torn by a crash or from a different writer
+            throw new IOException("Catalog index of " + buffer.capacity() + " bytes, expected " + expectedSize);
+        }
+    }
+
+    /**
+     * Maps {@code file} read-only. The mapping stays valid when the file is replaced afterwards.
+     */
+    public static CatalogIndex open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Catalog index too large: " + file);
+            }
+            //closing the channel doesn't unmap
+            return new CatalogIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @return position of the entry with this Picsum id, -1 when the catalog has none
+     */
+    public int positionOf(int id) {
+        if (mIdTableCapacity == 0) {
+            return -1;
+        }
+        int mask = mIdTableCapacity - 1;
+        for (int slot = mix(id) & mask; ; slot = (slot + 1) & mask) {
+            int offset = mIdTableOffset + slot * SLOT_SIZE;
+            int position = mBuffer.getInt(offset + 4) - 1;
+            if (position == -1) {
+                return -1;
+            }
+            if (mBuffer.getInt(offset) == id) {
+                return position;
+            }
+        }
+    }
+
+    /**
+     * @return Picsum id of the entry, {@link #NO_VALUE} when it has none
+     */
+    public int getId(int position) {
+        return field(position, ID);
+    }
+
+    public int getWidth(int position) {
+        return field(position, WIDTH);
+    }
+
+    public int getHeight(int position) {
+        return field(position, HEIGHT);
+    }
+
+    /**
+     * Turns the entry into an Image, the only place objects are created for it.
+     */
+    public Image bind(int position) {
+        Image image = new Image();
+        image.setId(boxed(field(position, ID)));
+        image.setWidth(boxed(field(position, WIDTH)));
+        image.setHeight(boxed(field(position, HEIGHT)));
+        image.setFormat(string(field(position, FORMAT)));
+        image.setFilename(string(field(position, FILENAME)));
+        image.setAuthor(string(field(position, AUTHOR)));
+        image.setAuthorUrl(string(field(position, AUTHOR_URL)));
+        image.setPostUrl(string(field(position, POST_URL)));
+        return image;
+    }
+
+    /**
+     * Converts the catalog JSON array read from {@code source} into an index written to
+     * {@code out}. The entries are parsed one at a time, only the records and distinct strings
+     * are held until the index is written.
+     *
+     * @return number of entries
+     */
+    public static int write(JsonReader source, TypeAdapter<Image> imageAdapter, OutputStream out)
+            throws IOException {
+        int[] records = new int[64 * FIELDS];
+        int count = 0;
+        Map<String, Integer> stringOffsets = new HashMap<>();
+        ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+        DataOutputStream strings = new DataOutputStream(stringBytes);
+
+        source.beginArray();
+        while (source.hasNext()) {
+            Image image = imageAdapter.read(source);
+            if (image == null) {
+                //a null in the array isn't an entry
+                continue;
+            }
+            if ((count + 1) * FIELDS > records.length) {
+                records = Arrays.copyOf(records, records.length * 2);
+            }
+            int record = count * FIELDS;
+            records[record + ID] = unboxed(image.getId());
+            records[record + WIDTH] = unboxed(image.getWidth());
+            records[record + HEIGHT] = unboxed(image.getHeight());
+            records[record + FORMAT] = intern(image.getFormat(), stringOffsets, strings);
+            records[record + FILENAME] = intern(image.getFilename(), stringOffsets, strings);
+            records[record + AUTHOR] = intern(image.getAuthor(), stringOffsets, strings);
+            records[record + AUTHOR_URL] = intern(image.getAuthorUrl(), stringOffsets, strings);
+            records[record + POST_URL] = intern(image.getPostUrl(), stringOffsets, strings);
+            count++;
+        }
+        source.endArray();
+
+        //at most half full, so probe sequences stay short
+        int capacity = count == 0 ? 0 : Integer.highestOneBit(count * 2 - 1) << 1;
+        int[] idTable = new int[capacity * 2];
+        for (int position = 0; position < count; position++) {
+            int id = records[position * FIELDS + ID];
+            if (id != NO_VALUE) {
+                insert(idTable, capacity, id, position);
+            }
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(count);
+        data.writeInt(capacity);
+        data.writeInt(stringBytes.size());
+        for (int i = 0; i < count * FIELDS; i++) {
+            data.writeInt(records[i]);
+        }
+        for (int value : idTable) {
+            data.writeInt(value);
+        }
+        stringBytes.writeTo(data);
+        data.flush();
+        return count;
+    }
+
+
+    private int field(int position, int field) {
+        if (position < 0 || position >= mCount) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + mCount);
+        }
+        return mBuffer.getInt(HEADER_SIZE + position * RECORD_SIZE + field * 4);
+    }
+
+    private String string(int offset) {
+        if (offset == -1) {
+            return null;
+        }
+        int start = mStringsOffset + offset;
+        int length = mBuffer.getInt(start);
+        byte[] bytes = new byte[length];
+        //absolute reads only, a duplicate keeps the shared buffer's position untouched
+        ByteBuffer duplicate = mBuffer.duplicate();
+        duplicate.position(start + 4);
+        duplicate.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static int intern(String value, Map<String, Integer> offsets, DataOutputStream strings)
+            throws IOException {
+        if (value == null) {
+            return -1;
+        }
+        Integer offset = offsets.get(value);
+        if (offset == null) {
+            offset = strings.size();
+            byte[] bytes = value.getBytes(UTF_8);
+            strings.writeInt(bytes.length);
+            strings.write(bytes);
+            offsets.put(value, offset);
+        }
+        return offset;
+    }
+
+    private static void insert(int[] idTable, int capacity, int id, int position) {
+        int mask = capacity - 1;
+        for (int slot = mix(id) & mask; ; slot = (slot + 1) & mask) {
+            if (idTable[slot * 2 + 1] == 0) {
+                idTable[slot * 2] = id;
+                idTable[slot * 2 + 1] = position + 1;
+                return;
+            }
+            if (idTable[slot * 2] == id) {
+                //the first entry wins, like a lookup in the list would
+                return;
+            }
+        }
+    }
+
+    /* Picsum ids are consecutive, spread them over the table */
+    private static int mix(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int unboxed(Integer value) {
+        return value != null ? value : NO_VALUE;
+    }
+
+    private static Integer boxed(int value) {
+        return value != NO_VALUE ? value : null;
+    }
+}
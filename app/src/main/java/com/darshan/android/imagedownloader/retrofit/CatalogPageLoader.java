@@ -0,0 +1,60 @@
+package com.darshan.android.imagedownloader.retrofit;
+
+import com.darshan.android.imagedownloader.paging.PagedWindow;
+
+import okhttp3.OkHttpClient;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+
+/**
+ * Loads pages of the /list catalog for a {@link PagedWindow}.
+ * <p>
+ * /list has no paging parameters, so every page is a request for the list that is streamed
+ * through a {@link CatalogSelection#window} and closed right after the page. The entries before
+ * the page are skipped by the parser, not materialized. Callbacks arrive on Retrofit's callback
+ * executor, the UI-Thread on Android.
+ */
+public class CatalogPageLoader implements PagedWindow.PageLoader<Image> {
+    private final String mBaseUrl;
+    private final OkHttpClient mClient;
+
+    /**
+     * @param client shared by all pages, so they reuse its connections
+     */
+    public CatalogPageLoader(String baseUrl, OkHttpClient client) {
+        mBaseUrl = baseUrl;
+        mClient = client;
+    }
+
+    @Override
+    public void loadPage(int page, int pageSize, final PagedWindow.PageCallback<Image> callback) {
+        //the selection belongs to the converter, hence one (cheap) Retrofit per page
+        PicusumApiEndpoint apiEndpoint = new Retrofit.Builder()
+                .baseUrl(mBaseUrl)
+                .client(mClient)
+                .addConverterFactory(CatalogConverterFactory.create(
+                        CatalogSelection.window(page * pageSize, pageSize)))
+                .build()
+                .create(PicusumApiEndpoint.class);
+
+        apiEndpoint.getCatalog().enqueue(new Callback<Catalog>() {
+            @Override
+            public void onResponse(Call<Catalog> call, Response<Catalog> response) {
+                Catalog catalog = response.body();
+                if (!response.isSuccessful() || catalog == null) {
+                    callback.onPageFailed(new IllegalStateException("Catalog request failed with code "
+                            + response.code()));
+                    return;
+                }
+                callback.onPageLoaded(catalog.getImages());
+            }
+
+            @Override
+            public void onFailure(Call<Catalog> call, Throwable t) {
+                callback.onPageFailed(t);
+            }
+        });
+    }
+}
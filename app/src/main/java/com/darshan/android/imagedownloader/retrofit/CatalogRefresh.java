@@ -0,0 +1,140 @@
+package com.darshan.android.imagedownloader.retrofit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import okhttp3.OkHttpClient;
+import okhttp3.ResponseBody;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+
+/**
+ * One refresh of the {@link CatalogSnapshot} from /list. Whoever needs it first starts it,
+ * eg. the app at process start, long before the list asks for its first page, and everyone
+ * interested is told how it went once it is done.
+ */
+public class CatalogRefresh {
+
+    /**
+     * Called on the thread that ran the refresh, or on the one adding the listener when the
+     * refresh was done already.
+     */
+    public interface Listener {
+        /* The snapshot is up to date, changed when it had to be rewritten */
+        void onRefreshed(boolean changed);
+
+        void onRefreshFailed(IOException e);
+    }
+
+    private final String mBaseUrl;
+    private final OkHttpClient mClient;
+    private final CatalogSnapshot mSnapshot;
+
+    //guarded by this
+    private boolean mStarted;
+    private boolean mDone;
+    private boolean mChanged;
+    private IOException mFailure;
+    private final List<Listener> mListeners = new ArrayList<>();
+
+    /**
+     * @param client with a cache to make the refresh a conditional request
+     */
+    public CatalogRefresh(String baseUrl, OkHttpClient client, CatalogSnapshot snapshot) {
+        mBaseUrl = baseUrl;
+        mClient = client;
+        mSnapshot = snapshot;
+    }
+
+    /**
+     * Starts the refresh on {@code executor}, unless it was started already.
+     */
+    public void start(Executor executor) {
+        synchronized (this) {
+            if (mStarted) {
+                return;
+            }
+            mStarted = true;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        });
+    }
+
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (!mDone) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        notify(listener);
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    public CatalogSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+
+    /* Runs in background */
+    private void refresh() {
+        boolean changed = false;
+        IOException failure = null;
+        try {
+            //built here, Retrofit's setup stays off the thread that starts the refresh
+            PicusumApiEndpoint endpoint = new Retrofit.Builder()
+                    .baseUrl(mBaseUrl)
+                    .client(mClient)
+                    .build()
+                    .create(PicusumApiEndpoint.class);
+            Response<ResponseBody> response = endpoint.getCatalogBody().execute();
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("Catalog request failed with code " + response.code());
+            }
+            try {
+                //a 304 is handed out as the cached 200, rewriting finds it unchanged
+                changed = mSnapshot.write(body.charStream());
+            } finally {
+                body.close();
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        List<Listener> listeners;
+        synchronized (this) {
+            mDone = true;
+            mChanged = changed;
+            mFailure = failure;
+            listeners = new ArrayList<>(mListeners);
+            mListeners.clear();
+        }
+        for (Listener listener : listeners) {
+            notify(listener);
+        }
+    }
+
+    private void notify(Listener listener) {
+        boolean changed;
+        IOException failure;
+        synchronized (this) {
+            changed = mChanged;
+            failure = mFailure;
+        }
+        if (failure != null) {
+            listener.onRefreshFailed(failure);
+        } else {
+            listener.onRefreshed(changed);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.darshan.android.imagedownloader.retrofit;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Picks entries out of the /list catalog while it is parsed.
+ * <p>
+ * The catalog is a JSON array of thousands of images. It is read entry by entry with a
+ * {@link JsonReader}, only the selected entries are turned into {@link Image} objects and all the
+ * others are skipped without allocating anything for them.
+ */
+public abstract class CatalogSelection {
+
+    /**
+     * The {@code count} entries starting at {@code offset}. Parsing stops right after the
+     * window, the rest of the catalog is never read.
+     */
+    public static CatalogSelection window(final int offset, final int count) {
+        if (offset < 0 || count < 1) {
+            throw new IllegalArgumentException("offset < 0 or count < 1");
+        }
+        return new CatalogSelection() {
+            @Override
+            Catalog read(JsonReader reader, TypeAdapter<Image> imageAdapter) throws IOException {
+                ArrayList<Image> images = new ArrayList<>(count);
+                int index = 0;
+                reader.beginArray();
+                while (reader.hasNext() && index < offset + count) {
+                    if (index < offset) {
+                        reader.skipValue();
+                    } else {
+                        images.add(imageAdapter.read(reader));
+                    }
+                    index++;
+                }
+                //deliberately not reading up to endArray(), the caller closes the stream
+                return new Catalog(images, index);
+            }
+        };
+    }
+
+    /**
+     * {@code count} entries picked uniformly at random from the whole catalog, with reservoir
+     * sampling. Memory stays bounded by {@code count} whatever the size of the catalog.
+     */
+    public static CatalogSelection sample(final int count, final Random random) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count < 1");
+        }
+        return new CatalogSelection() {
+            @Override
+            Catalog read(JsonReader reader, TypeAdapter<Image> imageAdapter) throws IOException {
+                Image[] reservoir = new Image[count];
+                int[] positions = new int[count];
+                int index = 0;
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    int slot = index < count ? index : random.nextInt(index + 1);
+                    if (slot < count) {
+                        reservoir[slot] = imageAdapter.read(reader);
+                        positions[slot] = index;
+                    } else {
+                        reader.skipValue();
+                    }
+                    index++;
+                }
+                reader.endArray();
+                return new Catalog(inCatalogOrder(reservoir, positions, Math.min(index, count)), index);
+            }
+        };
+    }
+
+    /**
+     * Reads the selected entries, {@code reader} is positioned before the catalog array.
+     */
+    abstract Catalog read(JsonReader reader, TypeAdapter<Image> imageAdapter) throws IOException;
+
+    /* Insertion sort by catalog position, the reservoir is small */
+    private static ArrayList<Image> inCatalogOrder(Image[] images, int[] positions, int size) {
+        for (int i = 1; i < size; i++) {
+            for (int j = i; j > 0 && positions[j - 1] > positions[j]; j--) {
+                int position = positions[j];
+                positions[j] = positions[j - 1];
+                positions[j - 1] = position;
+                Image image = images[j];
+                images[j] = images[j - 1];
+                images[j - 1] = image;
+            }
+        }
+        ArrayList<Image> ordered = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ordered.add(images[i]);
+        }
+        return ordered;
+    }
+}
@@ -0,0 +1,174 @@
+package com.darshan.android.imagedownloader.retrofit;
+
+import com.darshan.android.imagedownloader.metrics.Metrics;
+import com.darshan.android.imagedownloader.metrics.Tracer;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ByteString;
+import okio.HashingSink;
+import okio.HashingSource;
+import okio.Okio;
+
+/**
+ * The last /list catalog the app saw, kept in a file so the list shows up at disk speed, with or
+ * without network.
+ * <p>
+ * The file is a {@link CatalogIndex}, converted from the catalog JSON entry by entry and mapped
+ * into memory for reading, so a page of the list costs only the Images of that page. A new
+ * snapshot is written to a temporary file that is renamed over the old one, so readers always
+ * see a whole catalog. One that brings nothing new leaves the old file alone.
+ * <p>
+ * Writes and page reads are timed into the snapshot's {@link Metrics}, as "catalog.*".
+ */
+public class CatalogSnapshot {
+    public static final String WRITE = "catalog.write";
+    public static final String PAGE_READ = "catalog.page_read";
+    public static final String CHANGED = "catalog.changed";
+    public static final String UNCHANGED = "catalog.unchanged";
+
+    private final File mFile;
+    private final File mTmpFile;
+    private final Gson mGson;
+    private final TypeAdapter<Image> mImageAdapter;
+    private final Metrics mMetrics;
+
+    //mapping of mFile, null until read, guarded by this
+    private CatalogIndex mIndex;
+
+    public CatalogSnapshot(File file) {
+        this(file, new Gson());
+    }
+
+    public CatalogSnapshot(File file, Gson gson) {
+        this(file, gson, new Metrics());
+    }
+
+    public CatalogSnapshot(File file, Gson gson, Metrics metrics) {
+        mFile = file;
+        mTmpFile = new File(file.getPath() + ".tmp");
+        mGson = gson;
+        mImageAdapter = gson.getAdapter(Image.class);
+        mMetrics = metrics;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public boolean exists() {
+        return mFile.isFile();
+    }
+
+    /**
+     * @return the snapshot mapped into memory, the same instance until the snapshot is replaced
+     * @throws IOException also when there is no snapshot or it isn't a catalog index
+     */
+    public synchronized CatalogIndex open() throws IOException {
+        if (mIndex == null) {
+            mIndex = CatalogIndex.open(mFile);
+        }
+        return mIndex;
+    }
+
+    /**
+     * Binds the {@code count} entries starting at {@code offset}, fewer at the end of the catalog.
+     *
+     * @throws IOException also when there is no snapshot or it isn't a catalog index
+     */
+    public Catalog readWindow(int offset, int count) throws IOException {
+        Tracer tracer = mMetrics.getTracer();
+        tracer.beginSection("catalog page");
+        long startNanos = System.nanoTime();
+        try {
+            CatalogIndex index = open();
+            int end = Math.min(index.size(), offset + count);
+            ArrayList<Image> images = new ArrayList<>(Math.max(0, end - offset));
+            for (int position = offset; position < end; position++) {
+                images.add(index.bind(position));
+            }
+            return new Catalog(images, images.size());
+        } finally {
+            mMetrics.timer(PAGE_READ).recordSince(startNanos);
+            tracer.endSection();
+        }
+    }
+
+    /**
+     * Replaces the snapshot with the catalog JSON read from {@code source}. Nothing changes
+     * when {@code source} isn't a whole catalog.
+     *
+     * @return true when the catalog differs from the one in the previous snapshot
+     */
+    public boolean write(Reader source) throws IOException {
+        Tracer tracer = mMetrics.getTracer();
+        tracer.beginSection("catalog write");
+        long startNanos = System.nanoTime();
+        try {
+            boolean changed = replace(source);
+            mMetrics.counter(changed ? CHANGED : UNCHANGED).increment();
+            return changed;
+        } finally {
+            //with a streamed response body this includes the download
+            mMetrics.timer(WRITE).recordSince(startNanos);
+            tracer.endSection();
+        }
+    }
+
+
+    private boolean replace(Reader source) throws IOException {
+        boolean replaced = false;
+        try {
+            HashingSink sink = HashingSink.sha256(Okio.sink(mTmpFile));
+            BufferedSink bufferedSink = Okio.buffer(sink);
+            try {
+                OutputStream out = bufferedSink.outputStream();
+                CatalogIndex.write(mGson.newJsonReader(source), mImageAdapter, out);
+            } catch (JsonParseException | IllegalStateException e) {
+                throw new IOException("Not a catalog", e);
+            } finally {
+                bufferedSink.close();
+            }
+
+            if (exists() && sink.hash().equals(sha256(mFile))) {
+                return false;
+            }
+            //rename replaces atomically where the file system allows it
+            if (!mTmpFile.renameTo(mFile) && (!mFile.delete() || !mTmpFile.renameTo(mFile))) {
+                throw new IOException("Unable to replace " + mFile);
+            }
+            synchronized (this) {
+                //pages already read keep the old mapping, the next ones get the new file
+                mIndex = null;
+            }
+            replaced = true;
+            return true;
+        } finally {
+            if (!replaced) {
+                mTmpFile.delete();
+            }
+        }
+    }
+
+    private static ByteString sha256(File file) throws IOException {
+        HashingSource source = HashingSource.sha256(Okio.source(file));
+        try {
+            Buffer buffer = new Buffer();
+            while (source.read(buffer, 8192) != -1) {
+                buffer.clear();
+            }
+            return source.hash();
+        } finally {
+            source.close();
+        }
+    }
+}
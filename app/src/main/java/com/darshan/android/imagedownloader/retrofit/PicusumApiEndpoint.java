@@ -2,12 +2,30 @@ package com.darshan.android.imagedownloader.retrofit;
 
 import java.util.ArrayList;
 
+import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.http.GET;
+import retrofit2.http.Streaming;
 
 public interface PicusumApiEndpoint {
 
     @GET("list")
     Call<ArrayList<Image>> getImages();
 
+    /**
+     * Same list as {@link #getImages()}, but streamed through {@link CatalogConverterFactory},
+     * which only keeps the images its {@link CatalogSelection} picks. Converters get the body as
+     * a stream, it is never buffered as a whole.
+     */
+    @GET("list")
+    Call<Catalog> getCatalog();
+
+    /**
+     * Same list again, as the raw body. Streamed, so the caller reads it while it arrives and has
+     * to close it.
+     */
+    @Streaming
+    @GET("list")
+    Call<ResponseBody> getCatalogBody();
+
 }
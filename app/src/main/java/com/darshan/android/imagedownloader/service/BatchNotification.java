@@ -0,0 +1,109 @@
+package com.darshan.android.imagedownloader.service;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.NotificationManagerCompat;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
+
+import com.darshan.android.imagedownloader.R;
+import com.darshan.android.imagedownloader.engine.DownloadBatch;
+import com.darshan.android.imagedownloader.utils.DownloaderUtils;
+
+/**
+ * One notification for a whole {@link DownloadBatch}: images done and failed, speed and time left.
+ * Once the batch is finished with failures it offers to retry them.
+ * Updates come from worker threads, the batch already limits how often. While none come, eg.
+ * when every download stalls, the notification is refreshed from the batch so speed and time
+ * left don't freeze at their last values.
+ */
+public class BatchNotification implements DownloadBatch.Listener {
+    private static final int NOTIFICATION_ID = 3333;
+    private static final int REQUEST_RETRY_FAILED = 1;
+    private static final long REFRESH_INTERVAL_MS = 3000;
+
+    private final Context mContext;
+    private final NotificationManagerCompat mNotificationManager;
+    private final NotificationCompat.Builder mBuilder;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    //guarded by this, the batch of the last update
+    private DownloadBatch mBatch;
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            DownloadBatch batch;
+            synchronized (BatchNotification.this) {
+                batch = mBatch;
+            }
+            if (batch != null) {
+                onBatchProgress(batch, batch.getProgress());
+            }
+        }
+    };
+
+    public BatchNotification(Context context) {
+        mContext = context.getApplicationContext();
+        mNotificationManager = NotificationManagerCompat.from(mContext);
+        mBuilder = DownloaderUtils.getNotificationBuilder(mContext)
+                .setSmallIcon(R.drawable.ic_notification)
+                .setGroup(DownloaderUtils.NOTIFICATION_GROUP_DOWNLOADS)
+                .setOnlyAlertOnce(true)
+                .setPriority(NotificationCompat.PRIORITY_LOW);
+    }
+
+    @Override
+    public synchronized void onBatchProgress(DownloadBatch batch, DownloadBatch.Progress progress) {
+        if (progress.isFinished()) {
+            //onBatchFinished follows
+            return;
+        }
+        mBatch = batch;
+        mMainHandler.removeCallbacks(mRefresh);
+        mMainHandler.postDelayed(mRefresh, REFRESH_INTERVAL_MS);
+        int done = progress.getCompletedCount() + progress.getFailedCount();
+        StringBuilder text = new StringBuilder()
+                .append(done).append(" of ").append(progress.getTotalCount()).append(" done");
+        if (progress.getFailedCount() > 0) {
+            text.append(", ").append(progress.getFailedCount()).append(" failed");
+        }
+        if (progress.getBytesPerSecond() > 0) {
+            text.append(" - ").append(Formatter.formatShortFileSize(mContext, progress.getBytesPerSecond()))
+                    .append("/s");
+        }
+        if (progress.getEtaMillis() > 0) {
+            text.append(" - ").append(DateUtils.formatElapsedTime(progress.getEtaMillis() / 1000))
+                    .append(" left");
+        }
+
+        mBuilder.setContentTitle("Downloading " + progress.getTotalCount() + " images")
+                .setContentText(text)
+                .setProgress(progress.getTotalCount(), done, false)
+                .setOngoing(true);
+        mNotificationManager.notify(NOTIFICATION_ID, mBuilder.build());
+    }
+
+    @Override
+    public synchronized void onBatchFinished(DownloadBatch batch, DownloadBatch.Progress progress) {
+        mBatch = null;
+        mMainHandler.removeCallbacks(mRefresh);
+        NotificationCompat.Builder builder = DownloaderUtils.getNotificationBuilder(mContext)
+                .setSmallIcon(R.drawable.ic_notification)
+                .setGroup(DownloaderUtils.NOTIFICATION_GROUP_DOWNLOADS)
+                .setContentTitle(progress.getCompletedCount() + " of " + progress.getTotalCount()
+                        + " images downloaded")
+                .setPriority(NotificationCompat.PRIORITY_LOW);
+        if (progress.getFailedCount() > 0) {
+            Intent retryIntent = new Intent(mContext, DownloadService.class)
+                    .setAction(DownloadService.ACTION_RETRY_FAILED_BATCH);
+            PendingIntent pendingIntent = PendingIntent.getService(mContext, REQUEST_RETRY_FAILED,
+                    retryIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+            builder.setContentText(progress.getFailedCount() + " failed")
+                    .addAction(0, mContext.getString(R.string.retry_failed), pendingIntent);
+        }
+        mNotificationManager.notify(NOTIFICATION_ID, builder.build());
+    }
+}
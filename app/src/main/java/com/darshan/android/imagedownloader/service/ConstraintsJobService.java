@@ -0,0 +1,26 @@
+package com.darshan.android.imagedownloader.service;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+
+/**
+ * Started by the JobScheduler once waiting downloads can run, see {@link DownloadScheduler}.
+ * Only hands over to {@link DownloadService}, which does the actual work in the foreground.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class ConstraintsJobService extends JobService {
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        DownloadScheduler.start(getApplicationContext());
+        //nothing left to do on the job's thread
+        return false;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return false;
+    }
+}
@@ -0,0 +1,18 @@
+package com.darshan.android.imagedownloader.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Connectivity, power and boot events for devices without JobScheduler (below API 21).
+ * Disabled in the manifest, {@link DownloadScheduler} enables it while downloads are waiting.
+ */
+public class ConstraintsReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        //the service checks the constraints itself and stops again if they are still not met
+        DownloadScheduler.start(context);
+    }
+}
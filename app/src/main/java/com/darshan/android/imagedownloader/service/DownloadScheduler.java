@@ -0,0 +1,130 @@
+package com.darshan.android.imagedownloader.service;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.support.v4.content.ContextCompat;
+import android.util.Log;
+
+import com.darshan.android.imagedownloader.engine.DownloadQueue;
+import com.darshan.android.imagedownloader.engine.JobStore;
+
+import java.util.List;
+
+/**
+ * Decides when the persistent download queue gets drained.
+ * <p>
+ * {@link DownloadService} drains it whenever it is started. Downloads waiting for an unmetered
+ * network or for the charger are handed to the JobScheduler (API 21+), which starts the service
+ * again once the constraints hold, also after a reboot. Older devices get the same through
+ * {@link ConstraintsReceiver}, which is only enabled while something is waiting.
+ */
+public class DownloadScheduler {
+    private static final String TAG = "DownloadScheduler";
+
+    //one scheduled job per combination of constraints
+    private static final int JOB_ID_UNMETERED = 4001;
+    private static final int JOB_ID_CHARGING = 4002;
+    private static final int JOB_ID_UNMETERED_CHARGING = 4003;
+
+
+    /**
+     * Starts {@link DownloadService}, which runs every download whose constraints are met.
+     */
+    public static void start(Context context) {
+        ContextCompat.startForegroundService(context, new Intent(context, DownloadService.class));
+    }
+
+
+    /**
+     * Arranges for the service to be started again once the constraints of the waiting
+     * downloads are satisfied. Cancels what was arranged before when nothing is waiting.
+     */
+    static void scheduleWaitingDownloads(Context context, List<JobStore.Record> waitingRecords) {
+        boolean unmetered = false, charging = false, unmeteredCharging = false;
+        for (JobStore.Record record : waitingRecords) {
+            if (record.requiresUnmeteredNetwork() && record.requiresCharging()) {
+                unmeteredCharging = true;
+            } else if (record.requiresUnmeteredNetwork()) {
+                unmetered = true;
+            } else if (record.requiresCharging()) {
+                charging = true;
+            }
+        }
+        Log.d(TAG, "scheduleWaitingDownloads: " + waitingRecords.size() + " waiting");
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            schedule(context, JOB_ID_UNMETERED, unmetered, true, false);
+            schedule(context, JOB_ID_CHARGING, charging, false, true);
+            schedule(context, JOB_ID_UNMETERED_CHARGING, unmeteredCharging, true, true);
+        } else {
+            //only wake the app up for connectivity and power changes while it has to
+            int state = waitingRecords.isEmpty()
+                    ? PackageManager.COMPONENT_ENABLED_STATE_DISABLED
+                    : PackageManager.COMPONENT_ENABLED_STATE_ENABLED;
+            context.getPackageManager().setComponentEnabledSetting(
+                    new ComponentName(context, ConstraintsReceiver.class),
+                    state, PackageManager.DONT_KILL_APP);
+        }
+    }
+
+
+    /**
+     * Snapshot of the network and charging state, for {@link DownloadQueue#drain}.
+     */
+    public static DownloadQueue.DeviceState currentDeviceState(Context context) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager != null ? connectivityManager.getActiveNetworkInfo() : null;
+        final boolean unmetered = networkInfo != null && networkInfo.isConnected()
+                && !connectivityManager.isActiveNetworkMetered();
+
+        //sticky broadcast, no receiver is actually registered
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        final boolean charging = battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+
+        return new DownloadQueue.DeviceState() {
+            @Override
+            public boolean isNetworkUnmetered() {
+                return unmetered;
+            }
+
+            @Override
+            public boolean isCharging() {
+                return charging;
+            }
+        };
+    }
+
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void schedule(Context context, int jobId, boolean needed,
+                                 boolean requiresUnmetered, boolean requiresCharging) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null) {
+            return;
+        }
+        if (!needed) {
+            jobScheduler.cancel(jobId);
+            return;
+        }
+
+        JobInfo jobInfo = new JobInfo.Builder(jobId, new ComponentName(context, ConstraintsJobService.class))
+                .setRequiredNetworkType(requiresUnmetered
+                        ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY)
+                .setRequiresCharging(requiresCharging)
+                //survives a reboot, needs RECEIVE_BOOT_COMPLETED
+                .setPersisted(true)
+                .build();
+        jobScheduler.schedule(jobInfo);
+    }
+}
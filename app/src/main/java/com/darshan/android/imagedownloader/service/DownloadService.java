@@ -0,0 +1,205 @@
+package com.darshan.android.imagedownloader.service;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import com.darshan.android.imagedownloader.R;
+import com.darshan.android.imagedownloader.engine.DownloadJob;
+import com.darshan.android.imagedownloader.engine.DownloadListener;
+import com.darshan.android.imagedownloader.engine.DownloadQueue;
+import com.darshan.android.imagedownloader.engine.JobStore;
+import com.darshan.android.imagedownloader.utils.DownloaderUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Foreground service that keeps the process alive while the persistent {@link DownloadQueue}
+ * has downloads running, so they continue when the activity is gone.
+ * <p>
+ * Every start drains the queue against the current network and charging state. Once no download
+ * is running anymore the service schedules the waiting ones with {@link DownloadScheduler} and
+ * stops itself. It is sticky: if the process is killed the system starts it again, and the
+ * downloads restored from the journal continue from their part files.
+ * <p>
+ * The queue is opened and drained on {@link DownloaderUtils#getDownloadQueueExecutor()}, both
+ * write its journal. The UI-Thread only gets the outcome.
+ */
+public class DownloadService extends Service {
+    private static final String TAG = "DownloadService";
+    private static final int FOREGROUND_NOTIFICATION_ID = 2222;
+
+    /* Retries the failed images of the running "Download all" batch before draining */
+    public static final String ACTION_RETRY_FAILED_BATCH =
+            "com.darshan.android.imagedownloader.action.RETRY_FAILED_BATCH";
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private ExecutorService mQueueExecutor;
+    //UI-Thread only. Null until opened in background
+    private DownloadQueue mQueue;
+    private NotificationCompat.Builder mBuilder;
+    //latest start, a drain finished before it doesn't stop the service
+    private int mLastStartId;
+    private boolean mDestroyed;
+
+    /* Runs in worker threads, only the end of a download matters here */
+    private final DownloadListener mQueueListener = new DownloadListener() {
+        @Override
+        public void onStart(DownloadJob job) {
+        }
+
+        @Override
+        public void onProgress(DownloadJob job, long bytesDownloaded, long totalBytes) {
+        }
+
+        @Override
+        public void onComplete(DownloadJob job, File file) {
+            mMainHandler.post(mDrainQueue);
+        }
+
+        @Override
+        public void onFailure(DownloadJob job, IOException e) {
+            mMainHandler.post(mDrainQueue);
+        }
+
+        @Override
+        public void onCancelled(DownloadJob job) {
+            mMainHandler.post(mDrainQueue);
+        }
+    };
+
+    private final Runnable mDrainQueue = new Runnable() {
+        @Override
+        public void run() {
+            drainQueue();
+        }
+    };
+
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mQueueExecutor = DownloaderUtils.getDownloadQueueExecutor();
+        mBuilder = DownloaderUtils.getNotificationBuilder(this)
+                .setContentTitle(getString(R.string.app_name))
+                .setSmallIcon(R.drawable.ic_notification)
+                .setOnlyAlertOnce(true)
+                .setPriority(NotificationCompat.PRIORITY_LOW);
+
+        //after a restart this replays the journals, not on the UI-Thread
+        final Context context = getApplicationContext();
+        mQueueExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DownloadQueue queue = DownloaderUtils.getDownloadQueue(context);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mDestroyed) {
+                            return;
+                        }
+                        mQueue = queue;
+                        mQueue.addListener(mQueueListener);
+                        drainQueue();
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+        //has to happen for every start, the system expects it within seconds on Android 8+
+        mBuilder.setContentText("Preparing downloads");
+        startForeground(FOREGROUND_NOTIFICATION_ID, mBuilder.build());
+        if (intent != null && ACTION_RETRY_FAILED_BATCH.equals(intent.getAction())) {
+            //enqueues again, ahead of the drain below
+            mQueueExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(TAG, "onStartCommand: retrying " + DownloaderUtils.retryFailedBatchDownloads() + " images");
+                }
+            });
+        }
+        drainQueue();
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        mDestroyed = true;
+        if (mQueue != null) {
+            mQueue.removeListener(mQueueListener);
+        }
+        mMainHandler.removeCallbacks(mDrainQueue);
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+
+    /* Runs in UI-Thread, the drain itself in background */
+    private void drainQueue() {
+        if (mQueue == null) {
+            //drained once it is open
+            return;
+        }
+        final DownloadQueue queue = mQueue;
+        final DownloadQueue.DeviceState deviceState = DownloadScheduler.currentDeviceState(this);
+        final Context context = getApplicationContext();
+        mQueueExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                //the network may have changed since the last drain
+                DownloaderUtils.applyBandwidthLimit(context, deviceState);
+                final int waiting = queue.drain(deviceState);
+                final int running = queue.getActiveCount();
+                final List<JobStore.Record> waitingRecords = running == 0
+                        ? queue.getWaitingRecords() : Collections.<JobStore.Record>emptyList();
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mDestroyed) {
+                            onQueueDrained(running, waiting, waitingRecords);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /* Runs in UI-Thread */
+    private void onQueueDrained(int running, int waiting, List<JobStore.Record> waitingRecords) {
+        Log.d(TAG, "drainQueue: " + running + " running, " + waiting + " waiting");
+
+        if (running == 0) {
+            Log.d(TAG, "drainQueue: done, " + DownloaderUtils.getNetworkModule().getConnectionMetrics());
+            DownloadScheduler.scheduleWaitingDownloads(this, waitingRecords);
+            //a start that came in meanwhile brought new downloads, its drain decides
+            if (stopSelfResult(mLastStartId)) {
+                stopForeground(true);
+            }
+            return;
+        }
+
+        String text = "Downloading " + running + (running == 1 ? " image" : " images");
+        if (waiting > 0) {
+            text += ", " + waiting + " waiting for Wi-Fi or charger";
+        }
+        mBuilder.setContentText(text);
+        startForeground(FOREGROUND_NOTIFICATION_ID, mBuilder.build());
+    }
+}
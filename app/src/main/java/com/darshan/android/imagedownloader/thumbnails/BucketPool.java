@@ -0,0 +1,151 @@
+package com.darshan.android.imagedownloader.thumbnails;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps released objects, eg. bitmaps or byte arrays, for reuse instead of allocating new ones.
+ * <p>
+ * Objects are bucketed by their size in bytes. {@link #get(int)} hands out the smallest one that
+ * is large enough, but not one that is much larger, so a big buffer is not wasted on a small need.
+ * The pool holds at most {@code maxBytes}, the objects released longest ago are dropped first.
+ * Thread safe. Has no Android dependencies.
+ */
+public class BucketPool<T> {
+
+    /**
+     * Size of a pooled object in bytes.
+     */
+    public interface Sizer<T> {
+        int sizeOf(T item);
+    }
+
+    private final long mMaxBytes;
+    private final int mMaxSizeMultiple;
+    private final Sizer<T> mSizer;
+
+    //guarded by this
+    private final TreeMap<Integer, ArrayDeque<T>> mBuckets = new TreeMap<>();
+    //every pooled object, released longest ago first
+    private final ArrayDeque<T> mReleaseOrder = new ArrayDeque<>();
+    private long mSize;
+
+    //instrumentation
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSizeMultiple largest object handed out for a need, as multiple of the need
+     */
+    public BucketPool(long maxBytes, int maxSizeMultiple, Sizer<T> sizer) {
+        if (maxBytes < 0 || maxSizeMultiple < 1) {
+            throw new IllegalArgumentException("maxBytes < 0 or maxSizeMultiple < 1");
+        }
+        mMaxBytes = maxBytes;
+        mMaxSizeMultiple = maxSizeMultiple;
+        mSizer = sizer;
+    }
+
+    /**
+     * @return pooled object of at least {@code minBytes}, null on a miss
+     */
+    public synchronized T get(int minBytes) {
+        Map.Entry<Integer, ArrayDeque<T>> bucket = mBuckets.ceilingEntry(minBytes);
+        if (bucket == null || bucket.getKey() > (long) minBytes * mMaxSizeMultiple) {
+            mMissCount++;
+            return null;
+        }
+        T item = bucket.getValue().pollLast();
+        if (bucket.getValue().isEmpty()) {
+            mBuckets.remove(bucket.getKey());
+        }
+        removeIdentical(mReleaseOrder, item);
+        mSize -= bucket.getKey();
+        mHitCount++;
+        return item;
+    }
+
+    /**
+     * Hands {@code item} back, the caller must not use it anymore.
+     * @return false if it is larger than the whole pool and was dropped
+     */
+    public synchronized boolean put(T item) {
+        int size = mSizer.sizeOf(item);
+        if (size > mMaxBytes) {
+            return false;
+        }
+        ArrayDeque<T> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            mBuckets.put(size, bucket);
+        }
+        bucket.addLast(item);
+        mReleaseOrder.addLast(item);
+        mSize += size;
+        trimToSize(mMaxBytes);
+        return true;
+    }
+
+    /**
+     * Drops every pooled object, eg. when the system is low on memory.
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return objects dropped to stay within the byte budget
+     */
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BucketPool{size=" + mSize + "/" + mMaxBytes
+                + ", hits=" + mHitCount
+                + ", misses=" + mMissCount
+                + ", evictions=" + mEvictionCount + '}';
+    }
+
+
+    private void trimToSize(long maxBytes) {
+        while (mSize > maxBytes) {
+            T eldest = mReleaseOrder.pollFirst();
+            int size = mSizer.sizeOf(eldest);
+            ArrayDeque<T> bucket = mBuckets.get(size);
+            removeIdentical(bucket, eldest);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(size);
+            }
+            mSize -= size;
+            mEvictionCount++;
+        }
+    }
+
+    /* By identity, arrays and bitmaps with equal content are still different objects */
+    private static <T> void removeIdentical(ArrayDeque<T> deque, T item) {
+        Iterator<T> iterator = deque.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == item) {
+                iterator.remove();
+                return;
+            }
+        }
+    }
+}
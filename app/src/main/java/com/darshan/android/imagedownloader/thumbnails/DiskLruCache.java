@@ -0,0 +1,182 @@
+package com.darshan.android.imagedownloader.thumbnails;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Files in one directory, limited to a byte budget. Once the budget is exceeded the least
+ * recently used files are deleted.
+ * <p>
+ * Every entry is a single file named after its key. There is no journal, the use order is kept
+ * in the files' modification time and restored from it on {@link #open}. Entries are written to
+ * a temporary file first and renamed into place, so a reader never sees half a file.
+ * Thread safe. Has no Android dependencies.
+ */
+public class DiskLruCache {
+    private static final String TEMP_SUFFIX = ".tmp";
+    //keys end up as file names
+    private static final Pattern KEY_PATTERN = Pattern.compile("[a-z0-9_-]{1,120}");
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    //key to file size, least recently used first. Guarded by this
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize;
+    private int mNextTempId;
+
+    private DiskLruCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating it if needed.
+     * Temporary files left behind by a crash are deleted.
+     */
+    public static DiskLruCache open(File directory, long maxBytes) throws IOException {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to list " + directory);
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long lastModifiedA = a.lastModified();
+                long lastModifiedB = b.lastModified();
+                return lastModifiedA < lastModifiedB ? -1 : (lastModifiedA == lastModifiedB ? 0 : 1);
+            }
+        });
+
+        DiskLruCache cache = new DiskLruCache(directory, maxBytes);
+        synchronized (cache) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!file.isFile() || name.endsWith(TEMP_SUFFIX) || !KEY_PATTERN.matcher(name).matches()) {
+                    file.delete();
+                    continue;
+                }
+                cache.mEntries.put(name, file.length());
+                cache.mSize += file.length();
+            }
+            cache.trimToSize();
+        }
+        return cache;
+    }
+
+    /**
+     * @return file of the entry, null if there is none. It may be evicted while it is read,
+     * which does not disturb an open stream.
+     */
+    public synchronized File get(String key) {
+        checkKey(key);
+        if (mEntries.get(key) == null) {
+            return null;
+        }
+        File file = new File(mDirectory, key);
+        if (!file.exists()) {
+            //deleted behind our back, eg. the system clearing the cache dir
+            mSize -= mEntries.remove(key);
+            return null;
+        }
+        //remembers the use across restarts
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Stores {@code data} under {@code key}, replacing an existing entry.
+     * Data larger than the whole budget is not stored.
+     */
+    public void put(String key, byte[] data) throws IOException {
+        put(key, data, data.length);
+    }
+
+    /**
+     * Stores the first {@code length} bytes of {@code data}, eg. of a pooled buffer.
+     */
+    public void put(String key, byte[] data, int length) throws IOException {
+        checkKey(key);
+        if (length > mMaxBytes) {
+            return;
+        }
+        File temp;
+        synchronized (this) {
+            temp = new File(mDirectory, key + "." + (mNextTempId++) + TEMP_SUFFIX);
+        }
+        //written outside the lock, concurrent gets are not held up by the disk
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data, 0, length);
+        } catch (IOException e) {
+            out.close();
+            temp.delete();
+            throw e;
+        }
+        out.close();
+
+        synchronized (this) {
+            File file = new File(mDirectory, key);
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Unable to rename " + temp + " to " + file);
+            }
+            Long previousSize = mEntries.put(key, (long) length);
+            if (previousSize != null) {
+                mSize -= previousSize;
+            }
+            mSize += length;
+            trimToSize();
+        }
+    }
+
+    public synchronized void remove(String key) {
+        checkKey(key);
+        Long size = mEntries.remove(key);
+        if (size != null) {
+            mSize -= size;
+            new File(mDirectory, key).delete();
+        }
+    }
+
+    /**
+     * @return bytes held by all entries
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mSize > mMaxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            new File(mDirectory, eldest.getKey()).delete();
+            mSize -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    private static void checkKey(String key) {
+        if (key == null || !KEY_PATTERN.matcher(key).matches()) {
+            throw new IllegalArgumentException("Key has to match " + KEY_PATTERN + ": " + key);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.darshan.android.imagedownloader.thumbnails;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes thumbnails without allocating in the common case.
+ * <p>
+ * Bitmaps nobody shows anymore are {@link #release}d into a pool and decoded into again through
+ * BitmapFactory.Options.inBitmap. Encoded data is read into pooled byte buffers instead of a new
+ * array per thumbnail. Thumbnails are decoded as RGB_565, half the memory of ARGB_8888 and
+ * plenty for a small photo.
+ * <p>
+ * Bitmaps are reused only from KitKat on. Before, inBitmap needs exactly the decoded size and
+ * an inSampleSize of 1, which thumbnails of varying aspect ratio rarely match.
+ * Thread safe.
+ */
+public class ThumbnailDecoder {
+    private static final String TAG = "ThumbnailDecoder";
+    static final int BYTES_PER_PIXEL = 2;
+    //a pooled object at most this many times the need is still handed out
+    static final int MAX_SIZE_MULTIPLE = 4;
+    //BitmapFactory's scratch buffer, what it allocates when none is given
+    static final int TEMP_STORAGE_BYTES = 16 * 1024;
+    //encoded buffers are allocated in steps, so buffers fit many thumbnails
+    private static final int MIN_BUFFER_BYTES = 16 * 1024;
+
+    private final BucketPool<Bitmap> mBitmapPool;
+    private final BucketPool<byte[]> mBufferPool;
+
+    /**
+     * Encoded thumbnail in a pooled buffer, {@link #release(Buffer)} it once decoded.
+     */
+    public static class Buffer {
+        private byte[] mData;
+        private int mLength;
+
+        public byte[] getData() {
+            return mData;
+        }
+
+        public int getLength() {
+            return mLength;
+        }
+    }
+
+    public ThumbnailDecoder(long bitmapPoolBytes, long bufferPoolBytes) {
+        mBitmapPool = new BucketPool<>(bitmapPoolBytes, MAX_SIZE_MULTIPLE, new BucketPool.Sizer<Bitmap>() {
+            @Override
+            @TargetApi(Build.VERSION_CODES.KITKAT)
+            public int sizeOf(Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+        });
+        mBufferPool = new BucketPool<>(bufferPoolBytes, MAX_SIZE_MULTIPLE, new BucketPool.Sizer<byte[]>() {
+            @Override
+            public int sizeOf(byte[] buffer) {
+                return buffer.length;
+            }
+        });
+    }
+
+    /**
+     * Reads {@code in} to its end into a pooled buffer.
+     * @param lengthHint expected length, -1 if unknown
+     */
+    public Buffer read(InputStream in, long lengthHint) throws IOException {
+        Buffer buffer = new Buffer();
+        //one byte more than expected, so the end is seen without growing the buffer
+        buffer.mData = obtainBuffer(lengthHint > 0 && lengthHint < Integer.MAX_VALUE - 1 ? (int) lengthHint + 1 : 0);
+        try {
+            int read;
+            while ((read = in.read(buffer.mData, buffer.mLength, buffer.mData.length - buffer.mLength)) != -1) {
+                buffer.mLength += read;
+                if (buffer.mLength == buffer.mData.length) {
+                    byte[] larger = obtainBuffer(buffer.mData.length * 2);
+                    System.arraycopy(buffer.mData, 0, larger, 0, buffer.mLength);
+                    mBufferPool.put(buffer.mData);
+                    buffer.mData = larger;
+                }
+            }
+        } catch (IOException e) {
+            release(buffer);
+            throw e;
+        }
+        return buffer;
+    }
+
+    public void release(Buffer buffer) {
+        if (buffer.mData != null) {
+            mBufferPool.put(buffer.mData);
+            buffer.mData = null;
+        }
+    }
+
+    /**
+     * Decodes {@code buffer}, downsampled to the size of {@code request}'s view.
+     * @return null if the data is no image
+     */
+    public Bitmap decode(ThumbnailRequest request, Buffer buffer) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(buffer.mData, 0, buffer.mLength, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = request.getSampleSize(options.outWidth, options.outHeight);
+        //BYTES_PER_PIXEL each. Not held in a constant, so the JVM benchmark can load this class
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        //pooled bitmaps have to be mutable
+        options.inMutable = true;
+        byte[] tempStorage = obtainBuffer(TEMP_STORAGE_BYTES);
+        options.inTempStorage = tempStorage;
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                //upper bound, the decoder rounds the sampled size down or up depending on the format
+                int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+                int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+                options.inBitmap = mBitmapPool.get(width * height * BYTES_PER_PIXEL);
+            }
+            try {
+                return BitmapFactory.decodeByteArray(buffer.mData, 0, buffer.mLength, options);
+            } catch (IllegalArgumentException e) {
+                //the pooled bitmap did not fit after all, it is dropped
+                Log.w(TAG, "decode: unable to reuse bitmap", e);
+                options.inBitmap = null;
+                return BitmapFactory.decodeByteArray(buffer.mData, 0, buffer.mLength, options);
+            }
+        } finally {
+            mBufferPool.put(tempStorage);
+        }
+    }
+
+    /**
+     * Hands back a bitmap that is neither shown nor cached anymore, it is decoded into again.
+     */
+    public void release(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && bitmap.isMutable() && !bitmap.isRecycled()) {
+            mBitmapPool.put(bitmap);
+        }
+    }
+
+    /**
+     * Drops everything pooled, eg. when the system is low on memory.
+     */
+    public void clear() {
+        mBitmapPool.clear();
+        mBufferPool.clear();
+    }
+
+    public BucketPool<Bitmap> getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    public BucketPool<byte[]> getBufferPool() {
+        return mBufferPool;
+    }
+
+
+    private byte[] obtainBuffer(int minBytes) {
+        int size = Math.max(minBytes, MIN_BUFFER_BYTES);
+        byte[] buffer = mBufferPool.get(size);
+        return buffer != null ? buffer : new byte[size];
+    }
+}
@@ -0,0 +1,335 @@
+package com.darshan.android.imagedownloader.thumbnails;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.darshan.android.imagedownloader.retrofit.Image;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Shows thumbnails of catalog images in ImageViews.
+ * <p>
+ * Lookup order is memory (decoded bitmaps, bounded by their byte size), then disk (encoded
+ * thumbnails, bounded by a byte budget), then Picsum. Downloading and decoding run on a few
+ * background threads, decoding is downsampled to the size of the view.
+ * A view shows one thumbnail at a time: loading another one into it, or {@link #clear}ing it
+ * when its row is recycled, drops the request that was running for it.
+ * <p>
+ * Bitmaps are counted while they are cached or shown. Once neither is the case they go back to
+ * the {@link ThumbnailDecoder}, which decodes the next thumbnails into them instead of
+ * allocating new ones. Flinging through the list then causes next to no garbage.
+ * Call everything but {@link #getDiskCache()} from the UI-Thread.
+ */
+public class ThumbnailLoader {
+    private static final String TAG = "ThumbnailLoader";
+    private static final int THREADS = 3;
+
+    private final String mBaseUrl;
+    private final OkHttpClient mClient;
+    private final File mDiskCacheDir;
+    private final long mDiskCacheBytes;
+    //opened on first use, by a loader thread at the latest. Null when it could not be opened,
+    //thumbnails are downloaded every time then. Guarded by mDiskCacheLock
+    private final Object mDiskCacheLock = new Object();
+    private DiskLruCache mDiskCache;
+    private boolean mDiskCacheOpened;
+    private final ThumbnailDecoder mDecoder;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final ExecutorService mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    //UI-Thread only. Bitmap each view shows, and how many views and caches use a bitmap
+    private final Map<ImageView, Bitmap> mShownBitmaps = new WeakHashMap<>();
+    private final Map<Bitmap, Integer> mUseCounts = new IdentityHashMap<>();
+
+    /**
+     * Cheap, the disk cache is opened later, see {@link #getDiskCache()}.
+     * @param baseUrl          Picsum base url, ending with a slash
+     * @param diskCacheDir     directory of the {@link DiskLruCache}
+     * @param diskCacheBytes   budget for encoded thumbnails
+     * @param memoryCacheBytes budget for decoded bitmaps
+     */
+    public ThumbnailLoader(String baseUrl, OkHttpClient client, File diskCacheDir, long diskCacheBytes,
+                           ThumbnailDecoder decoder, int memoryCacheBytes) {
+        mBaseUrl = baseUrl;
+        mClient = client;
+        mDiskCacheDir = diskCacheDir;
+        mDiskCacheBytes = diskCacheBytes;
+        mDecoder = decoder;
+        mMemoryCache = new LruCache<String, Bitmap>(memoryCacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldBitmap, Bitmap newBitmap) {
+                //only ever changed from the UI-Thread
+                releaseUse(oldBitmap);
+            }
+        };
+        mExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        //below the UI-Thread, so scrolling keeps its frames
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "ThumbnailLoader-" + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Shows the thumbnail of {@code image} in {@code imageView}, right away if it is in memory.
+     * @param width  width of the view in pixels
+     * @param height height of the view in pixels
+     */
+    public void load(Image image, ImageView imageView, int width, int height) {
+        clear(imageView);
+        if (image.getId() == null) {
+            //no way to ask Picsum for it
+            return;
+        }
+        ThumbnailRequest request = new ThumbnailRequest(image.getId(),
+                image.getWidth() != null ? image.getWidth() : 0,
+                image.getHeight() != null ? image.getHeight() : 0,
+                width, height);
+
+        Bitmap bitmap = mMemoryCache.get(request.getKey());
+        if (bitmap != null) {
+            show(imageView, bitmap);
+            return;
+        }
+        Task task = new Task(request, imageView);
+        imageView.setTag(task);
+        task.mFuture = mExecutor.submit(task);
+    }
+
+    /**
+     * Drops the request running for {@code imageView}, if any, and empties the view.
+     * Its result is never shown.
+     */
+    public void clear(ImageView imageView) {
+        Object tag = imageView.getTag();
+        if (tag instanceof Task) {
+            ((Task) tag).cancel();
+            imageView.setTag(null);
+        }
+        Bitmap shown = mShownBitmaps.remove(imageView);
+        if (shown != null) {
+            imageView.setImageDrawable(null);
+            releaseUse(shown);
+        } else if (imageView.getDrawable() != null) {
+            imageView.setImageDrawable(null);
+        }
+    }
+
+    /**
+     * Opens the disk cache on first call, which lists and sorts its whole directory. Not on the
+     * UI-Thread, a loader thread does it before the first lookup otherwise.
+     * @return null when the cache can't be opened
+     */
+    public DiskLruCache getDiskCache() {
+        synchronized (mDiskCacheLock) {
+            if (!mDiskCacheOpened) {
+                mDiskCacheOpened = true;
+                try {
+                    mDiskCache = DiskLruCache.open(mDiskCacheDir, mDiskCacheBytes);
+                } catch (IOException e) {
+                    //still works, only without keeping thumbnails across scrolling far and restarts
+                    Log.e(TAG, "getDiskCache: unable to open " + mDiskCacheDir, e);
+                }
+            }
+            return mDiskCache;
+        }
+    }
+
+    /**
+     * Gives memory back when the system runs low, see ComponentCallbacks2.
+     */
+    public void trimMemory(int level) {
+        Log.d(TAG, "trimMemory: " + level + ", bitmaps " + mDecoder.getBitmapPool()
+                + ", buffers " + mDecoder.getBufferPool());
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            //in the background and likely to be killed, shown bitmaps stay until their rows go
+            mMemoryCache.evictAll();
+            mDecoder.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mMemoryCache.trimToSize(mMemoryCache.maxSize() / 2);
+            mDecoder.clear();
+        }
+    }
+
+
+    private void show(ImageView imageView, Bitmap bitmap) {
+        imageView.setImageBitmap(bitmap);
+        mShownBitmaps.put(imageView, bitmap);
+        addUse(bitmap);
+    }
+
+    private void addUse(Bitmap bitmap) {
+        Integer count = mUseCounts.get(bitmap);
+        mUseCounts.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    private void releaseUse(Bitmap bitmap) {
+        Integer count = mUseCounts.get(bitmap);
+        if (count == null || count <= 1) {
+            //neither shown nor cached anymore, the next decode may reuse it
+            mUseCounts.remove(bitmap);
+            mDecoder.release(bitmap);
+        } else {
+            mUseCounts.put(bitmap, count - 1);
+        }
+    }
+
+    /* Runs on a loader thread */
+    private Bitmap loadBitmap(Task task) throws IOException {
+        String key = task.mRequest.getKey();
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache != null) {
+            File file = diskCache.get(key);
+            if (file != null) {
+                Bitmap bitmap = decode(task.mRequest, new FileInputStream(file), file.length(), false);
+                if (bitmap != null) {
+                    return bitmap;
+                }
+                //not decodable, download it again
+                diskCache.remove(key);
+            }
+        }
+        if (task.mCancelled) {
+            return null;
+        }
+
+        Call call = mClient.newCall(new Request.Builder().url(task.mRequest.getUrl(mBaseUrl)).build());
+        task.mCall = call;
+        if (task.mCancelled) {
+            return null;
+        }
+        Response response = call.execute();
+        try {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("Unexpected response " + response.code() + " for " + response.request().url());
+            }
+            return decode(task.mRequest, body.byteStream(), body.contentLength(), true);
+        } finally {
+            response.close();
+        }
+    }
+
+    /* Reads in into a pooled buffer and decodes it from there */
+    private Bitmap decode(ThumbnailRequest request, InputStream in, long length, boolean store) throws IOException {
+        ThumbnailDecoder.Buffer buffer;
+        try {
+            buffer = mDecoder.read(in, length);
+        } finally {
+            in.close();
+        }
+        try {
+            Bitmap bitmap = mDecoder.decode(request, buffer);
+            DiskLruCache diskCache = getDiskCache();
+            if (bitmap != null && store && diskCache != null) {
+                try {
+                    diskCache.put(request.getKey(), buffer.getData(), buffer.getLength());
+                } catch (IOException e) {
+                    Log.w(TAG, "decode: unable to cache " + request.getKey(), e);
+                }
+            }
+            return bitmap;
+        } finally {
+            mDecoder.release(buffer);
+        }
+    }
+
+
+    /* One thumbnail for one view, the view's tag while it runs */
+    private class Task implements Runnable {
+        private final ThumbnailRequest mRequest;
+        private final ImageView mImageView;
+        private volatile boolean mCancelled;
+        private volatile Call mCall;
+        private volatile Future<?> mFuture;
+
+        private Task(ThumbnailRequest request, ImageView imageView) {
+            mRequest = request;
+            mImageView = imageView;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            final Bitmap bitmap;
+            try {
+                bitmap = loadBitmap(this);
+            } catch (IOException e) {
+                if (!mCancelled) {
+                    Log.w(TAG, "run: unable to load thumbnail " + mRequest.getKey(), e);
+                }
+                return;
+            }
+            if (bitmap == null) {
+                return;
+            }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled && mImageView.getTag() == Task.this) {
+                        mImageView.setTag(null);
+                        show(mImageView, bitmap);
+                    }
+                    //also kept when the row scrolled off meanwhile, it is likely to come back.
+                    //May evict it right away, it is pooled then unless it is shown
+                    addUse(bitmap);
+                    mMemoryCache.put(mRequest.getKey(), bitmap);
+                }
+            });
+        }
+
+        private void cancel() {
+            mCancelled = true;
+            Call call = mCall;
+            if (call != null) {
+                call.cancel();
+            }
+            Future<?> future = mFuture;
+            if (future != null) {
+                //not started yet, never starts. Running ones stop at the next check
+                future.cancel(false);
+            }
+        }
+    }
+}
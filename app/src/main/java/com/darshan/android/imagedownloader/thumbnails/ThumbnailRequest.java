@@ -0,0 +1,78 @@
+package com.darshan.android.imagedownloader.thumbnails;
+
+/**
+ * Thumbnail of one catalog image at the size of the view showing it.
+ * <p>
+ * Picsum scales images on its side, https://picsum.photos/{width}/{height}?image={id}.
+ * The requested size keeps the aspect ratio of the original and covers the view, so a
+ * center-cropped view is filled without upscaling. Has no Android dependencies.
+ */
+public class ThumbnailRequest {
+    private final int mImageId;
+    private final int mSourceWidth;
+    private final int mSourceHeight;
+    private final int mTargetWidth;
+    private final int mTargetHeight;
+
+    /**
+     * @param sourceWidth  width of the original, 0 if unknown
+     * @param sourceHeight height of the original, 0 if unknown
+     * @param targetWidth  width of the view in pixels
+     * @param targetHeight height of the view in pixels
+     */
+    public ThumbnailRequest(int imageId, int sourceWidth, int sourceHeight, int targetWidth, int targetHeight) {
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            throw new IllegalArgumentException("Target size has to be positive");
+        }
+        mImageId = imageId;
+        mSourceWidth = sourceWidth;
+        mSourceHeight = sourceHeight;
+        mTargetWidth = targetWidth;
+        mTargetHeight = targetHeight;
+    }
+
+    /**
+     * @return key in the memory and the disk cache, one per image and size
+     */
+    public String getKey() {
+        return mImageId + "_" + mTargetWidth + "x" + mTargetHeight;
+    }
+
+    /**
+     * @param baseUrl Picsum base url, ending with a slash
+     */
+    public String getUrl(String baseUrl) {
+        int width = mTargetWidth;
+        int height = mTargetHeight;
+        if (mSourceWidth > 0 && mSourceHeight > 0) {
+            double scale = Math.max((double) mTargetWidth / mSourceWidth, (double) mTargetHeight / mSourceHeight);
+            //never more than the original
+            scale = Math.min(scale, 1.0);
+            width = Math.max(1, (int) Math.ceil(mSourceWidth * scale));
+            height = Math.max(1, (int) Math.ceil(mSourceHeight * scale));
+        }
+        return baseUrl + width + "/" + height + "?image=" + mImageId;
+    }
+
+    public int getTargetWidth() {
+        return mTargetWidth;
+    }
+
+    public int getTargetHeight() {
+        return mTargetHeight;
+    }
+
+    /**
+     * Largest power of two the decoded image can be divided by while still covering the view,
+     * to be used as BitmapFactory.Options.inSampleSize.
+     * @param width  width of the encoded image
+     * @param height height of the encoded image
+     */
+    public int getSampleSize(int width, int height) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= mTargetWidth && height / (sampleSize * 2) >= mTargetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
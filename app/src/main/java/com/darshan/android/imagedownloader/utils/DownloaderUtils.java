@@ -4,12 +4,62 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.ConnectivityManager;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import com.darshan.android.imagedownloader.MainActivity;
+
+import com.darshan.android.imagedownloader.engine.Clock;
+import com.darshan.android.imagedownloader.engine.DownloadBatch;
+import com.darshan.android.imagedownloader.engine.DownloadEngine;
+import com.darshan.android.imagedownloader.engine.DownloadIndex;
+import com.darshan.android.imagedownloader.engine.DownloadQueue;
+import com.darshan.android.imagedownloader.engine.DownloadRequest;
+import com.darshan.android.imagedownloader.engine.JobStore;
+import com.darshan.android.imagedownloader.engine.ProcessingStage;
+import com.darshan.android.imagedownloader.engine.RateLimiter;
+import com.darshan.android.imagedownloader.engine.RetryPolicy;
+import com.darshan.android.imagedownloader.engine.TransferStage;
+import com.darshan.android.imagedownloader.metrics.AndroidTracer;
+import com.darshan.android.imagedownloader.metrics.Metrics;
+import com.darshan.android.imagedownloader.metrics.StartupTrace;
+import com.darshan.android.imagedownloader.network.NetworkModule;
+import com.darshan.android.imagedownloader.processing.ImageProcessor;
+import com.darshan.android.imagedownloader.retrofit.CatalogRefresh;
+import com.darshan.android.imagedownloader.retrofit.CatalogSnapshot;
+import com.darshan.android.imagedownloader.retrofit.Image;
+import com.darshan.android.imagedownloader.service.BatchNotification;
+import com.darshan.android.imagedownloader.service.DownloadScheduler;
+import com.darshan.android.imagedownloader.thumbnails.ThumbnailDecoder;
+import com.darshan.android.imagedownloader.thumbnails.ThumbnailLoader;
+import com.darshan.android.imagedownloader.variants.ImageVariant;
+import com.darshan.android.imagedownloader.variants.Resolution;
+import com.darshan.android.imagedownloader.variants.VariantSavings;
+import com.google.gson.Gson;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 
 
 public class DownloaderUtils {
@@ -19,6 +69,103 @@ public class DownloaderUtils {
     private static final String NOTIFICATION_CHANNEL_ID = "downloader_channel";
     //Channel Name
     private static final String CHANNEL_NAME = "Downloader Notification Channel";
+    //All download notifications are bundled under this group
+    public static final String NOTIFICATION_GROUP_DOWNLOADS = "downloads";
+
+    //Downloads running at the same time, across all hosts and against a single host.
+    //Within these the engine picks as many as the network carries, at least MIN_CONCURRENT_DOWNLOADS
+    private static final int MAX_CONCURRENT_DOWNLOADS = 8;
+    private static final int MAX_DOWNLOADS_PER_HOST = 8;
+    private static final int MIN_CONCURRENT_DOWNLOADS = 1;
+
+    //Originals at least this large are fetched over several connections
+    private static final long SEGMENTED_DOWNLOAD_MIN_PIXELS = 8000000L;
+    private static final int DOWNLOAD_SEGMENTS = 4;
+
+    //Unfinished downloads, in the app's private storage
+    private static final String DOWNLOAD_JOURNAL_FILE = "downloads.journal";
+    //Images downloaded so far, so they are not downloaded twice
+    private static final String DOWNLOAD_INDEX_FILE = "downloads.index";
+
+    //Transient failures are retried by the engine, 2s after the first failure, at most a minute apart
+    private static final int DOWNLOAD_MAX_ATTEMPTS = 6;
+    private static final long RETRY_BASE_DELAY_MS = 2000;
+    private static final long RETRY_MAX_DELAY_MS = 60000;
+    //A host failing 5 times in a row gets a 30s break before a single trial download
+    private static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+    private static final long CIRCUIT_OPEN_MS = 30000;
+    //On a metered network downloads leave room for the catalog and the rest of the phone
+    private static final long METERED_BANDWIDTH_LIMIT = 256 * 1024;
+
+    //downloads are re-encoded at this quality when that makes them smaller
+    private static final int PROCESSING_JPEG_QUALITY = 85;
+    //a few files per processing thread, more and the download workers wait
+    private static final int PROCESSING_QUEUE_PER_THREAD = 4;
+    //share of the heap all processing threads together decode into
+    private static final int PROCESSING_DECODE_HEAP_FRACTION = 4;
+    private static final String GALLERY_THUMBNAIL_DIR = "gallery-thumbnails";
+
+    //"Download all" updates its notification at most once a second. The engine already retried
+    //a failed image, the batch doesn't try it again on top
+    private static final long BATCH_UPDATE_INTERVAL_MS = 1000;
+    private static final int BATCH_MAX_ATTEMPTS = 1;
+
+    //Thumbnails: encoded ones in the cache dir, decoded ones take up to 1/8 of the heap
+    private static final String THUMBNAIL_CACHE_DIR = "thumbnails";
+    private static final long THUMBNAIL_DISK_CACHE_BYTES = 20L * 1024 * 1024;
+    private static final int THUMBNAIL_MEMORY_CACHE_FRACTION = 8;
+    //released thumbnail bitmaps and encoded buffers kept for reuse
+    private static final long THUMBNAIL_BITMAP_POOL_BYTES = 4L * 1024 * 1024;
+    private static final long THUMBNAIL_BUFFER_POOL_BYTES = 512L * 1024;
+
+    //Network: the pool keeps a connection per concurrent download. Picsum images come from a
+    //handful of hosts, thumbnails and catalog pages run at most 6 at a time against one of them
+    private static final int HTTP_MAX_IDLE_CONNECTIONS = MAX_CONCURRENT_DOWNLOADS;
+    private static final long HTTP_KEEP_ALIVE_MS = 2 * 60 * 1000;
+    private static final int HTTP_MAX_REQUESTS = 32;
+    private static final int HTTP_MAX_REQUESTS_PER_HOST = 6;
+    private static final long HTTP_CONNECT_TIMEOUT_MS = 15000;
+    private static final long HTTP_READ_TIMEOUT_MS = 30000;
+
+    //Catalog: http responses in the cache dir for revalidation, the last catalog in the files dir
+    //so the list shows up without network
+    private static final String CATALOG_HTTP_CACHE_DIR = "catalog-http";
+    private static final long CATALOG_HTTP_CACHE_BYTES = 10L * 1024 * 1024;
+    private static final String CATALOG_SNAPSHOT_FILE = "catalog.index";
+    //a process living longer than this refreshes the catalog again for the next list
+    private static final long CATALOG_REFRESH_INTERVAL_MS = 10 * 60 * 1000;
+
+    //download size the user picked, a Resolution name
+    private static final String PREF_DOWNLOAD_RESOLUTION = "download_resolution";
+
+    //every singleton has a lock of its own, one that takes long to build (journal, index) doesn't
+    //hold up a UI-Thread that only wants another one
+    private static final Object METRICS_LOCK = new Object();
+    private static final Object NETWORK_LOCK = new Object();
+    private static final Object DOWNLOAD_ENGINE_LOCK = new Object();
+    private static final Object DOWNLOAD_QUEUE_LOCK = new Object();
+    private static final Object DOWNLOAD_QUEUE_EXECUTOR_LOCK = new Object();
+    private static final Object BATCH_DOWNLOAD_LOCK = new Object();
+    private static final Object THUMBNAIL_LOADER_LOCK = new Object();
+    private static final Object CATALOG_CLIENT_LOCK = new Object();
+    private static final Object CATALOG_SNAPSHOT_LOCK = new Object();
+    private static final Object CATALOG_REFRESH_LOCK = new Object();
+    private static final Object STARTUP_TRACE_LOCK = new Object();
+    private static final Object VARIANT_SAVINGS_LOCK = new Object();
+
+    private static Metrics sMetrics;
+    private static NetworkModule sNetworkModule;
+    private static DownloadEngine sDownloadEngine;
+    private static DownloadQueue sDownloadQueue;
+    private static ExecutorService sDownloadQueueExecutor;
+    private static DownloadBatch sBatchDownload;
+    private static ThumbnailLoader sThumbnailLoader;
+    private static OkHttpClient sCatalogClient;
+    private static CatalogSnapshot sCatalogSnapshot;
+    private static CatalogRefresh sCatalogRefresh;
+    private static long sCatalogRefreshCreatedAt;
+    private static StartupTrace sStartupTrace;
+    private static VariantSavings sVariantSavings;
 
 
     /* Checks if external storage is available for read and write */
@@ -60,6 +207,419 @@ public class DownloaderUtils {
     }
 
 
+    /**
+     * App wide metrics of the download and catalog paths, with their sections in system traces.
+     * @return registry created on first use
+     */
+    public static Metrics getMetrics() {
+        synchronized (METRICS_LOCK) {
+            if (sMetrics == null) {
+                sMetrics = new Metrics();
+                sMetrics.setTracer(new AndroidTracer());
+            }
+            return sMetrics;
+        }
+    }
+
+
+    /**
+     * App wide HTTP stack, every client of the app is this one's or derived from it.
+     * @return module created on first use
+     */
+    public static NetworkModule getNetworkModule() {
+        synchronized (NETWORK_LOCK) {
+            if (sNetworkModule == null) {
+                sNetworkModule = new NetworkModule.Builder()
+                        .connectionPool(HTTP_MAX_IDLE_CONNECTIONS, HTTP_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS)
+                        .maxRequests(HTTP_MAX_REQUESTS, HTTP_MAX_REQUESTS_PER_HOST)
+                        .connectTimeout(HTTP_CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                        .readTimeout(HTTP_READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                        .metrics(getMetrics())
+                        .build();
+            }
+            return sNetworkModule;
+        }
+    }
+
+
+    /**
+     * App wide download engine, created on first use.
+     * @return engine shared by every download started from the UI
+     */
+    public static DownloadEngine getDownloadEngine(Context context) {
+        synchronized (DOWNLOAD_ENGINE_LOCK) {
+            if (sDownloadEngine == null) {
+                File indexFile = new File(context.getApplicationContext().getFilesDir(), DOWNLOAD_INDEX_FILE);
+                DownloadIndex downloadIndex = null;
+                try {
+                    downloadIndex = DownloadIndex.open(indexFile);
+                } catch (IOException e) {
+                    //downloads still work, they just can't be skipped or kept apart
+                    Log.e(TAG, "getDownloadEngine: unable to open " + indexFile, e);
+                }
+                ImageProcessor imageProcessor = createImageProcessor(context);
+                sDownloadEngine = new DownloadEngine.Builder()
+                        //HTTP/1.1 only: over HTTP/2 every download, segment and probe would be a
+                        //stream on one connection. Pool, dispatcher and TLS sessions stay shared
+                        .client(getNetworkModule().getClient().newBuilder()
+                                .protocols(Collections.singletonList(Protocol.HTTP_1_1))
+                                .build())
+                        .metrics(getMetrics())
+                        .maxConcurrentDownloads(MAX_CONCURRENT_DOWNLOADS)
+                        .maxDownloadsPerHost(MAX_DOWNLOADS_PER_HOST)
+                        .adaptiveConcurrency(MIN_CONCURRENT_DOWNLOADS)
+                        //images land in the public gallery, make sure they survive a power cut
+                        .fsyncPolicy(TransferStage.FsyncPolicy.ON_COMPLETE)
+                        .downloadIndex(downloadIndex)
+                        //a throttling Picsum or a network blip doesn't fail the whole batch
+                        .retryPolicy(new RetryPolicy(DOWNLOAD_MAX_ATTEMPTS,
+                                RETRY_BASE_DELAY_MS, RETRY_MAX_DELAY_MS, TimeUnit.MILLISECONDS))
+                        .circuitBreaker(CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_OPEN_MS, TimeUnit.MILLISECONDS)
+                        //decoding and encoding off the download workers, one thread per core
+                        .postProcessor(imageProcessor, ProcessingStage.defaultThreads(),
+                                ProcessingStage.defaultThreads() * PROCESSING_QUEUE_PER_THREAD)
+                        .build();
+                //scans the images into the gallery and logs what failed
+                sDownloadEngine.getProcessingStage().addListener(imageProcessor);
+            }
+            return sDownloadEngine;
+        }
+    }
+
+
+    /**
+     * @return the download engine, null when nothing needed it yet
+     */
+    public static DownloadEngine peekDownloadEngine() {
+        synchronized (DOWNLOAD_ENGINE_LOCK) {
+            return sDownloadEngine;
+        }
+    }
+
+
+    private static ImageProcessor createImageProcessor(Context context) {
+        File thumbnailDir = new File(context.getApplicationContext().getFilesDir(), GALLERY_THUMBNAIL_DIR);
+        return new ImageProcessor(context, thumbnailDir, Bitmap.CompressFormat.JPEG, PROCESSING_JPEG_QUALITY,
+                Runtime.getRuntime().maxMemory() / PROCESSING_DECODE_HEAP_FRACTION);
+    }
+
+
+    /**
+     * App wide persistent download queue, restored from its journal on first use. That reads
+     * and rewrites files, call it on {@link #getDownloadQueueExecutor()}.
+     * Start {@link DownloadScheduler} after enqueueing, the service keeps the downloads running.
+     * @return queue in front of {@link #getDownloadEngine(Context)}
+     */
+    public static DownloadQueue getDownloadQueue(Context context) {
+        synchronized (DOWNLOAD_QUEUE_LOCK) {
+            if (sDownloadQueue == null) {
+                File journalFile = new File(context.getApplicationContext().getFilesDir(), DOWNLOAD_JOURNAL_FILE);
+                JobStore jobStore;
+                try {
+                    jobStore = JobStore.open(journalFile);
+                } catch (IOException e) {
+                    //internal storage not readable or writable, downloads still work within this process
+                    Log.e(TAG, "getDownloadQueue: unable to open " + journalFile + ", no resumable downloads", e);
+                    jobStore = JobStore.inMemory();
+                }
+                sDownloadQueue = new DownloadQueue(getDownloadEngine(context), jobStore,
+                        DownloadScheduler.currentDeviceState(context));
+                sDownloadQueue.addListener(getVariantSavings());
+            }
+            return sDownloadQueue;
+        }
+    }
+
+
+    /**
+     * Thread for everything that writes the queue's journal: restoring, enqueueing, draining.
+     * One thread, so downloads reach the queue in the order they were asked for.
+     * @return executor created on first use
+     */
+    public static ExecutorService getDownloadQueueExecutor() {
+        synchronized (DOWNLOAD_QUEUE_EXECUTOR_LOCK) {
+            if (sDownloadQueueExecutor == null) {
+                sDownloadQueueExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "DownloadQueue");
+                    }
+                });
+            }
+            return sDownloadQueueExecutor;
+        }
+    }
+
+
+    /**
+     * Caps the bandwidth of all downloads while the network is metered, lifts the cap otherwise.
+     */
+    public static void applyBandwidthLimit(Context context, DownloadQueue.DeviceState deviceState) {
+        getDownloadEngine(context).getBandwidthLimiter().setBytesPerSecond(
+                deviceState.isNetworkUnmetered() ? RateLimiter.UNLIMITED : METERED_BANDWIDTH_LIMIT);
+    }
+
+
+    /**
+     * Client for /list requests, with a disk cache so refreshing the catalog is a conditional
+     * request. OkHttp allows only one cache per directory, hence one client for the app.
+     * Shares the connections of {@link #getNetworkModule()}.
+     */
+    public static OkHttpClient getCatalogClient(Context context) {
+        synchronized (CATALOG_CLIENT_LOCK) {
+            if (sCatalogClient == null) {
+                File cacheDir = new File(context.getApplicationContext().getCacheDir(), CATALOG_HTTP_CACHE_DIR);
+                sCatalogClient = getNetworkModule().getClient().newBuilder()
+                        .cache(new Cache(cacheDir, CATALOG_HTTP_CACHE_BYTES))
+                        .build();
+            }
+            return sCatalogClient;
+        }
+    }
+
+    /**
+     * App wide, so a refresh replacing the snapshot drops the index the list reads from.
+     * @return snapshot created on first use
+     */
+    public static CatalogSnapshot getCatalogSnapshot(Context context) {
+        synchronized (CATALOG_SNAPSHOT_LOCK) {
+            if (sCatalogSnapshot == null) {
+                sCatalogSnapshot = new CatalogSnapshot(new File(context.getApplicationContext().getFilesDir(),
+                        CATALOG_SNAPSHOT_FILE), new Gson(), getMetrics());
+            }
+            return sCatalogSnapshot;
+        }
+    }
+
+    /**
+     * Refresh of the catalog snapshot for the list about to be shown. The one prefetched at
+     * process start while it is recent, else a new one that the list starts.
+     */
+    public static CatalogRefresh getCatalogRefresh(Context context) {
+        synchronized (CATALOG_REFRESH_LOCK) {
+            long now = SystemClock.elapsedRealtime();
+            if (sCatalogRefresh == null
+                    || (sCatalogRefresh.isDone() && now - sCatalogRefreshCreatedAt > CATALOG_REFRESH_INTERVAL_MS)) {
+                sCatalogRefresh = new CatalogRefresh(MainActivity.BASE_URL, getCatalogClient(context),
+                        getCatalogSnapshot(context));
+                sCatalogRefreshCreatedAt = now;
+            }
+            return sCatalogRefresh;
+        }
+    }
+
+    /**
+     * Cold start fast path, runs in background right as the process starts. Starts the catalog
+     * refresh, /list needs no permission and no UI, and builds what the first screen needs
+     * meanwhile: HTTP stack, catalog index and thumbnail caches.
+     */
+    public static void prefetchCatalog(Context context) {
+        Metrics metrics = getMetrics();
+        metrics.getTracer().beginSection("startup.prefetch");
+        try {
+            CatalogRefresh refresh = getCatalogRefresh(context);
+            refresh.addListener(new CatalogRefresh.Listener() {
+                @Override
+                public void onRefreshed(boolean changed) {
+                    getStartupTrace().mark(StartupTrace.CATALOG_REFRESHED);
+                }
+
+                @Override
+                public void onRefreshFailed(IOException e) {
+                    //the list tells the user, if it has nothing to show
+                }
+            });
+            refresh.start(AsyncTask.THREAD_POOL_EXECUTOR);
+            try {
+                //maps the index, the first page is then read without touching the disk
+                getCatalogSnapshot(context).open();
+            } catch (IOException e) {
+                //none yet or broken, the refresh writes a new one
+            }
+            //the disk scan, outside of any lock the UI-Thread waits for
+            getThumbnailLoader(context).getDiskCache();
+            getStartupTrace().mark(StartupTrace.THUMBNAIL_CACHE_OPENED);
+        } finally {
+            metrics.getTracer().endSection();
+        }
+    }
+
+    /**
+     * Milestones of this start of the process, in {@link #getMetrics()} as well.
+     * @return trace created on first use, by the Application at the latest
+     */
+    public static StartupTrace getStartupTrace() {
+        synchronized (STARTUP_TRACE_LOCK) {
+            if (sStartupTrace == null) {
+                long sinceProcessStartMillis = 0;
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    sinceProcessStartMillis = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+                }
+                //below N the first call, from Application.onCreate, stands in for the process start
+                sStartupTrace = new StartupTrace(getMetrics(),
+                        System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(sinceProcessStartMillis));
+            }
+            return sStartupTrace;
+        }
+    }
+
+
+    /**
+     * App wide thumbnail loader, its caches are shared by every list showing images.
+     * @return loader created on first use
+     */
+    public static ThumbnailLoader getThumbnailLoader(Context context) {
+        synchronized (THUMBNAIL_LOADER_LOCK) {
+            if (sThumbnailLoader == null) {
+                File cacheDir = new File(context.getApplicationContext().getCacheDir(), THUMBNAIL_CACHE_DIR);
+                int memoryCacheBytes = (int) (Runtime.getRuntime().maxMemory() / THUMBNAIL_MEMORY_CACHE_FRACTION);
+                ThumbnailDecoder decoder = new ThumbnailDecoder(THUMBNAIL_BITMAP_POOL_BYTES,
+                        THUMBNAIL_BUFFER_POOL_BYTES);
+                //opens its disk cache later, the UI-Thread gets the loader without touching the disk
+                sThumbnailLoader = new ThumbnailLoader(MainActivity.BASE_URL, getNetworkModule().getClient(),
+                        cacheDir, THUMBNAIL_DISK_CACHE_BYTES, decoder, memoryCacheBytes);
+            }
+            return sThumbnailLoader;
+        }
+    }
+
+
+    /**
+     * Request for downloading an image into Pictures/Picsum, at the size
+     * {@link #getDownloadVariant} picks.
+     * @param variant rendition to download, also the request's tag
+     * @param priority LOW for bulk downloads, so images the user taps on go first
+     */
+    public static DownloadRequest getDownloadRequest(ImageVariant variant, DownloadRequest.Priority priority) {
+        return new DownloadRequest.Builder()
+                .url(variant.getUrl(MainActivity.BASE_URL))
+                .targetFile(new File(getImageDirectory(), variant.getFilename()))
+                .segments(getDownloadSegments(variant))
+                .priority(priority)
+                .contentKey(variant.getContentKey())
+                .tag(variant)
+                .build();
+    }
+
+
+    /**
+     * Picsum id and size identify an image, its file name alone does not.
+     * @return content key for the DownloadRequest of the image's original, null when it lacks an id
+     */
+    public static String getContentKey(Image image) {
+        return ImageVariant.original(image).getContentKey();
+    }
+
+
+    public static Resolution getDownloadResolution(Context context) {
+        return Resolution.fromName(PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(PREF_DOWNLOAD_RESOLUTION, null));
+    }
+
+    public static void setDownloadResolution(Context context, Resolution resolution) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(PREF_DOWNLOAD_RESOLUTION, resolution.name())
+                .apply();
+    }
+
+
+    /**
+     * Rendition of the image to download, as the user's {@link Resolution} picks it for this
+     * screen and the current network.
+     */
+    public static ImageVariant getDownloadVariant(Context context, Image image) {
+        return getDownloadVariants(context, Collections.singletonList(image)).get(0);
+    }
+
+    private static List<ImageVariant> getDownloadVariants(Context context, List<Image> images) {
+        Resolution resolution = getDownloadResolution(context);
+        DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        //unknown counts as metered
+        boolean metered = connectivityManager == null || connectivityManager.isActiveNetworkMetered();
+        List<ImageVariant> variants = new ArrayList<>(images.size());
+        for (Image image : images) {
+            variants.add(resolution.select(image, displayMetrics.widthPixels, displayMetrics.heightPixels,
+                    metered));
+        }
+        return variants;
+    }
+
+
+    /**
+     * What downloading smaller renditions saved so far, counts every download of the queue.
+     * @return app wide savings created on first use
+     */
+    public static VariantSavings getVariantSavings() {
+        synchronized (VARIANT_SAVINGS_LOCK) {
+            if (sVariantSavings == null) {
+                sVariantSavings = new VariantSavings(getMetrics());
+            }
+            return sVariantSavings;
+        }
+    }
+
+
+    /**
+     * Downloads all the given images as one batch with a single notification, which reports its
+     * progress. Enqueueing hundreds of images writes as many journal lines, so the batch is
+     * built and started on {@link #getDownloadQueueExecutor()}.
+     * Starts {@link DownloadScheduler} so the batch keeps running in the background.
+     */
+    public static void startBatchDownload(Context context, List<Image> images) {
+        final Context appContext = context.getApplicationContext();
+        //the list may change while the executor gets to it
+        final List<Image> batchImages = new ArrayList<>(images);
+        getDownloadQueueExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                //the requests check the Pictures directory, off the UI-Thread as well
+                List<DownloadRequest> requests = new ArrayList<>(batchImages.size());
+                for (ImageVariant variant : getDownloadVariants(appContext, batchImages)) {
+                    requests.add(getDownloadRequest(variant, DownloadRequest.Priority.LOW));
+                }
+                synchronized (BATCH_DOWNLOAD_LOCK) {
+                    sBatchDownload = new DownloadBatch(getDownloadQueue(appContext), requests,
+                            new BatchNotification(appContext), Clock.SYSTEM, BATCH_UPDATE_INTERVAL_MS,
+                            BATCH_MAX_ATTEMPTS);
+                    sBatchDownload.start();
+                }
+            }
+        });
+        //its drain runs on the same executor, after the batch is enqueued
+        DownloadScheduler.start(appContext);
+    }
+
+
+    /**
+     * Retries the images of the last batch that failed. Enqueues them, call it on
+     * {@link #getDownloadQueueExecutor()}.
+     * @return number of images downloaded again, 0 when there is no batch in this process
+     */
+    public static int retryFailedBatchDownloads() {
+        synchronized (BATCH_DOWNLOAD_LOCK) {
+            return sBatchDownload != null ? sBatchDownload.retryFailed() : 0;
+        }
+    }
+
+
+    /**
+     * Large images download faster over several connections, small ones are not worth the
+     * extra range probe and keep the ability to resume.
+     * @param image image about to be downloaded as the original
+     * @return number of segments for its DownloadRequest
+     */
+    public static int getDownloadSegments(Image image) {
+        return getDownloadSegments(ImageVariant.original(image));
+    }
+
+    public static int getDownloadSegments(ImageVariant variant) {
+        long pixels = (long) variant.getWidth() * variant.getHeight();
+        return pixels >= SEGMENTED_DOWNLOAD_MIN_PIXELS ? DOWNLOAD_SEGMENTS : 1;
+    }
+
+
     public static NotificationCompat.Builder getNotificationBuilder(Context context) {
         createNotificationChannel(context);
         NotificationCompat.Builder builder = new NotificationCompat.Builder(context, NOTIFICATION_CHANNEL_ID);
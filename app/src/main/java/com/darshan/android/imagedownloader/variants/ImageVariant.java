@@ -0,0 +1,151 @@
+package com.darshan.android.imagedownloader.variants;
+
+import com.darshan.android.imagedownloader.retrofit.Image;
+
+/**
+ * The rendition of a catalog image a download fetches: the original through post_url +
+ * "/download", or a smaller one Picsum scales on its side, {base}/{width}/{height}?image={id},
+ * with the aspect ratio of the original. Images without id or size only come as the original.
+ * Never larger than the original. Has no Android dependencies.
+ */
+public class ImageVariant {
+    private final Image mImage;
+    private final int mWidth;
+    private final int mHeight;
+    private final boolean mOriginal;
+
+    private ImageVariant(Image image, int width, int height, boolean original) {
+        mImage = image;
+        mWidth = width;
+        mHeight = height;
+        mOriginal = original;
+    }
+
+    public static ImageVariant original(Image image) {
+        return new ImageVariant(image, size(image.getWidth()), size(image.getHeight()), true);
+    }
+
+    /**
+     * @param maxLongEdge pixels of the longer side at most
+     */
+    public static ImageVariant fitLongEdge(Image image, int maxLongEdge) {
+        if (maxLongEdge <= 0) {
+            throw new IllegalArgumentException("maxLongEdge " + maxLongEdge);
+        }
+        int width = size(image.getWidth());
+        int height = size(image.getHeight());
+        return scaled(image, (double) maxLongEdge / Math.max(width, height));
+    }
+
+    /**
+     * Covers a screen of the given size in either orientation, as a wallpaper would.
+     */
+    public static ImageVariant coverScreen(Image image, int screenWidth, int screenHeight) {
+        if (screenWidth <= 0 || screenHeight <= 0) {
+            throw new IllegalArgumentException("screen " + screenWidth + "x" + screenHeight);
+        }
+        int width = size(image.getWidth());
+        int height = size(image.getHeight());
+        //long edge onto long edge, short onto short
+        double scale = Math.max((double) Math.max(screenWidth, screenHeight) / Math.max(width, height),
+                (double) Math.min(screenWidth, screenHeight) / Math.min(width, height));
+        return scaled(image, scale);
+    }
+
+    private static ImageVariant scaled(Image image, double scale) {
+        int width = size(image.getWidth());
+        int height = size(image.getHeight());
+        if (image.getId() == null || width == 0 || height == 0 || scale >= 1) {
+            return original(image);
+        }
+        return new ImageVariant(image, Math.max(1, (int) Math.round(width * scale)),
+                Math.max(1, (int) Math.round(height * scale)), false);
+    }
+
+    private static int size(Integer size) {
+        return size != null && size > 0 ? size : 0;
+    }
+
+
+    public Image getImage() {
+        return mImage;
+    }
+
+    /**
+     * @return width in pixels, 0 for an original of unknown size
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public boolean isOriginal() {
+        return mOriginal;
+    }
+
+    /**
+     * @param baseUrl Picsum base url, ending with a slash
+     */
+    public String getUrl(String baseUrl) {
+        if (mOriginal) {
+            return mImage.getPostUrl() + "/download";
+        }
+        return baseUrl + mWidth + "/" + mHeight + "?image=" + mImage.getId();
+    }
+
+    /**
+     * @return the image's file name, with the size before the extension unless original, so
+     * renditions of one image don't overwrite each other
+     */
+    public String getFilename() {
+        String filename = mImage.getFilename();
+        if (mOriginal || filename == null) {
+            return filename;
+        }
+        String suffix = "_" + mWidth + "x" + mHeight;
+        int extension = filename.lastIndexOf('.');
+        return extension > 0
+                ? filename.substring(0, extension) + suffix + filename.substring(extension)
+                : filename + suffix;
+    }
+
+    /**
+     * Picsum id and size identify a rendition, an original keeps the key it always had.
+     * @return content key for the DownloadRequest, null when the image lacks an id
+     */
+    public String getContentKey() {
+        if (mImage.getId() == null) {
+            return null;
+        }
+        return "picsum-" + mImage.getId() + "-" + mImage.getWidth() + "x" + mImage.getHeight()
+                + (mOriginal ? "" : "@" + mWidth + "x" + mHeight);
+    }
+
+    /**
+     * @return pixels of this rendition per pixel of the original, 1 for the original
+     */
+    public double getPixelShare() {
+        if (mOriginal) {
+            return 1;
+        }
+        return (double) mWidth * mHeight / ((double) mImage.getWidth() * mImage.getHeight());
+    }
+
+    /**
+     * Encoded size scales with the pixel count, close enough for JPEGs of one photo.
+     * @param bytes downloaded for this rendition
+     * @return estimated size of the original
+     */
+    public long estimateOriginalBytes(long bytes) {
+        return Math.round(bytes / getPixelShare());
+    }
+
+    @Override
+    public String toString() {
+        return "ImageVariant{id=" + mImage.getId() + ", " + mWidth + "x" + mHeight
+                + (mOriginal ? ", original" : "") + '}';
+    }
+}
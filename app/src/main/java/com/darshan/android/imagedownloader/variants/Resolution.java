@@ -0,0 +1,55 @@
+package com.darshan.android.imagedownloader.variants;
+
+import com.darshan.android.imagedownloader.retrofit.Image;
+
+/**
+ * Download size presets the user picks from. Picks the {@link ImageVariant} of an image given
+ * the screen it will be looked at on and the network it comes over.
+ */
+public enum Resolution {
+    /* The original on unmetered networks, the screen size on metered ones */
+    AUTOMATIC(0),
+    ORIGINAL(0),
+    SCREEN(0),
+    UHD(3840),
+    FULL_HD(1920),
+    HD(1280);
+
+    private final int mMaxLongEdge;
+
+    Resolution(int maxLongEdge) {
+        mMaxLongEdge = maxLongEdge;
+    }
+
+    /**
+     * @param screenWidth  in pixels
+     * @param screenHeight in pixels
+     * @param metered      whether the network the download would run over is metered
+     */
+    public ImageVariant select(Image image, int screenWidth, int screenHeight, boolean metered) {
+        switch (this) {
+            case AUTOMATIC:
+                return metered
+                        ? ImageVariant.coverScreen(image, screenWidth, screenHeight)
+                        : ImageVariant.original(image);
+            case ORIGINAL:
+                return ImageVariant.original(image);
+            case SCREEN:
+                return ImageVariant.coverScreen(image, screenWidth, screenHeight);
+            default:
+                return ImageVariant.fitLongEdge(image, mMaxLongEdge);
+        }
+    }
+
+    /**
+     * @return the preset of that name, AUTOMATIC for unknown or null names
+     */
+    public static Resolution fromName(String name) {
+        for (Resolution resolution : values()) {
+            if (resolution.name().equals(name)) {
+                return resolution;
+            }
+        }
+        return AUTOMATIC;
+    }
+}
@@ -0,0 +1,81 @@
+package com.darshan.android.imagedownloader.variants;
+
+import com.darshan.android.imagedownloader.engine.DownloadJob;
+import com.darshan.android.imagedownloader.engine.DownloadListener;
+import com.darshan.android.imagedownloader.metrics.Metrics;
+import com.darshan.android.imagedownloader.metrics.StripedCounter;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Counts what downloading smaller renditions saved. Listens to downloads whose request is
+ * tagged with their {@link ImageVariant}, eg. all of a DownloadQueue, and records into the
+ * {@link Metrics} given, as "download.variant.*". Originals count towards neither side.
+ */
+public class VariantSavings implements DownloadListener {
+    public static final String DOWNLOADED = "download.variant.count";
+    public static final String BYTES = "download.variant.bytes";
+    public static final String ORIGINAL_BYTES = "download.variant.original_bytes";
+
+    private final StripedCounter mDownloaded;
+    private final StripedCounter mBytes;
+    private final StripedCounter mOriginalBytes;
+
+    public VariantSavings(Metrics metrics) {
+        mDownloaded = metrics.counter(DOWNLOADED);
+        mBytes = metrics.counter(BYTES);
+        mOriginalBytes = metrics.counter(ORIGINAL_BYTES);
+    }
+
+    @Override
+    public void onStart(DownloadJob job) {
+    }
+
+    @Override
+    public void onProgress(DownloadJob job, long bytesDownloaded, long totalBytes) {
+    }
+
+    @Override
+    public void onComplete(DownloadJob job, File file) {
+        Object tag = job.getRequest().getTag();
+        if (!(tag instanceof ImageVariant) || ((ImageVariant) tag).isOriginal()) {
+            return;
+        }
+        long bytes = file.length();
+        mDownloaded.increment();
+        mBytes.add(bytes);
+        mOriginalBytes.add(((ImageVariant) tag).estimateOriginalBytes(bytes));
+    }
+
+    @Override
+    public void onFailure(DownloadJob job, IOException e) {
+    }
+
+    @Override
+    public void onCancelled(DownloadJob job) {
+    }
+
+    public long getDownloadCount() {
+        return mDownloaded.sum();
+    }
+
+    public long getBytes() {
+        return mBytes.sum();
+    }
+
+    /**
+     * @return estimate of the bytes the originals would have taken on top
+     */
+    public long getSavedBytes() {
+        return Math.max(0, mOriginalBytes.sum() - mBytes.sum());
+    }
+
+    @Override
+    public String toString() {
+        return "VariantSavings{downloads=" + getDownloadCount()
+                + ", bytes=" + getBytes()
+                + ", savedBytes=" + getSavedBytes()
+                + '}';
+    }
+}
@@ -0,0 +1,102 @@
+package com.darshan.android.imagedownloader.engine;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+    private static final String HOST = "picsum.photos";
+
+    private FakeClock mClock;
+    private CircuitBreaker mBreaker;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock();
+        mBreaker = new CircuitBreaker(mClock, 3, 1000);
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        mBreaker.onFailure(HOST, -1);
+        mBreaker.onFailure(HOST, -1);
+        assertTrue(mBreaker.allowRequest(HOST));
+
+        mBreaker.onFailure(HOST, -1);
+
+        assertEquals(CircuitBreaker.State.OPEN, mBreaker.getState(HOST));
+        assertFalse(mBreaker.allowRequest(HOST));
+        assertEquals(1000, mBreaker.getRetryAtMillis(HOST));
+        //other hosts are not affected
+        assertTrue(mBreaker.allowRequest("example.com"));
+    }
+
+    @Test
+    public void successInBetweenResetsTheCount() {
+        mBreaker.onFailure(HOST, -1);
+        mBreaker.onFailure(HOST, -1);
+        mBreaker.onSuccess(HOST);
+        mBreaker.onFailure(HOST, -1);
+        mBreaker.onFailure(HOST, -1);
+
+        assertEquals(CircuitBreaker.State.CLOSED, mBreaker.getState(HOST));
+    }
+
+    @Test
+    public void singleTrialAfterOpenTime() {
+        trip();
+        mClock.advance(1000);
+
+        assertTrue(mBreaker.allowRequest(HOST));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, mBreaker.getState(HOST));
+        //everything else waits for the trial
+        assertFalse(mBreaker.allowRequest(HOST));
+
+        mBreaker.onSuccess(HOST);
+        assertTrue(mBreaker.allowRequest(HOST));
+        assertTrue(mBreaker.allowRequest(HOST));
+    }
+
+    @Test
+    public void failedTrialsDoubleTheOpenTime() {
+        trip();
+        for (int multiplier = 2; multiplier <= CircuitBreaker.MAX_OPEN_MULTIPLIER * 2; multiplier *= 2) {
+            mClock.advance(mBreaker.getRetryAtMillis(HOST) - mClock.nowMillis());
+            assertTrue(mBreaker.allowRequest(HOST));
+            mBreaker.onFailure(HOST, -1);
+
+            long expected = 1000L * Math.min(multiplier, CircuitBreaker.MAX_OPEN_MULTIPLIER);
+            assertEquals(mClock.nowMillis() + expected, mBreaker.getRetryAtMillis(HOST));
+        }
+    }
+
+    @Test
+    public void retryAfterKeepsTheCircuitOpenLonger() {
+        mBreaker.onFailure(HOST, -1);
+        mBreaker.onFailure(HOST, -1);
+        mBreaker.onFailure(HOST, 60000);
+
+        assertEquals(60000, mBreaker.getRetryAtMillis(HOST));
+    }
+
+    @Test
+    public void abandonedTrialLetsTheNextOneThrough() {
+        trip();
+        mClock.advance(1000);
+        assertTrue(mBreaker.allowRequest(HOST));
+
+        mBreaker.onTrialAbandoned(HOST);
+
+        assertTrue(mBreaker.allowRequest(HOST));
+    }
+
+
+    private void trip() {
+        for (int i = 0; i < 3; i++) {
+            mBreaker.onFailure(HOST, -1);
+        }
+    }
+}
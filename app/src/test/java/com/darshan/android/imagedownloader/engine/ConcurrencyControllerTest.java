@@ -0,0 +1,107 @@
+package com.darshan.android.imagedownloader.engine;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the controller against {@link SimulatedLink} profiles and checks where the limit settles.
+ */
+public class ConcurrencyControllerTest {
+    private static final long WINDOW_MILLIS = 2000;
+    private static final long MINUTE = 60000;
+
+    private FakeClock mClock;
+    private ConcurrencyController mController;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock();
+        mController = new ConcurrencyController(mClock, 1, 4, 16, WINDOW_MILLIS);
+    }
+
+    @Test
+    public void fillsAFatPipe() {
+        List<Integer> limits = SimulatedLink.wifi().run(mController, mClock, MINUTE);
+
+        //8 connections fill the link, the limit probes one above and below it
+        assertSettledBetween(limits, 7, 9);
+        long bandwidth = mController.getBandwidth();
+        assertTrue("bandwidth " + bandwidth, bandwidth > 1800 * 1024 && bandwidth <= 2048 * 1024);
+    }
+
+    @Test
+    public void backsOffOnAThinPipe() {
+        List<Integer> limits = SimulatedLink.cellular().run(mController, mClock, MINUTE);
+
+        assertSettledBetween(limits, 1, 3);
+    }
+
+    @Test
+    public void followsTheNetworkWhenItChanges() {
+        SimulatedLink.wifi().run(mController, mClock, MINUTE);
+
+        //the 9 downloads still running from wifi take a while to drain through the thin pipe
+        assertSettledBetween(SimulatedLink.cellular().run(mController, mClock, 2 * MINUTE), 1, 3);
+        assertSettledBetween(SimulatedLink.wifi().run(mController, mClock, MINUTE), 7, 9);
+    }
+
+    @Test
+    public void timeoutCutsTheLimit() {
+        mController.onInFlightChanged(4);
+        mController.onTimeout();
+        mClock.advance(WINDOW_MILLIS);
+        mController.onBytes(1);
+
+        assertEquals(3, mController.getLimit());
+    }
+
+    @Test
+    public void idleWindowsDontMoveTheLimit() {
+        //a single download, far below the limit of 4
+        mController.onInFlightChanged(1);
+        for (int i = 0; i < 10; i++) {
+            mClock.advance(WINDOW_MILLIS);
+            mController.onBytes(64 * 1024);
+        }
+
+        assertEquals(4, mController.getLimit());
+        assertEquals(32 * 1024, mController.getBandwidth());
+    }
+
+    @Test
+    public void engineLimitIsFixedUnlessAdaptive() {
+        DownloadEngine fixed = new DownloadEngine.Builder().maxConcurrentDownloads(8).build();
+        DownloadEngine adaptive = new DownloadEngine.Builder()
+                .maxConcurrentDownloads(8)
+                .adaptiveConcurrency(2)
+                .build();
+        try {
+            assertEquals(8, fixed.getConcurrencyLimit());
+            assertEquals(DownloadEngine.INITIAL_ADAPTIVE_CONCURRENCY, adaptive.getConcurrencyLimit());
+            assertEquals(-1, adaptive.getMeasuredBandwidth());
+        } finally {
+            fixed.shutdown();
+            adaptive.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void minAboveMaxIsRejected() {
+        new DownloadEngine.Builder().maxConcurrentDownloads(2).adaptiveConcurrency(3).build();
+    }
+
+
+    /* Limit stays within min..max during the second half of the run */
+    private static void assertSettledBetween(List<Integer> limits, int min, int max) {
+        for (int i = limits.size() / 2; i < limits.size(); i++) {
+            int limit = limits.get(i);
+            assertTrue("limit " + limit + " at tick " + i + " outside " + min + ".." + max,
+                    limit >= min && limit <= max);
+        }
+    }
+}
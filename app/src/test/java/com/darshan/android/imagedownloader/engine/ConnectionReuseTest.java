@@ -0,0 +1,142 @@
+package com.darshan.android.imagedownloader.engine;
+
+import com.darshan.android.imagedownloader.network.NetworkModule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.randomBytes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Counts requests and connections the server sees, to make sure every image costs one request,
+ * downloads share pooled connections and segments don't.
+ */
+public class ConnectionReuseTest {
+    private static final int IMAGE_COUNT = 10;
+    private static final int IMAGE_SIZE = 32 * 1024;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private DownloadEngine mEngine;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        mEngine = new DownloadEngine.Builder().maxConcurrentDownloads(1).build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mEngine.shutdown();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void eachImageCostsOneRequest() throws Exception {
+        for (int i = 0; i < IMAGE_COUNT; i++) {
+            mServer.enqueue(new MockResponse().setBody(new Buffer().write(randomBytes(IMAGE_SIZE))));
+        }
+
+        downloadAll("/%d/download");
+
+        assertEquals(IMAGE_COUNT, mServer.getRequestCount());
+        assertEquals(1, countNewConnections(IMAGE_COUNT));
+    }
+
+    @Test
+    public void redirectToImageIsFollowedOnTheSameConnection() throws Exception {
+        //like picsum.photos/{id}/download, which redirects to the actual image
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (request.getPath().endsWith("/download")) {
+                    return new MockResponse()
+                            .setResponseCode(302)
+                            .setHeader("Location", request.getPath().replace("/download", "/image"));
+                }
+                return new MockResponse().setBody(new Buffer().write(randomBytes(IMAGE_SIZE)));
+            }
+        });
+
+        downloadAll("/%d/download");
+
+        //one hop to the redirect target, no second request for the length
+        assertEquals(2 * IMAGE_COUNT, mServer.getRequestCount());
+        assertEquals(1, countNewConnections(2 * IMAGE_COUNT));
+    }
+
+    @Test
+    public void everySegmentGetsAConnectionOfItsOwn() throws Exception {
+        int segments = 4;
+        RangeDispatcher dispatcher = new RangeDispatcher(randomBytes(segments * (int) SegmentedDownload.MIN_SEGMENT_SIZE), "\"v1\"");
+        //slow enough for the segments to overlap, none gets a connection another one released
+        dispatcher.throttle(SegmentedDownload.MIN_SEGMENT_SIZE / 4, 50);
+        mServer.setDispatcher(dispatcher);
+        //the way the app derives the engine's client from its HTTP/2 capable one
+        OkHttpClient client = new NetworkModule.Builder().build().getClient().newBuilder()
+                .protocols(Collections.singletonList(Protocol.HTTP_1_1))
+                .build();
+        DownloadEngine engine = new DownloadEngine.Builder().client(client).build();
+        try {
+            RecordingListener listener = new RecordingListener();
+            engine.submit(new DownloadRequest.Builder()
+                    .url(mServer.url("/1/download").url())
+                    .targetFile(new File(mTempFolder.getRoot(), "large.jpg"))
+                    .segments(segments)
+                    .build(), listener);
+            listener.awaitFinished();
+            assertNull(listener.failure);
+        } finally {
+            engine.shutdown();
+        }
+
+        //the probe's connection is reused by one of the segments
+        assertEquals(segments + 1, mServer.getRequestCount());
+        assertEquals(segments, countNewConnections(segments + 1));
+    }
+
+
+    private void downloadAll(String pathFormat) throws Exception {
+        for (int i = 0; i < IMAGE_COUNT; i++) {
+            RecordingListener listener = new RecordingListener();
+            mEngine.submit(new DownloadRequest.Builder()
+                    .url(mServer.url(String.format(pathFormat, i)).url())
+                    .targetFile(new File(mTempFolder.getRoot(), "image" + i + ".jpg"))
+                    .build(), listener).get(10, TimeUnit.SECONDS);
+            //length came from the response the body was read from
+            assertEquals(IMAGE_SIZE, listener.lastTotalBytes);
+        }
+    }
+
+    /* A request that is the first on its connection opened a new one */
+    private int countNewConnections(int requestCount) throws InterruptedException {
+        int connections = 0;
+        for (int i = 0; i < requestCount; i++) {
+            RecordedRequest request = mServer.takeRequest(1, TimeUnit.SECONDS);
+            if (request.getSequenceNumber() == 0) {
+                connections++;
+            }
+        }
+        return connections;
+    }
+}
@@ -0,0 +1,228 @@
+package com.darshan.android.imagedownloader.engine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.randomBytes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadBatchTest {
+    private static final int IMAGE_SIZE = 32 * 1024;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private DownloadEngine mEngine;
+    private DownloadQueue mQueue;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        //every read reaches the batch, it throttles its own updates
+        mEngine = new DownloadEngine.Builder().progressThrottle(0, TimeUnit.MILLISECONDS, 0).build();
+        mQueue = new DownloadQueue(mEngine, JobStore.open(mTempFolder.newFile("downloads.journal")),
+                new DownloadQueue.DeviceState() {
+                    @Override
+                    public boolean isNetworkUnmetered() {
+                        return true;
+                    }
+
+                    @Override
+                    public boolean isCharging() {
+                        return true;
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mEngine.shutdown();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void batchReportsAggregateCountsOnce() throws Exception {
+        final AtomicInteger missingRequests = new AtomicInteger();
+        final byte[] body = randomBytes(IMAGE_SIZE);
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (request.getPath().startsWith("/missing")) {
+                    missingRequests.incrementAndGet();
+                    return new MockResponse().setResponseCode(404);
+                }
+                return new MockResponse().setBody(new Buffer().write(body));
+            }
+        });
+        List<DownloadRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            requests.add(request(i == 3 ? "/missing" : "/" + i, "image" + i + ".jpg"));
+        }
+
+        BatchRecorder recorder = new BatchRecorder();
+        DownloadBatch batch = new DownloadBatch(mQueue, requests, recorder, Clock.SYSTEM, 0, 3);
+        batch.start();
+        recorder.awaitFinished();
+
+        DownloadBatch.Progress progress = recorder.finishedProgress;
+        assertEquals(10, progress.getTotalCount());
+        assertEquals(9, progress.getCompletedCount());
+        assertEquals(1, progress.getFailedCount());
+        assertEquals(9L * IMAGE_SIZE, progress.getBytesDownloaded());
+        assertEquals(0, progress.getEtaMillis());
+        //every attempt of the missing image was used up
+        assertEquals(3, missingRequests.get());
+        assertEquals(1, recorder.finishedCalls.get());
+        assertTrue(recorder.progressCalls.get() >= 10);
+    }
+
+    @Test
+    public void failedItemIsRetriedFromPartFile() throws Exception {
+        byte[] body = randomBytes(256 * 1024);
+        RangeDispatcher dispatcher = new RangeDispatcher(body, "\"v1\"");
+        dispatcher.cutNextResponses(2);
+        mServer.setDispatcher(dispatcher);
+
+        BatchRecorder recorder = new BatchRecorder();
+        List<DownloadRequest> requests = new ArrayList<>();
+        requests.add(request("/1", "image.jpg"));
+        new DownloadBatch(mQueue, requests, recorder, Clock.SYSTEM, 0, 3).start();
+        recorder.awaitFinished();
+
+        assertEquals(1, recorder.finishedProgress.getCompletedCount());
+        assertEquals(3, dispatcher.rangeHeaders.size());
+        assertTrue(dispatcher.rangeHeaders.get(2).startsWith("bytes="));
+    }
+
+    @Test
+    public void retryFailedRunsFailedItemsAgain() throws Exception {
+        RangeDispatcher dispatcher = new RangeDispatcher(randomBytes(256 * 1024), "\"v1\"");
+        dispatcher.cutNextResponses(1);
+        mServer.setDispatcher(dispatcher);
+
+        BatchRecorder recorder = new BatchRecorder();
+        List<DownloadRequest> requests = new ArrayList<>();
+        requests.add(request("/1", "image.jpg"));
+        DownloadBatch batch = new DownloadBatch(mQueue, requests, recorder, Clock.SYSTEM, 0, 1);
+        batch.start();
+        recorder.awaitFinished();
+        assertEquals(1, recorder.finishedProgress.getFailedCount());
+
+        recorder.reset();
+        assertEquals(1, batch.retryFailed());
+        recorder.awaitFinished();
+
+        assertEquals(1, recorder.finishedProgress.getCompletedCount());
+        assertEquals(0, recorder.finishedProgress.getFailedCount());
+    }
+
+    @Test
+    public void stalledBatchSlowsDownInsteadOfFreezing() throws Exception {
+        final CountDownLatch respond = new CountDownLatch(1);
+        final byte[] body = randomBytes(IMAGE_SIZE);
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                respond.await();
+                //half of what is announced, then the network stalls
+                return new MockResponse().setBody(new Buffer().write(body, 0, IMAGE_SIZE / 2))
+                        .setHeader("Content-Length", IMAGE_SIZE);
+            }
+        });
+        FakeClock clock = new FakeClock();
+        List<DownloadRequest> requests = new ArrayList<>();
+        requests.add(request("/1", "image.jpg"));
+        DownloadBatch batch = new DownloadBatch(mQueue, requests, new BatchRecorder(), clock, 0, 1);
+        batch.start();
+        clock.advance(1000);
+        respond.countDown();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (batch.getProgress().getBytesDownloaded() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        //whatever of the half got through
+        Thread.sleep(300);
+        DownloadBatch.Progress before = batch.getProgress();
+        long received = before.getBytesDownloaded();
+        assertTrue(received > 0 && received <= IMAGE_SIZE / 2);
+        long bytesPerSecond = before.getBytesPerSecond();
+        assertTrue(bytesPerSecond > 0);
+        assertEquals((IMAGE_SIZE - received) * 1000 / bytesPerSecond, before.getEtaMillis());
+
+        //no progress arrives meanwhile
+        clock.advance(9000);
+        DownloadBatch.Progress stalled = batch.getProgress();
+
+        assertEquals(Math.min(bytesPerSecond, received / 10), stalled.getBytesPerSecond());
+        assertTrue(stalled.getEtaMillis() > before.getEtaMillis());
+        clock.advance(90000);
+        assertEquals(Math.min(bytesPerSecond, received / 100), batch.getProgress().getBytesPerSecond());
+        assertTrue(batch.getProgress().getEtaMillis() > stalled.getEtaMillis());
+    }
+
+    @Test
+    public void emptyBatchFinishesRightAway() throws Exception {
+        BatchRecorder recorder = new BatchRecorder();
+        new DownloadBatch(mQueue, new ArrayList<DownloadRequest>(), recorder, Clock.SYSTEM, 0, 1).start();
+
+        assertEquals(1, recorder.finishedCalls.get());
+        assertTrue(recorder.finishedProgress.isFinished());
+    }
+
+
+    private DownloadRequest request(String path, String fileName) {
+        return new DownloadRequest.Builder()
+                .url(mServer.url(path).url())
+                .targetFile(new File(mTempFolder.getRoot(), fileName))
+                .build();
+    }
+
+    private static class BatchRecorder implements DownloadBatch.Listener {
+        final AtomicInteger progressCalls = new AtomicInteger();
+        final AtomicInteger finishedCalls = new AtomicInteger();
+        volatile CountDownLatch finished = new CountDownLatch(1);
+        volatile DownloadBatch.Progress finishedProgress;
+
+        @Override
+        public void onBatchProgress(DownloadBatch batch, DownloadBatch.Progress progress) {
+            progressCalls.incrementAndGet();
+        }
+
+        @Override
+        public void onBatchFinished(DownloadBatch batch, DownloadBatch.Progress progress) {
+            finishedProgress = progress;
+            finishedCalls.incrementAndGet();
+            finished.countDown();
+        }
+
+        void reset() {
+            finished = new CountDownLatch(1);
+        }
+
+        void awaitFinished() throws InterruptedException {
+            if (!finished.await(10, TimeUnit.SECONDS)) {
+                throw new AssertionError("Batch did not finish in time");
+            }
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package com.darshan.android.imagedownloader.engine;
+
+import com.darshan.android.imagedownloader.metrics.Metrics;
+import com.darshan.android.imagedownloader.network.ConnectionMetrics;
+import com.darshan.android.imagedownloader.network.NetworkModule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the DownloadEngine on the JVM against a local MockWebServer.
+ */
+public class DownloadEngineTest {
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private DownloadEngine mEngine;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start(InetAddress.getByName("127.0.0.1"), 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mEngine != null) {
+            mEngine.shutdown();
+        }
+        mServer.shutdown();
+    }
+
+    @Test
+    public void downloadWritesBodyToTargetFile() throws Exception {
+        byte[] body = randomBytes(64 * 1024);
+        mServer.enqueue(new MockResponse().setBody(new Buffer().write(body)));
+        mEngine = new DownloadEngine.Builder().build();
+
+        RecordingListener listener = new RecordingListener();
+        DownloadJob job = mEngine.submit(request("/image", "image.jpg"), listener);
+
+        File file = job.get(10, TimeUnit.SECONDS);
+        listener.awaitFinished();
+        assertEquals(DownloadJob.State.COMPLETED, job.getState());
+        assertEquals(file, listener.completedFile);
+        assertArrayEquals(body, readFile(file));
+        assertEquals(body.length, listener.lastBytesDownloaded);
+        assertEquals(body.length, listener.lastTotalBytes);
+    }
+
+    @Test
+    public void batchRunsInParallelUpToGlobalLimit() throws Exception {
+        final ConcurrencyRecorder recorder = new ConcurrencyRecorder(200);
+        mServer.setDispatcher(recorder);
+        mEngine = new DownloadEngine.Builder()
+                .maxConcurrentDownloads(3)
+                .maxDownloadsPerHost(10)
+                .build();
+
+        long start = System.nanoTime();
+        List<DownloadJob> jobs = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            jobs.add(mEngine.submit(request("/image" + i, "image" + i + ".jpg"), new RecordingListener()));
+        }
+        for (DownloadJob job : jobs) {
+            job.get(10, TimeUnit.SECONDS);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(3, recorder.maxInFlight());
+        //two waves of 200ms, a serial queue would need 6 of them
+        assertTrue("batch took " + elapsedMillis + "ms", elapsedMillis < 1000);
+    }
+
+    @Test
+    public void perHostLimitIsRespected() throws Exception {
+        ConcurrencyRecorder recorder = new ConcurrencyRecorder(150);
+        mServer.setDispatcher(recorder);
+        mEngine = new DownloadEngine.Builder()
+                .maxConcurrentDownloads(4)
+                .maxDownloadsPerHost(1)
+                .build();
+
+        List<DownloadJob> jobs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            jobs.add(mEngine.submit(request("127.0.0.1", "/a" + i, "a" + i), new RecordingListener()));
+            jobs.add(mEngine.submit(request("localhost", "/b" + i, "b" + i), new RecordingListener()));
+        }
+        for (DownloadJob job : jobs) {
+            job.get(10, TimeUnit.SECONDS);
+        }
+
+        assertEquals(1, recorder.maxInFlightForHost("127.0.0.1"));
+        assertEquals(1, recorder.maxInFlightForHost("localhost"));
+        //both hosts were served at the same time
+        assertEquals(2, recorder.maxInFlight());
+    }
+
+    @Test
+    public void higherPriorityJobsStartFirst() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                order.add(request.getPath());
+                if (request.getPath().equals("/blocker")) {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                return new MockResponse().setBody("image");
+            }
+        });
+        mEngine = new DownloadEngine.Builder().maxConcurrentDownloads(1).build();
+
+        RecordingListener blockerListener = new RecordingListener();
+        mEngine.submit(request("/blocker", "blocker"), blockerListener);
+        blockerListener.started.await(10, TimeUnit.SECONDS);
+
+        DownloadJob low = mEngine.submit(request("/low", "low", DownloadRequest.Priority.LOW), new RecordingListener());
+        DownloadJob normal = mEngine.submit(request("/normal", "normal", DownloadRequest.Priority.NORMAL), new RecordingListener());
+        DownloadJob high = mEngine.submit(request("/high", "high", DownloadRequest.Priority.HIGH), new RecordingListener());
+        assertEquals(3, mEngine.getQueuedJobCount());
+
+        release.countDown();
+        low.get(10, TimeUnit.SECONDS);
+        normal.get(10, TimeUnit.SECONDS);
+        high.get(10, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("/blocker", "/high", "/normal", "/low"), order);
+    }
+
+    @Test
+    public void cancelQueuedJobNeverHitsTheNetwork() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                release.await(10, TimeUnit.SECONDS);
+                return new MockResponse().setBody("image");
+            }
+        });
+        mEngine = new DownloadEngine.Builder().maxConcurrentDownloads(1).build();
+
+        RecordingListener blockerListener = new RecordingListener();
+        DownloadJob blocker = mEngine.submit(request("/blocker", "blocker"), blockerListener);
+        blockerListener.started.await(10, TimeUnit.SECONDS);
+
+        RecordingListener queuedListener = new RecordingListener();
+        DownloadJob queued = mEngine.submit(request("/queued", "queued"), queuedListener);
+        assertTrue(queued.cancel(true));
+        queuedListener.awaitFinished();
+        release.countDown();
+        blocker.get(10, TimeUnit.SECONDS);
+
+        assertTrue(queued.isCancelled());
+        assertTrue(queuedListener.cancelled);
+        assertEquals(1, mServer.getRequestCount());
+        try {
+            queued.get();
+            fail("cancelled job returned a result");
+        } catch (CancellationException expected) {
+        }
+    }
+
+    @Test
+    public void cancelRunningJobStopsTransferAndRemovesFile() throws Exception {
+        //64kB at 4kB per 100ms takes well over a second
+        mServer.enqueue(new MockResponse()
+                .setBody(new Buffer().write(randomBytes(64 * 1024)))
+                .throttleBody(4 * 1024, 100, TimeUnit.MILLISECONDS));
+        mEngine = new DownloadEngine.Builder().build();
+
+        RecordingListener listener = new RecordingListener();
+        DownloadJob job = mEngine.submit(request("/slow", "slow.jpg"), listener);
+        assertTrue(listener.firstProgress.await(10, TimeUnit.SECONDS));
+        job.cancel(true);
+        listener.awaitFinished();
+
+        assertTrue(listener.cancelled);
+        assertEquals(DownloadJob.State.CANCELLED, job.getState());
+        assertFalse(new File(mTempFolder.getRoot(), "slow.jpg").exists());
+    }
+
+    @Test
+    public void httpErrorFailsJob() throws Exception {
+        mServer.enqueue(new MockResponse().setResponseCode(404));
+        mEngine = new DownloadEngine.Builder().build();
+
+        RecordingListener listener = new RecordingListener();
+        DownloadJob job = mEngine.submit(request("/missing", "missing.jpg"), listener);
+        listener.awaitFinished();
+
+        assertEquals(DownloadJob.State.FAILED, job.getState());
+        assertNotNull(listener.failure);
+        try {
+            job.get();
+            fail("failed job returned a result");
+        } catch (ExecutionException expected) {
+            assertEquals(listener.failure, expected.getCause());
+        }
+    }
+
+    @Test
+    public void downloadsAreRecordedInMetrics() throws Exception {
+        byte[] body = randomBytes(128 * 1024);
+        mServer.enqueue(new MockResponse().setBody(new Buffer().write(body)));
+        mServer.enqueue(new MockResponse().setBody(new Buffer().write(body)));
+        mServer.enqueue(new MockResponse().setResponseCode(404));
+        Metrics metrics = new Metrics();
+        NetworkModule network = new NetworkModule.Builder().metrics(metrics).build();
+        mEngine = new DownloadEngine.Builder()
+                .maxConcurrentDownloads(1)
+                .client(network.getClient())
+                .metrics(metrics)
+                .build();
+
+        for (String name : new String[]{"first.jpg", "second.jpg", "missing.jpg"}) {
+            RecordingListener listener = new RecordingListener();
+            mEngine.submit(request("/" + name, name), listener);
+            listener.awaitFinished();
+        }
+
+        assertEquals(2, metrics.counter(DownloadEngine.COMPLETED).sum());
+        assertEquals(1, metrics.counter(DownloadEngine.FAILED).sum());
+        assertEquals(2 * body.length, metrics.counter(TransferStage.BYTES).sum());
+        assertEquals(2, metrics.timer(TransferStage.TRANSFER).getCount());
+        assertEquals(2, metrics.histogram(TransferStage.THROUGHPUT, Metrics.UNIT_KB_PER_SECOND).getCount());
+        //the network module records every call of the shared client
+        assertEquals(3, metrics.timer(ConnectionMetrics.TIME_TO_FIRST_BYTE).getCount());
+        assertEquals(1, network.getConnectionMetrics().getConnectionsOpened());
+    }
+
+
+    private DownloadRequest request(String path, String fileName) {
+        return request(path, fileName, DownloadRequest.Priority.NORMAL);
+    }
+
+    private DownloadRequest request(String path, String fileName, DownloadRequest.Priority priority) {
+        return new DownloadRequest.Builder()
+                .url(mServer.url(path).url())
+                .targetFile(new File(mTempFolder.getRoot(), fileName))
+                .priority(priority)
+                .build();
+    }
+
+    private DownloadRequest request(String host, String path, String fileName) {
+        return new DownloadRequest.Builder()
+                .url("http://" + host + ":" + mServer.getPort() + path)
+                .targetFile(new File(mTempFolder.getRoot(), fileName))
+                .build();
+    }
+
+    static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    /* Holds every request for a while and records how many were in flight at once */
+    private static class ConcurrencyRecorder extends Dispatcher {
+        private final long mHoldMillis;
+        private final AtomicInteger mInFlight = new AtomicInteger();
+        private final AtomicInteger mMaxInFlight = new AtomicInteger();
+        private final Map<String, AtomicInteger> mInFlightByHost = new HashMap<>();
+        private final Map<String, Integer> mMaxInFlightByHost = new HashMap<>();
+
+        ConcurrencyRecorder(long holdMillis) {
+            mHoldMillis = holdMillis;
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            String host = request.getHeader("Host").split(":")[0];
+            int inFlight = mInFlight.incrementAndGet();
+            updateMax(mMaxInFlight, inFlight);
+            synchronized (this) {
+                AtomicInteger counter = mInFlightByHost.get(host);
+                if (counter == null) {
+                    counter = new AtomicInteger();
+                    mInFlightByHost.put(host, counter);
+                }
+                int hostInFlight = counter.incrementAndGet();
+                Integer max = mMaxInFlightByHost.get(host);
+                if (max == null || max < hostInFlight) {
+                    mMaxInFlightByHost.put(host, hostInFlight);
+                }
+            }
+
+            Thread.sleep(mHoldMillis);
+
+            synchronized (this) {
+                mInFlightByHost.get(host).decrementAndGet();
+            }
+            mInFlight.decrementAndGet();
+            return new MockResponse().setBody("image");
+        }
+
+        int maxInFlight() {
+            return mMaxInFlight.get();
+        }
+
+        synchronized int maxInFlightForHost(String host) {
+            Integer max = mMaxInFlightByHost.get(host);
+            return max == null ? 0 : max;
+        }
+
+        private static void updateMax(AtomicInteger max, int value) {
+            int current;
+            while ((current = max.get()) < value) {
+                if (max.compareAndSet(current, value)) {
+                    return;
+                }
+            }
+        }
+    }
+}
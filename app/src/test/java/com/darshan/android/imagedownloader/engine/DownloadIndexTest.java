@@ -0,0 +1,174 @@
+package com.darshan.android.imagedownloader.engine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import okhttp3.mockwebserver.MockWebServer;
+
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.randomBytes;
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.readFile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadIndexTest {
+    private static final int IMAGE_SIZE = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private File mIndexFile;
+    private DownloadIndex mIndex;
+    private DownloadEngine mEngine;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        mIndexFile = new File(mTempFolder.getRoot(), "downloads.index");
+        mIndex = DownloadIndex.open(mIndexFile);
+        mEngine = new DownloadEngine.Builder().downloadIndex(mIndex).build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mEngine.shutdown();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void presentImageCompletesWithoutNetwork() throws Exception {
+        byte[] body = randomBytes(IMAGE_SIZE);
+        mServer.setDispatcher(new RangeDispatcher(body, "\"v1\""));
+        download("picsum-1-100x100", "1.jpg");
+        assertEquals(1, mServer.getRequestCount());
+
+        //index survives a restart
+        mIndex.close();
+        DownloadEngine restarted = new DownloadEngine.Builder()
+                .downloadIndex(DownloadIndex.open(mIndexFile)).build();
+        try {
+            RecordingListener listener = new RecordingListener();
+            restarted.submit(request("picsum-1-100x100", "1.jpg").build(), listener);
+            listener.awaitFinished();
+
+            assertEquals(new File(mTempFolder.getRoot(), "1.jpg"), listener.completedFile);
+            assertArrayEquals(body, readFile(listener.completedFile));
+            assertEquals(1, mServer.getRequestCount());
+        } finally {
+            restarted.shutdown();
+        }
+    }
+
+    @Test
+    public void editedFileIsKeptAndDownloadedAgain() throws Exception {
+        byte[] body = randomBytes(IMAGE_SIZE);
+        mServer.setDispatcher(new RangeDispatcher(body, "\"v1\""));
+        File file = download("picsum-1-100x100", "1.jpg").completedFile;
+        //edited in a gallery app
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(1);
+        out.close();
+
+        RecordingListener listener = download("picsum-1-100x100", "1.jpg");
+
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(IMAGE_SIZE + 1, file.length());
+        assertEquals(new File(mTempFolder.getRoot(), "1-1.jpg"), listener.completedFile);
+        assertArrayEquals(body, readFile(listener.completedFile));
+    }
+
+    @Test
+    public void differentImageWithSameNameGetsItsOwnFile() throws Exception {
+        byte[] first = randomBytes(IMAGE_SIZE);
+        byte[] second = randomBytes(IMAGE_SIZE + 1);
+        RangeDispatcher dispatcher = new RangeDispatcher(first, "\"v1\"");
+        mServer.setDispatcher(dispatcher);
+        download("picsum-1-100x100", "photo.jpg");
+
+        dispatcher.setBody(second, "\"v2\"");
+        RecordingListener listener = download("picsum-2-100x100", "photo.jpg");
+
+        assertEquals(new File(mTempFolder.getRoot(), "photo-1.jpg"), listener.completedFile);
+        assertArrayEquals(first, readFile(new File(mTempFolder.getRoot(), "photo.jpg")));
+        assertArrayEquals(second, readFile(listener.completedFile));
+    }
+
+    @Test
+    public void sameContentUnderAnotherKeyIsStoredOnce() throws Exception {
+        byte[] body = randomBytes(IMAGE_SIZE);
+        mServer.setDispatcher(new RangeDispatcher(body, "\"v1\""));
+        File first = download("picsum-1-100x100", "small.jpg").completedFile;
+
+        RecordingListener listener = download("picsum-1-200x200", "large.jpg");
+
+        assertEquals(first, listener.completedFile);
+        assertTrue(!new File(mTempFolder.getRoot(), "large.jpg").exists());
+        assertEquals(first, mIndex.get("picsum-1-200x200").getFile());
+    }
+
+    @Test
+    public void unknownFileIsNeverOverwritten() throws Exception {
+        File existing = new File(mTempFolder.getRoot(), "photo.jpg");
+        FileOutputStream out = new FileOutputStream(existing);
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+
+        assertEquals(new File(mTempFolder.getRoot(), "photo-1.jpg"),
+                mIndex.reserveTarget("picsum-3-10x10", existing));
+        //a second download wanting the name while the first runs
+        assertEquals(new File(mTempFolder.getRoot(), "photo-2.jpg"),
+                mIndex.reserveTarget("picsum-4-10x10", existing));
+        //every attempt of a download gets the same name
+        assertEquals(new File(mTempFolder.getRoot(), "photo-1.jpg"),
+                mIndex.reserveTarget("picsum-3-10x10", existing));
+
+        mIndex.release("picsum-3-10x10");
+        assertEquals(new File(mTempFolder.getRoot(), "photo-1.jpg"),
+                mIndex.reserveTarget("picsum-5-10x10", existing));
+    }
+
+    @Test
+    public void deletedEntriesStayDeletedAfterReopen() throws Exception {
+        File file = new File(mTempFolder.getRoot(), "a.jpg");
+        assertTrue(file.createNewFile());
+        mIndex.put("picsum-1-1x1", file, "abc");
+        mIndex.put("picsum-2-1x1", file, "abc");
+        mIndex.remove("picsum-1-1x1");
+        mIndex.close();
+
+        DownloadIndex reopened = DownloadIndex.open(mIndexFile);
+
+        assertNull(reopened.get("picsum-1-1x1"));
+        assertNotNull(reopened.get("picsum-2-1x1"));
+        assertEquals("picsum-2-1x1", reopened.getByHash("abc").getContentKey());
+        assertEquals(1, reopened.size());
+    }
+
+
+    private RecordingListener download(String contentKey, String fileName) throws InterruptedException {
+        RecordingListener listener = new RecordingListener();
+        mEngine.submit(request(contentKey, fileName).build(), listener);
+        listener.awaitFinished();
+        if (listener.failure != null) {
+            throw new AssertionError(listener.failure);
+        }
+        return listener;
+    }
+
+    private DownloadRequest.Builder request(String contentKey, String fileName) {
+        return new DownloadRequest.Builder()
+                .url(mServer.url("/download").url())
+                .targetFile(new File(mTempFolder.getRoot(), fileName))
+                .contentKey(contentKey);
+    }
+}
@@ -0,0 +1,172 @@
+package com.darshan.android.imagedownloader.engine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import okhttp3.mockwebserver.MockWebServer;
+
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.randomBytes;
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.readFile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadQueueTest {
+    private static final int IMAGE_SIZE = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private DownloadEngine mEngine;
+    private File mJournalFile;
+    private File mTargetFile;
+    private FakeDeviceState mDeviceState;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        mEngine = new DownloadEngine.Builder().build();
+        mJournalFile = new File(mTempFolder.getRoot(), "downloads.journal");
+        mTargetFile = new File(mTempFolder.getRoot(), "image.jpg");
+        mDeviceState = new FakeDeviceState();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mEngine.shutdown();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void completedDownloadIsRemovedFromStore() throws Exception {
+        byte[] body = randomBytes(IMAGE_SIZE);
+        mServer.setDispatcher(new RangeDispatcher(body, "\"v1\""));
+        JobStore store = JobStore.open(mJournalFile);
+        DownloadQueue queue = new DownloadQueue(mEngine, store, mDeviceState);
+
+        RecordingListener listener = new RecordingListener();
+        queue.enqueue(request().build(), listener);
+        listener.awaitFinished();
+
+        assertArrayEquals(body, readFile(mTargetFile));
+        assertTrue(store.getRecords().isEmpty());
+        assertEquals(0, queue.getActiveCount());
+        assertTrue(JobStore.open(mJournalFile).getRecords().isEmpty());
+    }
+
+    @Test
+    public void constrainedDownloadWaitsForDeviceState() throws Exception {
+        mServer.setDispatcher(new RangeDispatcher(randomBytes(IMAGE_SIZE), "\"v1\""));
+        DownloadQueue queue = new DownloadQueue(mEngine, JobStore.open(mJournalFile), mDeviceState);
+
+        RecordingListener listener = new RecordingListener();
+        queue.enqueue(request().requiresUnmeteredNetwork(true).requiresCharging(true).build(), listener);
+
+        assertEquals(0, queue.getActiveCount());
+        assertEquals(1, queue.getWaitingRecords().size());
+        mDeviceState.unmetered = true;
+        assertEquals(1, queue.drain(mDeviceState));
+        assertEquals(0, mServer.getRequestCount());
+
+        mDeviceState.charging = true;
+        assertEquals(0, queue.drain(mDeviceState));
+        listener.awaitFinished();
+
+        assertNotNull(listener.completedFile);
+        assertFalse(queue.hasPendingWork());
+    }
+
+    @Test
+    public void downloadInterruptedByProcessDeathResumesAfterRestart() throws Exception {
+        byte[] body = randomBytes(IMAGE_SIZE);
+        RangeDispatcher dispatcher = new RangeDispatcher(body, "\"v1\"");
+        dispatcher.cutNextResponses(1);
+        mServer.setDispatcher(dispatcher);
+
+        //state at the time the process got killed: running in the journal, half the image on disk
+        JobStore store = JobStore.open(mJournalFile);
+        long id = store.add(request().build()).getId();
+        store.updateState(id, DownloadJob.State.RUNNING);
+        RecordingListener firstAttempt = new RecordingListener();
+        mEngine.submit(request().build(), firstAttempt);
+        firstAttempt.awaitFinished();
+        long partLength = new File(mTargetFile.getPath() + ".part").length();
+        assertTrue(partLength > 0);
+
+        //new process
+        DownloadEngine engine = new DownloadEngine.Builder().build();
+        try {
+            DownloadQueue queue = new DownloadQueue(engine, JobStore.open(mJournalFile), mDeviceState);
+            assertTrue(queue.hasPendingWork());
+            RecordingListener listener = new RecordingListener();
+            queue.addListener(listener);
+            queue.drain(mDeviceState);
+            listener.awaitFinished();
+        } finally {
+            engine.shutdown();
+        }
+
+        assertArrayEquals(body, readFile(mTargetFile));
+        assertEquals("bytes=" + partLength + "-", dispatcher.rangeHeaders.get(1));
+        assertTrue(JobStore.open(mJournalFile).getRecords().isEmpty());
+    }
+
+    @Test
+    public void failedDownloadIsKeptAndRetriedWhenEnqueuedAgain() throws Exception {
+        byte[] body = randomBytes(IMAGE_SIZE);
+        RangeDispatcher dispatcher = new RangeDispatcher(body, "\"v1\"");
+        dispatcher.cutNextResponses(1);
+        mServer.setDispatcher(dispatcher);
+        JobStore store = JobStore.open(mJournalFile);
+        DownloadQueue queue = new DownloadQueue(mEngine, store, mDeviceState);
+
+        RecordingListener failed = new RecordingListener();
+        long id = queue.enqueue(request().build(), failed);
+        failed.awaitFinished();
+        assertNotNull(failed.failure);
+        assertEquals(DownloadJob.State.FAILED, store.get(id).getState());
+        assertFalse(queue.hasPendingWork());
+
+        RecordingListener retried = new RecordingListener();
+        assertEquals(id, queue.enqueue(request().build(), retried));
+        retried.awaitFinished();
+
+        assertNull(retried.failure);
+        assertArrayEquals(body, readFile(mTargetFile));
+        //only the retry's listener heard about it
+        assertNull(failed.completedFile);
+        assertNull(store.get(id));
+    }
+
+
+    private DownloadRequest.Builder request() {
+        return new DownloadRequest.Builder()
+                .url(mServer.url("/1/download").url())
+                .targetFile(mTargetFile);
+    }
+
+    private static class FakeDeviceState implements DownloadQueue.DeviceState {
+        volatile boolean unmetered;
+        volatile boolean charging;
+
+        @Override
+        public boolean isNetworkUnmetered() {
+            return unmetered;
+        }
+
+        @Override
+        public boolean isCharging() {
+            return charging;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.darshan.android.imagedownloader.engine;
+
+/**
+ * Clock that only moves when the test says so.
+ */
+class FakeClock implements Clock {
+    private long mNowMillis;
+
+    @Override
+    public synchronized long nowMillis() {
+        return mNowMillis;
+    }
+
+    synchronized void advance(long millis) {
+        mNowMillis += millis;
+    }
+}
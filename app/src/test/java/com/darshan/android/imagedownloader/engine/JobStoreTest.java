@@ -0,0 +1,182 @@
+package com.darshan.android.imagedownloader.engine;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JobStoreTest {
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private File mJournalFile;
+
+    @Before
+    public void setUp() {
+        mJournalFile = new File(mTempFolder.getRoot(), "downloads.journal");
+    }
+
+    @Test
+    public void recordsSurviveReopen() throws Exception {
+        JobStore store = JobStore.open(mJournalFile);
+        File target = new File(mTempFolder.getRoot(), "my image.jpg");
+        long id = store.add(new DownloadRequest.Builder()
+                .url("https://picsum.photos/10/download")
+                .targetFile(target)
+                .priority(DownloadRequest.Priority.HIGH)
+                .segments(4)
+                .requiresUnmeteredNetwork(true)
+                .maxBytesPerSecond(128 * 1024)
+                .build()).getId();
+        store.updateState(id, DownloadJob.State.FAILED);
+        store.updateProgress(id, 1000, 4000);
+        store.close();
+
+        List<JobStore.Record> records = JobStore.open(mJournalFile).getRecords();
+
+        assertEquals(1, records.size());
+        JobStore.Record record = records.get(0);
+        assertEquals(id, record.getId());
+        assertEquals(target, record.getTargetFile());
+        assertEquals(DownloadJob.State.FAILED, record.getState());
+        assertEquals(1000, record.getBytesDownloaded());
+        assertEquals(4000, record.getTotalBytes());
+        assertTrue(record.requiresUnmeteredNetwork());
+        assertFalse(record.requiresCharging());
+
+        DownloadRequest request = record.toRequest(null);
+        assertEquals("https://picsum.photos/10/download", request.getUrl().toString());
+        assertEquals(DownloadRequest.Priority.HIGH, request.getPriority());
+        assertEquals(4, request.getSegmentCount());
+        assertEquals(128 * 1024, request.getMaxBytesPerSecond());
+    }
+
+    @Test
+    public void runningDownloadsAreQueuedAgainAfterRestart() throws Exception {
+        JobStore store = JobStore.open(mJournalFile);
+        long id = store.add(request("a.jpg")).getId();
+        store.updateState(id, DownloadJob.State.RUNNING);
+        //process killed, no close()
+
+        assertEquals(DownloadJob.State.QUEUED, JobStore.open(mJournalFile).get(id).getState());
+    }
+
+    @Test
+    public void finishedDownloadsAreForgotten() throws Exception {
+        JobStore store = JobStore.open(mJournalFile);
+        long completed = store.add(request("a.jpg")).getId();
+        long cancelled = store.add(request("b.jpg")).getId();
+        long queued = store.add(request("c.jpg")).getId();
+        store.updateState(completed, DownloadJob.State.COMPLETED);
+        store.updateState(cancelled, DownloadJob.State.CANCELLED);
+
+        JobStore reopened = JobStore.open(mJournalFile);
+
+        assertNull(reopened.get(completed));
+        assertNull(reopened.get(cancelled));
+        assertEquals(1, reopened.getRecords().size());
+        //ids are never reused
+        assertTrue(reopened.add(request("d.jpg")).getId() > queued);
+    }
+
+    @Test
+    public void tornLastLineIsIgnored() throws Exception {
+        JobStore store = JobStore.open(mJournalFile);
+        long id = store.add(request("a.jpg")).getId();
+        store.updateProgress(id, 500, 1000);
+        store.close();
+        appendToJournal("PROGRESS " + id + " 9");
+
+        JobStore.Record record = JobStore.open(mJournalFile).get(id);
+
+        assertEquals(500, record.getBytesDownloaded());
+    }
+
+    @Test
+    public void journalIsCompactedOnOpen() throws Exception {
+        JobStore store = JobStore.open(mJournalFile);
+        long id = store.add(request("a.jpg")).getId();
+        for (int i = 1; i <= 500; i++) {
+            store.updateProgress(id, i * JobStore.PROGRESS_CHECKPOINT_BYTES, 500 * JobStore.PROGRESS_CHECKPOINT_BYTES);
+        }
+        store.close();
+        long fullLength = mJournalFile.length();
+
+        JobStore.open(mJournalFile).close();
+
+        assertTrue(mJournalFile.length() < fullLength / 10);
+        assertEquals(500 * JobStore.PROGRESS_CHECKPOINT_BYTES, JobStore.open(mJournalFile).get(id).getBytesDownloaded());
+    }
+
+    @Test
+    public void progressIsJournaledAtCheckpoints() throws Exception {
+        JobStore store = JobStore.open(mJournalFile);
+        long id = store.add(request("a.jpg")).getId();
+        long total = 4 * JobStore.PROGRESS_CHECKPOINT_BYTES;
+        long length = mJournalFile.length();
+        for (long bytes = 8192; bytes < JobStore.PROGRESS_CHECKPOINT_BYTES; bytes += 8192) {
+            store.updateProgress(id, bytes, total);
+        }
+        assertEquals(length, mJournalFile.length());
+        //in memory right away
+        assertEquals(JobStore.PROGRESS_CHECKPOINT_BYTES - 8192, store.get(id).getBytesDownloaded());
+
+        store.updateProgress(id, JobStore.PROGRESS_CHECKPOINT_BYTES + 10, total);
+        store.updateProgress(id, JobStore.PROGRESS_CHECKPOINT_BYTES + 20, total);
+        //process killed, no close()
+        assertEquals(JobStore.PROGRESS_CHECKPOINT_BYTES + 10, JobStore.open(mJournalFile).get(id).getBytesDownloaded());
+
+        store = JobStore.open(mJournalFile);
+        store.updateProgress(id, JobStore.PROGRESS_CHECKPOINT_BYTES + 30, total);
+        store.updateState(id, DownloadJob.State.FAILED);
+        assertEquals(JobStore.PROGRESS_CHECKPOINT_BYTES + 30, JobStore.open(mJournalFile).get(id).getBytesDownloaded());
+    }
+
+    @Test
+    public void unknownJournalFormatStartsEmpty() throws Exception {
+        appendToJournal("some other file\n");
+
+        assertTrue(JobStore.open(mJournalFile).getRecords().isEmpty());
+    }
+
+    @Test
+    public void inMemoryStoreWritesNoJournal() throws Exception {
+        JobStore store = JobStore.inMemory();
+        long id = store.add(request("a.jpg")).getId();
+        store.updateState(id, DownloadJob.State.FAILED);
+        store.updateProgress(id, JobStore.PROGRESS_CHECKPOINT_BYTES, 2 * JobStore.PROGRESS_CHECKPOINT_BYTES);
+        store.close();
+
+        assertEquals(DownloadJob.State.FAILED, store.get(id).getState());
+        assertEquals(JobStore.PROGRESS_CHECKPOINT_BYTES, store.get(id).getBytesDownloaded());
+        assertEquals(0, mTempFolder.getRoot().list().length);
+    }
+
+
+    private DownloadRequest request(String fileName) {
+        return new DownloadRequest.Builder()
+                .url("https://picsum.photos/" + fileName)
+                .targetFile(new File(mTempFolder.getRoot(), fileName))
+                .build();
+    }
+
+    private void appendToJournal(String text) throws Exception {
+        OutputStream out = new FileOutputStream(mJournalFile, true);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.darshan.android.imagedownloader.engine;
+
+import com.darshan.android.imagedownloader.metrics.Metrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.MockWebServer;
+import okio.ByteString;
+
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.randomBytes;
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.readFile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessingStageTest {
+    private static final int IMAGE_SIZE = 64 * 1024;
+    private static final byte[] PROCESSED = {1, 2, 3, 4};
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private DownloadEngine mEngine;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.setDispatcher(new RangeDispatcher(randomBytes(IMAGE_SIZE), "\"v1\""));
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mEngine != null) {
+            mEngine.shutdown();
+        }
+        mServer.shutdown();
+    }
+
+    @Test
+    public void replacedFileKeepsItsIndexEntries() throws Exception {
+        final List<String> threads = new ArrayList<>();
+        DownloadIndex index = DownloadIndex.open(new File(mTempFolder.getRoot(), "downloads.index"));
+        mEngine = new DownloadEngine.Builder()
+                .downloadIndex(index)
+                .postProcessor(new PostProcessor() {
+                    @Override
+                    public File process(DownloadRequest request, File file) throws IOException {
+                        synchronized (threads) {
+                            threads.add(Thread.currentThread().getName());
+                        }
+                        File replacement = new File(file.getPath() + ".processed");
+                        FileOutputStream out = new FileOutputStream(replacement);
+                        try {
+                            out.write(PROCESSED);
+                        } finally {
+                            out.close();
+                        }
+                        return replacement;
+                    }
+                }, 2, 4)
+                .build();
+
+        File file = download("picsum-1-100x100", "1.jpg");
+        awaitHandled(1);
+
+        assertArrayEquals(PROCESSED, readFile(file));
+        assertEquals(1, threads.size());
+        assertTrue(threads.get(0), threads.get(0).startsWith("ProcessingStage-"));
+        DownloadIndex.Entry entry = index.get("picsum-1-100x100");
+        assertNotNull(entry);
+        assertEquals(PROCESSED.length, entry.getLength());
+        //still known by what was downloaded
+        assertEquals(ByteString.of(randomBytes(IMAGE_SIZE)).sha256().hex(), entry.getSha256());
+
+        //answered from the index, neither downloaded nor processed again
+        assertEquals(file, download("picsum-1-100x100", "1.jpg"));
+        assertEquals(0, mEngine.getProcessingStage().getPendingCount());
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(1, threads.size());
+        assertEquals(1, mEngine.getMetrics().counter(ProcessingStage.REWRITTEN).sum());
+
+        //the same image under another key still ends up in the one file
+        assertEquals(file, download("picsum-1-200x200", "large.jpg"));
+        assertFalse(new File(mTempFolder.getRoot(), "large.jpg").exists());
+        assertEquals(file, index.get("picsum-1-100x100").getFile());
+    }
+
+    @Test
+    public void fullQueueHoldsBackDownloads() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger completed = new AtomicInteger();
+        mEngine = new DownloadEngine.Builder()
+                .maxConcurrentDownloads(1)
+                .postProcessor(new PostProcessor() {
+                    @Override
+                    public File process(DownloadRequest request, File file) throws IOException {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        return null;
+                    }
+                }, 1, 1)
+                .build();
+
+        List<RecordingListener> listeners = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            RecordingListener listener = new RecordingListener() {
+                @Override
+                public void onComplete(DownloadJob job, File file) {
+                    completed.incrementAndGet();
+                    super.onComplete(job, file);
+                }
+            };
+            listeners.add(listener);
+            mEngine.submit(request("picsum-" + i + "-100x100", i + ".jpg").build(), listener);
+        }
+
+        //one file processing, one queued, the worker waits for room with the third
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (completed.get() < 3 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(300);
+        assertEquals(3, completed.get());
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals(3, mEngine.getProcessingStage().getPendingCount());
+
+        release.countDown();
+        for (RecordingListener listener : listeners) {
+            listener.awaitFinished();
+            assertNull(listener.failure);
+        }
+        awaitHandled(5);
+        Metrics metrics = mEngine.getMetrics();
+        assertEquals(5, metrics.counter(ProcessingStage.PROCESSED).sum());
+        assertEquals(0, metrics.counter(ProcessingStage.REWRITTEN).sum());
+        assertTrue(metrics.timer(ProcessingStage.BACK_PRESSURE).getCount() >= 1);
+    }
+
+    @Test
+    public void failedProcessingKeepsTheDownload() throws Exception {
+        mEngine = new DownloadEngine.Builder()
+                .postProcessor(new PostProcessor() {
+                    @Override
+                    public File process(DownloadRequest request, File file) throws IOException {
+                        throw new IOException("not an image");
+                    }
+                }, 1, 1)
+                .build();
+
+        final List<IOException> failures = new ArrayList<>();
+        mEngine.getProcessingStage().addListener(new ProcessingStage.Listener() {
+            @Override
+            public void onProcessed(DownloadRequest request, File file, boolean replaced) {
+            }
+
+            @Override
+            public void onProcessingFailed(DownloadRequest request, File file, IOException e) {
+                synchronized (failures) {
+                    failures.add(e);
+                }
+            }
+        });
+
+        File file = download("picsum-1-100x100", "1.jpg");
+        awaitHandled(1);
+
+        assertArrayEquals(randomBytes(IMAGE_SIZE), readFile(file));
+        //the app gets to log why
+        assertEquals(1, failures.size());
+        assertEquals("not an image", failures.get(0).getMessage());
+        assertEquals(1, mEngine.getMetrics().counter(ProcessingStage.FAILED).sum());
+        assertEquals(0, mEngine.getMetrics().counter(ProcessingStage.PROCESSED).sum());
+    }
+
+
+    /* The file is handed over after the listener heard of it, so awaitIdle() alone could come too early */
+    private void awaitHandled(int count) throws InterruptedException {
+        Metrics metrics = mEngine.getMetrics();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (metrics.counter(ProcessingStage.PROCESSED).sum() + metrics.counter(ProcessingStage.FAILED).sum() < count
+                && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(mEngine.getProcessingStage().awaitIdle(10, TimeUnit.SECONDS));
+    }
+
+    private File download(String contentKey, String fileName) throws InterruptedException {
+        RecordingListener listener = new RecordingListener();
+        mEngine.submit(request(contentKey, fileName).build(), listener);
+        listener.awaitFinished();
+        if (listener.failure != null) {
+            throw new AssertionError(listener.failure);
+        }
+        return listener.completedFile;
+    }
+
+    private DownloadRequest.Builder request(String contentKey, String fileName) {
+        return new DownloadRequest.Builder()
+                .url(mServer.url("/download").url())
+                .targetFile(new File(mTempFolder.getRoot(), fileName))
+                .contentKey(contentKey);
+    }
+}
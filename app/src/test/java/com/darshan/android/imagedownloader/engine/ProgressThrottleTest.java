@@ -0,0 +1,82 @@
+package com.darshan.android.imagedownloader.engine;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProgressThrottleTest {
+    private static final long TOTAL = 1000;
+
+    private FakeClock mClock;
+    private ProgressThrottle mThrottle;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock();
+        mThrottle = new ProgressThrottle(mClock, 100, 5);
+    }
+
+    @Test
+    public void firstUpdatePasses() {
+        assertTrue(mThrottle.shouldEmit(10, TOTAL));
+    }
+
+    @Test
+    public void updatesWithinIntervalAreDropped() {
+        assertTrue(mThrottle.shouldEmit(10, TOTAL));
+        mClock.advance(50);
+        //20 percent further, but too soon
+        assertFalse(mThrottle.shouldEmit(210, TOTAL));
+        mClock.advance(50);
+        assertTrue(mThrottle.shouldEmit(220, TOTAL));
+    }
+
+    @Test
+    public void smallStepsAreDroppedEvenWhenDue() {
+        assertTrue(mThrottle.shouldEmit(0, TOTAL));
+        mClock.advance(500);
+        assertFalse(mThrottle.shouldEmit(40, TOTAL));
+        assertTrue(mThrottle.shouldEmit(50, TOTAL));
+    }
+
+    @Test
+    public void restartFromZeroPassesAfterReset() {
+        assertTrue(mThrottle.shouldEmit(600, TOTAL));
+        mClock.advance(500);
+        //the next attempt starts over, behind the last update
+        assertFalse(mThrottle.shouldEmit(100, TOTAL));
+        mThrottle.reset();
+        assertTrue(mThrottle.shouldEmit(100, TOTAL));
+        mClock.advance(500);
+        assertTrue(mThrottle.shouldEmit(200, TOTAL));
+    }
+
+    @Test
+    public void finalUpdateAlwaysPasses() {
+        assertTrue(mThrottle.shouldEmit(990, TOTAL));
+        assertTrue(mThrottle.shouldEmit(TOTAL, TOTAL));
+    }
+
+    @Test
+    public void unknownLengthOnlyUsesInterval() {
+        assertTrue(mThrottle.shouldEmit(1, -1));
+        assertFalse(mThrottle.shouldEmit(2, -1));
+        mClock.advance(100);
+        assertTrue(mThrottle.shouldEmit(3, -1));
+    }
+
+    @Test
+    public void thousandsOfReadsBecomeAtMostOneUpdatePerStep() {
+        int emitted = 0;
+        for (long bytes = 1; bytes <= TOTAL; bytes++) {
+            mClock.advance(1);
+            if (mThrottle.shouldEmit(bytes, TOTAL)) {
+                emitted++;
+            }
+        }
+        //one per 100ms (= 100 reads here), plus the final one
+        assertTrue("emitted " + emitted, emitted <= 11);
+    }
+}
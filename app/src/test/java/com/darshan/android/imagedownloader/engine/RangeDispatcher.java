@@ -0,0 +1,123 @@
+package com.darshan.android.imagedownloader.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+import okio.ByteString;
+
+/**
+ * Serves one image body, honouring Range and If-Range the way an HTTP/1.1 server does.
+ * Responses can be made to break off half way through the body to simulate a dropped connection,
+ * or to carry a flipped byte to simulate corruption on the way.
+ */
+class RangeDispatcher extends Dispatcher {
+    private volatile byte[] mBody;
+    private volatile String mETag;
+    private volatile boolean mSupportsRanges = true;
+    private volatile long mThrottleBytes;
+    private volatile long mThrottlePeriodMillis;
+    private volatile boolean mDeclaresDigest;
+    private int mResponsesToCut;
+    private int mResponsesToCorrupt;
+
+    final List<String> rangeHeaders = Collections.synchronizedList(new ArrayList<String>());
+    final List<String> ifRangeHeaders = Collections.synchronizedList(new ArrayList<String>());
+
+    RangeDispatcher(byte[] body, String eTag) {
+        mBody = body;
+        mETag = eTag;
+    }
+
+    /* Replaces the image, as if it changed on the server */
+    void setBody(byte[] body, String eTag) {
+        mBody = body;
+        mETag = eTag;
+    }
+
+    void setSupportsRanges(boolean supportsRanges) {
+        mSupportsRanges = supportsRanges;
+    }
+
+    /* Limits every response body to bytesPerPeriod per periodMillis */
+    void throttle(long bytesPerPeriod, long periodMillis) {
+        mThrottleBytes = bytesPerPeriod;
+        mThrottlePeriodMillis = periodMillis;
+    }
+
+    /* The next responses close the connection after writing half of their body */
+    synchronized void cutNextResponses(int count) {
+        mResponsesToCut = count;
+    }
+
+    /* Responses carry "Digest: SHA-256=..." of the whole (intact) image */
+    void setDeclaresDigest(boolean declaresDigest) {
+        mDeclaresDigest = declaresDigest;
+    }
+
+    /* The next responses flip the last byte of their body */
+    synchronized void corruptNextResponses(int count) {
+        mResponsesToCorrupt = count;
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) {
+        byte[] body = mBody;
+        String digest = "SHA-256=" + ByteString.of(body).sha256().base64();
+        synchronized (this) {
+            if (mResponsesToCorrupt > 0) {
+                mResponsesToCorrupt--;
+                body = body.clone();
+                body[body.length - 1] ^= 1;
+            }
+        }
+        String range = request.getHeader("Range");
+        String ifRange = request.getHeader("If-Range");
+        rangeHeaders.add(range);
+        ifRangeHeaders.add(ifRange);
+
+        MockResponse response;
+        boolean validatorMatches = ifRange == null || ifRange.equals(mETag);
+        if (range != null && mSupportsRanges && validatorMatches) {
+            int dash = range.indexOf('-');
+            int start = Integer.parseInt(range.substring("bytes=".length(), dash));
+            int end = dash == range.length() - 1
+                    ? body.length - 1
+                    : Math.min(Integer.parseInt(range.substring(dash + 1)), body.length - 1);
+            if (start >= body.length) {
+                return new MockResponse().setResponseCode(416)
+                        .setHeader("Content-Range", "bytes */" + body.length);
+            }
+            response = new MockResponse()
+                    .setResponseCode(206)
+                    .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + body.length)
+                    .setBody(new Buffer().write(body, start, end - start + 1));
+        } else {
+            response = new MockResponse().setBody(new Buffer().write(body));
+        }
+        response.setHeader("ETag", mETag);
+        if (mDeclaresDigest) {
+            response.setHeader("Digest", digest);
+        }
+        if (mSupportsRanges) {
+            response.setHeader("Accept-Ranges", "bytes");
+        }
+
+        if (mThrottleBytes > 0) {
+            response.throttleBody(mThrottleBytes, mThrottlePeriodMillis, TimeUnit.MILLISECONDS);
+        }
+        synchronized (this) {
+            if (mResponsesToCut > 0) {
+                mResponsesToCut--;
+                response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+            }
+        }
+        return response;
+    }
+}
@@ -0,0 +1,145 @@
+package com.darshan.android.imagedownloader.engine;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.randomBytes;
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.readFile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs in real time, the limiter really blocks.
+ */
+public class RateLimiterTest {
+    private static final int READ_SIZE = 8 * 1024;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    @Test
+    public void capsThroughput() throws Exception {
+        RateLimiter limiter = new RateLimiter(100 * 1024);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 25; i++) {
+            limiter.acquire(READ_SIZE);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        //200kB at 100kB/s, the first read is paid for after the fact
+        assertTrue("took " + elapsedMillis + "ms", elapsedMillis >= 1800 && elapsedMillis < 3000);
+    }
+
+    @Test
+    public void unlimitedNeverWaits() throws Exception {
+        RateLimiter limiter = new RateLimiter(RateLimiter.UNLIMITED);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            limiter.acquire(1024 * 1024);
+        }
+
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void newRateWakesUpWaitingTransfers() throws Exception {
+        final RateLimiter limiter = new RateLimiter(1024);
+        //a minute of debt
+        limiter.acquire(60 * 1024);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread transfer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    limiter.acquire(READ_SIZE);
+                    acquired.countDown();
+                } catch (InterruptedIOException ignored) {
+                }
+            }
+        });
+        transfer.start();
+        Thread.sleep(100);
+
+        limiter.setBytesPerSecond(RateLimiter.UNLIMITED);
+
+        assertTrue(acquired.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void interruptEndsTheWait() throws Exception {
+        final RateLimiter limiter = new RateLimiter(1024);
+        limiter.acquire(60 * 1024);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread transfer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    limiter.acquire(READ_SIZE);
+                } catch (InterruptedIOException e) {
+                    failure.set(e);
+                }
+            }
+        });
+        transfer.start();
+        Thread.sleep(100);
+
+        transfer.interrupt();
+        transfer.join(1000);
+
+        assertTrue(failure.get() instanceof InterruptedIOException);
+    }
+
+    @Test
+    public void downloadIsCappedByItsOwnLimitAndTheEngines() throws Exception {
+        byte[] body = randomBytes(256 * 1024);
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody(new Buffer().write(body)));
+        server.enqueue(new MockResponse().setBody(new Buffer().write(body)));
+        server.start();
+        DownloadEngine engine = new DownloadEngine.Builder().bandwidthLimit(256 * 1024).build();
+        try {
+            File target = new File(mTempFolder.getRoot(), "image.jpg");
+            DownloadRequest.Builder request = new DownloadRequest.Builder()
+                    .url(server.url("/1/download").url())
+                    .targetFile(target);
+
+            //the request's own cap is the lower one
+            long elapsedMillis = timeDownload(engine, request.maxBytesPerSecond(128 * 1024).build());
+            assertTrue("took " + elapsedMillis + "ms", elapsedMillis >= 1500);
+            assertArrayEquals(body, readFile(target));
+
+            //only the engine's cap
+            assertTrue(target.delete());
+            elapsedMillis = timeDownload(engine, request.maxBytesPerSecond(RateLimiter.UNLIMITED).build());
+            assertTrue("took " + elapsedMillis + "ms", elapsedMillis >= 700 && elapsedMillis < 1500);
+            assertArrayEquals(body, readFile(target));
+        } finally {
+            engine.shutdown();
+            server.shutdown();
+        }
+    }
+
+
+    private static long timeDownload(DownloadEngine engine, DownloadRequest request) throws InterruptedException {
+        RecordingListener listener = new RecordingListener();
+        long start = System.nanoTime();
+        engine.submit(request, listener);
+        listener.awaitFinished();
+        assertNull(listener.failure);
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
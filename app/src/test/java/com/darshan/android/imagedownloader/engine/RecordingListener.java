@@ -0,0 +1,59 @@
+package com.darshan.android.imagedownloader.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DownloadListener for tests, remembers the last event of a job and lets the test wait for it.
+ */
+class RecordingListener implements DownloadListener {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch firstProgress = new CountDownLatch(1);
+    final CountDownLatch finished = new CountDownLatch(1);
+
+    volatile int progressCalls;
+    volatile long lastBytesDownloaded;
+    volatile long lastTotalBytes;
+    volatile File completedFile;
+    volatile IOException failure;
+    volatile boolean cancelled;
+
+    @Override
+    public void onStart(DownloadJob job) {
+        started.countDown();
+    }
+
+    @Override
+    public void onProgress(DownloadJob job, long bytesDownloaded, long totalBytes) {
+        progressCalls++;
+        lastBytesDownloaded = bytesDownloaded;
+        lastTotalBytes = totalBytes;
+        firstProgress.countDown();
+    }
+
+    @Override
+    public void onComplete(DownloadJob job, File file) {
+        completedFile = file;
+        finished.countDown();
+    }
+
+    @Override
+    public void onFailure(DownloadJob job, IOException e) {
+        failure = e;
+        finished.countDown();
+    }
+
+    @Override
+    public void onCancelled(DownloadJob job) {
+        cancelled = true;
+        finished.countDown();
+    }
+
+    void awaitFinished() throws InterruptedException {
+        if (!finished.await(10, TimeUnit.SECONDS)) {
+            throw new AssertionError("Download did not finish in time");
+        }
+    }
+}
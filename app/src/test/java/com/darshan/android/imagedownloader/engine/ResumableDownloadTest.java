@@ -0,0 +1,176 @@
+package com.darshan.android.imagedownloader.engine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockWebServer;
+
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.randomBytes;
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.readFile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads against a server that drops the connection half way through the body.
+ */
+public class ResumableDownloadTest {
+    private static final int IMAGE_SIZE = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private DownloadEngine mEngine;
+    private File mTargetFile;
+    private File mPartFile;
+    private File mMetaFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        mEngine = new DownloadEngine.Builder().build();
+        mTargetFile = new File(mTempFolder.getRoot(), "image.jpg");
+        mPartFile = new File(mTempFolder.getRoot(), "image.jpg.part");
+        mMetaFile = new File(mTempFolder.getRoot(), "image.jpg.part.meta");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mEngine.shutdown();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void failedDownloadLeavesPartFileBehind() throws Exception {
+        RangeDispatcher dispatcher = new RangeDispatcher(randomBytes(IMAGE_SIZE), "\"v1\"");
+        dispatcher.cutNextResponses(1);
+        mServer.setDispatcher(dispatcher);
+
+        RecordingListener listener = download();
+
+        assertNotNull(listener.failure);
+        assertFalse(mTargetFile.exists());
+        assertTrue(mPartFile.length() > 0);
+        assertTrue(mPartFile.length() < IMAGE_SIZE);
+        assertTrue(mMetaFile.isFile());
+    }
+
+    @Test
+    public void retryResumesWithRangeRequest() throws Exception {
+        byte[] body = randomBytes(IMAGE_SIZE);
+        RangeDispatcher dispatcher = new RangeDispatcher(body, "\"v1\"");
+        dispatcher.cutNextResponses(1);
+        mServer.setDispatcher(dispatcher);
+
+        download();
+        long partLength = mPartFile.length();
+        RecordingListener listener = download();
+
+        assertNull(listener.failure);
+        assertArrayEquals(body, readFile(mTargetFile));
+        assertEquals("bytes=" + partLength + "-", dispatcher.rangeHeaders.get(1));
+        assertEquals("\"v1\"", dispatcher.ifRangeHeaders.get(1));
+        //total reported against the full image, not the remaining range
+        assertEquals(IMAGE_SIZE, listener.lastTotalBytes);
+        assertFalse(mPartFile.exists());
+        assertFalse(mMetaFile.exists());
+    }
+
+    @Test
+    public void serverIgnoringRangeRestartsFromZero() throws Exception {
+        byte[] body = randomBytes(IMAGE_SIZE);
+        RangeDispatcher dispatcher = new RangeDispatcher(body, "\"v1\"");
+        dispatcher.cutNextResponses(1);
+        mServer.setDispatcher(dispatcher);
+        download();
+
+        dispatcher.setSupportsRanges(false);
+        RecordingListener listener = download();
+
+        assertNull(listener.failure);
+        assertNotNull(dispatcher.rangeHeaders.get(1));
+        assertArrayEquals(body, readFile(mTargetFile));
+    }
+
+    @Test
+    public void changedImageRestartsFromZero() throws Exception {
+        RangeDispatcher dispatcher = new RangeDispatcher(randomBytes(IMAGE_SIZE), "\"v1\"");
+        dispatcher.cutNextResponses(1);
+        mServer.setDispatcher(dispatcher);
+        download();
+
+        byte[] newBody = randomBytes(IMAGE_SIZE / 2);
+        dispatcher.setBody(newBody, "\"v2\"");
+        RecordingListener listener = download();
+
+        assertNull(listener.failure);
+        assertArrayEquals(newBody, readFile(mTargetFile));
+    }
+
+    @Test
+    public void resumesAcrossSeveralDroppedConnections() throws Exception {
+        byte[] body = randomBytes(IMAGE_SIZE);
+        RangeDispatcher dispatcher = new RangeDispatcher(body, "\"v1\"");
+        dispatcher.cutNextResponses(3);
+        mServer.setDispatcher(dispatcher);
+
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(download().failure);
+        }
+        RecordingListener listener = download();
+
+        assertNull(listener.failure);
+        assertArrayEquals(body, readFile(mTargetFile));
+        //every retry only asked for what was still missing
+        assertEquals(4, dispatcher.rangeHeaders.size());
+        assertNull(dispatcher.rangeHeaders.get(0));
+        for (int i = 1; i < 4; i++) {
+            assertNotNull(dispatcher.rangeHeaders.get(i));
+        }
+    }
+
+    @Test
+    public void cancelledDownloadRemovesPartFile() throws Exception {
+        RangeDispatcher dispatcher = new RangeDispatcher(randomBytes(IMAGE_SIZE), "\"v1\"");
+        dispatcher.throttle(4 * 1024, 100);
+        mServer.setDispatcher(dispatcher);
+
+        RecordingListener listener = new RecordingListener();
+        DownloadJob job = mEngine.submit(request(), listener);
+        assertTrue(listener.firstProgress.await(10, TimeUnit.SECONDS));
+        assertTrue(mPartFile.exists());
+        job.cancel(true);
+        listener.awaitFinished();
+
+        assertTrue(listener.cancelled);
+        assertFalse(mPartFile.exists());
+        assertFalse(mMetaFile.exists());
+        assertFalse(mTargetFile.exists());
+    }
+
+
+    private RecordingListener download() throws InterruptedException {
+        RecordingListener listener = new RecordingListener();
+        mEngine.submit(request(), listener);
+        listener.awaitFinished();
+        return listener;
+    }
+
+    private DownloadRequest request() {
+        return new DownloadRequest.Builder()
+                .url(mServer.url("/1/download").url())
+                .targetFile(mTargetFile)
+                .build();
+    }
+}
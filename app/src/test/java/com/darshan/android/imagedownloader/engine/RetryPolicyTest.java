@@ -0,0 +1,62 @@
+package com.darshan.android.imagedownloader.engine;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+    private final RetryPolicy mPolicy = new RetryPolicy(5, 1000, 5000, TimeUnit.MILLISECONDS, new Random(42));
+
+    @Test
+    public void networkTroubleAndOverloadAreTransient() {
+        assertTrue(mPolicy.isTransient(new SocketTimeoutException("connect timed out")));
+        assertTrue(mPolicy.isTransient(new ConnectException("refused")));
+        assertTrue(mPolicy.isTransient(new EOFException("truncated body")));
+        assertTrue(mPolicy.isTransient(new CorruptDownloadException("digest mismatch")));
+        assertTrue(mPolicy.isTransient(new HttpStatusException("", 503, -1)));
+        assertTrue(mPolicy.isTransient(new HttpStatusException("", 429, 10000)));
+        assertTrue(mPolicy.isTransient(new HttpStatusException("", 408, -1)));
+    }
+
+    @Test
+    public void missingImageOrUnwritableTargetFailsRightAway() {
+        assertFalse(mPolicy.isTransient(new HttpStatusException("", 404, -1)));
+        assertFalse(mPolicy.isTransient(new HttpStatusException("", 501, -1)));
+        assertFalse(mPolicy.isTransient(new FileNotFoundException("/Pictures/Picsum/1.jpg.part")));
+        assertEquals(-1, mPolicy.retryDelayMillis(1, new HttpStatusException("", 404, -1)));
+    }
+
+    @Test
+    public void delayDoublesWithJitterUpToTheMaximum() {
+        IOException e = new SocketTimeoutException();
+        long[] ceilings = {1000, 2000, 4000, 5000};
+        for (int attempt = 1; attempt <= 4; attempt++) {
+            long ceiling = ceilings[attempt - 1];
+            for (int i = 0; i < 100; i++) {
+                long delay = mPolicy.retryDelayMillis(attempt, e);
+                assertTrue(attempt + ": " + delay, delay >= ceiling / 2 && delay <= ceiling);
+            }
+        }
+    }
+
+    @Test
+    public void retryAfterIsWaitedOut() {
+        assertEquals(30000, mPolicy.retryDelayMillis(1, new HttpStatusException("", 429, 30000)));
+    }
+
+    @Test
+    public void lastAttemptIsFinal() {
+        assertEquals(-1, mPolicy.retryDelayMillis(5, new SocketTimeoutException()));
+        assertEquals(-1, RetryPolicy.NONE.retryDelayMillis(1, new SocketTimeoutException()));
+    }
+}
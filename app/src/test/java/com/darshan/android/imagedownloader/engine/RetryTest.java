@@ -0,0 +1,214 @@
+package com.darshan.android.imagedownloader.engine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.randomBytes;
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.readFile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads against a failing server, on a fake clock that only the test moves. Backoff delays
+ * of the policy under test are between half and all of 1, 2, 4 ... seconds.
+ */
+public class RetryTest {
+    private static final int IMAGE_SIZE = 32 * 1024;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private FakeClock mClock;
+    private DownloadEngine mEngine;
+    private byte[] mBody;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        mClock = new FakeClock();
+        mBody = randomBytes(IMAGE_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mEngine.shutdown();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void transientFailuresAreRetriedAfterBackoff() throws Exception {
+        mEngine = engine(3).build();
+        mServer.enqueue(new MockResponse().setResponseCode(503));
+        mServer.enqueue(new MockResponse().setResponseCode(503));
+        mServer.enqueue(image());
+
+        RecordingListener listener = new RecordingListener();
+        DownloadJob job = mEngine.submit(request("image.jpg"), listener);
+        awaitRetryScheduled(1);
+        assertEquals(1, mServer.getRequestCount());
+
+        //too early for the first retry
+        advance(499);
+        assertEquals(1, mEngine.getQueuedJobCount());
+
+        advance(501);
+        awaitRetryScheduled(1);
+        assertEquals(2, mServer.getRequestCount());
+
+        advance(2000);
+        listener.awaitFinished();
+
+        assertNull(listener.failure);
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals(2, job.getFailedAttempts());
+        assertArrayEquals(mBody, readFile(listener.completedFile));
+    }
+
+    @Test
+    public void retryAfterIsWaitedOut() throws Exception {
+        mEngine = engine(3).build();
+        mServer.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "120"));
+        mServer.enqueue(image());
+
+        RecordingListener listener = new RecordingListener();
+        mEngine.submit(request("image.jpg"), listener);
+        awaitRetryScheduled(1);
+
+        //backoff alone would have been over long ago
+        advance(60000);
+        assertEquals(1, mEngine.getQueuedJobCount());
+        advance(60000);
+        listener.awaitFinished();
+
+        assertNull(listener.failure);
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void missingImageFailsRightAway() throws Exception {
+        mEngine = engine(3).build();
+        mServer.enqueue(new MockResponse().setResponseCode(404));
+
+        RecordingListener listener = new RecordingListener();
+        mEngine.submit(request("image.jpg"), listener);
+        listener.awaitFinished();
+
+        assertEquals(404, ((HttpStatusException) listener.failure).getCode());
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void lastFailureIsReportedWhenAttemptsRunOut() throws Exception {
+        mEngine = engine(2).build();
+        mServer.enqueue(new MockResponse().setResponseCode(503));
+        mServer.enqueue(new MockResponse().setResponseCode(502));
+
+        RecordingListener listener = new RecordingListener();
+        mEngine.submit(request("image.jpg"), listener);
+        awaitRetryScheduled(1);
+        advance(1000);
+        listener.awaitFinished();
+
+        assertEquals(502, ((HttpStatusException) listener.failure).getCode());
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void failingHostIsPausedUntilATrialSucceeds() throws Exception {
+        mEngine = engine(10)
+                .maxConcurrentDownloads(1)
+                .circuitBreaker(2, 30, TimeUnit.SECONDS)
+                .build();
+        FailingDispatcher dispatcher = new FailingDispatcher();
+        mServer.setDispatcher(dispatcher);
+
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        mEngine.submit(request("first.jpg"), first);
+        mEngine.submit(request("second.jpg"), second);
+        //one failure each trips the breaker
+        awaitRetryScheduled(2);
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(CircuitBreaker.State.OPEN, mEngine.getCircuitBreaker().getState(mServer.getHostName()));
+
+        //backoff is over, but the host is left alone
+        advance(5000);
+        RecordingListener third = new RecordingListener();
+        mEngine.submit(request("third.jpg"), third);
+        assertEquals(3, mEngine.getQueuedJobCount());
+        assertEquals(2, mServer.getRequestCount());
+
+        dispatcher.failing = false;
+        advance(25000);
+        first.awaitFinished();
+        second.awaitFinished();
+        third.awaitFinished();
+
+        assertNull(first.failure);
+        assertNull(second.failure);
+        assertNull(third.failure);
+        assertEquals(5, mServer.getRequestCount());
+        assertEquals(CircuitBreaker.State.CLOSED, mEngine.getCircuitBreaker().getState(mServer.getHostName()));
+    }
+
+
+    private DownloadEngine.Builder engine(int maxAttempts) {
+        return new DownloadEngine.Builder()
+                .clock(mClock)
+                .retryPolicy(new RetryPolicy(maxAttempts, 1, 60, TimeUnit.SECONDS, new Random(7)));
+    }
+
+    private DownloadRequest request(String fileName) {
+        return new DownloadRequest.Builder()
+                .url(mServer.url("/1/download").url())
+                .targetFile(new File(mTempFolder.getRoot(), fileName))
+                .build();
+    }
+
+    private MockResponse image() {
+        return new MockResponse().setBody(new Buffer().write(mBody));
+    }
+
+    /* Moves the fake clock and lets the engine look at its queue, as its wake-up timer would */
+    private void advance(long millis) {
+        mClock.advance(millis);
+        mEngine.promoteJobs();
+    }
+
+    /* Waits until the failed attempts are back in the queue and nothing runs */
+    private void awaitRetryScheduled(int queuedJobs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mEngine.getQueuedJobCount() != queuedJobs || mEngine.getRunningJobCount() != 0) {
+            assertTrue("Retry was not scheduled in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+
+    /* Answers 503 while failing, the image afterwards */
+    private class FailingDispatcher extends Dispatcher {
+        volatile boolean failing = true;
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            return failing ? new MockResponse().setResponseCode(503) : image();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.darshan.android.imagedownloader.engine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockWebServer;
+
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.randomBytes;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Throughput of 1/2/4/8 segments against a server that limits every connection to the same
+ * bandwidth, like a CDN shaping per connection does.
+ * Excluded from the normal test run, use ./gradlew test -Pbenchmarks
+ */
+public class SegmentedDownloadBenchmark {
+    private static final int IMAGE_SIZE = 4 * 1024 * 1024;
+    //16kB every 10ms, about 1.6MB/s per connection
+    private static final long THROTTLE_BYTES = 16 * 1024;
+    private static final long THROTTLE_PERIOD_MILLIS = 10;
+    private static final int RUNS = 3;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private DownloadEngine mEngine;
+
+    @Before
+    public void setUp() throws Exception {
+        RangeDispatcher dispatcher = new RangeDispatcher(randomBytes(IMAGE_SIZE), "\"v1\"");
+        dispatcher.throttle(THROTTLE_BYTES, THROTTLE_PERIOD_MILLIS);
+        mServer = new MockWebServer();
+        mServer.setDispatcher(dispatcher);
+        mServer.start();
+        mEngine = new DownloadEngine.Builder().build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mEngine.shutdown();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void compareSegmentCounts() throws Exception {
+        System.out.println("segments    avg ms      MB/s");
+        double singleStreamMillis = 0;
+        double eightSegmentMillis = 0;
+        for (int segments : new int[]{1, 2, 4, 8}) {
+            double millis = averageMillis(segments);
+            double megabytesPerSecond = (IMAGE_SIZE / (1024.0 * 1024.0)) / (millis / 1000.0);
+            System.out.println(String.format("%8d %9.0f %9.2f", segments, millis, megabytesPerSecond));
+            if (segments == 1) {
+                singleStreamMillis = millis;
+            } else if (segments == 8) {
+                eightSegmentMillis = millis;
+            }
+        }
+        assertTrue("8 segments were not faster than a single stream",
+                eightSegmentMillis < singleStreamMillis / 2);
+    }
+
+    private double averageMillis(int segments) throws Exception {
+        long totalNanos = 0;
+        for (int run = 0; run < RUNS; run++) {
+            File target = new File(mTempFolder.getRoot(), "image-" + segments + "-" + run + ".jpg");
+            long start = System.nanoTime();
+            mEngine.submit(new DownloadRequest.Builder()
+                    .url(mServer.url("/1/download").url())
+                    .targetFile(target)
+                    .segments(segments)
+                    .build(), new RecordingListener()).get(60, TimeUnit.SECONDS);
+            totalNanos += System.nanoTime() - start;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(totalNanos / RUNS);
+    }
+}
@@ -0,0 +1,120 @@
+package com.darshan.android.imagedownloader.engine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import okhttp3.mockwebserver.MockWebServer;
+
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.randomBytes;
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.readFile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedDownloadTest {
+    private static final int IMAGE_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private DownloadEngine mEngine;
+    private File mTargetFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        mEngine = new DownloadEngine.Builder().build();
+        mTargetFile = new File(mTempFolder.getRoot(), "image.jpg");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mEngine.shutdown();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void segmentsAreReassembledAtTheirOffsets() throws Exception {
+        byte[] body = randomBytes(IMAGE_SIZE);
+        RangeDispatcher dispatcher = new RangeDispatcher(body, "\"v1\"");
+        mServer.setDispatcher(dispatcher);
+
+        RecordingListener listener = download(4);
+
+        assertNull(listener.failure);
+        assertArrayEquals(body, readFile(mTargetFile));
+        //probe + 4 segments
+        assertEquals(5, mServer.getRequestCount());
+        assertEquals("bytes=0-0", dispatcher.rangeHeaders.get(0));
+        assertTrue(dispatcher.rangeHeaders.contains("bytes=0-262143"));
+        assertTrue(dispatcher.rangeHeaders.contains("bytes=786432-1048575"));
+        //progress is the sum over all segments
+        assertEquals(IMAGE_SIZE, listener.lastBytesDownloaded);
+        assertEquals(IMAGE_SIZE, listener.lastTotalBytes);
+        assertFalse(new File(mTargetFile.getPath() + ".part").exists());
+    }
+
+    @Test
+    public void fallsBackToSingleStreamWithoutRangeSupport() throws Exception {
+        byte[] body = randomBytes(IMAGE_SIZE);
+        RangeDispatcher dispatcher = new RangeDispatcher(body, "\"v1\"");
+        dispatcher.setSupportsRanges(false);
+        mServer.setDispatcher(dispatcher);
+
+        RecordingListener listener = download(4);
+
+        assertNull(listener.failure);
+        assertArrayEquals(body, readFile(mTargetFile));
+        //probe + one full download
+        assertEquals(2, mServer.getRequestCount());
+        assertNull(dispatcher.rangeHeaders.get(1));
+    }
+
+    @Test
+    public void smallImageIsNotSplit() throws Exception {
+        byte[] body = randomBytes((int) SegmentedDownload.MIN_SEGMENT_SIZE);
+        mServer.setDispatcher(new RangeDispatcher(body, "\"v1\""));
+
+        RecordingListener listener = download(8);
+
+        assertNull(listener.failure);
+        assertArrayEquals(body, readFile(mTargetFile));
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void droppedSegmentFailsTheJob() throws Exception {
+        RangeDispatcher dispatcher = new RangeDispatcher(randomBytes(IMAGE_SIZE), "\"v1\"");
+        //the probe and one of the segments
+        dispatcher.cutNextResponses(2);
+        mServer.setDispatcher(dispatcher);
+
+        RecordingListener listener = download(4);
+
+        assertNotNull(listener.failure);
+        assertFalse(mTargetFile.exists());
+        assertFalse(new File(mTargetFile.getPath() + ".part").exists());
+    }
+
+
+    private RecordingListener download(int segments) throws InterruptedException {
+        RecordingListener listener = new RecordingListener();
+        mEngine.submit(new DownloadRequest.Builder()
+                .url(mServer.url("/1/download").url())
+                .targetFile(mTargetFile)
+                .segments(segments)
+                .build(), listener);
+        listener.awaitFinished();
+        return listener;
+    }
+}
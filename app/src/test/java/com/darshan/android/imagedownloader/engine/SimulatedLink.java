@@ -0,0 +1,109 @@
+package com.darshan.android.imagedownloader.engine;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Scripted network between the app and a server, driving a {@link ConcurrencyController} the way
+ * the engine does, on a {@link FakeClock}.
+ * <p>
+ * The link carries {@code bandwidth} bytes per second, shared evenly by the downloads that
+ * transfer, and no single connection gets more than {@code perConnection} (its TCP window over
+ * the round trip time). Time to first byte is {@code latencyMillis} while the connections ask for
+ * no more than the link carries, and grows in proportion to the excess once they do, like a
+ * bottleneck buffer filling up. There is always another image waiting to be downloaded.
+ */
+class SimulatedLink {
+    private static final long TICK_MILLIS = 20;
+
+    private final long mBandwidth;
+    private final long mPerConnection;
+    private final long mLatencyMillis;
+    private final int mImageBytes;
+
+    SimulatedLink(long bandwidth, long perConnection, long latencyMillis, int imageBytes) {
+        mBandwidth = bandwidth;
+        mPerConnection = perConnection;
+        mLatencyMillis = latencyMillis;
+        mImageBytes = imageBytes;
+    }
+
+    /* Wi-Fi: 2 MB/s, 256 kB/s per connection, 8 connections fill it */
+    static SimulatedLink wifi() {
+        return new SimulatedLink(2 * 1024 * 1024, 256 * 1024, 40, 1024 * 1024);
+    }
+
+    /* 3G: 96 kB/s, 64 kB/s per connection, 2 connections fill it */
+    static SimulatedLink cellular() {
+        return new SimulatedLink(96 * 1024, 64 * 1024, 300, 256 * 1024);
+    }
+
+    /**
+     * Downloads for {@code durationMillis}, starting as many at once as the controller allows.
+     * @return the controller's limit at every tick
+     */
+    List<Integer> run(ConcurrencyController controller, FakeClock clock, long durationMillis) {
+        List<Integer> limits = new ArrayList<>();
+        List<Transfer> transfers = new ArrayList<>();
+        for (long elapsed = 0; elapsed < durationMillis; elapsed += TICK_MILLIS) {
+            while (transfers.size() < controller.getLimit()) {
+                long latency = latency(transfers.size() + 1);
+                transfers.add(new Transfer(clock.nowMillis() + latency, latency));
+                controller.onInFlightChanged(transfers.size());
+            }
+            clock.advance(TICK_MILLIS);
+
+            long now = clock.nowMillis();
+            int transferring = 0;
+            for (Transfer transfer : transfers) {
+                if (transfer.mFirstByteAtMillis <= now) {
+                    transferring++;
+                }
+            }
+            long rate = transferring > 0 ? Math.min(mPerConnection, mBandwidth / transferring) : 0;
+            Iterator<Transfer> iterator = transfers.iterator();
+            while (iterator.hasNext()) {
+                Transfer transfer = iterator.next();
+                if (transfer.mFirstByteAtMillis > now) {
+                    continue;
+                }
+                if (!transfer.mResponded) {
+                    transfer.mResponded = true;
+                    controller.onLatency(transfer.mLatencyMillis);
+                }
+                long bytes = Math.min(transfer.mRemaining, rate * TICK_MILLIS / 1000);
+                transfer.mRemaining -= bytes;
+                controller.onBytes(bytes);
+                if (transfer.mRemaining == 0) {
+                    iterator.remove();
+                    controller.onInFlightChanged(transfers.size());
+                }
+            }
+            limits.add(controller.getLimit());
+        }
+        return limits;
+    }
+
+    /* Time to first byte with this many connections open */
+    private long latency(int connections) {
+        long demand = connections * mPerConnection;
+        if (demand <= mBandwidth) {
+            return mLatencyMillis;
+        }
+        return mLatencyMillis + mLatencyMillis * (demand - mBandwidth) / mBandwidth;
+    }
+
+
+    private class Transfer {
+        private final long mFirstByteAtMillis;
+        private final long mLatencyMillis;
+        private long mRemaining = mImageBytes;
+        private boolean mResponded;
+
+        Transfer(long firstByteAtMillis, long latencyMillis) {
+            mFirstByteAtMillis = firstByteAtMillis;
+            mLatencyMillis = latencyMillis;
+        }
+    }
+}
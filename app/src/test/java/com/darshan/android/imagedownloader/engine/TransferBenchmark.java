@@ -0,0 +1,111 @@
+package com.darshan.android.imagedownloader.engine;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.randomBytes;
+
+/**
+ * Copy cost of the old DownloadAsyncTask loop (1kB byte[] through an 8kB BufferedInputStream into
+ * an unbuffered FileOutputStream) against TransferStage, for 100kB to 50MB images.
+ * The body comes from memory so only the copy into the file is measured.
+ * Excluded from the normal test run, use ./gradlew test -Pbenchmarks
+ */
+public class TransferBenchmark {
+    private static final int[] SIZES = {100 * 1024, 1024 * 1024, 10 * 1024 * 1024, 50 * 1024 * 1024};
+    private static final int[] CHUNK_SIZES = {16 * 1024, 64 * 1024, 256 * 1024};
+    private static final int WARMUP_RUNS = 2;
+    private static final int RUNS = 5;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private final TransferStage.Listener mNoOpListener = new TransferStage.Listener() {
+        @Override
+        public void onTransferred(int byteCount) {
+        }
+    };
+
+    @Test
+    public void compareCopyLoops() throws Exception {
+        System.out.println(String.format("%10s %12s %10s %10s", "size", "path", "median ms", "MB/s"));
+        for (int size : SIZES) {
+            byte[] body = randomBytes(size);
+            report(size, "legacy 1kB", medianMillis(body, 0));
+            for (int chunkSize : CHUNK_SIZES) {
+                report(size, "nio " + chunkSize / 1024 + "kB", medianMillis(body, chunkSize));
+            }
+        }
+    }
+
+    private void report(int size, String path, double millis) {
+        double megabytesPerSecond = (size / (1024.0 * 1024.0)) / (Math.max(millis, 0.001) / 1000.0);
+        System.out.println(String.format("%9dk %12s %10.2f %10.1f", size / 1024, path, millis, megabytesPerSecond));
+    }
+
+    /* chunkSize 0 runs the legacy loop */
+    private double medianMillis(byte[] body, int chunkSize) throws IOException {
+        double[] millis = new double[RUNS];
+        for (int run = -WARMUP_RUNS; run < RUNS; run++) {
+            File target = mTempFolder.newFile();
+            long start = System.nanoTime();
+            if (chunkSize == 0) {
+                legacyCopy(body, target);
+            } else {
+                stageCopy(body, target, chunkSize);
+            }
+            long elapsed = System.nanoTime() - start;
+            if (run >= 0) {
+                millis[run] = elapsed / 1000000.0;
+            }
+            target.delete();
+        }
+        Arrays.sort(millis);
+        return millis[RUNS / 2];
+    }
+
+    private static void legacyCopy(byte[] body, File target) throws IOException {
+        InputStream inputStream = new BufferedInputStream(new ByteArrayInputStream(body), 8192);
+        OutputStream outputStream = new FileOutputStream(target);
+        try {
+            byte[] data = new byte[1024];
+            int count;
+            while ((count = inputStream.read(data)) != -1) {
+                outputStream.write(data, 0, count);
+            }
+            outputStream.flush();
+        } finally {
+            outputStream.close();
+            inputStream.close();
+        }
+    }
+
+    private void stageCopy(byte[] body, File target, int chunkSize) throws IOException {
+        TransferStage stage = new TransferStage(chunkSize, TransferStage.FsyncPolicy.NONE);
+        DownloadJob job = new DownloadJob(null, new DownloadRequest.Builder()
+                .url("http://localhost/image")
+                .targetFile(target)
+                .build(), new RecordingListener(), 0, new ProgressThrottle(Clock.SYSTEM, 0, 0));
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            stage.transfer(job, Channels.newChannel(new ByteArrayInputStream(body)), channel, 0, -1,
+                    null, mNoOpListener);
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.darshan.android.imagedownloader.engine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+import okio.ByteString;
+
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.randomBytes;
+import static com.darshan.android.imagedownloader.engine.DownloadEngineTest.readFile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads against a server that truncates or corrupts the body.
+ */
+public class VerifiedDownloadTest {
+    private static final int IMAGE_SIZE = 512 * 1024;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private DownloadEngine mEngine;
+    private File mTargetFile;
+    private File mPartFile;
+    private File mMetaFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        mEngine = new DownloadEngine.Builder().build();
+        mTargetFile = new File(mTempFolder.getRoot(), "image.jpg");
+        mPartFile = new File(mTempFolder.getRoot(), "image.jpg.part");
+        mMetaFile = new File(mTempFolder.getRoot(), "image.jpg.part.meta");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mEngine.shutdown();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void truncatedBodyNeverReachesTarget() throws Exception {
+        final byte[] body = randomBytes(IMAGE_SIZE);
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                //declares the whole image but ends cleanly half way through
+                return new MockResponse()
+                        .setBody(new Buffer().write(body, 0, IMAGE_SIZE / 2))
+                        .setHeader("Content-Length", IMAGE_SIZE)
+                        .setSocketPolicy(SocketPolicy.DISCONNECT_AT_END);
+            }
+        });
+
+        RecordingListener listener = download(request());
+
+        assertNotNull(listener.failure);
+        assertFalse(mTargetFile.exists());
+        assertTrue(mPartFile.length() <= IMAGE_SIZE / 2);
+    }
+
+    @Test
+    public void corruptBodyIsDiscardedAndRetriedFromScratch() throws Exception {
+        byte[] body = randomBytes(IMAGE_SIZE);
+        RangeDispatcher dispatcher = new RangeDispatcher(body, "\"v1\"");
+        dispatcher.setDeclaresDigest(true);
+        dispatcher.corruptNextResponses(1);
+        mServer.setDispatcher(dispatcher);
+
+        RecordingListener listener = download(request());
+
+        assertTrue(listener.failure instanceof CorruptDownloadException);
+        assertFalse(mTargetFile.exists());
+        assertFalse(mPartFile.exists());
+        assertFalse(mMetaFile.exists());
+
+        listener = download(request());
+
+        assertNull(listener.failure);
+        assertArrayEquals(body, readFile(mTargetFile));
+        //nothing of the corrupt attempt was resumed
+        assertNull(dispatcher.rangeHeaders.get(1));
+    }
+
+    @Test
+    public void resumedDownloadIsVerifiedAsAWhole() throws Exception {
+        byte[] body = randomBytes(IMAGE_SIZE);
+        RangeDispatcher dispatcher = new RangeDispatcher(body, "\"v1\"");
+        dispatcher.setDeclaresDigest(true);
+        dispatcher.cutNextResponses(1);
+        mServer.setDispatcher(dispatcher);
+        assertNotNull(download(request()).failure);
+
+        //the resumed range arrives corrupt
+        dispatcher.corruptNextResponses(1);
+        RecordingListener listener = download(request());
+
+        assertNotNull(dispatcher.rangeHeaders.get(1));
+        assertTrue(listener.failure instanceof CorruptDownloadException);
+        assertFalse(mTargetFile.exists());
+        assertFalse(mPartFile.exists());
+
+        listener = download(request());
+
+        assertNull(listener.failure);
+        assertArrayEquals(body, readFile(mTargetFile));
+    }
+
+    @Test
+    public void corruptSegmentIsCaught() throws Exception {
+        byte[] body = randomBytes(IMAGE_SIZE);
+        RangeDispatcher dispatcher = new RangeDispatcher(body, "\"v1\"");
+        dispatcher.setDeclaresDigest(true);
+        //the probe and all four segments, the last one carries the flipped byte
+        dispatcher.corruptNextResponses(5);
+        mServer.setDispatcher(dispatcher);
+        DownloadRequest request = request().segments(4).build();
+
+        RecordingListener listener = download(request);
+
+        assertTrue(listener.failure instanceof CorruptDownloadException);
+        assertFalse(mTargetFile.exists());
+        assertFalse(mPartFile.exists());
+
+        listener = download(request);
+
+        assertNull(listener.failure);
+        assertArrayEquals(body, readFile(mTargetFile));
+    }
+
+    @Test
+    public void indexGetsTheDigestComputedInline() throws Exception {
+        byte[] body = randomBytes(IMAGE_SIZE);
+        RangeDispatcher dispatcher = new RangeDispatcher(body, "\"v1\"");
+        dispatcher.setDeclaresDigest(true);
+        mServer.setDispatcher(dispatcher);
+        DownloadIndex index = DownloadIndex.open(new File(mTempFolder.getRoot(), "downloads.index"));
+        DownloadEngine engine = new DownloadEngine.Builder().downloadIndex(index).build();
+        try {
+            RecordingListener listener = new RecordingListener();
+            engine.submit(request().contentKey("picsum-1-10x10").build(), listener);
+            listener.awaitFinished();
+
+            assertNull(listener.failure);
+            assertEquals(ByteString.of(body).sha256().hex(), index.get("picsum-1-10x10").getSha256());
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void declaredDigestsAreParsed() {
+        String hex = ByteString.encodeUtf8("image").sha256().hex();
+        String base64 = ByteString.encodeUtf8("image").sha256().base64();
+
+        assertEquals(hex, ContentDigest.declaredSha256(response("Digest", "MD5=abc, SHA-256=" + base64)));
+        assertEquals(hex, ContentDigest.declaredSha256(response("Repr-Digest", "sha-256=:" + base64 + ":")));
+        assertNull(ContentDigest.declaredSha256(response("Digest", "MD5=abc")));
+        assertNull(ContentDigest.declaredSha256(response("Digest", "SHA-256=not base64!")));
+    }
+
+
+    private RecordingListener download(DownloadRequest.Builder request) throws InterruptedException {
+        return download(request.build());
+    }
+
+    private RecordingListener download(DownloadRequest request) throws InterruptedException {
+        RecordingListener listener = new RecordingListener();
+        mEngine.submit(request, listener);
+        listener.awaitFinished();
+        return listener;
+    }
+
+    private DownloadRequest.Builder request() {
+        return new DownloadRequest.Builder()
+                .url(mServer.url("/1/download").url())
+                .targetFile(mTargetFile);
+    }
+
+    private static Response response(String header, String value) {
+        return new Response.Builder()
+                .request(new Request.Builder().url("http://localhost/1/download").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .header(header, value)
+                .build();
+    }
+}
@@ -0,0 +1,136 @@
+package com.darshan.android.imagedownloader.loadtest;
+
+import com.darshan.android.imagedownloader.engine.DownloadEngine;
+import com.darshan.android.imagedownloader.engine.RateLimiter;
+import com.darshan.android.imagedownloader.engine.RetryPolicy;
+import com.darshan.android.imagedownloader.engine.TransferStage;
+import com.darshan.android.imagedownloader.metrics.Metrics;
+import com.darshan.android.imagedownloader.network.NetworkModule;
+import com.darshan.android.imagedownloader.retrofit.Image;
+import com.darshan.android.imagedownloader.variants.ImageVariant;
+import com.darshan.android.imagedownloader.variants.Resolution;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hundreds of downloads against a {@link PicsumServer}, through an engine set up like
+ * DownloaderUtils.getDownloadEngine, on a fast link, a mobile one, a flaky one and with images
+ * large enough to be downloaded in segments. The metered pair mirrors camera sized photos over
+ * a mobile link, as originals and at screen size. Retry delays are shorter than the app's so a
+ * run takes seconds.
+ * Excluded from the normal test run, use ./gradlew test -Pbenchmarks
+ */
+public class DownloadLoadBenchmark {
+    private static final int IMAGES = 300;
+    //a mobile link shared by all downloads
+    private static final long METERED_BANDWIDTH = 4 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    @Test
+    public void lan() throws Exception {
+        PicsumServer server = new PicsumServer(IMAGES, 256 * 1024, 1280, 960);
+        run("lan", server);
+    }
+
+    @Test
+    public void mobile() throws Exception {
+        PicsumServer server = new PicsumServer(IMAGES, 128 * 1024, 1280, 960);
+        server.setLatency(80, TimeUnit.MILLISECONDS);
+        server.setBandwidth(2 * 1024 * 1024);
+        run("mobile", server);
+    }
+
+    @Test
+    public void flaky() throws Exception {
+        PicsumServer server = new PicsumServer(IMAGES, 128 * 1024, 1280, 960);
+        server.setLatency(20, TimeUnit.MILLISECONDS);
+        server.setFailureRate(0.1);
+        run("flaky", server);
+    }
+
+    @Test
+    public void segmented() throws Exception {
+        //over SEGMENTED_DOWNLOAD_MIN_PIXELS
+        PicsumServer server = new PicsumServer(IMAGES / 3, 2 * 1024 * 1024, 4000, 2500);
+        server.setLatency(20, TimeUnit.MILLISECONDS);
+        run("segmented", server);
+    }
+
+    @Test
+    public void meteredOriginals() throws Exception {
+        run("metered", meteredServer(), Resolution.ORIGINAL, METERED_BANDWIDTH);
+    }
+
+    @Test
+    public void meteredAtScreenSize() throws Exception {
+        run("metered@screen", meteredServer(), Resolution.AUTOMATIC, METERED_BANDWIDTH);
+    }
+
+    /* Photos in camera resolution */
+    private static PicsumServer meteredServer() {
+        PicsumServer server = new PicsumServer(IMAGES / 3, 1024 * 1024, 4000, 3000);
+        server.setLatency(80, TimeUnit.MILLISECONDS);
+        return server;
+    }
+
+    private void run(String scenario, PicsumServer server) throws Exception {
+        run(scenario, server, Resolution.ORIGINAL, RateLimiter.UNLIMITED);
+    }
+
+    /**
+     * @param resolution     of the downloads, picked for a 1080 x 2340 phone on a metered network
+     * @param bandwidthLimit of the engine, the whole link rather than one response
+     */
+    private void run(String scenario, PicsumServer server, Resolution resolution, long bandwidthLimit)
+            throws Exception {
+        server.start();
+        Metrics metrics = new Metrics();
+        NetworkModule network = new NetworkModule.Builder()
+                .connectionPool(8, 2, TimeUnit.MINUTES)
+                .maxRequests(32, 6)
+                .metrics(metrics)
+                .build();
+        DownloadEngine engine = new DownloadEngine.Builder()
+                .client(network.getClient())
+                .metrics(metrics)
+                .maxConcurrentDownloads(8)
+                .maxDownloadsPerHost(8)
+                .adaptiveConcurrency(1)
+                .fsyncPolicy(TransferStage.FsyncPolicy.ON_COMPLETE)
+                .retryPolicy(new RetryPolicy(6, 20, 500, TimeUnit.MILLISECONDS))
+                .bandwidthLimit(bandwidthLimit)
+                .build();
+        try {
+            List<Image> catalog = LoadDriver.loadCatalog(network.getClient(), server.getBaseUrl(),
+                    new File(mTempFolder.getRoot(), scenario + ".index"));
+            List<ImageVariant> variants = new ArrayList<>(catalog.size());
+            for (Image image : catalog) {
+                variants.add(resolution.select(image, 1080, 2340, true));
+            }
+            LoadDriver.Report report = new LoadDriver(engine).run(
+                    LoadDriver.downloadRequests(variants, server.getBaseUrl(), mTempFolder.newFolder(scenario)),
+                    5, TimeUnit.MINUTES);
+
+            System.out.println(String.format("%-14s %s", scenario, report));
+            System.out.println(String.format("%-14s server: %d downloads, %d resized, %d ranges, %d failures injected;"
+                            + " %d of %d MB of originals; engine: concurrency %d, %d retried; %s", "",
+                    server.getDownloadRequests(), server.getResizedRequests(), server.getRangeRequests(),
+                    server.getInjectedFailures(), report.bytes / (1024 * 1024),
+                    (long) catalog.size() * server.getImageBytes() / (1024 * 1024),
+                    engine.getConcurrencyLimit(), metrics.counter(DownloadEngine.RETRIED).sum(),
+                    network.getConnectionMetrics()));
+        } finally {
+            engine.shutdown();
+            server.shutdown();
+        }
+    }
+}
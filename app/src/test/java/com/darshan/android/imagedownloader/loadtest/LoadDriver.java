@@ -0,0 +1,227 @@
+package com.darshan.android.imagedownloader.loadtest;
+
+import com.darshan.android.imagedownloader.engine.DownloadEngine;
+import com.darshan.android.imagedownloader.engine.DownloadJob;
+import com.darshan.android.imagedownloader.engine.DownloadListener;
+import com.darshan.android.imagedownloader.engine.DownloadRequest;
+import com.darshan.android.imagedownloader.metrics.Histogram;
+import com.darshan.android.imagedownloader.retrofit.CatalogSnapshot;
+import com.darshan.android.imagedownloader.retrofit.Image;
+import com.darshan.android.imagedownloader.retrofit.PicusumApiEndpoint;
+import com.darshan.android.imagedownloader.utils.DownloaderUtils;
+import com.darshan.android.imagedownloader.variants.ImageVariant;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.OkHttpClient;
+import okhttp3.ResponseBody;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+
+/**
+ * Pushes a batch of downloads through a {@link DownloadEngine} all at once and reports what it
+ * took: throughput, download and completion times, and the bytes each download allocated.
+ * <p>
+ * The catalog and the requests are made the way the app makes them, through
+ * {@link CatalogSnapshot} and {@link DownloaderUtils}, so a run covers the app's code from /list
+ * to the file on disk.
+ */
+public class LoadDriver {
+
+    public static class Report {
+        public final int submitted;
+        public final int completed;
+        public final int failed;
+        public final boolean timedOut;
+        public final long wallMillis;
+        public final long bytes;
+        /* From the start of the successful attempt to the file in place, ms */
+        public final Histogram downloadMillis;
+        /* From submit to the file in place, includes the wait in the queue, ms */
+        public final Histogram completionMillis;
+        /* By the worker thread during the successful attempt, empty where the JVM can't tell */
+        public final Histogram allocatedBytes;
+
+        Report(int submitted, int completed, int failed, boolean timedOut, long wallMillis, long bytes,
+               Histogram downloadMillis, Histogram completionMillis, Histogram allocatedBytes) {
+            this.submitted = submitted;
+            this.completed = completed;
+            this.failed = failed;
+            this.timedOut = timedOut;
+            this.wallMillis = wallMillis;
+            this.bytes = bytes;
+            this.downloadMillis = downloadMillis;
+            this.completionMillis = completionMillis;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public double getMegabytesPerSecond() {
+            return wallMillis == 0 ? 0 : bytes / (1024.0 * 1024.0) / (wallMillis / 1000.0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d/%d ok, %d failed%s in %.1fs, %.1f MB/s, download p50 %d p99 %d ms,"
+                            + " completion p50 %d p99 %d ms, alloc/download p50 %d kB",
+                    completed, submitted, failed, timedOut ? " (timed out)" : "", wallMillis / 1000.0,
+                    getMegabytesPerSecond(), downloadMillis.getPercentile(0.5), downloadMillis.getPercentile(0.99),
+                    completionMillis.getPercentile(0.5), completionMillis.getPercentile(0.99),
+                    allocatedBytes.getPercentile(0.5) / 1024);
+        }
+    }
+
+    private final DownloadEngine mEngine;
+
+    public LoadDriver(DownloadEngine engine) {
+        mEngine = engine;
+    }
+
+    /**
+     * Fetches /list into a {@link CatalogSnapshot} and reads it back, like the app's first start.
+     */
+    public static List<Image> loadCatalog(OkHttpClient client, String baseUrl, File snapshotFile)
+            throws IOException {
+        PicusumApiEndpoint endpoint = new Retrofit.Builder()
+                .baseUrl(baseUrl)
+                .client(client)
+                .build()
+                .create(PicusumApiEndpoint.class);
+        Response<ResponseBody> response = endpoint.getCatalogBody().execute();
+        ResponseBody body = response.body();
+        if (!response.isSuccessful() || body == null) {
+            throw new IOException("Catalog request failed with code " + response.code());
+        }
+        CatalogSnapshot snapshot = new CatalogSnapshot(snapshotFile);
+        try {
+            snapshot.write(body.charStream());
+        } finally {
+            body.close();
+        }
+        return snapshot.readWindow(0, snapshot.open().size()).getImages();
+    }
+
+    /**
+     * Requests for the originals, see {@link #downloadRequests(List, String, File)}.
+     */
+    public static List<DownloadRequest> downloadRequests(List<Image> images, File directory) {
+        List<ImageVariant> originals = new ArrayList<>(images.size());
+        for (Image image : images) {
+            originals.add(ImageVariant.original(image));
+        }
+        return downloadRequests(originals, null, directory);
+    }
+
+    /**
+     * Requests as DownloaderUtils.getDownloadRequest makes them, into {@code directory} instead
+     * of the public Pictures folder.
+     * @param baseUrl of the server renditions come from, unused for originals
+     */
+    public static List<DownloadRequest> downloadRequests(List<ImageVariant> variants, String baseUrl,
+                                                         File directory) {
+        List<DownloadRequest> requests = new ArrayList<>(variants.size());
+        for (ImageVariant variant : variants) {
+            requests.add(new DownloadRequest.Builder()
+                    .url(variant.getUrl(baseUrl))
+                    .targetFile(new File(directory, variant.getFilename()))
+                    .segments(DownloaderUtils.getDownloadSegments(variant))
+                    .contentKey(variant.getContentKey())
+                    .tag(variant)
+                    .build());
+        }
+        return requests;
+    }
+
+    /**
+     * Submits all requests at once and waits until they are done or the timeout passed.
+     */
+    public Report run(List<DownloadRequest> requests, long timeout, TimeUnit unit) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(requests.size());
+        final Map<DownloadRequest, Long> submittedAt = new ConcurrentHashMap<>();
+        final Map<DownloadJob, Long> startedAt = new ConcurrentHashMap<>();
+        final ThreadLocal<Long> allocatedAtStart = new ThreadLocal<>();
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final Histogram downloadMillis = new Histogram("ms");
+        final Histogram completionMillis = new Histogram("ms");
+        final Histogram allocatedBytes = new Histogram("B");
+
+        DownloadListener listener = new DownloadListener() {
+            @Override
+            public void onStart(DownloadJob job) {
+                //once per attempt, on the worker running it
+                startedAt.put(job, System.nanoTime());
+                allocatedAtStart.set(allocatedBytes());
+            }
+
+            @Override
+            public void onProgress(DownloadJob job, long bytesDownloaded, long totalBytes) {
+            }
+
+            @Override
+            public void onComplete(DownloadJob job, File file) {
+                long now = System.nanoTime();
+                Long started = startedAt.get(job);
+                if (started != null) {
+                    downloadMillis.record(TimeUnit.NANOSECONDS.toMillis(now - started));
+                }
+                Long allocatedAtStartOfAttempt = allocatedAtStart.get();
+                long allocatedNow = allocatedBytes();
+                if (allocatedAtStartOfAttempt != null && allocatedNow != -1) {
+                    allocatedBytes.record(allocatedNow - allocatedAtStartOfAttempt);
+                }
+                completionMillis.record(TimeUnit.NANOSECONDS.toMillis(now - submittedAt.get(job.getRequest())));
+                bytes.addAndGet(file.length());
+                completed.incrementAndGet();
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(DownloadJob job, IOException e) {
+                failed.incrementAndGet();
+                done.countDown();
+            }
+
+            @Override
+            public void onCancelled(DownloadJob job) {
+                done.countDown();
+            }
+        };
+
+        long start = System.nanoTime();
+        for (DownloadRequest request : requests) {
+            //before submit(), a job answered from the index finishes before it returns
+            submittedAt.put(request, System.nanoTime());
+            mEngine.submit(request, listener);
+        }
+        boolean finished = done.await(timeout, unit);
+        long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (!finished) {
+            mEngine.cancelAll();
+        }
+        return new Report(requests.size(), completed.get(), failed.get(), !finished, wallMillis, bytes.get(),
+                downloadMillis, completionMillis, allocatedBytes);
+    }
+
+
+    /* Bytes the current thread allocated so far, -1 on JVMs that don't count them */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
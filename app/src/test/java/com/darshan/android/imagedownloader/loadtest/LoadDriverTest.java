@@ -0,0 +1,110 @@
+package com.darshan.android.imagedownloader.loadtest;
+
+import com.darshan.android.imagedownloader.engine.DownloadEngine;
+import com.darshan.android.imagedownloader.engine.RetryPolicy;
+import com.darshan.android.imagedownloader.metrics.Metrics;
+import com.darshan.android.imagedownloader.network.NetworkModule;
+import com.darshan.android.imagedownloader.retrofit.Image;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A short run of the load harness on every build, so the stand-in server, the driver and the
+ * app's download path keep working together. Numbers come from DownloadLoadBenchmark.
+ */
+public class LoadDriverTest {
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private PicsumServer mServer;
+    private DownloadEngine mEngine;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new PicsumServer(100, 32 * 1024, 640, 480);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mEngine != null) {
+            mEngine.shutdown();
+        }
+        mServer.shutdown();
+    }
+
+    @Test
+    public void flakyServerStillDeliversEveryImage() throws Exception {
+        NetworkModule network = new NetworkModule.Builder().build();
+        mEngine = new DownloadEngine.Builder()
+                .client(network.getClient())
+                .maxConcurrentDownloads(16)
+                .maxDownloadsPerHost(16)
+                .retryPolicy(new RetryPolicy(5, 10, 50, TimeUnit.MILLISECONDS))
+                .metrics(new Metrics())
+                .build();
+        mServer.setFailureRate(0.1);
+        List<Image> catalog = LoadDriver.loadCatalog(network.getClient(), mServer.getBaseUrl(),
+                new File(mTempFolder.getRoot(), "catalog.index"));
+        File directory = mTempFolder.newFolder("Picsum");
+
+        LoadDriver.Report report = new LoadDriver(mEngine)
+                .run(LoadDriver.downloadRequests(catalog, directory), 30, TimeUnit.SECONDS);
+
+        assertEquals(100, catalog.size());
+        assertFalse(report.toString(), report.timedOut);
+        assertEquals(report.toString(), 100, report.completed);
+        assertEquals(100L * 32 * 1024, report.bytes);
+        assertEquals(100, report.downloadMillis.getCount());
+        assertTrue(mServer.getInjectedFailures() > 0);
+        assertEquals(100 + mServer.getInjectedFailures(), mServer.getDownloadRequests());
+        assertEquals(100, directory.list().length);
+    }
+
+    @Test
+    public void serverHonoursRanges() throws Exception {
+        OkHttpClient client = new OkHttpClient();
+        Response response = client.newCall(new Request.Builder()
+                .url(mServer.url("/7/download"))
+                .header("Range", "bytes=1000-1999")
+                .build()).execute();
+        try {
+            assertEquals(206, response.code());
+            assertEquals("bytes 1000-1999/32768", response.header("Content-Range"));
+            assertEquals(1000, response.body().bytes().length);
+        } finally {
+            response.close();
+        }
+
+        mServer.setSupportsRanges(false);
+        response = client.newCall(new Request.Builder()
+                .url(mServer.url("/7/download"))
+                .header("Range", "bytes=1000-")
+                .build()).execute();
+        try {
+            assertEquals(200, response.code());
+            assertEquals(32 * 1024, response.body().bytes().length);
+        } finally {
+            response.close();
+        }
+        assertEquals(404, client.newCall(new Request.Builder().url(mServer.url("/100/download")).build())
+                .execute().code());
+    }
+}
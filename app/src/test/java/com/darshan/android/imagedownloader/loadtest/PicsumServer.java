@@ -0,0 +1,287 @@
+package com.darshan.android.imagedownloader.loadtest;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+import okio.ByteString;
+
+/**
+ * Stands in for https://picsum.photos/ on the loopback interface, for repeatable end to end runs.
+ * <p>
+ * {@code /list} serves a synthetic catalog whose post_url points back here, so the app's
+ * post_url + "/download" ends up at {@code /{id}/download}. That serves {@code imageBytes} of
+ * random bytes per image, with ETag, Digest, Accept-Ranges and Range / If-Range support.
+ * Renditions, {@code /{width}/{height}?image={id}}, get bytes in proportion to their pixels.
+ * <p>
+ * Latency, bandwidth, failures and range support can be changed while requests are served,
+ * eg. to script a network going bad half way through a batch.
+ */
+public class PicsumServer {
+    private static final Pattern DOWNLOAD_PATH = Pattern.compile("/(\\d+)/download");
+    private static final Pattern RESIZED_PATH = Pattern.compile("/(\\d+)/(\\d+)");
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private final MockWebServer mServer = new MockWebServer();
+    private final int mImageCount;
+    private final int mWidth;
+    private final int mHeight;
+    //one body for all images, its ETag tells them apart
+    private final byte[] mBody;
+    //by body length, renditions are the start of the original's body
+    private final Map<Integer, String> mDigests = new ConcurrentHashMap<>();
+
+    private volatile long mLatencyMillis;
+    private volatile long mBytesPerSecond;
+    private volatile boolean mSupportsRanges = true;
+    private volatile double mFailureRate;
+    //guarded by itself
+    private final Random mFailureRandom = new Random(1);
+
+    private final AtomicInteger mListRequests = new AtomicInteger();
+    private final AtomicInteger mDownloadRequests = new AtomicInteger();
+    private final AtomicInteger mResizedRequests = new AtomicInteger();
+    private final AtomicInteger mRangeRequests = new AtomicInteger();
+    private final AtomicInteger mInjectedFailures = new AtomicInteger();
+    private final AtomicLong mBytesServed = new AtomicLong();
+
+    /**
+     * @param width  pixel size listed for every image, the app splits large ones into segments
+     * @param height see width
+     */
+    public PicsumServer(int imageCount, int imageBytes, int width, int height) {
+        mImageCount = imageCount;
+        mWidth = width;
+        mHeight = height;
+        mBody = new byte[imageBytes];
+        new Random(imageBytes).nextBytes(mBody);
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return serve(request);
+            }
+        });
+    }
+
+    public void start() throws IOException {
+        mServer.start(InetAddress.getByName("127.0.0.1"), 0);
+    }
+
+    public void shutdown() throws IOException {
+        mServer.shutdown();
+    }
+
+    /**
+     * @return base url like BASE_URL, with a trailing slash
+     */
+    public String getBaseUrl() {
+        return mServer.url("/").toString();
+    }
+
+    public HttpUrl url(String path) {
+        return mServer.url(path);
+    }
+
+    public int getImageBytes() {
+        return mBody.length;
+    }
+
+    /* Added to every response, half before the headers and half before the body */
+    public void setLatency(long latency, TimeUnit unit) {
+        mLatencyMillis = unit.toMillis(latency);
+    }
+
+    /* Per response, 0 for as fast as the loopback goes */
+    public void setBandwidth(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    public void setSupportsRanges(boolean supportsRanges) {
+        mSupportsRanges = supportsRanges;
+    }
+
+    /**
+     * Share of downloads that fail, half of them with a 503, half by dropping the connection in
+     * the middle of the body. Drawn from a seeded random, so runs are repeatable.
+     */
+    public void setFailureRate(double failureRate) {
+        mFailureRate = failureRate;
+    }
+
+    public int getListRequests() {
+        return mListRequests.get();
+    }
+
+    public int getDownloadRequests() {
+        return mDownloadRequests.get();
+    }
+
+    /* Downloads of renditions, part of getDownloadRequests */
+    public int getResizedRequests() {
+        return mResizedRequests.get();
+    }
+
+    public int getRangeRequests() {
+        return mRangeRequests.get();
+    }
+
+    public int getInjectedFailures() {
+        return mInjectedFailures.get();
+    }
+
+    /* Body bytes of the responses served so far, including ones cut short */
+    public long getBytesServed() {
+        return mBytesServed.get();
+    }
+
+    private MockResponse serve(RecordedRequest request) {
+        String path = request.getRequestUrl().encodedPath();
+        MockResponse response;
+        if (path.equals("/list")) {
+            mListRequests.incrementAndGet();
+            response = new MockResponse()
+                    .setHeader("Content-Type", "application/json")
+                    .setBody(catalogJson());
+        } else {
+            Matcher matcher = DOWNLOAD_PATH.matcher(path);
+            Matcher resized = RESIZED_PATH.matcher(path);
+            String imageParameter = request.getRequestUrl().queryParameter("image");
+            int id = -1;
+            int length = mBody.length;
+            if (matcher.matches()) {
+                id = Integer.parseInt(matcher.group(1));
+            } else if (resized.matches() && imageParameter != null && imageParameter.matches("\\d+")) {
+                id = Integer.parseInt(imageParameter);
+                length = renditionLength(Integer.parseInt(resized.group(1)), Integer.parseInt(resized.group(2)));
+                mResizedRequests.incrementAndGet();
+            }
+            if (id < 0 || id >= mImageCount || length == 0) {
+                return new MockResponse().setResponseCode(404);
+            }
+            mDownloadRequests.incrementAndGet();
+            response = download(id, length, request.getHeader("Range"), request.getHeader("If-Range"));
+        }
+
+        //MockWebServer 3.10 ignores the headers delay and sleeps the body delay twice, before
+        //the headers and before the body
+        response.setBodyDelay(mLatencyMillis / 2, TimeUnit.MILLISECONDS);
+        long bytesPerSecond = mBytesPerSecond;
+        if (bytesPerSecond > 0) {
+            //in 100 slices a second, so a small image takes more than one
+            response.throttleBody(Math.max(1, bytesPerSecond / 100), 10, TimeUnit.MILLISECONDS);
+        }
+        return response;
+    }
+
+
+    /* Bytes of a width x height rendition, by pixel count like JPEGs of one photo, 0 if too large */
+    private int renditionLength(int width, int height) {
+        if (width < 1 || height < 1 || width > mWidth || height > mHeight) {
+            return 0;
+        }
+        return (int) Math.max(1, Math.round((double) mBody.length * width * height / ((double) mWidth * mHeight)));
+    }
+
+    private MockResponse download(int id, int length, String range, String ifRange) {
+        String eTag = "\"" + id + "-" + length + "\"";
+        int failure = nextFailure();
+        if (failure == 1) {
+            mInjectedFailures.incrementAndGet();
+            return new MockResponse().setResponseCode(503);
+        }
+
+        int start = 0;
+        int end = length;
+        Matcher matcher = range != null ? RANGE.matcher(range) : null;
+        boolean partial = mSupportsRanges && matcher != null && matcher.matches()
+                && (ifRange == null || ifRange.equals(eTag));
+        if (partial) {
+            start = Integer.parseInt(matcher.group(1));
+            if (!matcher.group(2).isEmpty()) {
+                end = Math.min(end, Integer.parseInt(matcher.group(2)) + 1);
+            }
+            if (start >= end) {
+                return new MockResponse().setResponseCode(416)
+                        .setHeader("Content-Range", "bytes */" + length);
+            }
+            mRangeRequests.incrementAndGet();
+        }
+
+        MockResponse response = new MockResponse()
+                .setResponseCode(partial ? 206 : 200)
+                .setHeader("Content-Type", "image/jpeg")
+                .setHeader("ETag", eTag)
+                //of the whole image, the app verifies what it assembled
+                .setHeader("Digest", digest(length))
+                .setBody(new Buffer().write(mBody, start, end - start));
+        if (mSupportsRanges) {
+            response.setHeader("Accept-Ranges", "bytes");
+        }
+        if (partial) {
+            response.setHeader("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + length);
+        }
+        if (failure == 2) {
+            mInjectedFailures.incrementAndGet();
+            response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+            mBytesServed.addAndGet((end - start) / 2);
+        } else {
+            mBytesServed.addAndGet(end - start);
+        }
+        return response;
+    }
+
+    private String digest(int length) {
+        String digest = mDigests.get(length);
+        if (digest == null) {
+            digest = "SHA-256=" + ByteString.of(mBody, 0, length).sha256().base64();
+            mDigests.put(length, digest);
+        }
+        return digest;
+    }
+
+    /* 0 for none, 1 for a 503, 2 for a dropped connection */
+    private int nextFailure() {
+        double failureRate = mFailureRate;
+        if (failureRate <= 0) {
+            return 0;
+        }
+        synchronized (mFailureRandom) {
+            if (mFailureRandom.nextDouble() >= failureRate) {
+                return 0;
+            }
+            return mFailureRandom.nextBoolean() ? 1 : 2;
+        }
+    }
+
+    private String catalogJson() {
+        StringBuilder json = new StringBuilder("[");
+        for (int id = 0; id < mImageCount; id++) {
+            if (id > 0) {
+                json.append(',');
+            }
+            json.append("{\"format\":\"jpeg\",\"width\":").append(mWidth)
+                    .append(",\"height\":").append(mHeight)
+                    .append(",\"filename\":\"").append(String.format("%04d", id)).append(".jpeg\"")
+                    .append(",\"id\":").append(id)
+                    .append(",\"author\":\"Author ").append(id)
+                    .append("\",\"author_url\":\"https://unsplash.com/@author").append(id)
+                    //the app downloads post_url + "/download"
+                    .append("\",\"post_url\":\"").append(mServer.url("/" + id)).append("\"}");
+        }
+        return json.append(']').toString();
+    }
+}
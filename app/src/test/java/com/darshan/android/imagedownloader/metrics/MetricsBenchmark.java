@@ -0,0 +1,98 @@
+package com.darshan.android.imagedownloader.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of recording, single threaded and with 8 threads recording into the same metric,
+ * against a plain AtomicLong and a synchronized counter.
+ * Excluded from the normal test run, use ./gradlew test -Pbenchmarks
+ */
+public class MetricsBenchmark {
+    private static final int OPERATIONS = 2000000;
+    private static final int[] THREADS = {1, 8};
+    private static final int RUNS = 5;
+
+    private interface Recording {
+        void record(long value);
+    }
+
+    @Test
+    public void compareRecordingCost() throws Exception {
+        System.out.println(String.format("%-18s %14s %14s", "metric", "1 thread ns", "8 threads ns"));
+
+        final AtomicLong atomic = new AtomicLong();
+        report("AtomicLong", new Recording() {
+            @Override
+            public void record(long value) {
+                atomic.incrementAndGet();
+            }
+        });
+        final long[] locked = new long[1];
+        report("synchronized", new Recording() {
+            @Override
+            public void record(long value) {
+                synchronized (locked) {
+                    locked[0]++;
+                }
+            }
+        });
+        final StripedCounter counter = new StripedCounter();
+        report("StripedCounter", new Recording() {
+            @Override
+            public void record(long value) {
+                counter.increment();
+            }
+        });
+        final Histogram histogram = new Histogram(Metrics.UNIT_MICROS);
+        report("Histogram", new Recording() {
+            @Override
+            public void record(long value) {
+                histogram.record(value);
+            }
+        });
+    }
+
+    private static void report(String name, Recording recording) throws Exception {
+        StringBuilder line = new StringBuilder(String.format("%-18s", name));
+        for (int threads : THREADS) {
+            double best = Double.MAX_VALUE;
+            //warm up included, the best run counts
+            for (int run = 0; run < RUNS; run++) {
+                best = Math.min(best, run(recording, threads));
+            }
+            line.append(String.format(" %14.1f", best));
+        }
+        System.out.println(line);
+    }
+
+    /* ns per recorded value, per thread */
+    private static double run(final Recording recording, int threadCount) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < OPERATIONS; i++) {
+                        recording.record(i & 4095);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return (double) (System.nanoTime() - startNanos) / OPERATIONS;
+    }
+}
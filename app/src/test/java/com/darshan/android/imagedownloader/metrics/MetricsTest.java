@@ -0,0 +1,129 @@
+package com.darshan.android.imagedownloader.metrics;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        for (long value : new long[]{0, 1, 7, 8, 15, 16, 17, 1000, 123456789L, Long.MAX_VALUE}) {
+            int bucket = Histogram.bucketOf(value);
+            assertTrue(bucket >= 0 && bucket < Histogram.BUCKETS);
+            assertTrue(value + " in bucket " + bucket, Histogram.upperBoundOf(bucket) >= value);
+            assertTrue(bucket == 0 || Histogram.upperBoundOf(bucket - 1) < value);
+        }
+        assertEquals(Histogram.BUCKETS - 1, Histogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesAreWithinAnEighth() {
+        Histogram histogram = new Histogram(Metrics.UNIT_MICROS);
+        List<Long> values = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            //log-normal-ish, like latencies
+            long value = (long) Math.exp(random.nextGaussian() * 2 + 8);
+            values.add(value);
+            histogram.record(value);
+        }
+        Collections.sort(values);
+
+        for (double quantile : new double[]{0.5, 0.9, 0.99}) {
+            long exact = values.get((int) Math.ceil(quantile * values.size()) - 1);
+            long reported = histogram.getPercentile(quantile);
+            assertTrue(quantile + ": " + reported + " vs " + exact,
+                    reported >= exact && reported <= exact + exact / 8 + 1);
+        }
+        assertEquals(values.get(values.size() - 1).longValue(), histogram.getMax());
+        assertEquals(histogram.getMax(), histogram.getPercentile(1));
+        assertEquals(10000, histogram.getCount());
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        final Histogram histogram = new Histogram(Metrics.UNIT_MICROS);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        counter.increment();
+                        histogram.record(i % 100);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(800000, counter.sum());
+        assertEquals(800000, histogram.getCount());
+        assertEquals(8 * 1000 * (99 * 100 / 2), histogram.getSum());
+        assertEquals(99, histogram.getMax());
+    }
+
+    @Test
+    public void cellsArePowersOfTwo() {
+        assertEquals(2, StripedCounter.cellCount(1));
+        assertEquals(8, StripedCounter.cellCount(4));
+        assertEquals(16, StripedCounter.cellCount(6));
+        assertEquals(64, StripedCounter.cellCount(128));
+    }
+
+    @Test
+    public void metricsAreDumpedAsJson() {
+        Metrics metrics = new Metrics();
+        assertSame(metrics.counter("download.completed"), metrics.counter("download.completed"));
+        metrics.counter("download.completed").add(3);
+        metrics.timer("download.transfer").record(1500);
+        metrics.timer("download.transfer").record(2500);
+
+        JsonObject json = new JsonParser().parse(metrics.toJson()).getAsJsonObject();
+
+        assertEquals(3, json.getAsJsonObject("counters").get("download.completed").getAsLong());
+        JsonObject transfer = json.getAsJsonObject("histograms").getAsJsonObject("download.transfer");
+        assertEquals("us", transfer.get("unit").getAsString());
+        assertEquals(2, transfer.get("count").getAsLong());
+        assertEquals(2000, transfer.get("mean").getAsDouble(), 0);
+        assertEquals(2500, transfer.get("max").getAsLong());
+        assertTrue(metrics.dump().contains("download.completed = 3\n"));
+
+        metrics.reset();
+        assertEquals(0, metrics.counter("download.completed").sum());
+        assertEquals(0, metrics.timer("download.transfer").getPercentile(0.5));
+    }
+
+    @Test
+    public void startupMilestonesAreKeptOnce() {
+        Metrics metrics = new Metrics();
+        StartupTrace trace = new StartupTrace(metrics, System.nanoTime() - 250000000L);
+
+        assertEquals(-1, trace.getMillis(StartupTrace.FIRST_ROW));
+        assertTrue(trace.mark(StartupTrace.ACTIVITY_CREATED));
+        assertTrue(trace.mark(StartupTrace.FIRST_ROW));
+        assertFalse(trace.mark(StartupTrace.FIRST_ROW));
+
+        assertTrue(trace.getMillis(StartupTrace.FIRST_ROW) >= 250);
+        assertEquals(1, metrics.timer(StartupTrace.FIRST_ROW).getCount());
+        assertTrue(metrics.timer(StartupTrace.FIRST_ROW).getMax() >= 250000);
+        assertTrue(trace.toString(), trace.toString().matches(
+                "StartupTrace\\{startup.activity_created=\\d+ms, startup.first_row=\\d+ms}"));
+    }
+}
@@ -0,0 +1,154 @@
+package com.darshan.android.imagedownloader.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NetworkModuleTest {
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void clientsShareOnePool() throws Exception {
+        NetworkModule module = new NetworkModule.Builder().build();
+        OkHttpClient cachingClient = module.getClient().newBuilder()
+                .cache(new Cache(mTempFolder.newFolder("http"), 1024 * 1024))
+                .build();
+
+        for (int i = 0; i < 4; i++) {
+            get(module.getClient(), "/image/" + i);
+        }
+        get(cachingClient, "/list");
+
+        ConnectionMetrics metrics = module.getConnectionMetrics();
+        assertEquals(5, metrics.getConnectionsAcquired());
+        assertEquals(1, metrics.getConnectionsOpened());
+        assertEquals(4, metrics.getConnectionsReused());
+        assertEquals(0.8, metrics.getReuseRate(), 0.001);
+    }
+
+    @Test
+    public void evictedConnectionsAreOpenedAgain() throws Exception {
+        NetworkModule module = new NetworkModule.Builder().build();
+        get(module.getClient(), "/list");
+
+        module.evictConnections();
+        get(module.getClient(), "/list");
+
+        assertEquals(2, module.getConnectionMetrics().getConnectionsOpened());
+        assertEquals(0, module.getConnectionMetrics().getReuseRate(), 0);
+    }
+
+    @Test
+    public void asyncCallsAreLimitedPerHost() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                release.await(5, TimeUnit.SECONDS);
+                return new MockResponse();
+            }
+        });
+        NetworkModule module = new NetworkModule.Builder().maxRequests(8, 2).build();
+        final CountDownLatch done = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            module.getClient().newCall(new Request.Builder().url(mServer.url("/" + i)).build())
+                    .enqueue(new Callback() {
+                        @Override
+                        public void onFailure(Call call, IOException e) {
+                            done.countDown();
+                        }
+
+                        @Override
+                        public void onResponse(Call call, Response response) {
+                            response.close();
+                            done.countDown();
+                        }
+                    });
+        }
+
+        Thread.sleep(200);
+        assertEquals(2, module.getClient().dispatcher().runningCallsCount());
+        assertEquals(3, module.getClient().dispatcher().queuedCallsCount());
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failedConnectsAreCounted() throws Exception {
+        NetworkModule module = new NetworkModule.Builder()
+                .connectTimeout(1, TimeUnit.SECONDS)
+                .build();
+        String url = mServer.url("/list").toString();
+        mServer.shutdown();
+
+        try {
+            module.getClient().newCall(new Request.Builder().url(url).build()).execute();
+            fail();
+        } catch (IOException expected) {
+        }
+
+        assertTrue(module.getConnectionMetrics().getConnectFailures() >= 1);
+        assertEquals(0, module.getConnectionMetrics().getConnectionsOpened());
+    }
+
+    @Test
+    public void http2CanBeTurnedOff() {
+        assertTrue(new NetworkModule.Builder().build().getClient().protocols().contains(Protocol.HTTP_2));
+        assertEquals(Collections.singletonList(Protocol.HTTP_1_1),
+                new NetworkModule.Builder().http2(false).build().getClient().protocols());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void perHostLimitAboveTotalIsRejected() {
+        new NetworkModule.Builder().maxRequests(2, 4);
+    }
+
+
+    private void get(OkHttpClient client, String path) throws IOException {
+        mServer.enqueue(new MockResponse().setBody("ok"));
+        Response response = client.newCall(new Request.Builder().url(mServer.url(path)).build()).execute();
+        try {
+            assertEquals("ok", response.body().string());
+        } finally {
+            response.close();
+        }
+    }
+}
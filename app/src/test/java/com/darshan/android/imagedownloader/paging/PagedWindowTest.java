@@ -0,0 +1,193 @@
+package com.darshan.android.imagedownloader.paging;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PagedWindowTest {
+    private static final int PAGE_SIZE = 10;
+    private static final int PREFETCH_DISTANCE = 5;
+    private static final int MAX_PAGES = 4;
+    //pretend the catalog has this many entries
+    private static final int CATALOG_SIZE = 95;
+
+    private ManualLoader mLoader;
+    private RecordingListener mListener;
+    private PagedWindow<Integer> mWindow;
+
+    @Before
+    public void setUp() {
+        mLoader = new ManualLoader();
+        mListener = new RecordingListener();
+        mWindow = new PagedWindow<>(mLoader, PAGE_SIZE, PREFETCH_DISTANCE, MAX_PAGES, mListener);
+    }
+
+    @Test
+    public void firstPageIsPublishedAlone() {
+        mWindow.loadAround(0);
+
+        assertEquals(1, mLoader.pending.size());
+        mLoader.complete(0);
+
+        assertEquals(PAGE_SIZE, mListener.items.size());
+        assertEquals(Integer.valueOf(0), mListener.items.get(0));
+        assertEquals(1, mListener.changes);
+    }
+
+    @Test
+    public void nextPageIsRequestedWithinPrefetchDistance() {
+        mWindow.loadAround(0);
+        mLoader.complete(0);
+
+        mWindow.loadAround(4);
+        assertTrue(mLoader.pending.isEmpty());
+
+        mWindow.loadAround(5);
+        assertEquals(1, mLoader.pending.size());
+        assertTrue(mLoader.pending.containsKey(1));
+        //requested once, however often its positions are shown
+        mWindow.loadAround(6);
+        assertEquals(2, mLoader.requestCount);
+    }
+
+    @Test
+    public void farPagesAreDroppedToPlaceholders() {
+        scrollTo(80);
+
+        assertEquals(MAX_PAGES, mWindow.getPagesInMemory());
+        assertNull(mWindow.getItems().get(0));
+        assertEquals(Integer.valueOf(80), mWindow.getItems().get(80));
+        //positions never shift
+        assertEquals(Integer.valueOf(55), mWindow.getItems().get(55));
+        assertEquals(90, mWindow.getItems().size());
+
+        //scrolling back loads the dropped page again
+        mWindow.loadAround(3);
+        assertTrue(mLoader.pending.containsKey(0));
+        mLoader.complete(0);
+        assertEquals(Integer.valueOf(3), mWindow.getItems().get(3));
+        assertEquals(MAX_PAGES, mWindow.getPagesInMemory());
+    }
+
+    @Test
+    public void shortPageEndsTheList() {
+        scrollTo(94);
+
+        assertTrue(mWindow.isEndReached());
+        assertEquals(CATALOG_SIZE, mWindow.getItems().size());
+        int requests = mLoader.requestCount;
+        mWindow.loadAround(94);
+        assertEquals(requests, mLoader.requestCount);
+    }
+
+    @Test
+    public void failedPageIsRequestedAgain() {
+        mWindow.loadAround(0);
+        mLoader.fail(0);
+
+        assertEquals(0, mListener.failedPage);
+        assertTrue(mListener.items.isEmpty());
+        mWindow.loadAround(0);
+        assertTrue(mLoader.pending.containsKey(0));
+    }
+
+    @Test
+    public void invalidateReloadsAroundTheLastPosition() {
+        scrollTo(42);
+        mWindow.loadAround(0);
+        //still on its way when the list changes
+        assertTrue(mLoader.pending.containsKey(0));
+        PagedWindow.PageCallback<Integer> outdated = mLoader.pending.remove(0);
+
+        mWindow.invalidate();
+
+        assertTrue(mLoader.pending.containsKey(0));
+        assertEquals(0, mWindow.getPagesInMemory());
+        //old items stay until the new pages are there
+        assertEquals(Integer.valueOf(42), mWindow.getItems().get(42));
+        outdated.onPageLoaded(new ArrayList<Integer>());
+        assertFalse(mWindow.isEndReached());
+        mLoader.complete(0);
+        assertEquals(1, mWindow.getPagesInMemory());
+        assertEquals(Integer.valueOf(3), mWindow.getItems().get(3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void windowMustCoverPrefetchDistance() {
+        new PagedWindow<>(mLoader, 10, 25, 4, mListener);
+    }
+
+    @Test
+    public void loadedItemsSkipPlaceholders() {
+        scrollTo(80);
+
+        List<Integer> loaded = mWindow.getLoadedItems();
+
+        assertEquals(MAX_PAGES * PAGE_SIZE, loaded.size());
+        assertFalse(loaded.contains(null));
+    }
+
+
+    /* Shows every position up to the target, answering page requests right away */
+    private void scrollTo(int target) {
+        for (int position = 0; position <= target; position++) {
+            mWindow.loadAround(position);
+            while (!mLoader.pending.isEmpty()) {
+                mLoader.complete(mLoader.pending.keySet().iterator().next());
+            }
+        }
+    }
+
+    private static class ManualLoader implements PagedWindow.PageLoader<Integer> {
+        final Map<Integer, PagedWindow.PageCallback<Integer>> pending = new LinkedHashMap<>();
+        final Map<Integer, Integer> pageSizes = new LinkedHashMap<>();
+        int requestCount;
+
+        @Override
+        public void loadPage(int page, int pageSize, PagedWindow.PageCallback<Integer> callback) {
+            requestCount++;
+            pending.put(page, callback);
+            pageSizes.put(page, pageSize);
+        }
+
+        void complete(int page) {
+            int pageSize = pageSizes.get(page);
+            List<Integer> items = new ArrayList<>();
+            for (int i = page * pageSize; i < Math.min((page + 1) * pageSize, CATALOG_SIZE); i++) {
+                items.add(i);
+            }
+            pending.remove(page).onPageLoaded(items);
+        }
+
+        void fail(int page) {
+            pending.remove(page).onPageFailed(new IOException("offline"));
+        }
+    }
+
+    private static class RecordingListener implements PagedWindow.Listener<Integer> {
+        List<Integer> items = new ArrayList<>();
+        int changes;
+        int failedPage = -1;
+
+        @Override
+        public void onWindowChanged(List<Integer> items) {
+            this.items = items;
+            changes++;
+        }
+
+        @Override
+        public void onPageFailed(int page, Throwable t) {
+            failedPage = page;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.darshan.android.imagedownloader.retrofit;
+
+import com.darshan.android.imagedownloader.paging.PagedWindow;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import okhttp3.Cache;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static com.darshan.android.imagedownloader.retrofit.CatalogSelectionTest.catalogJson;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CachedCatalogLoaderTest {
+    private static final int PAGE_SIZE = 10;
+
+    /* Runs everything in the calling thread, one step after the other */
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private OkHttpClient mClient;
+    private CatalogSnapshot mSnapshot;
+    private NetworkLoader mNetworkLoader;
+    private RecordingListener mListener;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        mClient = new OkHttpClient.Builder()
+                .cache(new Cache(mTempFolder.newFolder("http"), 1024 * 1024))
+                .build();
+        mSnapshot = new CatalogSnapshot(new File(mTempFolder.getRoot(), "catalog.index"));
+        mNetworkLoader = new NetworkLoader();
+        mListener = new RecordingListener();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void snapshotKeepsTheCatalog() throws Exception {
+        assertTrue(mSnapshot.write(new StringReader(catalogJson(0, 100))));
+
+        Catalog catalog = mSnapshot.readWindow(10, 5);
+
+        assertEquals(5, catalog.getImages().size());
+        assertEquals(Integer.valueOf(10), catalog.getImages().get(0).getId());
+        assertEquals("author 14", catalog.getImages().get(4).getAuthor());
+        //same catalog, formatted differently
+        assertFalse(mSnapshot.write(new StringReader(catalogJson(0, 100).replace(",", ", "))));
+        assertTrue(mSnapshot.write(new StringReader(catalogJson(0, 101))));
+    }
+
+    @Test
+    public void brokenCatalogLeavesTheSnapshotAlone() throws Exception {
+        mSnapshot.write(new StringReader(catalogJson(0, 100)));
+
+        try {
+            mSnapshot.write(new StringReader(catalogJson(0, 100).replaceFirst("]$", ",{broken")));
+            fail();
+        } catch (IOException expected) {
+        }
+
+        assertEquals(100, mSnapshot.open().size());
+        assertEquals(5, mSnapshot.readWindow(95, 10).getImages().size());
+        assertFalse(new File(mSnapshot.getFile().getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void firstStartLoadsFromTheNetworkAndSavesTheCatalog() throws Exception {
+        mServer.enqueue(catalogResponse(catalogJson(0, 50), "\"v1\""));
+
+        List<Image> page = loadFirstPage();
+
+        assertTrue(mNetworkLoader.used);
+        assertNull(page);
+        assertTrue(mSnapshot.exists());
+        assertEquals(50, mSnapshot.open().size());
+        //the pages came from the network, nothing outdated was shown
+        assertFalse(mListener.changed);
+    }
+
+    @Test
+    public void unchangedCatalogIsRevalidatedWithoutABody() throws Exception {
+        mServer.enqueue(catalogResponse(catalogJson(0, 50), "\"v1\""));
+        mServer.enqueue(new MockResponse().setResponseCode(304).setHeader("ETag", "\"v1\""));
+        loadFirstPage();
+        mServer.takeRequest();
+
+        List<Image> page = loadFirstPage();
+
+        assertEquals(PAGE_SIZE, page.size());
+        RecordedRequest revalidation = mServer.takeRequest();
+        assertEquals("\"v1\"", revalidation.getHeader("If-None-Match"));
+        assertFalse(mListener.changed);
+        assertNull(mListener.refreshFailure);
+    }
+
+    @Test
+    public void changedCatalogIsShownAfterTheSavedOne() throws Exception {
+        mSnapshot.write(new StringReader(catalogJson(0, 50)));
+        mServer.enqueue(catalogResponse(catalogJson(100, 150), "\"v2\""));
+
+        List<Image> page = loadFirstPage();
+
+        //the saved catalog first, then word that it changed
+        assertEquals(Integer.valueOf(0), page.get(0).getId());
+        assertTrue(mListener.changed);
+        assertEquals(Integer.valueOf(100), mSnapshot.readWindow(0, 1).getImages().get(0).getId());
+    }
+
+    @Test
+    public void savedCatalogIsShownOffline() throws Exception {
+        mSnapshot.write(new StringReader(catalogJson(0, 50)));
+        mServer.shutdown();
+
+        List<Image> page = loadFirstPage();
+
+        assertEquals(PAGE_SIZE, page.size());
+        assertFalse(mNetworkLoader.used);
+        assertTrue(mListener.refreshFailure instanceof IOException);
+        assertFalse(mListener.changed);
+    }
+
+    @Test
+    public void refreshPrefetchedAtStartIsNotRepeated() throws Exception {
+        mSnapshot.write(new StringReader(catalogJson(0, 50)));
+        mServer.enqueue(catalogResponse(catalogJson(100, 150), "\"v2\""));
+        CatalogRefresh refresh = new CatalogRefresh(mServer.url("/").toString(), mClient, mSnapshot);
+        refresh.start(DIRECT);
+
+        List<Image> page = loadFirstPage(refresh);
+
+        assertTrue(refresh.isDone());
+        assertEquals(1, mServer.getRequestCount());
+        //read after the refresh, nothing outdated was shown
+        assertEquals(Integer.valueOf(100), page.get(0).getId());
+        assertFalse(mListener.changed);
+    }
+
+    @Test
+    public void refreshRunningBeforeTheFirstPageIsJoined() throws Exception {
+        mSnapshot.write(new StringReader(catalogJson(0, 50)));
+        mServer.enqueue(catalogResponse(catalogJson(100, 150), "\"v2\""));
+        CatalogRefresh refresh = new CatalogRefresh(mServer.url("/").toString(), mClient, mSnapshot);
+        final List<Runnable> refreshes = new ArrayList<>();
+        //started at process start, still waiting for a thread
+        refresh.start(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                refreshes.add(runnable);
+            }
+        });
+
+        List<Image> page = loadFirstPage(refresh);
+        refreshes.get(0).run();
+
+        assertEquals(1, refreshes.size());
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(Integer.valueOf(0), page.get(0).getId());
+        assertTrue(mListener.changed);
+    }
+
+
+    /* One loader per app start */
+    private List<Image> loadFirstPage() {
+        return loadFirstPage(new CatalogRefresh(mServer.url("/").toString(), mClient, mSnapshot));
+    }
+
+    private List<Image> loadFirstPage(CatalogRefresh refresh) {
+        CachedCatalogLoader loader = new CachedCatalogLoader(refresh, mNetworkLoader, DIRECT, DIRECT, mListener);
+        final List<?>[] loaded = new List<?>[1];
+        loader.loadPage(0, PAGE_SIZE, new PagedWindow.PageCallback<Image>() {
+            @Override
+            public void onPageLoaded(List<Image> items) {
+                loaded[0] = items;
+            }
+
+            @Override
+            public void onPageFailed(Throwable t) {
+                throw new AssertionError(t);
+            }
+        });
+        @SuppressWarnings("unchecked")
+        List<Image> page = (List<Image>) loaded[0];
+        return page;
+    }
+
+    private static MockResponse catalogResponse(String json, String etag) {
+        return new MockResponse()
+                .setBody(json)
+                .setHeader("Content-Type", "application/json")
+                .setHeader("ETag", etag);
+    }
+
+    /* Stands in for CatalogPageLoader, never answers */
+    private static class NetworkLoader implements PagedWindow.PageLoader<Image> {
+        boolean used;
+
+        @Override
+        public void loadPage(int page, int pageSize, PagedWindow.PageCallback<Image> callback) {
+            used = true;
+        }
+    }
+
+    private static class RecordingListener implements CachedCatalogLoader.Listener {
+        boolean changed;
+        Throwable refreshFailure;
+
+        @Override
+        public void onCatalogChanged() {
+            changed = true;
+        }
+
+        @Override
+        public void onRefreshFailed(Throwable t) {
+            refreshFailure = t;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.darshan.android.imagedownloader.retrofit;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Parsing a synthetic 100k entry /list catalog: the old way (Gson into ArrayList&lt;Image&gt;, then
+ * keep 20) against the streaming {@link CatalogSelection}s.
+ * Reports the time until the 20 images are available (nothing is available earlier with the
+ * old way) and the peak heap above the baseline, sampled every millisecond while parsing.
+ * Excluded from the normal test run, use ./gradlew test -Pbenchmarks
+ */
+public class CatalogBenchmark {
+    private static final int CATALOG_SIZE = 100000;
+    private static final int PICKED = 20;
+    private static final int WARMUP_RUNS = 2;
+    private static final int RUNS = 5;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private final Gson mGson = new Gson();
+    private final TypeAdapter<Image> mImageAdapter = mGson.getAdapter(Image.class);
+
+    private interface Parse {
+        List<Image> run(Reader reader) throws IOException;
+    }
+
+    @Test
+    public void compareCatalogParsing() throws Exception {
+        File catalog = writeCatalog();
+        System.out.println(String.format("catalog: %d entries, %d kB", CATALOG_SIZE, catalog.length() / 1024));
+        System.out.println(String.format("%-22s %14s %16s", "path", "median ms", "peak heap MB"));
+
+        report("gson ArrayList", catalog, new Parse() {
+            @Override
+            public List<Image> run(Reader reader) {
+                ArrayList<Image> all = mGson.fromJson(reader, new TypeToken<ArrayList<Image>>() {
+                }.getType());
+                int offset = new Random().nextInt(all.size() - PICKED);
+                return new ArrayList<>(all.subList(offset, offset + PICKED));
+            }
+        });
+        report("stream window @0", catalog, new Parse() {
+            @Override
+            public List<Image> run(Reader reader) throws IOException {
+                return CatalogSelection.window(0, PICKED).read(new JsonReader(reader), mImageAdapter).getImages();
+            }
+        });
+        report("stream window @50k", catalog, new Parse() {
+            @Override
+            public List<Image> run(Reader reader) throws IOException {
+                return CatalogSelection.window(CATALOG_SIZE / 2, PICKED)
+                        .read(new JsonReader(reader), mImageAdapter).getImages();
+            }
+        });
+        report("stream sample", catalog, new Parse() {
+            @Override
+            public List<Image> run(Reader reader) throws IOException {
+                return CatalogSelection.sample(PICKED, new Random())
+                        .read(new JsonReader(reader), mImageAdapter).getImages();
+            }
+        });
+    }
+
+    private void report(String path, File catalog, Parse parse) throws Exception {
+        double[] millis = new double[RUNS];
+        long peakBytes = 0;
+        for (int run = -WARMUP_RUNS; run < RUNS; run++) {
+            System.gc();
+            HeapSampler sampler = new HeapSampler();
+            sampler.start();
+            Reader reader = new InputStreamReader(new FileInputStream(catalog), "UTF-8");
+            long start = System.nanoTime();
+            List<Image> images;
+            try {
+                images = parse.run(reader);
+            } finally {
+                reader.close();
+            }
+            long elapsed = System.nanoTime() - start;
+            sampler.finish();
+            if (images.size() != PICKED) {
+                throw new AssertionError(path + " picked " + images.size());
+            }
+            if (run >= 0) {
+                millis[run] = elapsed / 1000000.0;
+                peakBytes = Math.max(peakBytes, sampler.mPeakBytes - sampler.mBaselineBytes);
+            }
+        }
+        Arrays.sort(millis);
+        System.out.println(String.format("%-22s %14.1f %16.1f", path, millis[RUNS / 2], peakBytes / (1024.0 * 1024.0)));
+    }
+
+    private File writeCatalog() throws IOException {
+        File file = mTempFolder.newFile("list.json");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            StringBuilder entry = new StringBuilder();
+            writer.write('[');
+            for (int id = 0; id < CATALOG_SIZE; id++) {
+                entry.setLength(0);
+                if (id > 0) {
+                    entry.append(',');
+                }
+                CatalogSelectionTest.appendEntry(entry, id);
+                writer.write(entry.toString());
+            }
+            writer.write(']');
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+
+    /* Polls the used heap while a parse runs */
+    private static class HeapSampler extends Thread {
+        private final Runtime mRuntime = Runtime.getRuntime();
+        private final long mBaselineBytes = usedBytes(mRuntime);
+        private volatile boolean mRunning = true;
+        private volatile long mPeakBytes = mBaselineBytes;
+
+        HeapSampler() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (mRunning) {
+                mPeakBytes = Math.max(mPeakBytes, usedBytes(mRuntime));
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void finish() throws InterruptedException {
+            mPeakBytes = Math.max(mPeakBytes, usedBytes(mRuntime));
+            mRunning = false;
+            join();
+        }
+
+        private static long usedBytes(Runtime runtime) {
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.darshan.android.imagedownloader.retrofit;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A synthetic 50k entry /list catalog kept the old way (Gson into ArrayList&lt;Image&gt;) against
+ * the {@link CatalogIndex} of {@link CatalogSnapshot}: time to open it and show a page of 20 from
+ * the middle, time to find 20 entries by id, and the heap still held afterwards.
+ * Excluded from the normal test run, use ./gradlew test -Pbenchmarks
+ */
+public class CatalogIndexBenchmark {
+    private static final int CATALOG_SIZE = 50000;
+    private static final int PAGE = 20;
+    private static final int WARMUP_RUNS = 2;
+    private static final int RUNS = 5;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private final Gson mGson = new Gson();
+    //what the list holds on to between measurements
+    private Object mOpened;
+
+    private interface Catalog {
+        /* What the list would keep while it is shown */
+        Object open() throws IOException;
+
+        List<Image> page(Object opened, int offset);
+
+        List<Image> byId(Object opened, int[] ids);
+    }
+
+    @Test
+    public void compareCatalogStorage() throws Exception {
+        final File json = mTempFolder.newFile("list.json");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(json), "UTF-8");
+        try {
+            writer.write(CatalogSelectionTest.catalogJson(0, CATALOG_SIZE));
+        } finally {
+            writer.close();
+        }
+        final CatalogSnapshot snapshot = new CatalogSnapshot(new File(mTempFolder.getRoot(), "catalog.index"));
+        Reader reader = new InputStreamReader(new FileInputStream(json), "UTF-8");
+        try {
+            snapshot.write(reader);
+        } finally {
+            reader.close();
+        }
+        System.out.println(String.format("catalog: %d entries, json %d kB, index %d kB", CATALOG_SIZE,
+                json.length() / 1024, snapshot.getFile().length() / 1024));
+        System.out.println(String.format("%-16s %12s %12s %16s", "path", "page ms", "by id ms", "retained MB"));
+
+        report("gson ArrayList", new Catalog() {
+            @Override
+            public Object open() throws IOException {
+                Reader reader = new InputStreamReader(new FileInputStream(json), "UTF-8");
+                try {
+                    return mGson.fromJson(reader, new TypeToken<ArrayList<Image>>() {
+                    }.getType());
+                } finally {
+                    reader.close();
+                }
+            }
+
+            @Override
+            public List<Image> page(Object opened, int offset) {
+                List<?> all = (List<?>) opened;
+                ArrayList<Image> page = new ArrayList<>();
+                for (Object image : all.subList(offset, offset + PAGE)) {
+                    page.add((Image) image);
+                }
+                return page;
+            }
+
+            @Override
+            public List<Image> byId(Object opened, int[] ids) {
+                ArrayList<Image> found = new ArrayList<>();
+                for (int id : ids) {
+                    for (Object image : (List<?>) opened) {
+                        if (((Image) image).getId() == id) {
+                            found.add((Image) image);
+                            break;
+                        }
+                    }
+                }
+                return found;
+            }
+        });
+        report("mapped index", new Catalog() {
+            @Override
+            public Object open() throws IOException {
+                return CatalogIndex.open(snapshot.getFile());
+            }
+
+            @Override
+            public List<Image> page(Object opened, int offset) {
+                CatalogIndex index = (CatalogIndex) opened;
+                ArrayList<Image> page = new ArrayList<>();
+                for (int position = offset; position < offset + PAGE; position++) {
+                    page.add(index.bind(position));
+                }
+                return page;
+            }
+
+            @Override
+            public List<Image> byId(Object opened, int[] ids) {
+                CatalogIndex index = (CatalogIndex) opened;
+                ArrayList<Image> found = new ArrayList<>();
+                for (int id : ids) {
+                    found.add(index.bind(index.positionOf(id)));
+                }
+                return found;
+            }
+        });
+    }
+
+    private void report(String path, Catalog catalog) throws Exception {
+        int[] ids = new int[PAGE];
+        for (int i = 0; i < PAGE; i++) {
+            ids[i] = CATALOG_SIZE - 1 - i * 997;
+        }
+        double[] pageMillis = new double[RUNS];
+        double[] byIdMillis = new double[RUNS];
+        long retainedBytes = 0;
+        for (int run = -WARMUP_RUNS; run < RUNS; run++) {
+            long baseline = usedBytes();
+            long start = System.nanoTime();
+            mOpened = catalog.open();
+            Object opened = mOpened;
+            List<Image> page = catalog.page(opened, CATALOG_SIZE / 2);
+            long paged = System.nanoTime();
+            List<Image> found = catalog.byId(opened, ids);
+            long elapsed = System.nanoTime() - paged;
+            if (page.size() != PAGE || found.size() != PAGE || found.get(0).getId() != ids[0]) {
+                throw new AssertionError(path + " found " + page.size() + ", " + found.size());
+            }
+            long retained = usedBytes() - baseline;
+            if (run >= 0) {
+                pageMillis[run] = (paged - start) / 1000000.0;
+                byIdMillis[run] = elapsed / 1000000.0;
+                retainedBytes = Math.max(retainedBytes, retained);
+            }
+            mOpened = null;
+        }
+        Arrays.sort(pageMillis);
+        Arrays.sort(byIdMillis);
+        System.out.println(String.format("%-16s %12.2f %12.3f %16.1f", path, pageMillis[RUNS / 2],
+                byIdMillis[RUNS / 2], retainedBytes / (1024.0 * 1024.0)));
+    }
+
+    private static long usedBytes() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,132 @@
+package com.darshan.android.imagedownloader.retrofit;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+
+import static com.darshan.android.imagedownloader.retrofit.CatalogSelectionTest.catalogJson;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class CatalogIndexTest {
+    private static final TypeAdapter<Image> IMAGE_ADAPTER = new Gson().getAdapter(Image.class);
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    @Test
+    public void keepsEveryField() throws Exception {
+        CatalogIndex index = index(catalogJson(0, 1000));
+
+        assertEquals(1000, index.size());
+        Image image = index.bind(437);
+        assertEquals(Integer.valueOf(437), image.getId());
+        assertEquals(Integer.valueOf(5616), image.getWidth());
+        assertEquals(Integer.valueOf(3744), image.getHeight());
+        assertEquals("jpeg", image.getFormat());
+        assertEquals("0437_yC-Yzbqy7PY.jpeg", image.getFilename());
+        assertEquals("author 437", image.getAuthor());
+        assertEquals("https://unsplash.com/@author437", image.getAuthorUrl());
+        assertEquals("https://unsplash.com/photos/437", image.getPostUrl());
+        assertEquals(437, index.getId(437));
+        assertEquals(3744, index.getHeight(999));
+    }
+
+    @Test
+    public void keepsMissingFieldsAndUnicode() throws Exception {
+        CatalogIndex index = index("[{\"id\":7,\"author\":\"Zo\u00eb \u00c5ngstr\u00f6m \u5199\u771f\"},null,{\"width\":-1}]");
+
+        assertEquals(2, index.size());
+        Image image = index.bind(0);
+        assertEquals("Zo\u00eb \u00c5ngstr\u00f6m \u5199\u771f", image.getAuthor());
+        assertNull(image.getWidth());
+        assertNull(image.getFormat());
+        Image noId = index.bind(1);
+        assertNull(noId.getId());
+        assertEquals(Integer.valueOf(-1), noId.getWidth());
+        assertEquals(CatalogIndex.NO_VALUE, index.getId(1));
+    }
+
+    @Test
+    public void findsEntriesById() throws Exception {
+        //ids in the order the server lists them, not the position
+        CatalogIndex index = index(catalogJson(500, 1500).replace("\"id\":5", "\"id\":-5"));
+
+        assertEquals(0, index.positionOf(-500));
+        assertEquals(999, index.positionOf(1499));
+        assertEquals(100, index.positionOf(600));
+        assertEquals(-1, index.positionOf(600 + 100000));
+        assertEquals(-1, index.positionOf(499));
+    }
+
+    @Test
+    public void emptyCatalog() throws Exception {
+        CatalogIndex index = index("[]");
+
+        assertEquals(0, index.size());
+        assertEquals(-1, index.positionOf(0));
+        try {
+            index.bind(0);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    @Test
+    public void tornOrForeignFileIsRejected() throws Exception {
+        File file = write(catalogJson(0, 10));
+        RandomAccessFile torn = new RandomAccessFile(file, "rw");
+        try {
+            torn.setLength(torn.length() - 1);
+        } finally {
+            torn.close();
+        }
+        assertNotAnIndex(file);
+
+        File foreign = mTempFolder.newFile("catalog.json");
+        OutputStream out = new FileOutputStream(foreign);
+        try {
+            out.write(catalogJson(0, 10).getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        assertNotAnIndex(foreign);
+        assertNotAnIndex(mTempFolder.newFile("empty"));
+    }
+
+
+    private CatalogIndex index(String json) throws IOException {
+        return CatalogIndex.open(write(json));
+    }
+
+    private File write(String json) throws IOException {
+        File file = mTempFolder.newFile();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            CatalogIndex.write(new JsonReader(new StringReader(json)), IMAGE_ADAPTER, out);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void assertNotAnIndex(File file) {
+        try {
+            CatalogIndex.open(file);
+            fail(file.getName());
+        } catch (IOException expected) {
+        }
+    }
+}
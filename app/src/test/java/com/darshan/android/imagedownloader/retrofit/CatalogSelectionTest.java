@@ -0,0 +1,144 @@
+package com.darshan.android.imagedownloader.retrofit;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CatalogSelectionTest {
+    private final TypeAdapter<Image> mImageAdapter = new Gson().getAdapter(Image.class);
+
+    @Test
+    public void windowReadsOnlyUpToItsEnd() throws Exception {
+        //anything after the window is never looked at, not even when it is broken
+        String json = catalogJson(0, 10).replaceFirst("]$", ",{broken");
+
+        Catalog catalog = CatalogSelection.window(3, 4).read(reader(json), mImageAdapter);
+
+        assertEquals(4, catalog.getImages().size());
+        assertEquals(Integer.valueOf(3), catalog.getImages().get(0).getId());
+        assertEquals(Integer.valueOf(6), catalog.getImages().get(3).getId());
+        assertEquals("author 5", catalog.getImages().get(2).getAuthor());
+        assertEquals("https://unsplash.com/photos/5", catalog.getImages().get(2).getPostUrl());
+        assertEquals(7, catalog.getScannedCount());
+    }
+
+    @Test
+    public void windowPastTheEndReturnsWhatIsThere() throws Exception {
+        Catalog catalog = CatalogSelection.window(8, 5).read(reader(catalogJson(0, 10)), mImageAdapter);
+
+        assertEquals(2, catalog.getImages().size());
+        assertEquals(10, catalog.getScannedCount());
+    }
+
+    @Test
+    public void sampleIsDistinctAndInCatalogOrder() throws Exception {
+        Catalog catalog = CatalogSelection.sample(20, new Random(42))
+                .read(reader(catalogJson(0, 1000)), mImageAdapter);
+
+        List<Image> images = catalog.getImages();
+        assertEquals(20, images.size());
+        assertEquals(1000, catalog.getScannedCount());
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < images.size(); i++) {
+            assertTrue(ids.add(images.get(i).getId()));
+            if (i > 0) {
+                assertTrue(images.get(i - 1).getId() < images.get(i).getId());
+            }
+        }
+    }
+
+    @Test
+    public void sampleCoversTheWholeCatalog() throws Exception {
+        String json = catalogJson(0, 100);
+        Random random = new Random(7);
+        int[] picked = new int[100];
+        for (int run = 0; run < 500; run++) {
+            for (Image image : CatalogSelection.sample(10, random).read(reader(json), mImageAdapter).getImages()) {
+                picked[image.getId()]++;
+            }
+        }
+
+        //each entry is expected 50 times, uniform sampling keeps all of them well away from 0
+        for (int count : picked) {
+            assertTrue(count > 15 && count < 100);
+        }
+    }
+
+    @Test
+    public void smallCatalogIsReturnedWhole() throws Exception {
+        Catalog catalog = CatalogSelection.sample(20, new Random()).read(reader(catalogJson(0, 5)), mImageAdapter);
+
+        assertEquals(5, catalog.getImages().size());
+        assertEquals(Integer.valueOf(0), catalog.getImages().get(0).getId());
+    }
+
+    @Test
+    public void converterFactoryStreamsCatalogResponses() throws Exception {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody(catalogJson(0, 50)));
+        server.enqueue(new MockResponse().setBody(catalogJson(0, 50)));
+        server.start();
+        try {
+            PicusumApiEndpoint endpoint = new Retrofit.Builder()
+                    .baseUrl(server.url("/"))
+                    .addConverterFactory(CatalogConverterFactory.create(CatalogSelection.window(10, 5)))
+                    .addConverterFactory(GsonConverterFactory.create())
+                    .build()
+                    .create(PicusumApiEndpoint.class);
+
+            Catalog catalog = endpoint.getCatalog().execute().body();
+            //other types still go through Gson
+            List<Image> all = endpoint.getImages().execute().body();
+
+            assertEquals(5, catalog.getImages().size());
+            assertEquals(Integer.valueOf(10), catalog.getImages().get(0).getId());
+            assertEquals(50, all.size());
+            assertEquals("/list", server.takeRequest().getPath());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+
+    /**
+     * Catalog in the format of https://picsum.photos/list with ids from..to-1.
+     */
+    static String catalogJson(int from, int to) {
+        StringBuilder json = new StringBuilder("[");
+        for (int id = from; id < to; id++) {
+            if (id > from) {
+                json.append(',');
+            }
+            appendEntry(json, id);
+        }
+        return json.append(']').toString();
+    }
+
+    static void appendEntry(StringBuilder json, int id) {
+        json.append("{\"format\":\"jpeg\",\"width\":5616,\"height\":3744,\"filename\":\"")
+                .append(String.format("%04d", id)).append("_yC-Yzbqy7PY.jpeg\",\"id\":").append(id)
+                .append(",\"author\":\"author ").append(id)
+                .append("\",\"author_url\":\"https://unsplash.com/@author").append(id)
+                .append("\",\"post_url\":\"https://unsplash.com/photos/").append(id).append("\"}");
+    }
+
+    private static JsonReader reader(String json) {
+        return new JsonReader(new StringReader(json));
+    }
+}
@@ -0,0 +1,81 @@
+package com.darshan.android.imagedownloader.thumbnails;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class BucketPoolTest {
+    private BucketPool<byte[]> mPool;
+
+    @Before
+    public void setUp() {
+        mPool = new BucketPool<>(100, 2, new BucketPool.Sizer<byte[]>() {
+            @Override
+            public int sizeOf(byte[] buffer) {
+                return buffer.length;
+            }
+        });
+    }
+
+    @Test
+    public void smallestLargeEnoughObjectIsHandedOut() {
+        byte[] small = new byte[10];
+        byte[] large = new byte[30];
+        mPool.put(large);
+        mPool.put(small);
+
+        assertSame(small, mPool.get(8));
+        assertSame(large, mPool.get(20));
+        assertEquals(2, mPool.getHitCount());
+        assertEquals(0, mPool.getSize());
+    }
+
+    @Test
+    public void muchLargerObjectsAreNotWastedOnSmallNeeds() {
+        mPool.put(new byte[30]);
+
+        assertNull(mPool.get(10));
+        assertEquals(1, mPool.getMissCount());
+        assertEquals(30, mPool.getSize());
+    }
+
+    @Test
+    public void objectsReleasedLongestAgoAreEvictedFirst() {
+        byte[] first = new byte[40];
+        byte[] second = new byte[40];
+        byte[] third = new byte[40];
+        mPool.put(first);
+        mPool.put(second);
+
+        mPool.put(third);
+
+        assertEquals(1, mPool.getEvictionCount());
+        assertEquals(80, mPool.getSize());
+        //newest of a bucket first
+        assertSame(third, mPool.get(40));
+        assertSame(second, mPool.get(40));
+        assertNull(mPool.get(40));
+    }
+
+    @Test
+    public void objectsLargerThanThePoolAreDropped() {
+        assertFalse(mPool.put(new byte[101]));
+        assertEquals(0, mPool.getSize());
+    }
+
+    @Test
+    public void clearDropsEverything() {
+        mPool.put(new byte[10]);
+        mPool.put(new byte[20]);
+
+        mPool.clear();
+
+        assertEquals(0, mPool.getSize());
+        assertEquals(2, mPool.getEvictionCount());
+        assertNull(mPool.get(10));
+    }
+}
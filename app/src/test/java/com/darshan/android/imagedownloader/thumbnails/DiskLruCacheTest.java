@@ -0,0 +1,128 @@
+package com.darshan.android.imagedownloader.thumbnails;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class DiskLruCacheTest {
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    @Test
+    public void storedDataIsReadBack() throws Exception {
+        DiskLruCache cache = DiskLruCache.open(mTempFolder.getRoot(), 100);
+        byte[] data = bytes(10, (byte) 7);
+
+        cache.put("1_56x56", data);
+
+        assertArrayEquals(data, read(cache.get("1_56x56")));
+        assertNull(cache.get("2_56x56"));
+        assertEquals(10, cache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvictedOverBudget() throws Exception {
+        DiskLruCache cache = DiskLruCache.open(mTempFolder.getRoot(), 30);
+        cache.put("a", bytes(10, (byte) 1));
+        cache.put("b", bytes(10, (byte) 2));
+        cache.put("c", bytes(10, (byte) 3));
+        //a is used, b is now the eldest
+        cache.get("a");
+
+        cache.put("d", bytes(10, (byte) 4));
+
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+        assertEquals(30, cache.size());
+        assertFalse(new File(mTempFolder.getRoot(), "b").exists());
+    }
+
+    @Test
+    public void replacingAnEntryCountsOnlyTheNewSize() throws Exception {
+        DiskLruCache cache = DiskLruCache.open(mTempFolder.getRoot(), 100);
+        cache.put("a", bytes(40, (byte) 1));
+
+        cache.put("a", bytes(15, (byte) 2));
+
+        assertEquals(15, cache.size());
+        assertArrayEquals(bytes(15, (byte) 2), read(cache.get("a")));
+    }
+
+    @Test
+    public void entriesSurviveReopenAndLeftoversAreDeleted() throws Exception {
+        DiskLruCache cache = DiskLruCache.open(mTempFolder.getRoot(), 100);
+        cache.put("a", bytes(20, (byte) 1));
+        cache.put("b", bytes(30, (byte) 2));
+        //crashed in the middle of a put
+        assertEquals(true, new File(mTempFolder.getRoot(), "c.0.tmp").createNewFile());
+
+        DiskLruCache reopened = DiskLruCache.open(mTempFolder.getRoot(), 100);
+
+        assertEquals(50, reopened.size());
+        assertArrayEquals(bytes(30, (byte) 2), read(reopened.get("b")));
+        assertFalse(new File(mTempFolder.getRoot(), "c.0.tmp").exists());
+    }
+
+    @Test
+    public void smallerBudgetTrimsOnOpen() throws Exception {
+        DiskLruCache cache = DiskLruCache.open(mTempFolder.getRoot(), 100);
+        cache.put("a", bytes(40, (byte) 1));
+        cache.put("b", bytes(40, (byte) 2));
+
+        DiskLruCache reopened = DiskLruCache.open(mTempFolder.getRoot(), 50);
+
+        assertEquals(40, reopened.size());
+    }
+
+    @Test
+    public void dataLargerThanTheBudgetIsNotStored() throws Exception {
+        DiskLruCache cache = DiskLruCache.open(mTempFolder.getRoot(), 10);
+        cache.put("a", bytes(5, (byte) 1));
+
+        cache.put("b", bytes(11, (byte) 2));
+
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void keysHaveToBeFileNames() throws Exception {
+        DiskLruCache.open(mTempFolder.getRoot(), 10).get("../escape");
+    }
+
+
+    private static byte[] bytes(int length, byte value) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = value;
+        }
+        return data;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                read += in.read(data, read, data.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
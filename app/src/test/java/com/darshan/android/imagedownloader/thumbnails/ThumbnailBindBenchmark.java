@@ -0,0 +1,210 @@
+package com.darshan.android.imagedownloader.thumbnails;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Binds and recycles 10k rows with a thumbnail each, as when flinging through the whole list.
+ * <p>
+ * The encoded half is the shipped code: the body is read through {@link ThumbnailDecoder#read}
+ * into its pooled buffers and handed back with {@link ThumbnailDecoder#release(ThumbnailDecoder.Buffer)},
+ * the scratch buffer comes from the same {@link BucketPool} the way decode() takes it. The old
+ * way reads every body into a new array, as ResponseBody.bytes() did, with a new scratch buffer.
+ * <p>
+ * The bitmap half is simulated, bitmaps need a device: pixels are byte arrays of the decoded size,
+ * pooled in a {@link BucketPool} configured like the decoder's bitmap pool. Pixel format and
+ * pooling are measured apart, so neither is credited with what the other saves.
+ * <ul>
+ * <li>new-8888: new buffers, new ARGB_8888 pixels per decode, the code before</li>
+ * <li>new-565: new buffers, new RGB_565 pixels per decode</li>
+ * <li>pool-8888: pooled buffers, ARGB_8888 pixels from the bitmaps the memory cache evicted</li>
+ * <li>pool-565: pooled buffers and RGB_565 pixels from evicted bitmaps, the shipped code</li>
+ * </ul>
+ * Reports the bytes allocated by the binding thread and the collections that ran meanwhile.
+ * Excluded from the normal test run, use ./gradlew test -Pbenchmarks
+ */
+public class ThumbnailBindBenchmark {
+    private static final int ROWS = 10000;
+    //56dp on a xxhdpi screen, landscape and portrait originals
+    private static final int THUMBNAIL_SIZE = 168;
+    //the memory cache keeps about this many thumbnails around the visible rows
+    private static final int CACHED_THUMBNAILS = 60;
+    //pool sizes the app gives the decoder
+    private static final long BITMAP_POOL_BYTES = 4L * 1024 * 1024;
+    private static final long BUFFER_POOL_BYTES = 512L * 1024;
+    private static final int ARGB_8888_BYTES_PER_PIXEL = 4;
+    private static final int MAX_ENCODED_BYTES = 24 * 1024;
+    private static final int RUNS = 3;
+
+    private static final BucketPool.Sizer<byte[]> ARRAY_SIZER = new BucketPool.Sizer<byte[]>() {
+        @Override
+        public int sizeOf(byte[] array) {
+            return array.length;
+        }
+    };
+
+    //what the server sends, streams over it allocate nothing worth counting
+    private final byte[] mEncoded = new byte[MAX_ENCODED_BYTES];
+
+    private interface Binder {
+        byte[] bind(int row) throws IOException;
+
+        void evicted(byte[] pixels);
+    }
+
+    @Test
+    public void compareBindAllocations() throws IOException {
+        new Random(1).nextBytes(mEncoded);
+        System.out.println(String.format("%-10s %14s %10s %10s %10s", "path", "allocated MB", "GCs", "GC ms", "ms"));
+        for (int run = 0; run < RUNS; run++) {
+            report("new-8888", newBuffers(ARGB_8888_BYTES_PER_PIXEL));
+            report("new-565", newBuffers(ThumbnailDecoder.BYTES_PER_PIXEL));
+            report("pool-8888", pooled(ARGB_8888_BYTES_PER_PIXEL));
+            report("pool-565", pooled(ThumbnailDecoder.BYTES_PER_PIXEL));
+        }
+    }
+
+    private Binder newBuffers(final int bytesPerPixel) {
+        return new Binder() {
+            @Override
+            public byte[] bind(int row) throws IOException {
+                int length = encodedLength(row);
+                byte[] body = new byte[length];
+                readFully(stream(length), body);
+                byte[] tempStorage = new byte[ThumbnailDecoder.TEMP_STORAGE_BYTES];
+                fill(tempStorage, row);
+                byte[] pixels = new byte[pixelCount(row) * bytesPerPixel];
+                decodeInto(body, length, pixels);
+                return pixels;
+            }
+
+            @Override
+            public void evicted(byte[] pixels) {
+                //left to the GC
+            }
+        };
+    }
+
+    private Binder pooled(final int bytesPerPixel) {
+        final ThumbnailDecoder decoder = new ThumbnailDecoder(BITMAP_POOL_BYTES, BUFFER_POOL_BYTES);
+        final BucketPool<byte[]> bufferPool = decoder.getBufferPool();
+        final BucketPool<byte[]> pixelPool = new BucketPool<>(BITMAP_POOL_BYTES,
+                ThumbnailDecoder.MAX_SIZE_MULTIPLE, ARRAY_SIZER);
+        return new Binder() {
+            @Override
+            public byte[] bind(int row) throws IOException {
+                int length = encodedLength(row);
+                ThumbnailDecoder.Buffer body = decoder.read(stream(length), length);
+                byte[] tempStorage = obtain(bufferPool, ThumbnailDecoder.TEMP_STORAGE_BYTES);
+                fill(tempStorage, row);
+                byte[] pixels = obtain(pixelPool, pixelCount(row) * bytesPerPixel);
+                decodeInto(body.getData(), body.getLength(), pixels);
+                bufferPool.put(tempStorage);
+                decoder.release(body);
+                return pixels;
+            }
+
+            @Override
+            public void evicted(byte[] pixels) {
+                pixelPool.put(pixels);
+            }
+        };
+    }
+
+    private void report(String path, Binder binder) throws IOException {
+        //rows scrolled past, newest last
+        Map<Integer, byte[]> cache = new LinkedHashMap<>();
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+
+        for (int row = 0; row < ROWS; row++) {
+            cache.put(row, binder.bind(row));
+            if (cache.size() > CACHED_THUMBNAILS) {
+                Iterator<Map.Entry<Integer, byte[]>> eldest = cache.entrySet().iterator();
+                binder.evicted(eldest.next().getValue());
+                eldest.remove();
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        System.out.println(String.format("%-10s %14.1f %10d %10d %10.1f", path,
+                allocated / (1024.0 * 1024.0),
+                gcCount() - gcCountBefore,
+                gcMillis() - gcMillisBefore,
+                elapsed / 1000000.0));
+    }
+
+
+    private InputStream stream(int length) {
+        return new ByteArrayInputStream(mEncoded, 0, length);
+    }
+
+    /* Encoded thumbnails are 8 to 24kB, the same for a row in every run */
+    private static int encodedLength(int row) {
+        return 8 * 1024 + new Random(row).nextInt(MAX_ENCODED_BYTES - 8 * 1024);
+    }
+
+    /* Every third original is portrait */
+    private static int pixelCount(int row) {
+        return THUMBNAIL_SIZE * (row % 3 == 0 ? THUMBNAIL_SIZE * 3 / 2 : THUMBNAIL_SIZE * 4 / 3);
+    }
+
+    private static byte[] obtain(BucketPool<byte[]> pool, int minBytes) {
+        byte[] array = pool.get(minBytes);
+        return array != null ? array : new byte[minBytes];
+    }
+
+    private static void readFully(InputStream in, byte[] target) throws IOException {
+        int offset = 0;
+        int read;
+        while (offset < target.length && (read = in.read(target, offset, target.length - offset)) != -1) {
+            offset += read;
+        }
+    }
+
+    private static void fill(byte[] array, int seed) {
+        for (int i = 0; i < array.length; i += 64) {
+            array[i] = (byte) (seed + i);
+        }
+    }
+
+    /* Touches every pixel like a decoder would */
+    private static void decodeInto(byte[] body, int length, byte[] pixels) {
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = body[i % length];
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, bean.getCollectionTime());
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,43 @@
+package com.darshan.android.imagedownloader.thumbnails;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ThumbnailRequestTest {
+    private static final String BASE_URL = "https://picsum.photos/";
+
+    @Test
+    public void keyIsPerImageAndSize() {
+        assertEquals("12_56x56", new ThumbnailRequest(12, 5000, 3333, 56, 56).getKey());
+        assertEquals("12_112x112", new ThumbnailRequest(12, 5000, 3333, 112, 112).getKey());
+    }
+
+    @Test
+    public void requestedSizeKeepsAspectRatioAndCoversTheView() {
+        //landscape: height fits the view, width follows
+        assertEquals(BASE_URL + "150/100?image=3", new ThumbnailRequest(3, 3000, 2000, 100, 100).getUrl(BASE_URL));
+        //portrait: width fits the view
+        assertEquals(BASE_URL + "100/150?image=3", new ThumbnailRequest(3, 2000, 3000, 100, 100).getUrl(BASE_URL));
+    }
+
+    @Test
+    public void smallOriginalsAreNotUpscaled() {
+        assertEquals(BASE_URL + "80/60?image=4", new ThumbnailRequest(4, 80, 60, 100, 100).getUrl(BASE_URL));
+    }
+
+    @Test
+    public void unknownOriginalSizeRequestsTheViewSize() {
+        assertEquals(BASE_URL + "56/56?image=5", new ThumbnailRequest(5, 0, 0, 56, 56).getUrl(BASE_URL));
+    }
+
+    @Test
+    public void sampleSizeKeepsTheViewCovered() {
+        ThumbnailRequest request = new ThumbnailRequest(1, 0, 0, 100, 100);
+
+        assertEquals(1, request.getSampleSize(150, 199));
+        assertEquals(2, request.getSampleSize(200, 400));
+        assertEquals(4, request.getSampleSize(800, 450));
+        assertEquals(1, request.getSampleSize(50, 50));
+    }
+}
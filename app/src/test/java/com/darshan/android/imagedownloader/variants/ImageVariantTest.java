@@ -0,0 +1,144 @@
+package com.darshan.android.imagedownloader.variants;
+
+import com.darshan.android.imagedownloader.engine.DownloadEngine;
+import com.darshan.android.imagedownloader.engine.DownloadJob;
+import com.darshan.android.imagedownloader.engine.DownloadRequest;
+import com.darshan.android.imagedownloader.metrics.Metrics;
+import com.darshan.android.imagedownloader.retrofit.Image;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ImageVariantTest {
+    private static final String BASE_URL = "https://picsum.photos/";
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    @Test
+    public void originalKeepsUrlFileAndKey() {
+        ImageVariant original = ImageVariant.original(image(12, 5616, 3744));
+
+        assertTrue(original.isOriginal());
+        assertEquals("https://unsplash.com/photos/12/download", original.getUrl(BASE_URL));
+        assertEquals("0012.jpeg", original.getFilename());
+        assertEquals("picsum-12-5616x3744", original.getContentKey());
+        assertEquals(1, original.getPixelShare(), 0);
+    }
+
+    @Test
+    public void presetsScaleTheLongEdge() {
+        ImageVariant fullHd = Resolution.FULL_HD.select(image(12, 5616, 3744), 1080, 1920, false);
+
+        assertFalse(fullHd.isOriginal());
+        assertEquals(1920, fullHd.getWidth());
+        assertEquals(1280, fullHd.getHeight());
+        assertEquals(BASE_URL + "1920/1280?image=12", fullHd.getUrl(BASE_URL));
+        assertEquals("0012_1920x1280.jpeg", fullHd.getFilename());
+        assertEquals("picsum-12-5616x3744@1920x1280", fullHd.getContentKey());
+
+        //portrait, and never upscaled
+        ImageVariant portrait = Resolution.HD.select(image(3, 3000, 4000), 1080, 1920, false);
+        assertEquals(960, portrait.getWidth());
+        assertEquals(1280, portrait.getHeight());
+        assertTrue(Resolution.UHD.select(image(3, 1600, 1200), 1080, 1920, false).isOriginal());
+    }
+
+    @Test
+    public void screenSizeCoversTheScreenInEitherOrientation() {
+        //landscape photo, portrait phone: long edge onto long edge
+        ImageVariant variant = ImageVariant.coverScreen(image(7, 4000, 3000), 1080, 2340);
+
+        assertEquals(2340, variant.getWidth());
+        assertEquals(1755, variant.getHeight());
+        assertEquals(1755 * 2340.0 / (4000 * 3000), variant.getPixelShare(), 1e-9);
+        assertEquals(Math.round(1000 / variant.getPixelShare()), variant.estimateOriginalBytes(1000));
+        //a panorama is kept tall enough for the short edge
+        ImageVariant panorama = ImageVariant.coverScreen(image(8, 8000, 2000), 1080, 2340);
+        assertEquals(1080, panorama.getHeight());
+        assertEquals(4320, panorama.getWidth());
+    }
+
+    @Test
+    public void automaticSavesOnlyOnMeteredNetworks() {
+        Image image = image(7, 4000, 3000);
+
+        assertTrue(Resolution.AUTOMATIC.select(image, 1080, 2340, false).isOriginal());
+        assertEquals(2340, Resolution.AUTOMATIC.select(image, 1080, 2340, true).getWidth());
+        assertEquals(Resolution.AUTOMATIC, Resolution.fromName(null));
+        assertEquals(Resolution.HD, Resolution.fromName("HD"));
+    }
+
+    @Test
+    public void imagesWithoutSizeOrIdComeAsOriginals() {
+        Image withoutSize = image(5, 0, 0);
+        withoutSize.setWidth(null);
+        Image withoutId = image(5, 4000, 3000);
+        withoutId.setId(null);
+
+        assertTrue(Resolution.HD.select(withoutSize, 1080, 1920, true).isOriginal());
+        assertTrue(Resolution.SCREEN.select(withoutId, 1080, 1920, true).isOriginal());
+        assertNull(ImageVariant.original(withoutId).getContentKey());
+    }
+
+    @Test
+    public void savingsAreCountedForRenditions() throws Exception {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody(new Buffer().write(new byte[1000])));
+        server.start();
+        Metrics metrics = new Metrics();
+        final VariantSavings savings = new VariantSavings(metrics);
+        DownloadEngine engine = new DownloadEngine.Builder().build();
+        ImageVariant variant = ImageVariant.fitLongEdge(image(1, 4000, 2000), 1000);
+        final CountDownLatch done = new CountDownLatch(1);
+        try {
+            engine.submit(new DownloadRequest.Builder()
+                    .url(variant.getUrl(server.url("/").toString()))
+                    .targetFile(new File(mTempFolder.getRoot(), variant.getFilename()))
+                    .tag(variant)
+                    .build(), new VariantSavings(new Metrics()) {
+                @Override
+                public void onComplete(DownloadJob job, File file) {
+                    savings.onComplete(job, file);
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            engine.shutdown();
+            server.shutdown();
+        }
+
+        assertEquals("/1000/500?image=1", server.takeRequest().getPath());
+        assertEquals(1, savings.getDownloadCount());
+        assertEquals(1000, savings.getBytes());
+        //a sixteenth of the pixels
+        assertEquals(15000, savings.getSavedBytes());
+        assertEquals(16000, metrics.counter(VariantSavings.ORIGINAL_BYTES).sum());
+    }
+
+
+    private static Image image(int id, int width, int height) {
+        Image image = new Image();
+        image.setId(id);
+        image.setWidth(width);
+        image.setHeight(height);
+        image.setFilename(String.format("%04d.jpeg", id));
+        image.setPostUrl("https://unsplash.com/photos/" + id);
+        return image;
+    }
+}